@@ -6,6 +6,8 @@ import lombok.extern.slf4j.Slf4j;
 /**
  * 独立服务器启动类，用于启动专用服务器（不依赖客户端）
  * 用法: java -jar our-craft.jar server <saveName> <worldName>
+ * 预生成模式: java -jar our-craft.jar server --pregen <radius>
+ * 以出生点为中心预生成半径radius(区块)内的区块并写入归档后退出，不启动网络服务。中断后重新执行会从中断的位置继续
  */
 @Slf4j
 public class ServerLauncherNew {
@@ -23,6 +25,19 @@ public class ServerLauncherNew {
         String archiveName = "our_craft";
         String worldName = "earth_like";
 
+        //预生成半径 小于0表示不进入预生成模式
+        int pregenRadius = -1;
+        for (int i = 0; i < args.length; i++) {
+            if ("--pregen".equals(args[i]) && i + 1 < args.length) {
+                try {
+                    pregenRadius = Integer.parseInt(args[++i]);
+                } catch (NumberFormatException e) {
+                    log.error("无效的预生成半径: {}", args[i]);
+                    return;
+                }
+            }
+        }
+
 
         log.info("========================================");
         log.info("OurCraft 专用服务器启动中...");
@@ -32,6 +47,16 @@ public class ServerLauncherNew {
 
         // 启动GameServer
         ourCraftServer = new OurCraftServer(archiveName);
+
+        // 预生成模式 完成后保存并退出
+        if (pregenRadius >= 0) {
+            log.info("进入预生成模式 半径: {}", pregenRadius);
+            boolean completed = ourCraftServer.pregenerate(pregenRadius);
+            stopServer();
+            log.info("预生成{}", completed ? "完成" : "未全部完成，重新执行可继续");
+            return;
+        }
+
         ourCraftServer.start();
         log.info("服务器启动完成");
     }
@@ -39,7 +64,7 @@ public class ServerLauncherNew {
     /**
      * 停止服务器
      */
-    private static void stopServer() {
+    private static synchronized void stopServer() {
 
         if (ourCraftServer != null) {
             log.info("停止游戏服务器");
@@ -5,6 +5,8 @@ import com.ksptool.ourcraft.sharedcore.GlobalPalette;
 import com.ksptool.ourcraft.sharedcore.blocks.inner.SharedBlock;
 import com.ksptool.ourcraft.sharedcore.enums.BlockEnums;
 import com.ksptool.ourcraft.sharedcore.utils.FlexChunkData;
+import com.ksptool.ourcraft.sharedcore.utils.FlexChunkHeightmap;
+import com.ksptool.ourcraft.sharedcore.utils.FlexChunkSection;
 import com.ksptool.ourcraft.sharedcore.world.BlockState;
 
 import java.util.ArrayList;
@@ -88,42 +90,63 @@ public class FlexChunkMeshGenerator {
         FlexChunkData.Snapshot snapshot = chunk.createSnapshot();
         int chunkX = chunk.getChunkX();
         int chunkZ = chunk.getChunkZ();
-        int chunkHeight = snapshot.getHeight();
-
-        for (int x = 0; x < FlexClientChunk.CHUNK_SIZE; x++) {
-            for (int y = 0; y < chunkHeight; y++) {
-                for (int z = 0; z < FlexClientChunk.CHUNK_SIZE; z++) {
-                    // 使用快照无锁读取方块状态
-                    BlockState state = snapshot.getBlock(x, y, z);
-                    SharedBlock sharedBlock = state.getSharedBlock();
-                    
-                    // 使用isAir方法进行快速判断（避免对象创建）
-                    if (snapshot.isAir(x, y, z)) {
-                        continue;
-                    }
 
-                    int worldX = chunkX * FlexClientChunk.CHUNK_SIZE + x;
-                    int worldZ = chunkZ * FlexClientChunk.CHUNK_SIZE + z;
-
-                    boolean isFluid = sharedBlock.isFluid();
-                    List<Float> targetVertices = isFluid ? transparentVertices : vertices;
-                    List<Float> targetTexCoords = isFluid ? transparentTexCoords : texCoords;
-                    List<Float> targetTints = isFluid ? transparentTints : tints;
-                    List<Float> targetAnimationData = isFluid ? transparentAnimationData : animationData;
-                    List<Integer> targetIndices = isFluid ? transparentIndices : indices;
-                    int currentOffset = isFluid ? transparentVertexOffset : vertexOffset;
-
-                    for (BlockFace face : BlockFace.values()) {
-                        if (shouldRenderFace(clientWorld, worldX, y, worldZ, face.dx, face.dy, face.dz, sharedBlock, chunk, snapshot)) {
-                            addFace(face, targetVertices, targetTexCoords, targetTints, targetAnimationData, targetIndices, worldX, y, worldZ, state, currentOffset);
-                            currentOffset += 4;
+        // 最高的非空气方块之上不可能产生任何面，通过高度图确定需要遍历的最大高度
+        int surfaceHeight = snapshot.getHeightmap().getMaxHeight(FlexChunkHeightmap.Type.WORLD_SURFACE);
+
+        // 每个区块段批量解码一次方块ID，避免逐个方块解包
+        var palette = GlobalPalette.getInstance();
+        int airId = FlexChunkData.getAirGlobalId();
+        int layerArea = FlexClientChunk.CHUNK_SIZE * FlexClientChunk.CHUNK_SIZE;
+        int[] sectionIds = new int[FlexChunkSection.SECTION_HEIGHT * layerArea];
+
+        for (int sectionIndex = 0; sectionIndex < snapshot.getSectionCount(); sectionIndex++) {
+
+            // 全空气的区块段没有任何需要渲染的面，直接跳过
+            if (snapshot.isSectionEmpty(sectionIndex)) {
+                continue;
+            }
+
+            int minY = sectionIndex << FlexChunkSection.SECTION_SHIFT;
+            if (minY >= surfaceHeight) {
+                break;
+            }
+            int maxY = Math.min(minY + FlexChunkSection.SECTION_HEIGHT, surfaceHeight);
+            snapshot.getSectionBlockIds(sectionIndex, sectionIds);
+
+            for (int x = 0; x < FlexClientChunk.CHUNK_SIZE; x++) {
+                for (int y = minY; y < maxY; y++) {
+                    for (int z = 0; z < FlexClientChunk.CHUNK_SIZE; z++) {
+                        int stateId = sectionIds[((y - minY) * layerArea) + (z * FlexClientChunk.CHUNK_SIZE) + x];
+                        if (stateId == airId) {
+                            continue;
+                        }
+                        BlockState state = palette.getState(stateId);
+                        SharedBlock sharedBlock = state.getSharedBlock();
+
+                        int worldX = chunkX * FlexClientChunk.CHUNK_SIZE + x;
+                        int worldZ = chunkZ * FlexClientChunk.CHUNK_SIZE + z;
+
+                        boolean isFluid = sharedBlock.isFluid();
+                        List<Float> targetVertices = isFluid ? transparentVertices : vertices;
+                        List<Float> targetTexCoords = isFluid ? transparentTexCoords : texCoords;
+                        List<Float> targetTints = isFluid ? transparentTints : tints;
+                        List<Float> targetAnimationData = isFluid ? transparentAnimationData : animationData;
+                        List<Integer> targetIndices = isFluid ? transparentIndices : indices;
+                        int currentOffset = isFluid ? transparentVertexOffset : vertexOffset;
+
+                        for (BlockFace face : BlockFace.values()) {
+                            if (shouldRenderFace(clientWorld, worldX, y, worldZ, face.dx, face.dy, face.dz, sharedBlock, chunk, snapshot)) {
+                                addFace(face, targetVertices, targetTexCoords, targetTints, targetAnimationData, targetIndices, worldX, y, worldZ, state, currentOffset);
+                                currentOffset += 4;
+                            }
                         }
-                    }
 
-                    if (isFluid) {
-                        transparentVertexOffset = currentOffset;
-                    } else {
-                        vertexOffset = currentOffset;
+                        if (isFluid) {
+                            transparentVertexOffset = currentOffset;
+                        } else {
+                            vertexOffset = currentOffset;
+                        }
                     }
                 }
             }
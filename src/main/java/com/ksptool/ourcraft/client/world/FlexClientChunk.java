@@ -75,8 +75,13 @@ public class FlexClientChunk {
      * 获取方块状态ID（用于兼容旧代码）
      */
     public int getBlockStateId(int x, int y, int z) {
-        BlockState state = getBlockState(x, y, z);
-        return GlobalPalette.getInstance().getStateId(state);
+        if (flexChunkData == null) {
+            return 0;
+        }
+        if (x < 0 || x >= CHUNK_SIZE || y < 0 || y >= flexChunkData.getHeight() || z < 0 || z >= CHUNK_SIZE) {
+            return 0;
+        }
+        return flexChunkData.getBlockId(x, y, z);
     }
     
     /**
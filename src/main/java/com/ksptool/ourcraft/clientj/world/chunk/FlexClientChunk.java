@@ -1,7 +1,6 @@
 package com.ksptool.ourcraft.clientj.world.chunk;
 
 import com.jme3.scene.Geometry;
-import com.ksptool.ourcraft.sharedcore.GlobalPalette;
 import com.ksptool.ourcraft.sharedcore.utils.FlexChunkData;
 import com.ksptool.ourcraft.sharedcore.utils.position.ChunkPos;
 import com.ksptool.ourcraft.sharedcore.world.BlockState;
@@ -41,7 +40,7 @@ public class FlexClientChunk implements SharedChunk {
 
     @Override
     public void setBlockState(int x, int y, int z, int stateId) {
-        blockData.setBlock(x, y, z, GlobalPalette.getInstance().getState(stateId));
+        blockData.setBlockId(x, y, z, stateId);
         this.stage = Stage.NEED_MESH_UPDATE;
     }
 
@@ -51,6 +50,24 @@ public class FlexClientChunk implements SharedChunk {
         this.stage = Stage.NEED_MESH_UPDATE;
     }
 
+    @Override
+    public void setBlockStates(int[] stateIds) {
+        blockData.setBlocks(stateIds);
+        this.stage = Stage.NEED_MESH_UPDATE;
+    }
+
+    @Override
+    public void fillBlockState(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, int stateId) {
+        blockData.fill(minX, minY, minZ, maxX, maxY, maxZ, stateId);
+        this.stage = Stage.NEED_MESH_UPDATE;
+    }
+
+    @Override
+    public void setBlockStateColumn(int x, int z, int minY, int[] stateIds) {
+        blockData.setColumn(x, z, minY, stateIds);
+        this.stage = Stage.NEED_MESH_UPDATE;
+    }
+
     @Override
     public BlockState getBlockState(int x, int y, int z) {
         return blockData.getBlock(x, y, z);
@@ -58,7 +75,7 @@ public class FlexClientChunk implements SharedChunk {
 
     @Override
     public int getBlockStateId(int x, int y, int z) {
-        return GlobalPalette.getInstance().getStateId(blockData.getBlock(x, y, z));
+        return blockData.getBlockId(x, y, z);
     }
 
     @Override
@@ -11,6 +11,8 @@ import com.ksptool.ourcraft.sharedcore.GlobalPalette;
 import com.ksptool.ourcraft.sharedcore.blocks.inner.SharedBlock;
 import com.ksptool.ourcraft.sharedcore.enums.BlockEnums;
 import com.ksptool.ourcraft.sharedcore.utils.FlexChunkData;
+import com.ksptool.ourcraft.sharedcore.utils.FlexChunkHeightmap;
+import com.ksptool.ourcraft.sharedcore.utils.FlexChunkSection;
 import com.ksptool.ourcraft.sharedcore.world.BlockState;
 import lombok.extern.slf4j.Slf4j;
 
@@ -165,47 +167,68 @@ public class DebugFlexChunkMeshGenerator {
         FlexChunkData.Snapshot snapshot = chunk.createSnapshot();
         int chunkX = chunk.getChunkX();
         int chunkZ = chunk.getChunkZ();
-        int chunkHeight = snapshot.getHeight();
 
-        for (int x = 0; x < DebugFlexClientChunk.CHUNK_SIZE; x++) {
-            for (int y = 0; y < chunkHeight; y++) {
-                for (int z = 0; z < DebugFlexClientChunk.CHUNK_SIZE; z++) {
-                    // 使用快照无锁读取方块状态
-                    BlockState state = snapshot.getBlock(x, y, z);
-                    
-                    // 使用isAir方法进行快速判断（避免对象创建）
-                    if (snapshot.isAir(x, y, z)) {
-                        continue;
-                    }
+        // 最高的非空气方块之上不可能产生任何面，通过高度图确定需要遍历的最大高度
+        int surfaceHeight = snapshot.getHeightmap().getMaxHeight(FlexChunkHeightmap.Type.WORLD_SURFACE);
+
+        // 每个区块段批量解码一次方块ID，避免逐个方块解包
+        var palette = GlobalPalette.getInstance();
+        int airId = FlexChunkData.getAirGlobalId();
+        int layerArea = DebugFlexClientChunk.CHUNK_SIZE * DebugFlexClientChunk.CHUNK_SIZE;
+        int[] sectionIds = new int[FlexChunkSection.SECTION_HEIGHT * layerArea];
+
+        for (int sectionIndex = 0; sectionIndex < snapshot.getSectionCount(); sectionIndex++) {
+
+            // 全空气的区块段没有任何需要渲染的面，直接跳过
+            if (snapshot.isSectionEmpty(sectionIndex)) {
+                continue;
+            }
 
-                    SharedBlock sharedBlock = state.getSharedBlock();
-                    int worldX = chunkX * DebugFlexClientChunk.CHUNK_SIZE + x;
-                    int worldZ = chunkZ * DebugFlexClientChunk.CHUNK_SIZE + z;
-
-                    boolean isFluid = sharedBlock.isFluid();
-                    FloatList targetVertices = isFluid ? transparentVertices : vertices;
-                    FloatList targetTexCoords = isFluid ? transparentTexCoords : texCoords;
-                    FloatList targetTints = isFluid ? transparentTints : tints;
-                    FloatList targetAnimationData = isFluid ? transparentAnimationData : animationData;
-                    IntList targetIndices = isFluid ? transparentIndices : indices;
-                    int currentOffset = isFluid ? transparentVertexOffset : vertexOffset;
+            int minY = sectionIndex << FlexChunkSection.SECTION_SHIFT;
+            if (minY >= surfaceHeight) {
+                break;
+            }
+            int maxY = Math.min(minY + FlexChunkSection.SECTION_HEIGHT, surfaceHeight);
+            snapshot.getSectionBlockIds(sectionIndex, sectionIds);
+
+            for (int x = 0; x < DebugFlexClientChunk.CHUNK_SIZE; x++) {
+                for (int y = minY; y < maxY; y++) {
+                    for (int z = 0; z < DebugFlexClientChunk.CHUNK_SIZE; z++) {
+                        int stateId = sectionIds[((y - minY) * layerArea) + (z * DebugFlexClientChunk.CHUNK_SIZE) + x];
+                        if (stateId == airId) {
+                            continue;
+                        }
+                        BlockState state = palette.getState(stateId);
+                        SharedBlock sharedBlock = state.getSharedBlock();
+
+                        int worldX = chunkX * DebugFlexClientChunk.CHUNK_SIZE + x;
+                        int worldZ = chunkZ * DebugFlexClientChunk.CHUNK_SIZE + z;
+
+                        boolean isFluid = sharedBlock.isFluid();
+                        FloatList targetVertices = isFluid ? transparentVertices : vertices;
+                        FloatList targetTexCoords = isFluid ? transparentTexCoords : texCoords;
+                        FloatList targetTints = isFluid ? transparentTints : tints;
+                        FloatList targetAnimationData = isFluid ? transparentAnimationData : animationData;
+                        IntList targetIndices = isFluid ? transparentIndices : indices;
+                        int currentOffset = isFluid ? transparentVertexOffset : vertexOffset;
                     
-                    // 暂存 offset 变化量，避免每次循环都更新局部变量导致逻辑复杂
-                    // int addedFaces = 0;
-
-                    for (BlockFace face : BlockFace.values()) {
-                        if (shouldRenderFace(blockStateProvider, worldX, y, worldZ, face.dx, face.dy, face.dz, sharedBlock, chunk, snapshot)) {
-                            // 使用局部坐标 x, y, z 生成网格，因为 Geometry 会设置平移
-                            addFace(face, targetVertices, targetTexCoords, targetTints, targetAnimationData, targetIndices, x, y, z, state, currentOffset);
-                            currentOffset += 4;
-                            // addedFaces++;
+                        // 暂存 offset 变化量，避免每次循环都更新局部变量导致逻辑复杂
+                        // int addedFaces = 0;
+
+                        for (BlockFace face : BlockFace.values()) {
+                            if (shouldRenderFace(blockStateProvider, worldX, y, worldZ, face.dx, face.dy, face.dz, sharedBlock, chunk, snapshot)) {
+                                // 使用局部坐标 x, y, z 生成网格，因为 Geometry 会设置平移
+                                addFace(face, targetVertices, targetTexCoords, targetTints, targetAnimationData, targetIndices, x, y, z, state, currentOffset);
+                                currentOffset += 4;
+                                // addedFaces++;
+                            }
                         }
-                    }
 
-                    if (isFluid) {
-                        transparentVertexOffset = currentOffset;
-                    } else {
-                        vertexOffset = currentOffset;
+                        if (isFluid) {
+                            transparentVertexOffset = currentOffset;
+                        } else {
+                            vertexOffset = currentOffset;
+                        }
                     }
                 }
             }
@@ -18,6 +18,8 @@ import com.ksptool.ourcraft.sharedcore.world.gen.SpawnPlatformGenerator;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
+import com.ksptool.ourcraft.sharedcore.utils.BitStorage;
+import com.ksptool.ourcraft.sharedcore.utils.OffHeapSlabAllocator;
 import com.ksptool.ourcraft.sharedcore.utils.ThreadFactoryUtils;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -74,6 +76,12 @@ public class OurCraftServer {
         //初始化全局调色板
         GlobalPalette.getInstance().bake();
 
+        //按配置启用区块数据的堆外存储
+        if (configService.read().isOffHeapChunkStorage()) {
+            BitStorage.setAllocator(new OffHeapSlabAllocator());
+            log.info("区块数据使用堆外存储");
+        }
+
         //初始化归档管理器
         this.archiveService = new ArchiveService();
 
@@ -106,9 +114,32 @@ public class OurCraftServer {
 
         //启动网络服务
         networkService.start();
+
+        //启动SCA后台碎片整理
+        archiveService.getChunkService().startBackgroundCompaction();
+
+        //启动玩家数据后台批量写入
+        archiveService.getPlayerService().start();
     }
 
 
+    /**
+     * 预生成模式: 创建并加载默认世界(不运行世界，不启动网络服务)，以出生点为中心预生成区块后返回
+     * 完成后调用方需要调用shutdown()保存世界并释放资源
+     * @param radius 半径(区块)
+     * @return 是否全部完成
+     */
+    public boolean pregenerate(int radius) {
+
+        //创建世界
+        worldService.createWorld(EngineDefault.DEFAULT_WORLD_NAME, "ourcraft:earth_like");
+
+        //加载世界(会生成出生点附近的区块并确定出生点)
+        worldService.loadWorld(EngineDefault.DEFAULT_WORLD_NAME);
+
+        return worldService.pregenerateWorld(EngineDefault.DEFAULT_WORLD_NAME, radius);
+    }
+
     /**
      * 正常关闭服务器
      * 这会 
@@ -122,12 +153,32 @@ public class OurCraftServer {
         //playerService.stop();
         networkService.shutdown();
 
+        //停止SCA后台碎片整理(避免与保存世界争抢磁盘带宽)
+        archiveService.getChunkService().stopBackgroundCompaction();
+
         //停止所有世界的运行并将它们写入归档
         worldService.shutdown();
 
+        //关闭世界保存线程池(等待已提交的保存完成)
+        archiveService.getWorldService().shutdown();
+
+        //停止玩家数据后台写入并写入所有待写入的玩家(世界停止时已执行断开连接的玩家在世界线程中的离线处理)
+        archiveService.getPlayerService().stop();
+
+        //输出区块存储的内存使用情况
+        if (BitStorage.getAllocator() != null) {
+            BitStorage.getAllocator().logUsage();
+        }
+
         //关闭线程池
         shutdownThreadPools();
 
+        //关闭归档I/O线程池(等待已提交的读写完成)
+        archiveService.getChunkService().shutdown();
+
+        //写入卸载区块时排队的实体数据并关闭区块实体I/O线程
+        archiveService.getChunkEntityService().shutdown();
+
         //断开归档索引数据库连接
         archiveService.disconnectArchiveIndex();
     }
@@ -174,14 +225,17 @@ public class OurCraftServer {
         log.info("SWEU线程池已初始化 当前:{} 最大:{} 队列大小:{}", 0,EngineDefault.getMaxSWEUThreadCount(),EngineDefault.getMaxSWEUQueueSize());
 
         //初始化区块处理线程池（用于区块加载、生成、卸载）
-        CHUNK_PROCESS_THREAD_POOL = new ThreadPoolExecutor(
-            0,                             // 核心线程数
+        //使用有界队列时只有核心线程会被优先创建，因此核心线程数与最大线程数相同，闲置时允许回收核心线程
+        var chunkProcessPool = new ThreadPoolExecutor(
+            EngineDefault.getMaxChunkProcessThreadCount(),                          // 核心线程数
             EngineDefault.getMaxChunkProcessThreadCount(),                          // 最大线程数 
             60L, TimeUnit.SECONDS,        // 闲置线程回收时间
             new LinkedBlockingQueue<>(EngineDefault.getMaxChunkProcessQueueSize()),    //最多排队任务
             ThreadFactoryUtils.createChunkProcessThreadFactory(), 
-            new ThreadPoolExecutor.DiscardPolicy()   // 拒绝策略: 队列满丢弃任务
+            new ThreadPoolExecutor.AbortPolicy()   // 拒绝策略: 队列满抛出异常(区块卸载已移出实体，不能被静默丢弃)
         );
+        chunkProcessPool.allowCoreThreadTimeOut(true);
+        CHUNK_PROCESS_THREAD_POOL = chunkProcessPool;
 
         log.info("区块处理线程池已初始化 当前:{} 最大:{} 队列大小:{}", 0,EngineDefault.getMaxChunkProcessThreadCount(),EngineDefault.getMaxChunkProcessQueueSize());
 
@@ -68,6 +68,7 @@ public class ServerConfigService implements GlobalService {
         defaultConfig.setPort(25564);
         defaultConfig.setSaveName("our_craft");
         defaultConfig.setMainWorldName("earth_like");
+        defaultConfig.setOffHeapChunkStorage(false);
 
         Path configPath = Paths.get("server_config.yml");
 
@@ -88,6 +89,7 @@ public class ServerConfigService implements GlobalService {
                 map.put("port", defaultConfig.getPort());
                 map.put("saveName", defaultConfig.getSaveName());
                 map.put("mainWorldName", defaultConfig.getMainWorldName());
+                map.put("offHeapChunkStorage", defaultConfig.isOffHeapChunkStorage());
                 dumperYaml.dump(map, new FileWriter(configPath.toFile()));
 
 
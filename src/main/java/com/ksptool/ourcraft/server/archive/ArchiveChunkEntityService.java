@@ -0,0 +1,519 @@
+package com.ksptool.ourcraft.server.archive;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ksptool.ourcraft.sharedcore.enums.EngineDefault;
+import com.ksptool.ourcraft.sharedcore.utils.ThreadFactoryUtils;
+import com.ksptool.ourcraft.sharedcore.utils.position.ChunkPos;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 归档区块实体管理器 负责CHUNK_ENTITY表中区块实体数据的读写
+ *
+ * 所有数据库访问都在一个独立的I/O线程中按批执行，调用方(区块处理线程)不会等待数据库:
+ * 1. 每个世界中存在实体记录的区块保存在内存索引中，没有实体的区块(绝大多数)读取时直接返回，不产生数据库访问
+ * 2. 等待中的读取请求会被合并为一次 IN 查询
+ * 3. 写入先进入等待队列，由I/O线程在一个事务中使用批量MERGE/DELETE写入，同一个区块的多次写入只保留最新的一次
+ */
+@Slf4j
+public class ArchiveChunkEntityService {
+
+    private static final String MERGE_SQL = "MERGE INTO CHUNK_ENTITY (WORLD_ID, WORLD_NAME, CHUNK_X, CHUNK_Z, SCA_FILE_NAME, ENTITY_COUNT, ENTITY_BIN_DATA, VERSION, CREATE_TIME, UPDATE_TIME) KEY (WORLD_ID, WORLD_NAME, CHUNK_X, CHUNK_Z) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String DELETE_SQL = "DELETE FROM CHUNK_ENTITY WHERE WORLD_NAME = ? AND CHUNK_X = ? AND CHUNK_Z = ?";
+
+    //一次IN查询最多包含的区块数量
+    private static final int MAX_READ_BATCH = 256;
+
+    //写入失败后首次重试的等待时间(毫秒) 之后每次失败翻倍
+    private static final long MIN_RETRY_DELAY_MS = 1000;
+
+    //写入失败后重试的最长等待时间(毫秒)
+    private static final long MAX_RETRY_DELAY_MS = 60_000;
+
+    //归档管理器
+    private final ArchiveService archiveService;
+
+    //实体I/O线程 读写都在同一个线程中执行，读取总能看到之前已提交的写入
+    private final ScheduledExecutorService ioExecutor;
+
+    //世界名称 -> 存在实体记录的区块 首次访问该世界时从归档加载
+    private final Map<String, Set<ChunkPos>> indexes = new ConcurrentHashMap<>();
+
+    //世界名称 -> 世界ID
+    private final Map<String, Long> worldIds = new ConcurrentHashMap<>();
+
+    //等待中的读取请求 世界名称 -> 请求列表 同一个世界的请求由一个I/O任务一次处理
+    private final Map<String, List<PendingRead>> pendingReads = new ConcurrentHashMap<>();
+
+    //等待写入的实体数据 同一个区块只保留最新的数据
+    private final Map<EntityKey, ChunkEntities> pendingWrites = new ConcurrentHashMap<>();
+
+    //每个区块已接受写入的最新实体数据修订号 修订号更旧的数据(如卸载之后才到达的存盘快照)不再写入
+    //比所有尚未写入的修订号都旧的记录不会再拒绝任何写入，在写入完成后移除
+    private final Map<EntityKey, Long> acceptedRevisions = new ConcurrentHashMap<>();
+
+    //实体数据修订号生成器 取得实体数据时分配，越晚取得的数据修订号越大
+    private final AtomicLong revisionSequence = new AtomicLong();
+
+    //已分配但尚未写入的修订号(正在进行的存盘快照与卸载)
+    private final NavigableSet<Long> inFlightRevisions = new ConcurrentSkipListSet<>();
+
+    //是否已提交写入任务
+    private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+
+    //下次写入失败后的重试等待时间(毫秒) 0表示上次写入成功 只在I/O线程中访问
+    private long retryDelayMs = 0;
+
+    //等待中的重试任务 只在I/O线程中访问
+    private ScheduledFuture<?> retryTask;
+
+    public ArchiveChunkEntityService(ArchiveService archiveService){
+        this.archiveService = archiveService;
+        var executor = new ScheduledThreadPoolExecutor(1, ThreadFactoryUtils.createArchiveIoThreadFactory());
+        //关闭时不再等待尚未到期的重试 等待中的数据由shutdown同步写入
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.ioExecutor = executor;
+    }
+
+    /**
+     * 区块的实体数据
+     * @param count 实体数量 为0时删除区块的实体记录
+     * @param data 序列化后的实体数据(EntitySerializer)
+     * @param revision 取得实体数据时的修订号(nextRevision) 同一个区块只写入修订号最大的数据
+     */
+    public record ChunkEntities(int count, byte[] data, long revision) {
+    }
+
+    /**
+     * 分配实体数据修订号 应在从世界中取得实体(创建快照或移出实体)时调用
+     * 使用该修订号的数据写入(或放弃写入)后必须调用releaseRevision
+     * @return 修订号
+     */
+    public long nextRevision(){
+        synchronized (inFlightRevisions){
+            long revision = revisionSequence.incrementAndGet();
+            inFlightRevisions.add(revision);
+            return revision;
+        }
+    }
+
+    /**
+     * 释放修订号 使用该修订号的数据已加入写入队列或已放弃写入
+     * @param revision 修订号
+     */
+    public void releaseRevision(long revision){
+        inFlightRevisions.remove(revision);
+    }
+
+    /**
+     * 等待写入的实体数据Key
+     */
+    private record EntityKey(String worldName, ChunkPos pos) {
+    }
+
+    /**
+     * 等待中的读取请求
+     */
+    private record PendingRead(ChunkPos pos, CompletableFuture<byte[]> future) {
+    }
+
+    /**
+     * 判断区块在归档中是否存在实体记录(包括等待写入的数据 不产生数据库访问)
+     * @param worldName 世界名称
+     * @param pos 区块位置
+     */
+    public boolean hasEntities(String worldName, ChunkPos pos){
+        return getIndex(worldName).contains(pos);
+    }
+
+    /**
+     * 异步读取区块的实体数据
+     * @param worldName 世界名称
+     * @param pos 区块位置
+     * @return 序列化后的实体数据 区块没有实体时为null，读取失败时异常完成
+     */
+    public CompletableFuture<byte[]> readEntitiesAsync(String worldName, ChunkPos pos){
+        if(worldName == null || pos == null || !hasEntities(worldName, pos)){
+            return CompletableFuture.completedFuture(null);
+        }
+
+        //尚未写入归档的数据直接返回
+        var pending = pendingWrites.get(new EntityKey(worldName, pos));
+        if(pending != null){
+            return CompletableFuture.completedFuture(pending.count() > 0 ? pending.data() : null);
+        }
+
+        var request = new PendingRead(pos, new CompletableFuture<>());
+        var created = new boolean[1];
+        pendingReads.compute(worldName, (k, list) -> {
+            if(list == null){
+                list = new ArrayList<>();
+                created[0] = true;
+            }
+            list.add(request);
+            return list;
+        });
+
+        if(created[0]){
+            try{
+                ioExecutor.execute(() -> drainReads(worldName));
+            }catch(RejectedExecutionException e){
+                var rejected = pendingReads.remove(worldName);
+                if(rejected != null){
+                    rejected.forEach(r -> r.future().completeExceptionally(e));
+                }
+            }
+        }
+        return request.future();
+    }
+
+    /**
+     * 异步写入区块的实体数据(加入等待队列，由I/O线程批量写入)
+     * @param worldName 世界名称
+     * @param pos 区块位置
+     * @param entities 实体数据 实体数量为0时删除区块的实体记录
+     */
+    public void writeEntitiesAsync(String worldName, ChunkPos pos, ChunkEntities entities){
+        if(worldName == null || pos == null || entities == null){
+            return;
+        }
+
+        //没有实体且归档中也没有记录的区块不需要写入
+        var index = getIndex(worldName);
+        if(entities.count() == 0 && !index.contains(pos)){
+            return;
+        }
+
+        //只接受比已接受的数据更新的实体数据 等待队列中同一个区块保留修订号最大的数据
+        var accepted = new boolean[1];
+        acceptedRevisions.compute(new EntityKey(worldName, pos), (key, revision) -> {
+            if(revision != null && revision > entities.revision()){
+                return revision;
+            }
+            accepted[0] = true;
+            pendingWrites.merge(key, entities, (old, now) -> now.revision() >= old.revision() ? now : old);
+            if(entities.count() > 0){
+                index.add(pos);
+            }
+            if(entities.count() == 0){
+                index.remove(pos);
+            }
+            return entities.revision();
+        });
+
+        if(!accepted[0]){
+            log.debug("忽略过期的区块实体数据: {} 修订号:{}", pos, entities.revision());
+            return;
+        }
+        scheduleWrite();
+    }
+
+    /**
+     * 批量写入区块的实体数据并等待写入完成
+     * @param worldName 世界名称
+     * @param chunks 区块位置 -> 实体数据
+     */
+    public void writeEntities(String worldName, Map<ChunkPos, ChunkEntities> chunks){
+        for(var entry : chunks.entrySet()){
+            writeEntitiesAsync(worldName, entry.getKey(), entry.getValue());
+        }
+        flush();
+    }
+
+    /**
+     * 等待所有已加入队列的实体数据写入归档
+     */
+    public void flush(){
+        if(pendingWrites.isEmpty()){
+            return;
+        }
+        try{
+            ioExecutor.submit(this::drainWrites).get(30, TimeUnit.SECONDS);
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }catch(Exception e){
+            log.error("等待区块实体数据写入失败 剩余:{}", pendingWrites.size(), e);
+        }
+    }
+
+    /**
+     * 写入所有等待中的实体数据并关闭I/O线程
+     */
+    public void shutdown(){
+        flush();
+        ioExecutor.shutdown();
+        try{
+            if(!ioExecutor.awaitTermination(30, TimeUnit.SECONDS)){
+                log.warn("区块实体I/O线程未能在30秒内完成已提交的读写");
+            }
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        if(!pendingWrites.isEmpty()){
+            log.error("仍有 {} 个区块的实体数据未能写入归档", pendingWrites.size());
+        }
+        indexes.clear();
+        worldIds.clear();
+        acceptedRevisions.clear();
+        inFlightRevisions.clear();
+    }
+
+    /**
+     * 获取世界的实体索引 首次访问时从归档加载
+     */
+    private Set<ChunkPos> getIndex(String worldName){
+        return indexes.computeIfAbsent(worldName, this::loadIndex);
+    }
+
+    /**
+     * 从归档加载世界中存在实体记录的区块
+     * @param worldName 世界名称
+     * @return 区块位置集合 加载失败时为空集合
+     */
+    private Set<ChunkPos> loadIndex(String worldName){
+        Set<ChunkPos> index = ConcurrentHashMap.newKeySet();
+        var ds = archiveService.getDataSource();
+        if(ds == null){
+            log.error("归档管理器当前未连接到归档，无法加载区块实体索引");
+            return index;
+        }
+
+        try(Connection conn = ds.getConnection();
+            PreparedStatement stmt = conn.prepareStatement("SELECT CHUNK_X, CHUNK_Z FROM CHUNK_ENTITY WHERE WORLD_NAME = ? AND ENTITY_COUNT > 0")){
+            stmt.setString(1, worldName);
+            try(ResultSet rs = stmt.executeQuery()){
+                while(rs.next()){
+                    index.add(ChunkPos.of(rs.getInt(1), rs.getInt(2)));
+                }
+            }
+        }catch(SQLException e){
+            log.error("加载区块实体索引失败: worldName={}", worldName, e);
+        }
+        log.info("加载区块实体索引: worldName={}, 区块数={}", worldName, index.size());
+        return index;
+    }
+
+    /**
+     * 处理一个世界上所有等待中的读取请求(在I/O线程中执行)
+     * @param worldName 世界名称
+     */
+    private void drainReads(String worldName){
+
+        //取出整个等待列表 此后到达的请求会建立新的列表并提交新的任务
+        var requests = pendingReads.remove(worldName);
+        if(requests == null || requests.isEmpty()){
+            return;
+        }
+
+        var ds = archiveService.getDataSource();
+        if(ds == null){
+            var e = new SQLException("归档管理器当前未连接到归档，无法读取区块实体数据");
+            requests.forEach(r -> r.future().completeExceptionally(e));
+            return;
+        }
+
+        var result = new HashMap<ChunkPos, byte[]>();
+        try(Connection conn = ds.getConnection()){
+            for(int from = 0; from < requests.size(); from += MAX_READ_BATCH){
+                var batch = requests.subList(from, Math.min(from + MAX_READ_BATCH, requests.size()));
+                var sql = new StringBuilder("SELECT CHUNK_X, CHUNK_Z, ENTITY_BIN_DATA FROM CHUNK_ENTITY WHERE WORLD_NAME = ? AND (CHUNK_X, CHUNK_Z) IN (");
+                for(int i = 0; i < batch.size(); i++){
+                    sql.append(i == 0 ? "(?, ?)" : ", (?, ?)");
+                }
+                sql.append(")");
+
+                try(PreparedStatement stmt = conn.prepareStatement(sql.toString())){
+                    stmt.setString(1, worldName);
+                    for(int i = 0; i < batch.size(); i++){
+                        stmt.setInt(2 + i * 2, batch.get(i).pos().getX());
+                        stmt.setInt(3 + i * 2, batch.get(i).pos().getZ());
+                    }
+                    try(ResultSet rs = stmt.executeQuery()){
+                        while(rs.next()){
+                            result.put(ChunkPos.of(rs.getInt(1), rs.getInt(2)), rs.getBytes(3));
+                        }
+                    }
+                }
+            }
+        }catch(SQLException e){
+            log.error("批量读取区块实体数据失败: worldName={}, count={}", worldName, requests.size(), e);
+            requests.forEach(r -> r.future().completeExceptionally(e));
+            return;
+        }
+
+        for(var request : requests){
+            request.future().complete(result.get(request.pos()));
+        }
+    }
+
+    /**
+     * 提交写入任务 已提交且尚未开始执行时不重复提交
+     */
+    private void scheduleWrite(){
+        if(!writeScheduled.compareAndSet(false, true)){
+            return;
+        }
+        try{
+            ioExecutor.execute(this::drainWrites);
+        }catch(RejectedExecutionException e){
+            writeScheduled.set(false);
+            log.error("区块实体I/O线程已关闭，无法写入区块实体数据");
+        }
+    }
+
+    /**
+     * 写入失败后延迟重试 等待时间从MIN_RETRY_DELAY_MS开始每次失败翻倍，最长为MAX_RETRY_DELAY_MS(在I/O线程中执行)
+     * 等待期间写入任务保持为已提交状态，新的写入只加入等待队列，不会提前访问数据库
+     * @return 重试等待时间(毫秒)
+     */
+    private long scheduleRetry(){
+        retryDelayMs = retryDelayMs == 0 ? MIN_RETRY_DELAY_MS : Math.min(retryDelayMs * 2, MAX_RETRY_DELAY_MS);
+        writeScheduled.set(true);
+        try{
+            retryTask = ioExecutor.schedule(this::drainWrites, retryDelayMs, TimeUnit.MILLISECONDS);
+        }catch(RejectedExecutionException e){
+            writeScheduled.set(false);
+            log.error("区块实体I/O线程已关闭，无法重试写入区块实体数据 剩余:{}", pendingWrites.size());
+        }
+        return retryDelayMs;
+    }
+
+    /**
+     * 在一个事务中写入所有等待中的实体数据(在I/O线程中执行) 写入失败时数据保留在等待队列中并延迟重试
+     */
+    private void drainWrites(){
+        writeScheduled.set(false);
+
+        //提前执行(flush)时取消等待中的重试 同一时刻最多只有一个重试任务
+        if(retryTask != null){
+            retryTask.cancel(false);
+            retryTask = null;
+        }
+        if(pendingWrites.isEmpty()){
+            return;
+        }
+
+        var ds = archiveService.getDataSource();
+        if(ds == null){
+            long delay = scheduleRetry();
+            log.error("归档管理器当前未连接到归档，无法写入区块实体数据 {}ms后重试", delay);
+            return;
+        }
+
+        var batch = new HashMap<>(pendingWrites);
+        long start = System.currentTimeMillis();
+        int merged = 0;
+        int deleted = 0;
+
+        try(Connection conn = ds.getConnection()){
+            conn.setAutoCommit(false);
+            try(PreparedStatement mergeStmt = conn.prepareStatement(MERGE_SQL);
+                PreparedStatement deleteStmt = conn.prepareStatement(DELETE_SQL)){
+
+                var now = Timestamp.valueOf(LocalDateTime.now());
+                for(var entry : batch.entrySet()){
+                    var key = entry.getKey();
+                    var entities = entry.getValue();
+
+                    if(entities.count() == 0){
+                        deleteStmt.setString(1, key.worldName());
+                        deleteStmt.setInt(2, key.pos().getX());
+                        deleteStmt.setInt(3, key.pos().getZ());
+                        deleteStmt.addBatch();
+                        deleted++;
+                        continue;
+                    }
+
+                    mergeStmt.setLong(1, getWorldId(key.worldName()));
+                    mergeStmt.setString(2, key.worldName());
+                    mergeStmt.setInt(3, key.pos().getX());
+                    mergeStmt.setInt(4, key.pos().getZ());
+                    mergeStmt.setString(5, key.pos().toScaPos(EngineDefault.SCA_PACKAGE_SIZE).toScaFileName());
+                    mergeStmt.setInt(6, entities.count());
+                    mergeStmt.setBytes(7, entities.data());
+                    mergeStmt.setString(8, EngineDefault.ENGINE_VERSION);
+                    mergeStmt.setTimestamp(9, now);
+                    mergeStmt.setTimestamp(10, now);
+                    mergeStmt.addBatch();
+                    merged++;
+                }
+
+                if(merged > 0){
+                    mergeStmt.executeBatch();
+                }
+                if(deleted > 0){
+                    deleteStmt.executeBatch();
+                }
+                conn.commit();
+            }catch(SQLException | RuntimeException e){
+                conn.rollback();
+                throw e;
+            }
+        }catch(SQLException | RuntimeException e){
+            long delay = scheduleRetry();
+            log.error("批量写入区块实体数据失败 写入:{} 删除:{} {}ms后重试", merged, deleted, delay, e);
+            return;
+        }
+        retryDelayMs = 0;
+
+        //只移除已写入的数据 写入期间更新过的区块保留在队列中
+        for(var entry : batch.entrySet()){
+            pendingWrites.remove(entry.getKey(), entry.getValue());
+        }
+        if(!pendingWrites.isEmpty()){
+            scheduleWrite();
+        }
+        pruneRevisions();
+        log.debug("批量写入区块实体数据 写入:{} 删除:{} 耗时:{}ms", merged, deleted, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * 移除比所有尚未写入的修订号都旧的已接受修订号 之后到达的数据修订号都不小于这些记录，不会再被拒绝
+     */
+    private void pruneRevisions(){
+        long oldest;
+        synchronized (inFlightRevisions){
+            oldest = inFlightRevisions.isEmpty() ? revisionSequence.get() + 1 : inFlightRevisions.first();
+        }
+        acceptedRevisions.values().removeIf(revision -> revision < oldest);
+    }
+
+    /**
+     * 获取世界ID
+     * @param worldName 世界名称
+     * @return 世界ID
+     */
+    private long getWorldId(String worldName){
+        return worldIds.computeIfAbsent(worldName, name -> {
+            var worldIndex = archiveService.getWorldService().loadWorldIndex(name);
+            if(worldIndex == null || worldIndex.getId() == null){
+                throw new IllegalStateException("世界索引不存在: " + name);
+            }
+            return worldIndex.getId();
+        });
+    }
+
+}
@@ -7,23 +7,67 @@ import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.sql.DataSource;
 import org.apache.commons.lang3.StringUtils;
 import com.ksptool.ourcraft.server.archive.model.ArchivePlayerDto;
 import com.ksptool.ourcraft.server.archive.model.ArchivePlayerVo;
+import com.ksptool.ourcraft.server.entity.ServerPlayer;
+import com.ksptool.ourcraft.sharedcore.enums.EngineDefault;
+import com.ksptool.ourcraft.sharedcore.utils.ThreadFactoryUtils;
 import lombok.extern.slf4j.Slf4j;
 
+/**
+ * 归档玩家管理器
+ * 玩家数据采用延迟写入(write-behind): 在线玩家的最新状态保存在内存中，修改只标记为待写入，
+ * 由后台线程按固定间隔在一个JDBC事务中批量写入所有待写入的玩家，玩家断开连接时立即提交一次后台写入，服务器关闭时同步写入。
+ *
+ * 新玩家的ID在内存中分配(从归档中已有的最大ID开始递增)，因此登录时不需要等待INSERT返回主键，
+ * 大量玩家同时登录时每个玩家最多只产生一次SELECT(已缓存的玩家不产生数据库访问)
+ */
 @Slf4j
 public class ArchivePlayerService {
 
+    private static final String INSERT_SQL = "INSERT INTO PLAYER_INDEX (ID, UUID, NAME, WORLD_NAME, LOGIN_COUNT, LAST_LOGIN_TIME, POS_X, POS_Y, POS_Z, YAW, PITCH, HEALTH, HUNGRY, EXP, CREATE_TIME) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String UPDATE_SQL = "UPDATE PLAYER_INDEX SET UUID = ?, NAME = ?, WORLD_NAME = ?, LOGIN_COUNT = ?, LAST_LOGIN_TIME = ?, POS_X = ?, POS_Y = ?, POS_Z = ?, YAW = ?, PITCH = ?, HEALTH = ?, HUNGRY = ?, EXP = ? WHERE ID = ?";
+
     //归档管理器
     private final ArchiveService archiveService;
 
+    //内存中的玩家数据(最新状态) 玩家名称 -> 玩家数据 每次修改都替换为新的对象，写入线程读取到的对象不会再被修改
+    private final Map<String, ArchivePlayerVo> players = new ConcurrentHashMap<>();
+
+    //待写入的玩家 玩家名称 -> 是否为尚未插入归档的新玩家
+    private final Map<String, Boolean> dirtyPlayers = new ConcurrentHashMap<>();
+
+    //最近分配的玩家ID(小于0表示尚未从归档中读取最大ID)
+    private final AtomicLong lastId = new AtomicLong(-1);
+
+    //写入锁 同一时刻只有一个线程执行批量写入
+    private final Object flushLock = new Object();
+
+    //已离线的玩家 数据写入归档后从内存中移除
+    private final Set<String> loggedOutPlayers = ConcurrentHashMap.newKeySet();
+
+    //后台写入线程
+    private volatile ScheduledExecutorService flushScheduler;
+
     public ArchivePlayerService(ArchiveService archiveService){
         this.archiveService = archiveService;
     }
 
     /**
-     * 保存玩家数据
+     * 保存玩家数据(只更新内存中的玩家数据并标记为待写入，由后台线程批量写入归档)
      * @param dto 玩家DTO
      * @return 保存后的玩家VO，如果保存失败则返回null
      */
@@ -39,126 +83,350 @@ public class ArchivePlayerService {
             return null;
         }
 
-        //获取玩家名 并查询归档数据库中是否存在该玩家
+        //获取玩家名 并查询归档中是否存在该玩家(已缓存的玩家不访问数据库)
+        //重新登录的玩家不再作为离线玩家从内存中移除(需在读取缓存之前取消)
         var name = dto.getName();
-        var exisisPlayer = loadPlayer(name);
+        loggedOutPlayers.remove(name);
+        if(loadPlayer(name) == null && !initLastId(ds)){
+            return null;
+        }
+
+        return players.compute(name, (k, exisisPlayer) -> {
+            var vo = new ArchivePlayerVo();
 
-        //如果玩家不存在，则初始化归档中的玩家数据
-        if(exisisPlayer == null){
+            //如果玩家不存在，则初始化玩家数据并分配ID
+            if(exisisPlayer == null){
+                vo.setId(lastId.incrementAndGet());
+                vo.setUuid(dto.getUuid());
+                vo.setName(name);
+                vo.setCreateTime(LocalDateTime.now());
+                log.info("为玩家 {} 创建新的归档记录 UUID {}", name, dto.getUuid());
+            }
+
+            //如果玩家存在，则保留不可变的字段
+            if(exisisPlayer != null){
+                vo.setId(exisisPlayer.getId());
+                vo.setUuid(exisisPlayer.getUuid());
+                vo.setName(exisisPlayer.getName());
+                vo.setCreateTime(exisisPlayer.getCreateTime());
+            }
 
-            //数据库插入
-            try(Connection conn = ds.getConnection()){
-                if(conn == null || conn.isClosed()){
-                    log.error("数据库连接异常，无法插入玩家数据");
-                    return null;
+            vo.setWorldName(dto.getWorldName());
+            vo.setLoginCount(dto.getLoginCount());
+            vo.setLastLoginTime(dto.getLastLoginTime());
+            vo.setPosX(dto.getPosX());
+            vo.setPosY(dto.getPosY());
+            vo.setPosZ(dto.getPosZ());
+            vo.setYaw(dto.getYaw());
+            vo.setPitch(dto.getPitch());
+            vo.setHealth(dto.getHealth());
+            vo.setHungry(dto.getHungry());
+            vo.setExp(dto.getExp());
+            markDirty(k, exisisPlayer == null);
+            return vo;
+        });
+    }
+
+    /**
+     * 将在线玩家实体的当前状态(所在世界、位置、朝向、血量、饥饿度)写入内存中的玩家数据 状态没有变化时不标记为待写入
+     * 应在玩家所在世界的线程中调用，以读取到一致的实体状态
+     * @param player 玩家实体
+     */
+    public void updatePlayer(ServerPlayer player){
+        if(player == null || player.getWorld() == null){
+            return;
+        }
+        var position = player.getPosition();
+        var worldName = player.getWorld().getName();
+        int health = Math.round(player.getHealth());
+        int hungry = Math.round(player.getHunger());
+
+        players.computeIfPresent(player.getName(), (k, current) -> {
+            if(worldName.equals(current.getWorldName()) && current.getPosX() == position.x && current.getPosY() == position.y && current.getPosZ() == position.z
+                    && current.getYaw() == player.getYaw() && current.getPitch() == player.getPitch()
+                    && current.getHealth() == health && current.getHungry() == hungry){
+                return current;
+            }
+            var vo = copyOf(current);
+            vo.setWorldName(worldName);
+            vo.setPosX(position.x);
+            vo.setPosY(position.y);
+            vo.setPosZ(position.z);
+            vo.setYaw(player.getYaw());
+            vo.setPitch(player.getPitch());
+            vo.setHealth(health);
+            vo.setHungry(hungry);
+            markDirty(k, false);
+            return vo;
+        });
+    }
+
+    /**
+     * 玩家离线 记录玩家的最终状态并立即提交一次后台写入，写入完成后将玩家从内存中移除
+     * 与updatePlayer相同，应在玩家所在世界的线程中调用(写入由后台线程执行，不阻塞世界线程)
+     * @param player 玩家实体
+     */
+    public void logoutPlayer(ServerPlayer player){
+        if(player == null){
+            return;
+        }
+        updatePlayer(player);
+        logoutPlayer(player.getName());
+    }
+
+    /**
+     * 玩家离线 内存中的玩家数据已是最终状态，立即提交一次后台写入，写入完成后将玩家从内存中移除
+     * @param playerName 玩家名称
+     */
+    public void logoutPlayer(String playerName){
+        if(StringUtils.isBlank(playerName)){
+            return;
+        }
+        loggedOutPlayers.add(playerName);
+
+        var scheduler = flushScheduler;
+        if(scheduler != null){
+            try {
+                scheduler.execute(this::flush);
+                return;
+            } catch (RejectedExecutionException e) {
+                //后台写入已停止 在当前线程写入
+            }
+        }
+        flush();
+    }
+
+    /**
+     * 启动后台批量写入
+     */
+    public synchronized void start(){
+        if(flushScheduler != null){
+            return;
+        }
+        int interval = EngineDefault.PLAYER_SAVE_INTERVAL_SECONDS;
+        flushScheduler = Executors.newSingleThreadScheduledExecutor(ThreadFactoryUtils.createArchiveMaintenanceThreadFactory());
+        flushScheduler.scheduleWithFixedDelay(this::flush, interval, interval, TimeUnit.SECONDS);
+        log.info("玩家数据后台写入已启动 间隔:{}秒", interval);
+    }
+
+    /**
+     * 停止后台批量写入 同步写入所有待写入的玩家并清空内存中的玩家数据
+     */
+    public synchronized void stop(){
+        if(flushScheduler != null){
+            flushScheduler.shutdown();
+            try {
+                if(!flushScheduler.awaitTermination(10, TimeUnit.SECONDS)){
+                    log.warn("玩家数据后台写入未能在10秒内停止");
                 }
-                
-                var sql = "INSERT INTO PLAYER_INDEX (UUID, NAME, WORLD_NAME, LOGIN_COUNT, LAST_LOGIN_TIME, POS_X, POS_Y, POS_Z, YAW, PITCH, HEALTH, HUNGRY, EXP, CREATE_TIME) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
-                try(PreparedStatement stmt = conn.prepareStatement(sql, PreparedStatement.RETURN_GENERATED_KEYS)){
-                    stmt.setString(1, dto.getUuid());
-                    stmt.setString(2, name);
-                    stmt.setString(3, dto.getWorldName());
-                    stmt.setInt(4, dto.getLoginCount());
-                    stmt.setTimestamp(5, Timestamp.valueOf(dto.getLastLoginTime()));
-                    stmt.setDouble(6, dto.getPosX());
-                    stmt.setDouble(7, dto.getPosY());
-                    stmt.setDouble(8, dto.getPosZ());
-                    stmt.setDouble(9, dto.getYaw());
-                    stmt.setDouble(10, dto.getPitch());
-                    stmt.setInt(11, dto.getHealth());
-                    stmt.setInt(12, dto.getHungry());
-                    stmt.setLong(13, dto.getExp());
-                    stmt.setTimestamp(14, Timestamp.valueOf(LocalDateTime.now()));
-                    stmt.executeUpdate();
-                    
-                    var updateVo = new ArchivePlayerVo();
-                    try(ResultSet rs = stmt.getGeneratedKeys()){
-                        if(rs.next()){
-                            updateVo.setId(rs.getLong(1));
-                        }
-                    }
-                    updateVo.setUuid(dto.getUuid());
-                    updateVo.setName(name);
-                    updateVo.setWorldName(dto.getWorldName());
-                    updateVo.setLoginCount(dto.getLoginCount());
-                    updateVo.setLastLoginTime(dto.getLastLoginTime());
-                    updateVo.setPosX(dto.getPosX());
-                    updateVo.setPosY(dto.getPosY());
-                    updateVo.setPosZ(dto.getPosZ());
-                    updateVo.setYaw(dto.getYaw());
-                    updateVo.setPitch(dto.getPitch());
-                    updateVo.setHealth(dto.getHealth());
-                    updateVo.setHungry(dto.getHungry());
-                    updateVo.setExp(dto.getExp());
-                    updateVo.setCreateTime(LocalDateTime.now());
-                    
-                    log.info("为玩家 {} 创建新的归档记录 UUID {}", name, dto.getUuid());
-                    return updateVo;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            flushScheduler = null;
+        }
+
+        int count = flush();
+        if(!dirtyPlayers.isEmpty()){
+            log.error("仍有 {} 个玩家的数据未能写入归档", dirtyPlayers.size());
+        }
+        players.clear();
+        dirtyPlayers.clear();
+        loggedOutPlayers.clear();
+        lastId.set(-1);
+        log.info("玩家数据后台写入已停止 最后写入玩家数:{}", count);
+    }
+
+    /**
+     * 在一个事务中批量写入所有待写入的玩家 写入失败的玩家会重新标记为待写入
+     * @return 写入的玩家数量
+     */
+    public int flush(){
+        synchronized (flushLock){
+            if(dirtyPlayers.isEmpty()){
+                evictLoggedOutPlayers();
+                return 0;
+            }
+
+            var ds = archiveService.getDataSource();
+            if(ds == null){
+                log.error("归档管理器当前未连接到归档，无法写入玩家数据");
+                return 0;
+            }
+
+            //取出待写入的玩家 取出后发生的修改会重新标记 在下次写入
+            var inserts = new ArrayList<ArchivePlayerVo>();
+            var updates = new ArrayList<ArchivePlayerVo>();
+            for(var name : new ArrayList<>(dirtyPlayers.keySet())){
+                var isNew = dirtyPlayers.remove(name);
+                var vo = players.get(name);
+                if(isNew == null || vo == null){
+                    continue;
                 }
-            }catch(SQLException e){
-                log.error("插入玩家数据失败", e);
-                return null;
+                if(isNew){
+                    inserts.add(vo);
+                    continue;
+                }
+                updates.add(vo);
             }
 
+            long start = System.currentTimeMillis();
+            if(!writeBatch(ds, inserts, updates)){
+                inserts.forEach(vo -> markDirty(vo.getName(), true));
+                updates.forEach(vo -> markDirty(vo.getName(), false));
+                return 0;
+            }
+            evictLoggedOutPlayers();
+            log.debug("批量写入玩家数据 新增:{} 更新:{} 耗时:{}ms", inserts.size(), updates.size(), System.currentTimeMillis() - start);
+            return inserts.size() + updates.size();
         }
+    }
 
-        //如果玩家存在，则更新归档中的玩家数据
-        var updateVo = new ArchivePlayerVo();
-        updateVo.setId(exisisPlayer.getId());
-        updateVo.setUuid(exisisPlayer.getUuid());
-        updateVo.setName(exisisPlayer.getName());
-        updateVo.setWorldName(dto.getWorldName());
-        updateVo.setLoginCount(dto.getLoginCount());
-        updateVo.setLastLoginTime(dto.getLastLoginTime());
-        updateVo.setPosX(dto.getPosX());
-        updateVo.setPosY(dto.getPosY());
-        updateVo.setPosZ(dto.getPosZ());
-        updateVo.setYaw(dto.getYaw());
-        updateVo.setPitch(dto.getPitch());
-        updateVo.setHealth(dto.getHealth());
-        updateVo.setHungry(dto.getHungry());
-        updateVo.setExp(dto.getExp());
-        
-        //数据库更新
-        try(Connection conn = ds.getConnection()){
+    /**
+     * 将已离线且数据已写入归档的玩家从内存中移除 尚未写入的玩家保留在内存中等待下次写入(需持有写入锁)
+     */
+    private void evictLoggedOutPlayers(){
+        for(var name : loggedOutPlayers){
+            if(!players.containsKey(name)){
+                loggedOutPlayers.remove(name);
+                continue;
+            }
+            //在同一个原子操作中确认玩家仍为离线状态 与重新登录(savePlayer)互斥
+            players.computeIfPresent(name, (k, current) -> dirtyPlayers.containsKey(k) || !loggedOutPlayers.remove(k) ? current : null);
+        }
+    }
 
+    /**
+     * 在一个事务中批量插入与更新玩家数据
+     * 任何异常(包括数据错误导致的RuntimeException)都视为写入失败，由调用方重新标记为待写入
+     * @return 是否写入成功 失败时事务回滚
+     */
+    private boolean writeBatch(DataSource ds, List<ArchivePlayerVo> inserts, List<ArchivePlayerVo> updates){
+        try(Connection conn = ds.getConnection()){
             if(conn == null || conn.isClosed()){
-                log.error("数据库连接异常，无法更新玩家数据");
-                return null;
+                log.error("数据库连接异常，无法写入玩家数据");
+                return false;
             }
 
-            var sql = "UPDATE PLAYER_INDEX SET UUID = ?, NAME = ?, WORLD_NAME = ?, LOGIN_COUNT = ?, LAST_LOGIN_TIME = ?, POS_X = ?, POS_Y = ?, POS_Z = ?, YAW = ?, PITCH = ?, HEALTH = ?, HUNGRY = ?, EXP = ? WHERE ID = ?";
+            conn.setAutoCommit(false);
+            try(PreparedStatement insertStmt = conn.prepareStatement(INSERT_SQL);
+                PreparedStatement updateStmt = conn.prepareStatement(UPDATE_SQL)){
 
-            try(PreparedStatement stmt = conn.prepareStatement(sql)){
-                stmt.setString(1, updateVo.getUuid());
-                stmt.setString(2, updateVo.getName());
-                stmt.setString(3, updateVo.getWorldName());
-                stmt.setInt(4, updateVo.getLoginCount());
-                stmt.setTimestamp(5, Timestamp.valueOf(updateVo.getLastLoginTime()));
-                stmt.setDouble(6, updateVo.getPosX());
-                stmt.setDouble(7, updateVo.getPosY());
-                stmt.setDouble(8, updateVo.getPosZ());
-                stmt.setDouble(9, updateVo.getYaw());
-                stmt.setDouble(10, updateVo.getPitch());
-                stmt.setInt(11, updateVo.getHealth());
-                stmt.setInt(12, updateVo.getHungry());
-                stmt.setLong(13, updateVo.getExp());
-                stmt.setLong(14, updateVo.getId());
-                stmt.executeUpdate();
-                log.info("为玩家 {} 更新归档记录 UUID {}", name, updateVo.getUuid());
-            }
-            
-            return updateVo;
-            
-        }catch(SQLException e){
-            log.error("更新玩家数据失败", e);
-            return null;
+                for(var vo : inserts){
+                    insertStmt.setLong(1, vo.getId());
+                    insertStmt.setString(2, vo.getUuid());
+                    insertStmt.setString(3, vo.getName());
+                    insertStmt.setString(4, vo.getWorldName());
+                    insertStmt.setInt(5, vo.getLoginCount());
+                    insertStmt.setTimestamp(6, toTimestamp(vo.getLastLoginTime()));
+                    insertStmt.setDouble(7, vo.getPosX());
+                    insertStmt.setDouble(8, vo.getPosY());
+                    insertStmt.setDouble(9, vo.getPosZ());
+                    insertStmt.setDouble(10, vo.getYaw());
+                    insertStmt.setDouble(11, vo.getPitch());
+                    insertStmt.setInt(12, vo.getHealth());
+                    insertStmt.setInt(13, vo.getHungry());
+                    insertStmt.setLong(14, vo.getExp());
+                    insertStmt.setTimestamp(15, toTimestamp(vo.getCreateTime()));
+                    insertStmt.addBatch();
+                }
+
+                for(var vo : updates){
+                    updateStmt.setString(1, vo.getUuid());
+                    updateStmt.setString(2, vo.getName());
+                    updateStmt.setString(3, vo.getWorldName());
+                    updateStmt.setInt(4, vo.getLoginCount());
+                    updateStmt.setTimestamp(5, toTimestamp(vo.getLastLoginTime()));
+                    updateStmt.setDouble(6, vo.getPosX());
+                    updateStmt.setDouble(7, vo.getPosY());
+                    updateStmt.setDouble(8, vo.getPosZ());
+                    updateStmt.setDouble(9, vo.getYaw());
+                    updateStmt.setDouble(10, vo.getPitch());
+                    updateStmt.setInt(11, vo.getHealth());
+                    updateStmt.setInt(12, vo.getHungry());
+                    updateStmt.setLong(13, vo.getExp());
+                    updateStmt.setLong(14, vo.getId());
+                    updateStmt.addBatch();
+                }
+
+                if(!inserts.isEmpty()){
+                    insertStmt.executeBatch();
+                }
+                if(!updates.isEmpty()){
+                    updateStmt.executeBatch();
+                }
+                conn.commit();
+                return true;
+            }catch(SQLException | RuntimeException e){
+                conn.rollback();
+                throw e;
+            }
+        }catch(SQLException | RuntimeException e){
+            //不向外抛出 后台写入任务抛出异常后不会再次执行
+            log.error("批量写入玩家数据失败 新增:{} 更新:{}", inserts.size(), updates.size(), e);
+            return false;
         }
-        
     }
 
     /**
-     * 加载玩家数据
+     * 转换为Timestamp 为null时返回null
+     */
+    private static Timestamp toTimestamp(LocalDateTime time){
+        return time == null ? null : Timestamp.valueOf(time);
+    }
+
+    /**
+     * 标记玩家为待写入 尚未插入归档的新玩家在插入前始终保持为新玩家
+     */
+    private void markDirty(String name, boolean isNew){
+        dirtyPlayers.merge(name, isNew, Boolean::logicalOr);
+    }
+
+    /**
+     * 从归档中读取已有的最大玩家ID 之后新玩家的ID在内存中递增分配
+     * @return 是否读取成功
+     */
+    private boolean initLastId(DataSource ds){
+        if(lastId.get() >= 0){
+            return true;
+        }
+        synchronized (lastId){
+            if(lastId.get() >= 0){
+                return true;
+            }
+            try(Connection conn = ds.getConnection();
+                PreparedStatement stmt = conn.prepareStatement("SELECT COALESCE(MAX(ID), 0) FROM PLAYER_INDEX");
+                ResultSet rs = stmt.executeQuery()){
+                lastId.set(rs.next() ? rs.getLong(1) : 0);
+                return true;
+            }catch(SQLException e){
+                log.error("读取玩家最大ID失败", e);
+                return false;
+            }
+        }
+    }
+
+    private static ArchivePlayerVo copyOf(ArchivePlayerVo source){
+        var vo = new ArchivePlayerVo();
+        vo.setId(source.getId());
+        vo.setUuid(source.getUuid());
+        vo.setName(source.getName());
+        vo.setWorldName(source.getWorldName());
+        vo.setLoginCount(source.getLoginCount());
+        vo.setLastLoginTime(source.getLastLoginTime());
+        vo.setPosX(source.getPosX());
+        vo.setPosY(source.getPosY());
+        vo.setPosZ(source.getPosZ());
+        vo.setYaw(source.getYaw());
+        vo.setPitch(source.getPitch());
+        vo.setHealth(source.getHealth());
+        vo.setHungry(source.getHungry());
+        vo.setExp(source.getExp());
+        vo.setCreateTime(source.getCreateTime());
+        return vo;
+    }
+
+    /**
+     * 加载玩家数据(优先从内存中读取，从归档中读取的玩家数据会被缓存)
      * @param playerName 玩家名称
      */
     public ArchivePlayerVo loadPlayer(String playerName){
@@ -167,6 +435,11 @@ public class ArchivePlayerService {
             log.error("玩家名称不能为空");
             return null;
         }
+
+        var cached = players.get(playerName);
+        if(cached != null){
+            return cached;
+        }
         
         var ds = archiveService.getDataSource();
 
@@ -214,7 +487,8 @@ public class ArchivePlayerService {
                     if(createTimestamp != null){
                         vo.setCreateTime(createTimestamp.toInstant().atZone(ZoneId.systemDefault()).toLocalDateTime());
                     }
-                    return vo;
+                    var exists = players.putIfAbsent(playerName, vo);
+                    return exists != null ? exists : vo;
                 }
             }
 
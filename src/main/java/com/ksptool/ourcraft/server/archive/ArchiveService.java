@@ -60,10 +60,14 @@ public class ArchiveService implements GlobalService {
     //归档区块管理器
     private ArchiveSuperChunkService chunkService;
 
+    //归档区块实体管理器
+    private ArchiveChunkEntityService chunkEntityService;
+
     public ArchiveService(){
         this.paletteService = new ArchivePaletteService(this);
         this.playerService = new ArchivePlayerService(this);
         this.chunkService = new ArchiveSuperChunkService(this);
+        this.chunkEntityService = new ArchiveChunkEntityService(this);
         this.worldService = new ArchiveWorldService(this, this.paletteService, this.chunkService);
     }
 
@@ -509,6 +513,15 @@ public class ArchiveService implements GlobalService {
         return getArchiveRootDirAbsolutePath() + File.separator + worldName;
     }
 
+    /**
+     * 获取归档区块压缩字典文件夹绝对路径
+     * @param worldName 世界名称
+     * @return 归档区块压缩字典文件夹绝对路径 如archives/archiveName/[worldName].dict
+     */
+    public String getArchiveDictDirAbsolutePath(String worldName){
+        return getArchiveScaDirAbsolutePath(worldName) + ".dict";
+    }
+
     /**
      * 创建归档根目录
      */
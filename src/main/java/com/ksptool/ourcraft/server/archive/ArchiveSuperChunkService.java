@@ -1,21 +1,48 @@
 package com.ksptool.ourcraft.server.archive;
 
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
 import com.github.benmanes.caffeine.cache.RemovalCause;
 import com.ksptool.ourcraft.sharedcore.enums.EngineDefault;
+import com.ksptool.ourcraft.sharedcore.utils.FlexChunkDictionary;
+import com.ksptool.ourcraft.sharedcore.utils.FlexChunkSerializer;
 import com.ksptool.ourcraft.sharedcore.utils.position.ChunkPos;
 import com.ksptool.ourcraft.sharedcore.utils.position.ScaLocalPos;
 import com.ksptool.ourcraft.sharedcore.utils.position.ScaPos;
 import com.ksptool.ourcraft.sharedcore.GlobalService;
+import com.ksptool.ourcraft.sharedcore.utils.ThreadFactoryUtils;
 import lombok.extern.slf4j.Slf4j;
 
 /**
  * 超级区块归档管理器
  * 负责管理超级区块归档文件(SCA)的创建、打开和缓存
  * 使用了基于LRU算法的缓存，防止打开文件句柄过多导致的操作系统报错
+ *
+ * 除同步接口外还提供基于CompletableFuture的异步读写接口，异步读写在独立的归档I/O线程池中执行。
+ * 异步读取会按SCA文件合并: 同一个文件上等待中的读取请求由一个I/O任务按文件偏移量顺序一次读完(见 SuperChunkArchiveFile.readChunks)
+ *
+ * 每个世界有一组区块压缩字典(FlexChunkDictionary)，保存在SCA文件夹旁的[worldName].dict文件夹中。
+ * 世界还没有字典时，最先写入的若干区块作为样本训练字典，此后写入的区块使用字典重新压缩。
+ * 字典ID记录在每个区块的数据中，字典文件只增不删，因此不同时期写入的区块始终可以读取。
+ * 字典ID只是32位的Adler32，因此字典按世界分别管理(见 getDictionary(String, int))，同一个世界中ID冲突的新字典不会被启用
  */
 @Slf4j
 public class ArchiveSuperChunkService implements GlobalService {
@@ -27,7 +54,31 @@ public class ArchiveSuperChunkService implements GlobalService {
     private final ArchiveService archiveService;
 
     //SCAF缓存
-    private final Cache<String, SuperChunkArchiveFile> scafCache;
+    private final Cache<ScafKey, SuperChunkArchiveFile> scafCache;
+
+    //已被缓存淘汰但仍被占用(尚未关闭)的SCAF
+    private final Map<ScafKey, SuperChunkArchiveFile> retiredScafs = new ConcurrentHashMap<>();
+
+    //归档I/O线程池
+    private final ThreadPoolExecutor ioExecutor;
+
+    //归档维护线程池(训练区块压缩字典) 训练与保存字典不占用写入区块的线程
+    private final ThreadPoolExecutor maintenanceExecutor;
+
+    //等待中的异步读取请求 SCAF -> 请求列表 同一个SCAF的请求由一个I/O任务一次处理
+    private final Map<ScafKey, List<PendingRead>> pendingReads = new ConcurrentHashMap<>();
+
+    //后台碎片整理调度器 未启动时为null
+    private ScheduledExecutorService compactionScheduler;
+
+    //世界名称 -> 区块压缩字典 首次访问该世界时从字典文件夹加载
+    private final Map<String, WorldDictionary> dictionaries = new ConcurrentHashMap<>();
+
+    //字典文件后缀 文件名为字典ID的十六进制
+    private static final String DICTIONARY_SUFFIX = ".dict";
+
+    //记录新写入的区块使用哪个字典的文件
+    private static final String CURRENT_DICTIONARY_FILE = "current";
 
     public ArchiveSuperChunkService(ArchiveService archiveService){
 
@@ -39,52 +90,141 @@ public class ArchiveSuperChunkService implements GlobalService {
          */
         scafCache = Caffeine.newBuilder()
                 .maximumSize(MAX_OPEN_SCAF) // 限制最大打开文件数
-                .removalListener((String key, SuperChunkArchiveFile value, RemovalCause cause) -> {
-                    // 当条目被移除时（无论是因大小限制、手动移除还是垃圾回收），执行关闭操作
-                    try {
-                        log.debug("关闭区域文件: {} (原因: {})", key, cause);
-                        value.close();
-                    } catch (Exception e) {
-                        log.error("关闭区域文件失败: {}", key, e);
+                .evictionListener((ScafKey key, SuperChunkArchiveFile value, RemovalCause cause) -> {
+                    // 在淘汰的原子操作内同步执行: 退役文件，正在读写的调用方释放占用后才真正关闭
+                    // 尚未关闭的文件记录下来，在关闭前再次打开同一个文件时恢复并复用它，保证同一路径只有一个实例
+                    if (value == null) {
+                        return;
+                    }
+                    log.debug("关闭区域文件: {} (原因: {})", key, cause);
+                    value.retire();
+                    if (!value.isClosed()) {
+                        retiredScafs.put(key, value);
                     }
                 })
                 .build();
+
+        //初始化归档I/O线程池 与区块处理线程池分离，磁盘I/O等待不会占用区块生成的CPU线程
+        ioExecutor = new ThreadPoolExecutor(
+            EngineDefault.ARCHIVE_IO_THREAD_COUNT,
+            EngineDefault.ARCHIVE_IO_THREAD_COUNT,
+            60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            ThreadFactoryUtils.createArchiveIoThreadFactory()
+        );
+        ioExecutor.allowCoreThreadTimeOut(true);
+
+        //初始化归档维护线程池 单线程，同一时刻只训练一个字典
+        maintenanceExecutor = new ThreadPoolExecutor(
+            1,
+            1,
+            60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            ThreadFactoryUtils.createArchiveMaintenanceThreadFactory()
+        );
+        maintenanceExecutor.allowCoreThreadTimeOut(true);
     }
 
     /**
-     * 打开超级区块归档文件(SCAF)
+     * SCAF缓存Key
      * @param worldName 世界名称
      * @param scaPos SCA文件坐标
-     * @return 超级区块归档文件
      */
-    private SuperChunkArchiveFile openSCAF(String worldName, ScaPos scaPos){
+    private record ScafKey(String worldName, ScaPos scaPos) {
+    }
+
+    /**
+     * 等待中的异步读取请求
+     * @param pos 区块位置
+     * @param localPos SCA内部局部坐标
+     * @param future 读取结果
+     */
+    private record PendingRead(ChunkPos pos, ScaLocalPos localPos, CompletableFuture<byte[]> future) {
+    }
 
-        //生成缓存Key：使用SCA文件名作为Key，确保同一SCA文件只打开一个句柄
-        String cacheKey = worldName + "." + scaPos.toScaFileName();
+    /**
+     * 世界的区块压缩字典状态
+     */
+    private static final class WorldDictionary {
 
-        //查询是否位于缓存中
-        SuperChunkArchiveFile scaf = scafCache.getIfPresent(cacheKey);
+        //新写入的区块使用的字典 尚未训练时为null
+        private volatile FlexChunkDictionary current;
 
-        if (scaf != null) {
-            return scaf;
+        //训练字典的样本(序列化后的区块数据) 交给维护线程训练后清空
+        private final List<byte[]> samples = new ArrayList<>();
+
+        //是否正在后台训练字典(需持有该对象的锁) 训练期间不再收集样本
+        private boolean training = false;
+
+        //训练锁 同一个世界的字典按顺序训练与保存，不阻塞写入区块时对该对象的同步
+        private final Object trainLock = new Object();
+
+        //该世界全部的字典 字典ID -> 字典
+        private final Map<Integer, FlexChunkDictionary> all = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * 打开并占用超级区块归档文件(SCAF) 使用完毕后必须调用 releaseSCAF
+     * 占用期间文件即使被缓存淘汰也不会关闭；占用失败说明文件刚被淘汰，重新从缓存获取
+     * @param cacheKey 缓存Key
+     * @return 超级区块归档文件 打开失败时为null
+     */
+    private SuperChunkArchiveFile acquireSCAF(ScafKey cacheKey){
+        while (true) {
+            SuperChunkArchiveFile scaf = openSCAF(cacheKey);
+            if (scaf == null || scaf.acquire()) {
+                return scaf;
+            }
         }
+    }
 
-        //不在缓存中，打开新的SCAF句柄
-        var dirPath = Paths.get(archiveService.getArchiveScaDirAbsolutePath(worldName));
+    /**
+     * 释放对SCAF的占用
+     * @param cacheKey 缓存Key
+     * @param scaf 超级区块归档文件
+     */
+    private void releaseSCAF(ScafKey cacheKey, SuperChunkArchiveFile scaf){
+        scaf.release();
+        if (scaf.isClosed()) {
+            retiredScafs.remove(cacheKey, scaf);
+        }
+    }
 
-        try {
-            scaf = new SuperChunkArchiveFile(dirPath.resolve(scaPos.toScaFileName()), EngineDefault.SCA_PACKAGE_SIZE);
-            scaf.open();
+    /**
+     * 打开超级区块归档文件(SCAF)
+     * @param cacheKey 缓存Key 同一SCA文件只打开一个句柄
+     * @return 超级区块归档文件
+     */
+    private SuperChunkArchiveFile openSCAF(ScafKey cacheKey){
 
-            log.info("打开SCAF文件: {}", dirPath.resolve(scaPos.toScaFileName()).toString());
+        //查询是否位于缓存中
+        SuperChunkArchiveFile scaf = scafCache.getIfPresent(cacheKey);
 
-            //缓存SCAF句柄
-            scafCache.put(cacheKey, scaf);
+        if (scaf != null) {
             return scaf;
-        } catch (IOException e) {
-            log.error("打开SCA文件失败: {}", dirPath.resolve(scaPos.toScaFileName()).toString(), e);
-            return null;
         }
+
+        //不在缓存中，打开新的SCAF句柄 多个线程同时打开同一个文件时只有一个线程执行打开，其余线程等待并共享同一个句柄
+        return scafCache.get(cacheKey, key -> {
+            //被淘汰的文件仍被占用时恢复并复用它 不能在同一路径上打开第二个实例
+            var retired = retiredScafs.remove(key);
+            if (retired != null && retired.revive()) {
+                log.debug("恢复区域文件: {}", key);
+                return retired;
+            }
+            var dirPath = Paths.get(archiveService.getArchiveScaDirAbsolutePath(key.worldName()));
+            var path = dirPath.resolve(key.scaPos().toScaFileName());
+            try {
+                var newScaf = new SuperChunkArchiveFile(path, EngineDefault.SCA_PACKAGE_SIZE);
+                newScaf.open();
+                log.info("打开SCAF文件: {}", path);
+                return newScaf;
+            } catch (IOException e) {
+                //返回null时不缓存
+                log.error("打开SCA文件失败: {}", path, e);
+                return null;
+            }
+        });
     }
 
     /**
@@ -103,7 +243,8 @@ public class ArchiveSuperChunkService implements GlobalService {
         ScaLocalPos scaLocalPos = pos.toScaLocalPos(EngineDefault.SCA_PACKAGE_SIZE);
 
         //打开或获取SCAF
-        SuperChunkArchiveFile scaf = openSCAF(worldName, scaPos);
+        var key = new ScafKey(worldName, scaPos);
+        SuperChunkArchiveFile scaf = acquireSCAF(key);
         if (scaf == null) {
             return false;
         }
@@ -113,6 +254,8 @@ public class ArchiveSuperChunkService implements GlobalService {
         } catch (IOException e) {
             log.error("判断区块是否存在失败: worldName={}, pos={}", worldName, pos, e);
             return false;
+        } finally {
+            releaseSCAF(key, scaf);
         }
     }
 
@@ -132,7 +275,8 @@ public class ArchiveSuperChunkService implements GlobalService {
         ScaLocalPos scaLocalPos = pos.toScaLocalPos(EngineDefault.SCA_PACKAGE_SIZE);
 
         //打开或获取SCAF
-        SuperChunkArchiveFile scaf = openSCAF(worldName, scaPos);
+        var key = new ScafKey(worldName, scaPos);
+        SuperChunkArchiveFile scaf = acquireSCAF(key);
         if (scaf == null) {
             return null;
         }
@@ -142,6 +286,8 @@ public class ArchiveSuperChunkService implements GlobalService {
         } catch (IOException e) {
             log.error("读取区块数据失败: worldName={}, pos={}", worldName, pos, e);
             return null;
+        } finally {
+            releaseSCAF(key, scaf);
         }
     }
 
@@ -150,10 +296,11 @@ public class ArchiveSuperChunkService implements GlobalService {
      * @param worldName 世界名称
      * @param pos 区块位置
      * @param data 区块数据
+     * @return 是否写入成功
      */
-    public void writeChunk(String worldName, ChunkPos pos, byte[] data){
+    public boolean writeChunk(String worldName, ChunkPos pos, byte[] data){
         if (worldName == null || pos == null || data == null || data.length == 0) {
-            return;
+            return false;
         }
 
         //转换为SCA文件坐标和内部局部坐标
@@ -161,35 +308,548 @@ public class ArchiveSuperChunkService implements GlobalService {
         ScaLocalPos scaLocalPos = pos.toScaLocalPos(EngineDefault.SCA_PACKAGE_SIZE);
 
         //打开或获取SCAF
-        SuperChunkArchiveFile scaf = openSCAF(worldName, scaPos);
+        var key = new ScafKey(worldName, scaPos);
+        SuperChunkArchiveFile scaf = acquireSCAF(key);
         if (scaf == null) {
             log.error("无法打开SCAF文件: worldName={}, scaPos={}", worldName, scaPos);
-            return;
+            return false;
         }
 
         try {
-            scaf.writeChunk(scaLocalPos.getX(), scaLocalPos.getZ(), data);
+            scaf.writeChunk(scaLocalPos.getX(), scaLocalPos.getZ(), encode(worldName, data), true);
+            return true;
         } catch (IOException e) {
             log.error("写入区块数据失败: worldName={}, pos={}", worldName, pos, e);
+            return false;
+        } finally {
+            releaseSCAF(key, scaf);
+        }
+    }
+
+    /**
+     * 批量写入区块数据
+     * 按SCA文件分组后对每个文件执行一次组提交，刷盘次数与涉及的SCA文件数量成正比，而不是与区块数量成正比
+     * 某个SCA文件写入失败时不影响其他文件
+     * @param worldName 世界名称
+     * @param chunks 区块位置 -> 区块数据
+     * @return 成功写入的区块位置
+     */
+    public List<ChunkPos> writeChunks(String worldName, Map<ChunkPos, byte[]> chunks){
+        return writeChunks(worldName, chunks, false);
+    }
+
+    /**
+     * 批量写入区块数据
+     * @param worldName 世界名称
+     * @param chunks 区块位置 -> 区块数据
+     * @param skipExisting 是否跳过归档中已存在的区块(在SCA文件的写锁内判断，用于预生成等只应补充缺失区块的写入)
+     * @return 成功写入的区块位置 不包含因已存在而跳过的区块
+     */
+    public List<ChunkPos> writeChunks(String worldName, Map<ChunkPos, byte[]> chunks, boolean skipExisting){
+
+        var written = new ArrayList<ChunkPos>();
+        if (worldName == null || chunks == null || chunks.isEmpty()) {
+            return written;
+        }
+
+        //按SCA文件分组
+        var groups = new HashMap<ScaPos, Map<ScaLocalPos, byte[]>>();
+        var groupPositions = new HashMap<ScaPos, List<ChunkPos>>();
+        for (var entry : chunks.entrySet()) {
+            var pos = entry.getKey();
+            var data = entry.getValue();
+            if (pos == null || data == null || data.length == 0) {
+                continue;
+            }
+            ScaPos scaPos = pos.toScaPos(EngineDefault.SCA_PACKAGE_SIZE);
+            groups.computeIfAbsent(scaPos, k -> new HashMap<>()).put(pos.toScaLocalPos(EngineDefault.SCA_PACKAGE_SIZE), encode(worldName, data));
+            groupPositions.computeIfAbsent(scaPos, k -> new ArrayList<>()).add(pos);
+        }
+
+        for (var group : groups.entrySet()) {
+            var scaPos = group.getKey();
+
+            //打开或获取SCAF
+            var key = new ScafKey(worldName, scaPos);
+            SuperChunkArchiveFile scaf = acquireSCAF(key);
+            if (scaf == null) {
+                log.error("无法打开SCAF文件: worldName={}, scaPos={}", worldName, scaPos);
+                continue;
+            }
+
+            try {
+                var skipped = scaf.writeChunks(group.getValue(), skipExisting);
+                for (var pos : groupPositions.get(scaPos)) {
+                    if (!skipped.contains(pos.toScaLocalPos(EngineDefault.SCA_PACKAGE_SIZE))) {
+                        written.add(pos);
+                    }
+                }
+            } catch (IOException e) {
+                log.error("批量写入区块数据失败: worldName={}, scaPos={}", worldName, scaPos, e);
+            } finally {
+                releaseSCAF(key, scaf);
+            }
+        }
+
+        return written;
+    }
+
+    /**
+     * 使用样本训练世界的区块压缩字典，成功后此后写入的区块都使用新字典(已写入的区块不受影响)
+     * @param worldName 世界名称
+     * @param samples 样本(序列化后的区块数据)
+     * @return 是否训练成功
+     */
+    public boolean trainDictionary(String worldName, List<byte[]> samples){
+        if (worldName == null || samples == null || samples.isEmpty()) {
+            return false;
+        }
+        var worldDictionary = getDictionary(worldName);
+        synchronized (worldDictionary.trainLock) {
+            return activateDictionary(worldName, worldDictionary, samples) != null;
         }
     }
 
+    /**
+     * 获取世界当前的区块压缩字典 写入方可以直接使用它序列化并缓存结果(见 FlexServerChunk.getArchiveData)，写入时不再重新压缩
+     * @param worldName 世界名称
+     * @return 字典 未启用字典或尚未训练时返回null
+     */
+    public FlexChunkDictionary getCurrentDictionary(String worldName){
+        if (worldName == null || EngineDefault.SCA_DICTIONARY_SAMPLE_COUNT <= 0) {
+            return null;
+        }
+        return getDictionary(worldName).current;
+    }
+
+    /**
+     * 查找世界的区块压缩字典 用于反序列化从该世界的SCA文件中读取的区块数据
+     * @param worldName 世界名称
+     * @param id 字典ID
+     * @return 字典 不存在时返回null
+     */
+    public FlexChunkDictionary getDictionary(String worldName, int id){
+        if (worldName == null) {
+            return null;
+        }
+        return getDictionary(worldName).all.get(id);
+    }
+
+    /**
+     * 获取世界的区块压缩字典状态 首次访问时加载该世界所有的字典
+     * @param worldName 世界名称
+     */
+    private WorldDictionary getDictionary(String worldName){
+        return dictionaries.computeIfAbsent(worldName, this::loadDictionaries);
+    }
+
+    /**
+     * 从字典文件夹加载世界所有的字典
+     * @param worldName 世界名称
+     */
+    private WorldDictionary loadDictionaries(String worldName){
+        var worldDictionary = new WorldDictionary();
+        var dirPath = Paths.get(archiveService.getArchiveDictDirAbsolutePath(worldName));
+        if (!Files.isDirectory(dirPath)) {
+            return worldDictionary;
+        }
+
+        int count = 0;
+        try (var files = Files.newDirectoryStream(dirPath, "*" + DICTIONARY_SUFFIX)) {
+            for (var file : files) {
+                var dictionary = new FlexChunkDictionary(Files.readAllBytes(file));
+                worldDictionary.all.put(dictionary.getId(), dictionary);
+                count++;
+            }
+            var currentPath = dirPath.resolve(CURRENT_DICTIONARY_FILE);
+            if (Files.exists(currentPath)) {
+                worldDictionary.current = worldDictionary.all.get(Integer.parseUnsignedInt(Files.readString(currentPath).trim(), 16));
+            }
+        } catch (IOException | RuntimeException e) {
+            log.error("加载区块压缩字典失败: {}", dirPath, e);
+        }
+
+        log.info("加载区块压缩字典: worldName={}, 数量={}, 当前={}", worldName, count,
+                worldDictionary.current != null ? Integer.toHexString(worldDictionary.current.getId()) : "无");
+        return worldDictionary;
+    }
+
+    /**
+     * 使用世界的区块压缩字典重新压缩区块数据 已使用字典压缩的数据原样返回
+     * 世界还没有字典时把数据加入训练样本并原样返回，样本数量足够时交给维护线程训练字典，训练完成前继续不使用字典写入
+     * @param worldName 世界名称
+     * @param data 序列化后的区块数据
+     * @return 写入SCA文件的数据
+     */
+    private byte[] encode(String worldName, byte[] data){
+        //调用方已使用字典压缩(见 getCurrentDictionary)
+        if (EngineDefault.SCA_DICTIONARY_SAMPLE_COUNT <= 0 || FlexChunkSerializer.usesDictionary(data)) {
+            return data;
+        }
+
+        var worldDictionary = getDictionary(worldName);
+        var dictionary = worldDictionary.current;
+
+        if (dictionary == null) {
+            List<byte[]> samples = null;
+            synchronized (worldDictionary) {
+                if (worldDictionary.current == null && !worldDictionary.training) {
+                    worldDictionary.samples.add(data);
+                    if (worldDictionary.samples.size() >= EngineDefault.SCA_DICTIONARY_SAMPLE_COUNT) {
+                        samples = new ArrayList<>(worldDictionary.samples);
+                        worldDictionary.samples.clear();
+                        worldDictionary.training = true;
+                    }
+                }
+            }
+            if (samples != null) {
+                trainDictionaryAsync(worldName, worldDictionary, samples);
+            }
+            return data;
+        }
+
+        try {
+            return FlexChunkSerializer.recompress(data, dictionary);
+        } catch (RuntimeException e) {
+            log.warn("使用区块压缩字典压缩失败，按原样写入: worldName={}", worldName, e);
+            return data;
+        }
+    }
+
+    /**
+     * 在维护线程中训练字典 训练失败时重新开始收集样本
+     * @param worldName 世界名称
+     * @param worldDictionary 世界的区块压缩字典状态
+     * @param samples 样本
+     */
+    private void trainDictionaryAsync(String worldName, WorldDictionary worldDictionary, List<byte[]> samples){
+        try {
+            maintenanceExecutor.execute(() -> {
+                try {
+                    synchronized (worldDictionary.trainLock) {
+                        activateDictionary(worldName, worldDictionary, samples);
+                    }
+                } catch (RuntimeException e) {
+                    log.error("训练区块压缩字典失败: worldName={}", worldName, e);
+                } finally {
+                    synchronized (worldDictionary) {
+                        worldDictionary.training = false;
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.warn("归档维护线程池已关闭，放弃训练区块压缩字典: worldName={}", worldName);
+            synchronized (worldDictionary) {
+                worldDictionary.training = false;
+            }
+        }
+    }
+
+    /**
+     * 训练并保存字典，保存成功后才会用于新写入的区块(保证使用字典的区块一定能找到字典文件)
+     * 新字典的ID与该世界已有的不同字典冲突时放弃(否则已写入的区块会用错误的字典解压)
+     * 调用方需要持有worldDictionary.trainLock
+     * @param worldName 世界名称
+     * @param worldDictionary 世界的区块压缩字典状态
+     * @param samples 样本
+     * @return 新的字典 训练或保存失败时返回null
+     */
+    private FlexChunkDictionary activateDictionary(String worldName, WorldDictionary worldDictionary, List<byte[]> samples){
+        long start = System.currentTimeMillis();
+        var dictionary = FlexChunkDictionary.train(samples);
+        if (dictionary == null) {
+            log.warn("样本中没有可复用的数据，无法训练区块压缩字典: worldName={}, 样本数={}", worldName, samples.size());
+            return null;
+        }
+        var existing = worldDictionary.all.get(dictionary.getId());
+        if (existing != null && !Arrays.equals(existing.getData(), dictionary.getData())) {
+            log.warn("区块压缩字典ID与已有字典冲突，放弃新字典: worldName={}, id={}", worldName, Integer.toHexString(dictionary.getId()));
+            return null;
+        }
+
+        var dirPath = Paths.get(archiveService.getArchiveDictDirAbsolutePath(worldName));
+        try {
+            Files.createDirectories(dirPath);
+            Files.write(dirPath.resolve(Integer.toHexString(dictionary.getId()) + DICTIONARY_SUFFIX), dictionary.getData(),
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE, StandardOpenOption.SYNC);
+            Files.writeString(dirPath.resolve(CURRENT_DICTIONARY_FILE), Integer.toHexString(dictionary.getId()),
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE, StandardOpenOption.SYNC);
+        } catch (IOException e) {
+            log.error("保存区块压缩字典失败: {}", dirPath, e);
+            return null;
+        }
+
+        worldDictionary.all.put(dictionary.getId(), dictionary);
+        worldDictionary.current = dictionary;
+        log.info("训练区块压缩字典: worldName={}, id={}, 大小={}, 样本数={}, 耗时={}ms", worldName, Integer.toHexString(dictionary.getId()),
+                dictionary.getData().length, samples.size(), System.currentTimeMillis() - start);
+        return dictionary;
+    }
+
+    /**
+     * 异步读取区块数据
+     * 同一个SCA文件上等待中的请求会被合并为一次按偏移量排序的批量读取
+     * @param worldName 世界名称
+     * @param pos 区块位置
+     * @return 区块数据 区块不存在时为null，读取失败时异常完成
+     */
+    public CompletableFuture<byte[]> readChunkAsync(String worldName, ChunkPos pos){
+        if (worldName == null || pos == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        var key = new ScafKey(worldName, pos.toScaPos(EngineDefault.SCA_PACKAGE_SIZE));
+        var request = new PendingRead(pos, pos.toScaLocalPos(EngineDefault.SCA_PACKAGE_SIZE), new CompletableFuture<>());
+
+        //加入该SCAF的等待列表 列表为新建时提交一个I/O任务，任务开始执行前到达的请求都会被它一起处理
+        var created = new boolean[1];
+        pendingReads.compute(key, (k, list) -> {
+            if (list == null) {
+                list = new ArrayList<>();
+                created[0] = true;
+            }
+            list.add(request);
+            return list;
+        });
+
+        if (created[0]) {
+            try {
+                ioExecutor.execute(() -> drainReads(key));
+            } catch (RejectedExecutionException e) {
+                var rejected = pendingReads.remove(key);
+                if (rejected != null) {
+                    rejected.forEach(r -> r.future().completeExceptionally(e));
+                }
+            }
+        }
+
+        return request.future();
+    }
+
+    /**
+     * 异步批量读取区块数据
+     * 位于同一个SCA文件的区块会被合并读取，一片区域只需要少数几次顺序读取
+     * @param worldName 世界名称
+     * @param positions 区块位置
+     * @return 区块位置 -> 区块数据 不存在的区块不包含在结果中
+     */
+    public CompletableFuture<Map<ChunkPos, byte[]>> readChunksAsync(String worldName, Collection<ChunkPos> positions){
+        var futures = new HashMap<ChunkPos, CompletableFuture<byte[]>>();
+        for (var pos : positions) {
+            futures.put(pos, readChunkAsync(worldName, pos));
+        }
+        return CompletableFuture.allOf(futures.values().toArray(new CompletableFuture[0])).thenApply(v -> {
+            var ret = new HashMap<ChunkPos, byte[]>();
+            for (var entry : futures.entrySet()) {
+                var data = entry.getValue().join();
+                if (data != null) {
+                    ret.put(entry.getKey(), data);
+                }
+            }
+            return ret;
+        });
+    }
+
+    /**
+     * 处理一个SCAF上所有等待中的读取请求(在I/O线程中执行)
+     * @param key SCAF缓存Key
+     */
+    private void drainReads(ScafKey key){
+
+        //取出整个等待列表 此后到达的请求会建立新的列表并提交新的任务
+        var requests = pendingReads.remove(key);
+        if (requests == null || requests.isEmpty()) {
+            return;
+        }
+
+        SuperChunkArchiveFile scaf = acquireSCAF(key);
+        if (scaf == null) {
+            var e = new IOException("无法打开SCAF文件: worldName=" + key.worldName() + ", scaPos=" + key.scaPos());
+            requests.forEach(r -> r.future().completeExceptionally(e));
+            return;
+        }
+
+        var localPositions = new ArrayList<ScaLocalPos>(requests.size());
+        for (var request : requests) {
+            localPositions.add(request.localPos());
+        }
+
+        try {
+            var result = scaf.readChunks(localPositions);
+            for (var request : requests) {
+                request.future().complete(result.get(request.localPos()));
+            }
+        } catch (IOException | RuntimeException e) {
+            log.error("批量读取区块数据失败: worldName={}, scaPos={}, count={}", key.worldName(), key.scaPos(), requests.size(), e);
+            requests.forEach(r -> r.future().completeExceptionally(e));
+        } finally {
+            releaseSCAF(key, scaf);
+        }
+    }
+
+    /**
+     * 异步写入区块数据
+     * @param worldName 世界名称
+     * @param pos 区块位置
+     * @param data 区块数据
+     * @return 写入任务 完成时返回是否写入成功
+     */
+    public CompletableFuture<Boolean> writeChunkAsync(String worldName, ChunkPos pos, byte[] data){
+        return CompletableFuture.supplyAsync(() -> writeChunk(worldName, pos, data), ioExecutor);
+    }
+
+    /**
+     * 异步批量写入区块数据 按SCA文件分组后对每个文件执行一次组提交
+     * @param worldName 世界名称
+     * @param chunks 区块位置 -> 区块数据
+     * @return 成功写入的区块位置
+     */
+    public CompletableFuture<List<ChunkPos>> writeChunksAsync(String worldName, Map<ChunkPos, byte[]> chunks){
+        return writeChunksAsync(worldName, chunks, false);
+    }
+
+    /**
+     * 异步批量写入区块数据 按SCA文件分组后对每个文件执行一次组提交
+     * @param worldName 世界名称
+     * @param chunks 区块位置 -> 区块数据
+     * @param skipExisting 是否跳过归档中已存在的区块
+     * @return 成功写入的区块位置 不包含因已存在而跳过的区块
+     */
+    public CompletableFuture<List<ChunkPos>> writeChunksAsync(String worldName, Map<ChunkPos, byte[]> chunks, boolean skipExisting){
+        return CompletableFuture.supplyAsync(() -> writeChunks(worldName, chunks, skipExisting), ioExecutor);
+    }
+
+    /**
+     * 关闭归档I/O线程池与维护线程池 等待已提交的读写与字典训练完成
+     */
+    public void shutdown(){
+        maintenanceExecutor.shutdown();
+        ioExecutor.shutdown();
+        try {
+            if (!ioExecutor.awaitTermination(30, TimeUnit.SECONDS)) {
+                log.warn("归档I/O线程池未能在30秒内完成已提交的读写");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            if (!maintenanceExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+                log.warn("归档维护线程池未能在10秒内完成字典训练");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.info("归档I/O线程池已关闭");
+    }
+
+    /**
+     * 获取当前已打开的SCAF文件的碎片率
+     * @return 文件名 -> 碎片率(数据区中空闲扇区的比例 0~1)
+     */
+    public Map<String, Double> getFragmentationRatios(){
+        var ret = new HashMap<String, Double>();
+        for (SuperChunkArchiveFile scaf : scafCache.asMap().values()) {
+            ret.put(scaf.getFile().getName(), scaf.getFragmentationRatio());
+        }
+        return ret;
+    }
+
     /**
      * 对当前已打开的SCAF文件进行碎片整理
      * 注意: 那些没有被打开的SCAF文件不会进行碎片整理
      */
     public void compact(){
         int count = 0;
-        for (SuperChunkArchiveFile scaf : scafCache.asMap().values()) {
+        for (var entry : scafCache.asMap().entrySet()) {
+            SuperChunkArchiveFile scaf = entry.getValue();
+            if (!scaf.acquire()) {
+                continue;
+            }
             try {
+                log.debug("碎片整理: {} 碎片率 {}", scaf.getFile().getName(), String.format("%.2f", scaf.getFragmentationRatio()));
                 scaf.compact();
                 count++;
             } catch (IOException e) {
                 log.error("碎片整理失败: {}", scaf.getFile().getName(), e);
+            } finally {
+                releaseSCAF(entry.getKey(), scaf);
             }
         }
         log.info("完成碎片整理，共处理 {} 个SCAF文件", count);
     }
 
+    /**
+     * 启动后台碎片整理
+     * 每隔一段时间从已打开的SCAF文件中选出碎片率最高的一个，以限制的带宽整理它，整理期间读写照常进行
+     */
+    public synchronized void startBackgroundCompaction(){
+        if (compactionScheduler != null) {
+            return;
+        }
+        int interval = EngineDefault.SCA_COMPACTION_INTERVAL_SECONDS;
+        compactionScheduler = Executors.newSingleThreadScheduledExecutor(ThreadFactoryUtils.createArchiveMaintenanceThreadFactory());
+        compactionScheduler.scheduleWithFixedDelay(this::compactMostFragmented, interval, interval, TimeUnit.SECONDS);
+        log.info("SCA后台碎片整理已启动 间隔:{}秒 阈值:{} 带宽:{}B/s", interval, EngineDefault.SCA_COMPACTION_THRESHOLD, EngineDefault.SCA_COMPACTION_BANDWIDTH);
+    }
+
+    /**
+     * 停止后台碎片整理 正在进行的整理会被中断并放弃(原文件不受影响)
+     */
+    public synchronized void stopBackgroundCompaction(){
+        if (compactionScheduler == null) {
+            return;
+        }
+        compactionScheduler.shutdownNow();
+        try {
+            if (!compactionScheduler.awaitTermination(10, TimeUnit.SECONDS)) {
+                log.warn("SCA后台碎片整理未能在10秒内停止");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        compactionScheduler = null;
+        log.info("SCA后台碎片整理已停止");
+    }
+
+    /**
+     * 整理碎片率最高的已打开SCAF文件(碎片率未达到阈值或文件太小时不整理)
+     */
+    private void compactMostFragmented(){
+        ScafKey targetKey = null;
+        SuperChunkArchiveFile target = null;
+        double targetRatio = EngineDefault.SCA_COMPACTION_THRESHOLD;
+
+        for (var entry : scafCache.asMap().entrySet()) {
+            SuperChunkArchiveFile scaf = entry.getValue();
+            if (scaf.getFile().length() < EngineDefault.SCA_COMPACTION_MIN_FILE_SIZE) {
+                continue;
+            }
+            double ratio = scaf.getFragmentationRatio();
+            if (ratio >= targetRatio) {
+                targetKey = entry.getKey();
+                target = scaf;
+                targetRatio = ratio;
+            }
+        }
+
+        //整理期间占用文件 文件在选出后刚好被淘汰时放弃本次整理
+        if (target == null || !target.acquire()) {
+            return;
+        }
+
+        long before = target.getFile().length();
+        long start = System.currentTimeMillis();
+        try {
+            if (target.compact(EngineDefault.SCA_COMPACTION_BANDWIDTH)) {
+                log.info("SCA后台碎片整理: {} 碎片率 {} 大小 {} -> {} 耗时 {}ms", target.getFile().getName(),
+                        String.format("%.2f", targetRatio), before, target.getFile().length(), System.currentTimeMillis() - start);
+            }
+        } catch (IOException | RuntimeException e) {
+            //调度器的任务抛出异常后不会再次执行 因此这里只记录日志
+            log.error("SCA后台碎片整理失败: {}", target.getFile().getName(), e);
+        } finally {
+            releaseSCAF(targetKey, target);
+        }
+    }
 
 }
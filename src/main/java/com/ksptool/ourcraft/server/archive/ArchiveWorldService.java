@@ -7,11 +7,26 @@ import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
-
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.ksptool.ourcraft.server.archive.ArchiveChunkEntityService.ChunkEntities;
 import com.ksptool.ourcraft.server.archive.model.ArchiveWorldIndexDto;
 import com.ksptool.ourcraft.server.world.chunk.FlexServerChunk;
-import com.ksptool.ourcraft.sharedcore.utils.FlexChunkSerializer;
+import com.ksptool.ourcraft.sharedcore.enums.EngineDefault;
+import com.ksptool.ourcraft.sharedcore.utils.position.ChunkPos;
+import com.ksptool.ourcraft.sharedcore.utils.ThreadFactoryUtils;
+import com.ksptool.ourcraft.sharedcore.utils.position.ScaPos;
 import org.apache.commons.lang3.StringUtils;
 import com.ksptool.ourcraft.server.archive.model.ArchiveWorldIndexVo;
 import com.ksptool.ourcraft.server.world.ServerWorld;
@@ -31,26 +46,93 @@ public class ArchiveWorldService {
     //归档区块管理器
     private final ArchiveSuperChunkService chunkService;
 
+    //正在进行的世界保存 世界名称 -> 保存任务 同一个世界的保存按顺序执行
+    private final Map<String, CompletableFuture<Integer>> savingWorlds = new ConcurrentHashMap<>();
+
+    //世界保存线程池 队列不限长度，任务不会被丢弃(被丢弃的任务会使保存任务永远无法完成，存盘快照也无法归还)
+    private final ThreadPoolExecutor saveExecutor;
+
     public ArchiveWorldService(ArchiveService archiveService, ArchivePaletteService paletteManager, ArchiveSuperChunkService chunkService){
         this.archiveService = archiveService;
         this.paletteManager = paletteManager;
         this.chunkService = chunkService;
+
+        saveExecutor = new ThreadPoolExecutor(
+            EngineDefault.ARCHIVE_SAVE_THREAD_COUNT,
+            EngineDefault.ARCHIVE_SAVE_THREAD_COUNT,
+            60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            ThreadFactoryUtils.createArchiveSaveThreadFactory()
+        );
+        saveExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * 关闭世界保存线程池 等待已提交的保存完成
+     */
+    public void shutdown(){
+        saveExecutor.shutdown();
+        try {
+            if (!saveExecutor.awaitTermination(30, TimeUnit.SECONDS)) {
+                log.warn("世界保存线程池未能在30秒内完成已提交的保存");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.info("世界保存线程池已关闭");
     }
 
+    /**
+     * 保存世界(阻塞直到保存完成)
+     * @param world 世界
+     */
     public void saveWorld(ServerWorld world){
+        try {
+            saveWorldAsync(world).join();
+        } catch (CompletionException e) {
+            log.error("世界 {} 保存失败", world == null ? null : world.getName(), e.getCause());
+        }
+    }
+
+    /**
+     * 异步保存世界
+     * 在世界的Tick边界为所有脏区块创建写时复制快照(记录修订号)与实体快照，之后世界线程继续运行，
+     * 快照按SCA文件分组后在世界保存线程池中并行序列化与写入(每个SCA文件一次组提交)，
+     * 写入完成后只清除修订号没有变化的区块的脏标记，保存期间被修改的区块保持为脏，等待下一次保存。
+     * 同一个世界的保存按提交顺序执行，旧快照不会覆盖新快照
+     * @param world 世界
+     * @return 保存任务 完成时返回写入的区块数量
+     */
+    public CompletableFuture<Integer> saveWorldAsync(ServerWorld world){
 
         if(world == null){
             log.error("世界不能为空");
-            return;
+            return CompletableFuture.completedFuture(0);
         }
 
         var archiveName = archiveService.getCurrentArchiveName();
         
         if(StringUtils.isBlank(archiveName)){
             log.error("当前未连接到归档，无法保存世界数据");
-            return;
+            return CompletableFuture.completedFuture(0);
         }
 
+        var worldName = world.getName();
+        var future = savingWorlds.compute(worldName, (k, previous) -> {
+            var ready = previous == null ? CompletableFuture.<Void>completedFuture(null) : previous.handle((r, e) -> (Void) null);
+            return ready.thenCompose(v -> doSaveWorld(world));
+        });
+        future.whenComplete((r, e) -> savingWorlds.remove(worldName, future));
+        return future;
+    }
+
+    /**
+     * 保存世界索引与调色板，并在Tick边界创建快照后写入
+     */
+    private CompletableFuture<Integer> doSaveWorld(ServerWorld world){
+
+        long start = System.currentTimeMillis();
+
         //直接保存世界运行时到归档索引(归档索引不存在时自动创建)
         var existWorldIndex = loadWorldIndex(world.getName());
 
@@ -72,24 +154,153 @@ public class ArchiveWorldService {
         //保存当前的全局调色板数据
         paletteManager.saveGlobalPalette(GlobalPalette.getInstance());
 
-        //保存当前的区块数据
-        List<FlexServerChunk> dirtyChunks = world.getFscs().getDirtySnapshot();
-        int chunkCount = 0;
+        //在Tick边界创建区块与实体快照 世界线程只做快照，不做序列化与I/O
+        //实体快照的修订号在写入完成(或保存失败)前保持占用 比它更新的卸载数据仍能拒绝这份快照
+        var aces = archiveService.getChunkEntityService();
+        var snapshotFuture = new CompletableFuture<WorldSnapshot>();
+        world.runAtTickBoundary(() -> {
+            long entityRevision = aces.nextRevision();
+            try {
+                var fscs = world.getFscs();
+                snapshotFuture.complete(new WorldSnapshot(fscs.createSaveSnapshots(), fscs.getEntitySnapshot(entityRevision), entityRevision));
+            } catch (Exception e) {
+                aces.releaseRevision(entityRevision);
+                snapshotFuture.completeExceptionally(e);
+            }
+        });
+
+        return snapshotFuture.thenCompose(snapshot -> writeSnapshot(world, snapshot, start)
+                .whenComplete((r, e) -> aces.releaseRevision(snapshot.entityRevision())));
+    }
 
-        for (FlexServerChunk chunk : dirtyChunks) {
-            byte[] compressedData = FlexChunkSerializer.serialize(chunk.getFlexChunkData());
-            chunkService.writeChunk(world.getName(),chunk.getChunkPos(),compressedData);
-            chunk.setDirty(false);
-            chunkCount++;
+    /**
+     * 按SCA文件分组并行写入世界快照
+     * @param world 世界
+     * @param snapshot 世界快照
+     * @param start 保存开始的时间
+     * @return 写入任务 完成时返回写入的区块数量
+     */
+    private CompletableFuture<Integer> writeSnapshot(ServerWorld world, WorldSnapshot snapshot, long start){
+
+        var groups = new HashMap<ScaPos, List<FlexServerChunk.SaveSnapshot>>();
+        for (var chunkSnapshot : snapshot.chunks()) {
+            var scaPos = chunkSnapshot.getChunk().getChunkPos().toScaPos(EngineDefault.SCA_PACKAGE_SIZE);
+            groups.computeIfAbsent(scaPos, k -> new ArrayList<>()).add(chunkSnapshot);
         }
 
-        //保存实体数据
+        int totalChunks = snapshot.chunks().size();
+        int totalFiles = groups.size();
+        int step = Math.max(1, totalFiles / 10);
+        var savedChunks = new AtomicInteger();
+        var doneFiles = new AtomicInteger();
+        var futures = new ArrayList<CompletableFuture<Void>>(totalFiles);
+
+        log.info("开始保存世界 {} 脏区块数: {} SCA文件数: {}", world.getName(), totalChunks, totalFiles);
+
+        for (var group : groups.entrySet()) {
+            futures.add(CompletableFuture.supplyAsync(() -> writeGroup(world, group.getKey(), group.getValue()), saveExecutor).thenAccept(count -> {
+                int saved = savedChunks.addAndGet(count);
+                int done = doneFiles.incrementAndGet();
+                if (done % step == 0 || done == totalFiles) {
+                    log.info("世界 {} 保存进度: SCA文件 {}/{} 区块 {}/{}", world.getName(), done, totalFiles, saved, totalChunks);
+                }
+            }));
+        }
+
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).thenApplyAsync(v -> {
 
+            //保存实体数据(已加载区块中的实体 在一个事务中批量写入) 快照后开始卸载的区块由卸载任务写入更新的实体数据
+            var entities = new HashMap<ChunkPos, ChunkEntities>();
+            for (var entry : snapshot.entities().entrySet()) {
+                if (world.getFscs().isChunkReady(entry.getKey())) {
+                    entities.put(entry.getKey(), entry.getValue());
+                }
+            }
+            archiveService.getChunkEntityService().writeEntities(world.getName(), entities);
 
-        log.info("世界 {} 保存完成，保存区块数: {}", world.getName(), chunkCount);
+            log.info("世界 {} 保存完成，保存区块数: {}/{} 实体区块数: {} 耗时: {}ms", world.getName(), savedChunks.get(), totalChunks,
+                    entities.size(), System.currentTimeMillis() - start);
+            return savedChunks.get();
+        }, saveExecutor);
     }
 
+    /**
+     * 序列化并写入同一个SCA文件中的区块快照(在世界保存线程池中执行)
+     * 写入期间持有这些区块的存盘锁，与卸载时的写入按顺序执行，归档中已有更新数据的区块不再写入
+     * @param world 世界
+     * @param scaPos SCA文件坐标
+     * @param snapshots 区块快照
+     * @return 写入的区块数量
+     */
+    private int writeGroup(ServerWorld world, ScaPos scaPos, List<FlexServerChunk.SaveSnapshot> snapshots){
+
+        var payloads = new HashMap<ChunkPos, byte[]>();
+        var serialized = new ArrayList<FlexServerChunk.SaveSnapshot>();
+        var dictionary = chunkService.getCurrentDictionary(world.getName());
+
+        for (var chunkSnapshot : snapshots) {
+            var chunk = chunkSnapshot.getChunk();
+            try {
+                //卸载中的区块由卸载任务写入最新的数据 这里不再序列化旧快照
+                if (chunk.getStage() != FlexServerChunk.Stage.READY) {
+                    chunkSnapshot.discard();
+                    continue;
+                }
+                payloads.put(chunk.getChunkPos(), chunkSnapshot.serialize(dictionary));
+                serialized.add(chunkSnapshot);
+            } catch (RuntimeException e) {
+                chunkSnapshot.discard();
+                log.error("区块序列化失败: {}", chunk.getChunkPos(), e);
+            }
+        }
 
+        //按区块坐标顺序获取存盘锁 避免与其他同时锁定多个区块的写入死锁
+        serialized.sort(Comparator.comparingInt((FlexServerChunk.SaveSnapshot s) -> s.getChunk().getX())
+                .thenComparingInt(s -> s.getChunk().getZ()));
+
+        var locked = new ArrayList<FlexServerChunk>(serialized.size());
+        try {
+            var revisions = new HashMap<ChunkPos, FlexServerChunk.SaveSnapshot>();
+            for (var chunkSnapshot : serialized) {
+                var chunk = chunkSnapshot.getChunk();
+                chunk.lockSave();
+                locked.add(chunk);
+                //卸载任务已经写入了更新的数据
+                if (!chunk.isNewerThanSaved(chunkSnapshot.getRevision())) {
+                    payloads.remove(chunk.getChunkPos());
+                    continue;
+                }
+                revisions.put(chunk.getChunkPos(), chunkSnapshot);
+            }
+
+            //一个SCA文件只执行一次组提交
+            var written = chunkService.writeChunks(world.getName(), payloads);
+
+            //只清除修订号没有变化的区块的脏标记 保存期间被修改的区块等待下一次保存
+            for (var pos : written) {
+                var chunkSnapshot = revisions.get(pos);
+                chunkSnapshot.getChunk().markSaved(chunkSnapshot.getRevision());
+            }
+
+            if (written.size() < payloads.size()) {
+                log.warn("SCA文件 {} 部分区块写入失败: {}/{}", scaPos, written.size(), payloads.size());
+            }
+            return written.size();
+        } finally {
+            for (var chunk : locked) {
+                chunk.unlockSave();
+            }
+        }
+    }
+
+    /**
+     * 在Tick边界创建的世界快照
+     * @param chunks 脏区块的存盘快照
+     * @param entities 已加载区块中的实体数据
+     * @param entityRevision 实体数据的修订号
+     */
+    private record WorldSnapshot(List<FlexServerChunk.SaveSnapshot> chunks, Map<ChunkPos, ChunkEntities> entities, long entityRevision) {
+    }
 
     /**
      * 保存世界索引数据(不存在时自动创建存在则更新)
@@ -1,53 +1,103 @@
 package com.ksptool.ourcraft.server.archive;
 
+import com.ksptool.ourcraft.sharedcore.utils.position.ScaLocalPos;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.CRC32;
 
 /**
  * 超级区块归档文件 (Super Chunk Archive File) - 核心 I/O 句柄
  * 该类负责直接操作底层的 .sca 文件，实现了针对游戏存档的高性能、崩溃一致性 (Crash-Consistent) 读写。
- * 它采用了类似日志结构文件系统 (LFS) 的写入策略，以牺牲一定的磁盘空间为代价，换取数据安全性。
- * 
- * 追加写入：无论新旧数据大小对比如何，新数据永远写入文件末尾 (EOF)
+ *
+ * 扇区分配：区块数据按扇区(512B)分配，写入时优先复用已失效的扇区(首次适配)，没有合适的空洞时追加到数据区末尾。
+ * 空闲扇区表不落盘，打开文件时根据索引表重建。
  * 强制落盘: 在修改索引指针前，强制操作系统将数据刷入物理磁盘。
- * 原子指针更新：只有当数据安全后，才修改文件头的 Offset 指针指向新位置。
- * 若在写入过程中崩溃，文件末尾会残留垃圾数据，但索引表依然指向旧的、完好的数据，存档本身不受影响。
- * 
+ * 双缓冲文件头：文件头有两个槽位，每次提交把完整的索引表连同递增的代数与CRC32写入另一个槽位，
+ * 打开文件时使用CRC校验通过且代数最大的槽位。提交过程中崩溃时，被写坏的槽位校验失败，自动回退到上一次提交的索引表。
+ * 扇区回收：被替换的旧数据只有在不再引用它的文件头落盘后才会回到空闲扇区表，
+ * 在此之前写入的新数据不会覆盖任何一个有效文件头仍在引用的扇区。
+ *
  * 维护：碎片整理 (Compaction)
- * 由于追加写策略会导致文件产生"空洞"（旧数据的废弃空间），导致文件体积单调增长。
- * 必须定期（如服务器关闭或闲置时）调用 compact 方法。该方法会执行碎片整理 重建一个新的紧凑文件并原子替换旧文件。
- * 
- * SCA文件格式规范：
+ * 扇区复用后文件不再单调增长，但数据区中仍可能留下无法利用的小空洞，可以通过 getFragmentationRatio 查看碎片率，
+ * 必要时调用 compact 方法重建一个新的紧凑文件并原子替换旧文件。碎片整理可以在服务器运行期间进行(见 ArchiveSuperChunkService)，
+ * 拷贝阶段不阻塞读写，替换前开始的读取继续使用旧文件。
+ *
+ * SCA文件格式规范(版本2)：
  * - Magic Number (4 bytes)
  * - Version (1 byte)
- * - Index Table (40 * 40 * 8 bytes): 每个条目包含 Offset (4 bytes) 和 Length (4 bytes)
- * - Data Section: 压缩后的数据块
- * 4B 1B 12800B 数据块
+ * - Padding (3 bytes)
+ * - Header Slot 0 / Header Slot 1: 每个槽位包含 Generation (8 bytes)、Index Table (40 * 40 * 8 bytes)、CRC32 (4 bytes)
+ *   索引表每个条目包含 Offset (4 bytes) 和 Length (4 bytes)
+ * - Data Section: 从扇区边界开始，压缩后的数据块
+ * 4B 1B 3B 12812B 12812B 数据块
+ *
+ * 版本1(单个索引表 仅追加写入)的文件在打开时自动升级为版本2。
+ *
+ * 并发：索引表在打开时整体读入内存，区块读取使用位置读取(FileChannel.read(ByteBuffer, position))，
+ * 不依赖共享的文件指针也不需要加锁；只有写入+索引提交在每个文件的写锁内串行执行。
+ * 文件通道与内存中的索引表作为一个句柄整体发布，读取方始终在同一个文件中定位并读取数据。
+ *
+ * 生命周期：文件关闭后不能再次打开(同一路径同一时间只能有一个实例，否则各自的索引表与扇区占用表会互相覆盖)。
+ * 被缓存淘汰的文件通过 retire 退役，正在读写的调用方使用 acquire/release 占用文件，所有占用释放后文件才会关闭。
  */
 @Slf4j
 public class SuperChunkArchiveFile {
 
+    //当前写入的文件格式版本
+    public static final int CURRENT_VERSION = 2;
+
+    //扇区大小(字节)
+    public static final int SECTOR_BYTES = 512;
+
+    //碎片整理时每批拷贝的字节数(每批刷盘一次)
+    private static final int COMPACT_BATCH_BYTES = 1024 * 1024;
+
+    //批量读取时两段数据之间的间隔不超过该值(字节)则合并为一次读取 多读一段间隔比多一次随机读取更便宜
+    private static final int MAX_MERGE_GAP = 32 * 1024;
+
+    //批量读取时合并后单次读取的最大长度(字节)
+    private static final int MAX_MERGED_READ = 1024 * 1024;
+
     //SCA封装大小
     private final int scaPackageSize;
 
-    //头部总长度(Magic Number 4字节 + Version 1字节 + 索引表 8字节/条目)
-    private int headerSize;
-
     //头部索引条目长度(Offset和Length各4字节)
     private final int headerIndexEntrySize = 8;
 
-    //头部索引条目偏移量(魔数4B + 版本1B = 5B)
-    private final int headerOffset = 5;
+    //版本1的索引表偏移量(魔数4B + 版本1B = 5B)
+    private final int legacyHeaderOffset = 5;
+
+    //文件头槽位的起始偏移量(魔数4B + 版本1B + 填充3B = 8B)
+    private final int headerSlotOffset = 8;
+
+    //单个文件头槽位长度(代数8B + 索引表 + CRC32 4B)
+    private final int headerSlotSize;
+
+    //数据区起始扇区
+    private final int dataStartSector;
 
     //SCA文件
     private final Path path;
@@ -55,20 +105,56 @@ public class SuperChunkArchiveFile {
     //魔数 默认值为SCAF
     private String magicNumber = "SCAF";
 
-    //文件句柄
-    private RandomAccessFile raf;
+    //当前打开的文件 未打开时为null
+    private volatile Handle handle;
+
+    //碎片整理替换下来的旧文件 替换前开始的读取可能仍在使用 下一次替换或关闭文件时才关闭(需持有写锁)
+    private Handle retired;
+
+    //写锁 写入+索引提交、打开、关闭、碎片整理的替换阶段需要串行执行
+    private final Object writeLock = new Object();
+
+    //碎片整理锁 同一个文件同一时间只进行一次碎片整理
+    private final Object compactLock = new Object();
+
+    //当前生效的文件头代数(需持有写锁)
+    private long generation;
+
+    //扇区占用表(需持有写锁) 文件头与所有有效区块数据占用的扇区为1
+    private final BitSet usedSectors = new BitSet();
+
+    //文件是否已关闭(需持有写锁) 关闭后不能再次打开
+    private boolean closed;
+
+    //占用锁 保护占用计数与退役状态
+    private final Object pinLock = new Object();
+
+    //正在读写该文件的调用方数量(需持有占用锁)
+    private int pins;
+
+    //是否已退役(需持有占用锁) 退役后不接受新的占用，所有占用释放后关闭文件
+    private boolean retiring;
+
+    //是否已决定关闭(需持有占用锁) 此后不能再恢复
+    private boolean closing;
 
 
     //是否脏了
     @Setter
     @Getter
-    private boolean dirty;
+    private volatile boolean dirty;
+
+    /**
+     * 已打开的文件
+     * @param channel 文件通道 所有读写都使用位置读写(不依赖文件指针)，读取可以在多个线程上并发执行
+     * @param index 内存中的索引表 下标为 localZ * scaPackageSize + localX，条目为 (偏移量 << 32) | 长度，0表示区块不存在
+     *              偏移量与长度作为一个long整体更新，并发读取时不会看到只更新了一半的条目
+     */
+    private record Handle(FileChannel channel, AtomicLongArray index) {
+    }
 
     public SuperChunkArchiveFile(Path path, int scaPackageSize){
-        this.path = path;
-        this.dirty = false;
-        this.scaPackageSize = scaPackageSize;
-        this.headerSize = 4 + 1 + (scaPackageSize * scaPackageSize * headerIndexEntrySize);
+        this(path, "SCAF", scaPackageSize);
     }
 
     /**
@@ -79,143 +165,585 @@ public class SuperChunkArchiveFile {
         this.magicNumber = magicNumber;
         this.dirty = false;
         this.scaPackageSize = scaPackageSize;
-        this.headerSize = 4 + 1 + (scaPackageSize * scaPackageSize * headerIndexEntrySize);
+        this.headerSlotSize = 8 + (scaPackageSize * scaPackageSize * headerIndexEntrySize) + 4;
+        this.dataStartSector = (headerSlotOffset + 2 * headerSlotSize + SECTOR_BYTES - 1) / SECTOR_BYTES;
     }
 
     /**
      * 打开文件
+     * 版本1的文件会被立即升级(重建为版本2的新文件并原子替换)
      */
     public void open() throws IOException {
-        if (raf != null) {
-            return;
-        }
+        synchronized (writeLock) {
+            if (handle != null) {
+                return;
+            }
+
+            if (closed) {
+                throw new IOException("SCA文件已关闭: " + path);
+            }
+
+            if (!Files.exists(path)) {
+                if (path.getParent() != null) {
+                    Files.createDirectories(path.getParent());
+                }
+                Files.createFile(path);
+                initializeFile();
+            }
+
+            var fc = openChannel();
+            try {
+                var version = readHeaderVersion(fc);
+
+                if (version == 1) {
+                    handle = new Handle(fc, loadLegacyIndex(fc));
+                    log.info("升级SCA文件格式: {} 版本1 -> 版本{}", path, CURRENT_VERSION);
+                    compactInternal(0);
+                    return;
+                }
+
+                if (version != CURRENT_VERSION) {
+                    throw new IOException("Unsupported SCA version: " + version);
+                }
 
-        if (!Files.exists(path)) {
-            if (path.getParent() != null) {
-                Files.createDirectories(path.getParent());
+                var table = loadIndex(fc);
+                rebuildFreeMap(table);
+                handle = new Handle(fc, table);
+            } catch (IOException e) {
+                handle = null;
+                fc.close();
+                throw e;
             }
-            Files.createFile(path);
-            initializeFile();
         }
+    }
 
-        raf = new RandomAccessFile(path.toFile(), "rw");
-        verifyMagicNumber();
+    /**
+     * 打开文件通道
+     * 使用FileChannel而不是RandomAccessFile打开，在Windows上也允许碎片整理在旧文件仍被读取时替换它
+     */
+    private FileChannel openChannel() throws IOException {
+        return FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
     }
 
     /**
-     * 关闭文件
+     * 关闭文件 关闭后不能再次打开
+     * 正在进行的读取会因为通道关闭而失败(抛出IOException)，由缓存管理的文件应使用 retire 关闭
      */
     public void close() throws IOException {
-        if (raf != null) {
-            raf.close();
-            raf = null;
+        synchronized (writeLock) {
+            closed = true;
+            closeRetired();
+            var current = handle;
+            if (current != null) {
+                handle = null;
+                current.channel().close();
+            }
         }
     }
 
     /**
-     * 初始化文件 创建文件并写入魔数和版本号
+     * 占用文件 占用期间文件不会因为退役而关闭
+     * @return 是否占用成功 文件已退役时返回false，调用方应重新从缓存获取文件
      */
-    private void initializeFile() throws IOException {
-        try (RandomAccessFile tempRaf = new RandomAccessFile(path.toFile(), "rw")) {
-            byte[] header = new byte[headerSize];
-            ByteBuffer buffer = ByteBuffer.wrap(header).order(ByteOrder.BIG_ENDIAN);
+    public boolean acquire() {
+        synchronized (pinLock) {
+            if (retiring) {
+                return false;
+            }
+            pins++;
+            return true;
+        }
+    }
 
-            buffer.put(magicNumber.getBytes(StandardCharsets.US_ASCII), 0, 4);
-            buffer.put((byte) 1);
+    /**
+     * 释放占用 文件已退役且这是最后一个占用时关闭文件
+     */
+    public void release() {
+        synchronized (pinLock) {
+            pins--;
+            if (pins > 0 || !retiring || closing) {
+                return;
+            }
+            closing = true;
+        }
+        closeQuietly();
+    }
 
-            for (int i = 0; i < scaPackageSize * scaPackageSize; i++) {
-                buffer.putInt(0);
-                buffer.putInt(0);
+    /**
+     * 退役文件 不再接受新的占用，没有占用时立即关闭，否则在最后一个占用释放时关闭
+     */
+    public void retire() {
+        synchronized (pinLock) {
+            retiring = true;
+            if (pins > 0 || closing) {
+                return;
             }
+            closing = true;
+        }
+        closeQuietly();
+    }
+
+    /**
+     * 恢复已退役但尚未关闭的文件 使其重新接受占用
+     * @return 是否恢复成功 文件已经关闭(或正在关闭)时返回false
+     */
+    public boolean revive() {
+        synchronized (pinLock) {
+            if (closing) {
+                return false;
+            }
+            retiring = false;
+            return true;
+        }
+    }
+
+    /**
+     * 文件是否已关闭(或正在关闭)
+     */
+    public boolean isClosed() {
+        synchronized (pinLock) {
+            if (closing) {
+                return true;
+            }
+        }
+        synchronized (writeLock) {
+            return closed;
+        }
+    }
+
+    /**
+     * 关闭文件 只记录关闭失败
+     */
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (IOException e) {
+            log.error("关闭SCA文件失败: {}", path, e);
+        }
+    }
+
+    /**
+     * 关闭碎片整理替换下来的旧文件(需持有写锁)
+     */
+    private void closeRetired() throws IOException {
+        if (retired != null) {
+            var old = retired;
+            retired = null;
+            old.channel().close();
+        }
+    }
+
+    /**
+     * 获取已打开的文件 文件未打开时先打开，已关闭的文件抛出IOException(不会重新打开)
+     */
+    private Handle handle() throws IOException {
+        var current = handle;
+        if (current != null) {
+            return current;
+        }
+        open();
+        current = handle;
+        if (current == null) {
+            throw new IOException("SCA文件未打开: " + path);
+        }
+        return current;
+    }
 
-            tempRaf.write(header);
+    /**
+     * 初始化文件 写入魔数、版本号以及第0代的空索引表
+     */
+    private void initializeFile() throws IOException {
+        try (RandomAccessFile tempRaf = new RandomAccessFile(path.toFile(), "rw")) {
+            ByteBuffer header = ByteBuffer.allocate(headerSlotOffset).order(ByteOrder.BIG_ENDIAN);
+            header.put(magicNumber.getBytes(StandardCharsets.US_ASCII), 0, 4);
+            header.put((byte) CURRENT_VERSION);
+            tempRaf.write(header.array());
+            tempRaf.write(buildHeaderSlot(0, new AtomicLongArray(scaPackageSize * scaPackageSize)).array());
         }
     }
 
     /**
-     * 验证魔数
+     * 验证魔数并读取版本号
      */
-    private void verifyMagicNumber() throws IOException {
-        raf.seek(0);
-        byte[] magic = new byte[4];
-        raf.readFully(magic);
-        String fileMagic = new String(magic, StandardCharsets.US_ASCII);
+    private int readHeaderVersion(FileChannel fc) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(5);
+        readFully(fc, header, 0);
+        String fileMagic = new String(header.array(), 0, 4, StandardCharsets.US_ASCII);
         if (!fileMagic.equals(magicNumber)) {
             throw new IOException("Invalid magic number: expected " + magicNumber + ", got " + fileMagic);
         }
+        return header.get(4) & 0xFF;
     }
 
     /**
-     * 判断区块是否存在于归档中
-     * @param localX SCA内部局部X坐标
-     * @param localZ SCA内部局部Z坐标
-     * @return 是否存在
+     * 读取版本1的索引表到内存
      */
-    public boolean hasChunk(int localX, int localZ) throws IOException {
+    private AtomicLongArray loadLegacyIndex(FileChannel fc) throws IOException {
+        var table = new AtomicLongArray(scaPackageSize * scaPackageSize);
+        ByteBuffer buffer = ByteBuffer.allocate(table.length() * headerIndexEntrySize).order(ByteOrder.BIG_ENDIAN);
+        readFully(fc, buffer, legacyHeaderOffset);
+        buffer.flip();
+        for (int i = 0; i < table.length(); i++) {
+            table.set(i, buffer.getLong());
+        }
+        generation = 0;
+        return table;
+    }
+
+    /**
+     * 读取两个文件头槽位，使用CRC校验通过且代数最大的槽位作为索引表
+     * 之后的存在判断与读取定位都不再访问文件头
+     */
+    private AtomicLongArray loadIndex(FileChannel fc) throws IOException {
+        ByteBuffer best = null;
+        long bestGeneration = -1;
+
+        for (int slot = 0; slot < 2; slot++) {
+            ByteBuffer buffer = ByteBuffer.allocate(headerSlotSize).order(ByteOrder.BIG_ENDIAN);
+            try {
+                readFully(fc, buffer, slotOffset(slot));
+            } catch (EOFException e) {
+                continue;
+            }
+            long slotGeneration = buffer.getLong(0);
+            if (buffer.getInt(headerSlotSize - 4) != checksum(buffer) || slotGeneration <= bestGeneration) {
+                continue;
+            }
+            best = buffer;
+            bestGeneration = slotGeneration;
+        }
+
+        if (best == null) {
+            throw new IOException("SCA文件头损坏(两个文件头槽位均校验失败): " + path);
+        }
+
+        generation = bestGeneration;
+        var table = new AtomicLongArray(scaPackageSize * scaPackageSize);
+        for (int i = 0; i < table.length(); i++) {
+            table.set(i, best.getLong(8 + i * headerIndexEntrySize));
+        }
+        return table;
+    }
+
+    /**
+     * 根据内存中的索引表重建扇区占用表
+     */
+    private void rebuildFreeMap(AtomicLongArray table) {
+        usedSectors.clear();
+        usedSectors.set(0, dataStartSector);
+        for (int i = 0; i < table.length(); i++) {
+            long entry = table.get(i);
+            if (entry == 0) {
+                continue;
+            }
+            int start = (int) (entryOffset(entry) / SECTOR_BYTES);
+            usedSectors.set(start, start + sectorsOf(entryLength(entry)));
+        }
+    }
+
+    /**
+     * 构建一个文件头槽位 代数 + 索引表 + CRC32
+     */
+    private ByteBuffer buildHeaderSlot(long slotGeneration, AtomicLongArray table) {
+        ByteBuffer buffer = ByteBuffer.allocate(headerSlotSize).order(ByteOrder.BIG_ENDIAN);
+        buffer.putLong(slotGeneration);
+        for (int i = 0; i < table.length(); i++) {
+            buffer.putLong(table.get(i));
+        }
+        buffer.putInt(checksum(buffer));
+        return buffer.flip();
+    }
+
+    /**
+     * 计算文件头槽位的CRC32(不含最后的4B校验值)
+     */
+    private int checksum(ByteBuffer slot) {
+        CRC32 crc = new CRC32();
+        crc.update(slot.array(), 0, headerSlotSize - 4);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * 获取文件头槽位的偏移量
+     */
+    private long slotOffset(long slotGeneration) {
+        return headerSlotOffset + (slotGeneration & 1) * headerSlotSize;
+    }
 
-        if (raf == null) {
-            open();
+    /**
+     * 提交内存中的索引表(需持有写锁)
+     * 以下一个代数写入另一个槽位，当前生效的槽位保持不变，写入中途崩溃时依然可以回退到当前槽位
+     * @param sync 是否强制刷盘
+     */
+    private void commitIndex(Handle h, boolean sync) throws IOException {
+        long next = generation + 1;
+        writeFully(h.channel(), buildHeaderSlot(next, h.index()), slotOffset(next));
+        if (sync) {
+            h.channel().force(true);
         }
+        generation = next;
+    }
 
+    /**
+     * 分配能容纳指定长度的连续扇区(需持有写锁) 优先复用数据区中的空洞
+     * @param length 数据长度(字节)
+     * @return 数据写入的偏移量
+     */
+    private long allocate(int length) throws IOException {
+        int sectors = sectorsOf(length);
+        int end = usedSectors.length();
+        int start = usedSectors.nextClearBit(dataStartSector);
+
+        //首次适配 查找第一个足够大的空洞，找不到时start会停在数据区末尾
+        while (start < end) {
+            int next = usedSectors.nextSetBit(start);
+            if (next - start >= sectors) {
+                break;
+            }
+            start = usedSectors.nextClearBit(next);
+        }
+
+        long offset = (long) start * SECTOR_BYTES;
+        if (offset + length > Integer.MAX_VALUE) {
+            throw new IOException("SCA文件超出最大长度: " + path);
+        }
+        usedSectors.set(start, start + sectors);
+        return offset;
+    }
+
+    /**
+     * 将旧数据占用的扇区归还到空闲扇区表(需持有写锁 且不再引用它的文件头已经落盘)
+     */
+    private void release(long entry) {
+        if (entry == 0) {
+            return;
+        }
+        int start = (int) (entryOffset(entry) / SECTOR_BYTES);
+        usedSectors.clear(start, start + sectorsOf(entryLength(entry)));
+    }
+
+    /**
+     * 截断数据区末尾的空闲扇区(需持有写锁)
+     */
+    private void trimTail(FileChannel fc) throws IOException {
+        long end = (long) Math.max(usedSectors.length(), dataStartSector) * SECTOR_BYTES;
+        if (fc.size() > end) {
+            fc.truncate(end);
+        }
+    }
+
+    /**
+     * 计算数据占用的扇区数
+     */
+    private static int sectorsOf(int length) {
+        return (length + SECTOR_BYTES - 1) / SECTOR_BYTES;
+    }
+
+    /**
+     * 获取索引条目中的偏移量
+     */
+    private static long entryOffset(long entry) {
+        return entry >>> 32;
+    }
+
+    /**
+     * 获取索引条目中的长度
+     */
+    private static int entryLength(long entry) {
+        return (int) entry;
+    }
+
+    /**
+     * 读取索引条目指向的数据
+     */
+    private static byte[] readEntry(FileChannel fc, long entry) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(entryLength(entry));
+        readFully(fc, data, entryOffset(entry));
+        return data.array();
+    }
+
+    /**
+     * 从指定位置读满缓冲区(位置读取 不修改文件指针)
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int count = channel.read(buffer, position);
+            if (count < 0) {
+                throw new EOFException("SCA文件长度不足: position=" + position);
+            }
+            position += count;
+        }
+    }
+
+    /**
+     * 在指定位置写入缓冲区的全部剩余数据(位置写入 不修改文件指针)
+     */
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * 计算索引表下标
+     */
+    private int indexOf(int localX, int localZ) {
         if (localX < 0 || localX >= scaPackageSize || localZ < 0 || localZ >= scaPackageSize) {
             throw new IllegalArgumentException("操作SCA失败: SCA坐标无效: localX=" + localX + ", localZ=" + localZ);
         }
+        return localZ * scaPackageSize + localX;
+    }
 
-        //计算索引条目偏移量
-        int index = localZ * scaPackageSize + localX;
-        long indexOffset = headerOffset + ((long) index * headerIndexEntrySize);
+    /**
+     * 根据索引表下标计算SCA内部局部坐标
+     */
+    private ScaLocalPos posOf(int slot) {
+        return ScaLocalPos.of(slot % scaPackageSize, slot / scaPackageSize);
+    }
 
-        //移动RAF到索引条目偏移量处
-        raf.seek(indexOffset);
+    /**
+     * 判断区块是否存在于归档中
+     * @param localX SCA内部局部X坐标
+     * @param localZ SCA内部局部Z坐标
+     * @return 是否存在
+     */
+    public boolean hasChunk(int localX, int localZ) throws IOException {
 
-        //读取索引条目
-        var offset = raf.readInt();
-        var length = raf.readInt();
+        //从内存中的索引表读取索引条目
+        long entry = handle().index().get(indexOf(localX, localZ));
 
         //如果索引条目为0，则表示该区块不存在
-        if (offset == 0 || length == 0) {
-            return false;
-        }
-
-        return true;
+        return entryOffset(entry) != 0 && entryLength(entry) != 0;
     }
 
     /**
      * 读取区块数据
+     * 使用位置读取，不需要加锁，多个线程可以并发读取同一个文件
+     * 读取期间该区块被重写时(旧扇区可能已被复用或截断)或文件被关闭时重新读取
      * @param localX SCA内部局部X坐标
      * @param localZ SCA内部局部Z坐标
      * @return 区块数据
      */
     public byte[] readChunk(int localX, int localZ) throws IOException {
-        if (raf == null) {
-            open();
+
+        int slot = indexOf(localX, localZ);
+
+        while (true) {
+            var h = handle();
+
+            //从内存中的索引表定位区块数据 只需要读取一次数据本身
+            long entry = h.index().get(slot);
+
+            if (entryOffset(entry) == 0 || entryLength(entry) == 0) {
+                return null;
+            }
+
+            byte[] data;
+            try {
+                data = readEntry(h.channel(), entry);
+            } catch (IOException e) {
+                if (handle == h && h.index().get(slot) == entry) {
+                    throw e;
+                }
+                continue;
+            }
+
+            //碎片整理替换下来的旧文件不会再被修改 只要索引条目没有变化读到的就是完整的数据
+            if (h.index().get(slot) == entry) {
+                return data;
+            }
         }
+    }
 
-        if (localX < 0 || localX >= scaPackageSize || localZ < 0 || localZ >= scaPackageSize) {
-            throw new IllegalArgumentException("操作SCA失败: SCA坐标无效: localX=" + localX + ", localZ=" + localZ);
+    /**
+     * 批量读取区块数据 (读取合并)
+     * 按数据在文件中的偏移量排序后顺序读取，相邻的区块(间隔不超过32KB)合并为一次读取，
+     * 同一个SCA文件中的一片区域只需要少数几次顺序读取，而不是每个区块一次随机读取。
+     * 与 readChunk 相同不需要加锁，读取期间被重写的区块会单独重新读取。
+     * @param positions SCA内部局部坐标
+     * @return SCA内部局部坐标 -> 区块数据 不存在的区块不包含在结果中
+     */
+    public Map<ScaLocalPos, byte[]> readChunks(Collection<ScaLocalPos> positions) throws IOException {
+
+        var result = new HashMap<ScaLocalPos, byte[]>();
+        if (positions == null || positions.isEmpty()) {
+            return result;
         }
 
-        //计算索引条目偏移量
-        int index = localZ * scaPackageSize + localX;
-        long indexOffset = headerOffset + ((long) index * headerIndexEntrySize);
+        var h = handle();
+        var table = h.index();
 
-        raf.seek(indexOffset);
-        int offset = raf.readInt();
-        int length = raf.readInt();
+        //收集存在的区块 按偏移量排序(索引条目的高32位为偏移量 直接按条目排序即可)
+        int count = 0;
+        int[] slots = new int[positions.size()];
+        long[] entries = new long[positions.size()];
+        for (var pos : positions) {
+            int slot = indexOf(pos.getX(), pos.getZ());
+            long entry = table.get(slot);
+            if (entryOffset(entry) == 0 || entryLength(entry) == 0) {
+                continue;
+            }
+            slots[count] = slot;
+            entries[count] = entry;
+            count++;
+        }
 
-        if (offset == 0 || length == 0) {
-            return null;
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
         }
+        Arrays.sort(order, (a, b) -> Long.compareUnsigned(entries[a], entries[b]));
 
-        raf.seek(offset);
-        byte[] data = new byte[length];
-        raf.readFully(data);
-        return data;
+        int runStart = 0;
+        while (runStart < count) {
+
+            //向后扩展当前读取段 直到间隔过大或长度超过上限
+            long start = entryOffset(entries[order[runStart]]);
+            long end = start + entryLength(entries[order[runStart]]);
+            int runEnd = runStart + 1;
+            while (runEnd < count) {
+                long entry = entries[order[runEnd]];
+                long nextEnd = Math.max(end, entryOffset(entry) + entryLength(entry));
+                if (entryOffset(entry) - end > MAX_MERGE_GAP || nextEnd - start > MAX_MERGED_READ) {
+                    break;
+                }
+                end = nextEnd;
+                runEnd++;
+            }
+
+            ByteBuffer run = ByteBuffer.allocate((int) (end - start));
+            boolean ok = true;
+            try {
+                readFully(h.channel(), run, start);
+            } catch (IOException e) {
+                //文件被截断或被碎片整理替换 这一段中的区块单独重新读取
+                ok = false;
+            }
+
+            for (int i = runStart; i < runEnd; i++) {
+                int slot = slots[order[i]];
+                long entry = entries[order[i]];
+                var pos = posOf(slot);
+                if (ok && table.get(slot) == entry) {
+                    int from = (int) (entryOffset(entry) - start);
+                    result.put(pos, Arrays.copyOfRange(run.array(), from, from + entryLength(entry)));
+                    continue;
+                }
+                byte[] data = readChunk(pos.getX(), pos.getZ());
+                if (data != null) {
+                    result.put(pos, data);
+                }
+            }
+
+            runStart = runEnd;
+        }
+
+        return result;
     }
 
     /**
      * 写入区块数据 (原子写实现)
-     * 采用 Append-Only 模式：总是将新数据写入文件末尾，而不是覆盖旧数据。
+     * 新数据写入空闲扇区或数据区末尾，而不是覆盖旧数据。
      * 这保证了如果写入过程中断电，旧数据依然完好。
      *
      * @param localX SCA内部局部X坐标
@@ -231,64 +759,183 @@ public class SuperChunkArchiveFile {
      * @param localX SCA内部局部X坐标
      * @param localZ SCA内部局部Z坐标
      * @param data 区块数据
-     * @param sync 是否强制刷盘（fsync）。常规写入必须为 true，碎片整理时可设为 false 以提高性能。
+     * @param sync 是否强制刷盘（fsync）。常规写入必须为 true，仅在文件崩溃后会被丢弃时(如碎片整理的临时文件)才可设为 false。
      */
     public void writeChunk(int localX, int localZ, byte[] data, boolean sync) throws IOException {
-        
-        if (raf == null) {
-            open();
-        }
 
         if (data == null || data.length == 0) {
             return;
         }
 
-        if (localX < 0 || localX >= scaPackageSize || localZ < 0 || localZ >= scaPackageSize) {
-            throw new IllegalArgumentException("操作SCA失败: SCA坐标无效: localX=" + localX + ", localZ=" + localZ);
+        writeChunk(localX, localZ, ByteBuffer.wrap(data), sync);
+    }
+
+    /**
+     * 写入区块数据 (原子写实现)
+     * 将缓冲区中position到limit之间的数据写入文件通道，写入完成后缓冲区的position移动到limit
+     * 写入与索引提交在写锁内串行执行，不阻塞并发的读取
+     * @param localX SCA内部局部X坐标
+     * @param localZ SCA内部局部Z坐标
+     * @param data 区块数据
+     * @param sync 是否强制刷盘（fsync）。不刷盘时旧数据的扇区在重新打开文件前不会被复用
+     */
+    private void writeChunk(int localX, int localZ, ByteBuffer data, boolean sync) throws IOException {
+
+        if (data == null || !data.hasRemaining()) {
+            return;
         }
 
-        //计算索引条目偏移量
-        int index = localZ * scaPackageSize + localX;
-        long indexOffset = headerOffset + ((long) index * headerIndexEntrySize);
+        int slot = indexOf(localX, localZ);
 
-        //获取文件当前末尾位置
-        long newOffset = raf.length();
+        synchronized (writeLock) {
 
-        //移动到末尾并写入数据 (Append)
-        //无论旧数据空间是否足够，都追加到末尾，避免原地覆盖造成的潜在损坏
-        raf.seek(newOffset);
-        raf.write(data);
+            var h = handle();
+            var fc = h.channel();
 
-        //强制数据落盘 (Crash Consistency Step 1)
-        //确保数据区已安全写入，此时索引尚未更新，若崩溃则新数据只是文件末尾的垃圾数据，不影响存档有效性
-        if (sync) {
-            raf.getChannel().force(true);
+            //写入空闲扇区或数据区末尾 不覆盖任何仍被文件头引用的数据
+            int length = data.remaining();
+            long offset = allocate(length);
+            writeFully(fc, data, offset);
+
+            //强制数据落盘 (Crash Consistency Step 1)
+            //确保数据区已安全写入，此时索引尚未更新，若崩溃则新数据只是无人引用的垃圾数据，不影响存档有效性
+            if (sync) {
+                fc.force(true);
+            }
+
+            //更新内存中的索引表并提交到另一个文件头槽位 (Crash Consistency Step 2)
+            long old = h.index().getAndSet(slot, (offset << 32) | Integer.toUnsignedLong(length));
+            commitIndex(h, sync);
+
+            //新文件头已落盘 旧数据的扇区可以被复用
+            if (sync) {
+                release(old);
+                trimTail(fc);
+            }
+
+            dirty = true;
         }
+    }
+
+    /**
+     * 批量写入区块数据 (组提交)
+     * 先将所有区块数据写入空闲扇区或数据区末尾并统一刷盘一次，再提交一次索引表并再刷盘一次。
+     * 崩溃一致性与逐个写入相同(数据落盘先于索引)，但刷盘次数从 2 * 区块数 降为 2。
+     * @param chunks SCA内部局部坐标 -> 区块数据
+     */
+    public void writeChunks(Map<ScaLocalPos, byte[]> chunks) throws IOException {
+        writeChunks(chunks, false);
+    }
 
-        //更新索引表
-        raf.seek(indexOffset);
-        raf.writeInt((int) newOffset);
-        raf.writeInt(data.length);
+    /**
+     * 批量写入区块数据 (组提交)
+     * @param chunks SCA内部局部坐标 -> 区块数据
+     * @param skipExisting 是否跳过文件中已存在的区块(在写锁内判断，不会覆盖判断之后由其他线程写入的区块)
+     * @return 因已存在而跳过的区块 skipExisting为false时为空
+     */
+    public List<ScaLocalPos> writeChunks(Map<ScaLocalPos, byte[]> chunks, boolean skipExisting) throws IOException {
 
-        //强制索引落盘 (Crash Consistency Step 2)
-        //确保索引指向新数据，原子性完成
-        if (sync) {
-            raf.getChannel().force(true);
+        var skipped = new ArrayList<ScaLocalPos>();
+        if (chunks == null || chunks.isEmpty()) {
+            return skipped;
         }
 
-        dirty = true;
+        synchronized (writeLock) {
+
+            var h = handle();
+            var fc = h.channel();
+
+            //依次写入所有区块数据
+            int count = 0;
+            int[] slots = new int[chunks.size()];
+            long[] entries = new long[chunks.size()];
+
+            for (var chunk : chunks.entrySet()) {
+                var data = chunk.getValue();
+                if (data == null || data.length == 0) {
+                    continue;
+                }
+                int slot = indexOf(chunk.getKey().getX(), chunk.getKey().getZ());
+                if (skipExisting && h.index().get(slot) != 0) {
+                    skipped.add(chunk.getKey());
+                    continue;
+                }
+                slots[count] = slot;
+                long offset = allocate(data.length);
+                entries[count] = (offset << 32) | Integer.toUnsignedLong(data.length);
+                writeFully(fc, ByteBuffer.wrap(data), offset);
+                count++;
+            }
+
+            if (count == 0) {
+                return skipped;
+            }
+
+            //强制数据落盘 (Crash Consistency Step 1)
+            fc.force(true);
+
+            //更新内存中的索引表并一次性提交 (Crash Consistency Step 2)
+            long[] olds = new long[count];
+            for (int i = 0; i < count; i++) {
+                olds[i] = h.index().getAndSet(slots[i], entries[i]);
+            }
+            commitIndex(h, true);
+
+            //新文件头已落盘 旧数据的扇区可以被复用
+            for (long old : olds) {
+                release(old);
+            }
+            trimTail(fc);
+
+            dirty = true;
+        }
+        return skipped;
+    }
+
+    /**
+     * 获取碎片率: 数据区中空闲扇区占数据区总扇区数的比例(0~1)
+     * 文件未打开时返回0
+     */
+    public double getFragmentationRatio() {
+        synchronized (writeLock) {
+            int total = usedSectors.length() - dataStartSector;
+            if (handle == null || total <= 0) {
+                return 0;
+            }
+            int used = usedSectors.cardinality() - dataStartSector;
+            return (double) (total - used) / total;
+        }
     }
 
     /**
      * 碎片整理 (Compaction)
-     * 由于采用追加写模式，文件会产生空洞（旧数据的空间）。
-     * 此方法将创建一个临时文件，将所有有效区块紧凑地写入，然后原子替换原文件。
-     * 建议在服务器关闭或闲置时调用。
+     * 不限制拷贝带宽，见 compact(long)
      */
     public void compact() throws IOException {
-        if (raf == null) {
-            open();
+        compact(0);
+    }
+
+    /**
+     * 碎片整理 (Compaction)
+     * 将所有有效区块紧凑地拷贝到临时文件，然后原子替换原文件。
+     * 拷贝阶段不持有写锁，并发的读取与写入照常进行；拷贝完成后在写锁内补拷期间被重写的区块并替换文件，
+     * 替换前开始的读取继续使用旧文件，旧文件在下一次替换或关闭时才关闭。
+     * @param maxBytesPerSecond 拷贝带宽上限(字节/秒) 小于等于0表示不限制
+     * @return 是否完成了替换 文件在整理期间被关闭时放弃本次整理并返回false
+     */
+    public boolean compact(long maxBytesPerSecond) throws IOException {
+        synchronized (compactLock) {
+            return compactInternal(maxBytesPerSecond);
         }
+    }
+
+    /**
+     * 碎片整理的实现
+     * 打开版本1的文件时在写锁内调用(此时不会有其他碎片整理进入替换阶段)，其余情况需持有碎片整理锁
+     */
+    private boolean compactInternal(long maxBytesPerSecond) throws IOException {
+        var source = handle();
+        var table = source.index();
 
         // 创建临时文件路径: filename.sca.tmp
         Path tempPath = path.resolveSibling(path.getFileName().toString() + ".tmp");
@@ -298,37 +945,123 @@ public class SuperChunkArchiveFile {
         SuperChunkArchiveFile tempFile = new SuperChunkArchiveFile(tempPath, this.magicNumber, this.scaPackageSize);
         tempFile.open();
 
+        boolean replaced = false;
         try {
-            // 遍历所有可能的区块索引
-            for (int x = 0; x < scaPackageSize; x++) {
-                for (int z = 0; z < scaPackageSize; z++) {
-                    // 从当前文件读取有效数据
-                    byte[] data = this.readChunk(x, z);
-                    if (data != null && data.length > 0) {
-                        // 写入临时文件 (sync=false 以提高速度，最后统一刷盘)
-                        tempFile.writeChunk(x, z, data, false);
+            //第一阶段(不持有写锁): 分批拷贝所有有效区块，记录拷贝时的索引条目
+            long[] copied = new long[table.length()];
+            var batch = new HashMap<ScaLocalPos, byte[]>();
+            long batchBytes = 0;
+            long copiedBytes = 0;
+            long startNanos = System.nanoTime();
+
+            for (int slot = 0; slot < table.length(); slot++) {
+                long entry = table.get(slot);
+                if (entry == 0) {
+                    continue;
+                }
+
+                byte[] data;
+                try {
+                    data = readEntry(source.channel(), entry);
+                } catch (IOException e) {
+                    if (handle != source) {
+                        log.debug("SCA文件在碎片整理期间被关闭，放弃本次整理: {}", path);
+                        return false;
                     }
+                    if (table.get(slot) == entry) {
+                        throw e;
+                    }
+                    continue;
+                }
+
+                //拷贝期间被重写的区块留到第二阶段处理
+                if (table.get(slot) != entry) {
+                    continue;
+                }
+
+                copied[slot] = entry;
+                batch.put(posOf(slot), data);
+                batchBytes += data.length;
+
+                if (batchBytes >= COMPACT_BATCH_BYTES) {
+                    tempFile.writeChunks(batch);
+                    copiedBytes += batchBytes;
+                    batch.clear();
+                    batchBytes = 0;
+                    throttle(startNanos, copiedBytes, maxBytesPerSecond);
                 }
             }
+            tempFile.writeChunks(batch);
 
-            // 确保所有数据落盘
-            if (tempFile.raf != null) {
-                tempFile.raf.getChannel().force(true);
+            //第二阶段(持有写锁): 补拷第一阶段之后被重写的区块，然后替换文件
+            synchronized (writeLock) {
+                if (handle != source) {
+                    log.debug("SCA文件在碎片整理期间被关闭，放弃本次整理: {}", path);
+                    return false;
+                }
+
+                batch.clear();
+                for (int slot = 0; slot < table.length(); slot++) {
+                    long entry = table.get(slot);
+                    if (entry != copied[slot]) {
+                        batch.put(posOf(slot), readEntry(source.channel(), entry));
+                    }
+                }
+                tempFile.writeChunks(batch);
+                tempFile.close();
+
+                // 原子替换 (Atomic Move)
+                // 如果在此步骤前崩溃，原文件不受影响，仅残留tmp文件
+                // 如果在此步骤后崩溃，原文件已被新文件替换
+                Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                replaced = true;
+
+                //旧文件保留到下一次替换或关闭 替换前开始的读取继续使用它
+                closeRetired();
+                retired = source;
+                handle = null;
+
+                var fc = openChannel();
+                try {
+                    var newTable = loadIndex(fc);
+                    rebuildFreeMap(newTable);
+                    handle = new Handle(fc, newTable);
+                } catch (IOException e) {
+                    fc.close();
+                    throw e;
+                }
+                return true;
             }
 
         } finally {
-            // 关闭两个文件以释放句柄
             tempFile.close();
-            this.close();
+            if (!replaced) {
+                Files.deleteIfExists(tempPath);
+            }
         }
+    }
 
-        // 原子替换 (Atomic Move)
-        // 如果在此步骤前崩溃，原文件不受影响，仅残留tmp文件
-        // 如果在此步骤后崩溃，原文件已被新文件替换
-        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
-
-        // 重新打开文件
-        this.open();
+    /**
+     * 按拷贝带宽上限等待
+     * @param startNanos 开始拷贝的时间
+     * @param copiedBytes 已拷贝的字节数
+     * @param maxBytesPerSecond 拷贝带宽上限(字节/秒) 小于等于0表示不限制
+     */
+    private void throttle(long startNanos, long copiedBytes, long maxBytesPerSecond) throws IOException {
+        if (maxBytesPerSecond <= 0) {
+            return;
+        }
+        long expectedNanos = copiedBytes * 1_000_000_000L / maxBytesPerSecond;
+        long waitNanos = expectedNanos - (System.nanoTime() - startNanos);
+        if (waitNanos <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("碎片整理被中断: " + path);
+        }
     }
 
     /**
@@ -339,4 +1072,4 @@ public class SuperChunkArchiveFile {
         return path.toFile();
     }
 
-}
\ No newline at end of file
+}
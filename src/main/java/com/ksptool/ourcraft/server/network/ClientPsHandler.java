@@ -13,7 +13,6 @@ import com.ksptool.ourcraft.sharedcore.network.ndto.BatchDataFinishNDto;
 import com.ksptool.ourcraft.sharedcore.network.ndto.PsAllowNDto;
 import com.ksptool.ourcraft.sharedcore.network.ndto.PsFinishNDto;
 import com.ksptool.ourcraft.sharedcore.network.nvo.*;
-import com.ksptool.ourcraft.sharedcore.utils.FlexChunkSerializer;
 import com.ksptool.ourcraft.sharedcore.utils.position.ChunkPos;
 import com.ksptool.ourcraft.sharedcore.utils.position.PrecisionPos;
 import com.ksptool.ourcraft.sharedcore.utils.viewport.ChunkViewPort;
@@ -116,12 +115,11 @@ public class ClientPsHandler {
             playerDto.setHealth(40);
             playerDto.setHungry(40);
             playerDto.setExp(0L);
-            aps.savePlayer(playerDto);
+            playerVo = aps.savePlayer(playerDto);
             log.info("会话:{} 创建新玩家 玩家名称: {}", session.getId(), playerName);
-        }
+        } else {
 
-        //玩家存在 更新必要字段
-        if (playerVo != null) {
+            //玩家存在 更新必要字段
             playerDto.setUuid(playerVo.getUuid());
             playerDto.setName(playerVo.getName());
             playerDto.setLoginCount(playerVo.getLoginCount() + 1);
@@ -135,11 +133,14 @@ public class ClientPsHandler {
             playerDto.setHealth(playerVo.getHealth());
             playerDto.setHungry(playerVo.getHungry());
             playerDto.setExp(playerVo.getExp());
-            aps.savePlayer(playerDto);
+            playerVo = aps.savePlayer(playerDto);
         }
 
-        //查询最新的玩家信息
-        playerVo = aps.loadPlayer(playerName);
+        //保存失败(归档未连接)
+        if (playerVo == null) {
+            session.rpcResponse(rpcId,AuthRpcVo.reject("无法保存玩家数据,请稍后重试"));
+            return;
+        }
 
         //认证成功 返回认证结果
         session.setStage(NetworkSession.Stage.AUTHORIZED);
@@ -253,7 +254,7 @@ public class ClientPsHandler {
 
             //发送进程切换数据(世界区块数据、玩家数据、周围其他实体数据)
             var chunkData = groundChunk.get(16, TimeUnit.SECONDS);
-            var serializedData = FlexChunkSerializer.serialize(chunkData.getBlockData());
+            var serializedData = chunkData.getSerializedData();
             session.sendNext(PsChunkNVo.of(groundChunkPos.getX(), groundChunkPos.getZ(), serializedData));
 
             //发送玩家数据
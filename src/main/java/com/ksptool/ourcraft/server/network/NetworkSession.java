@@ -156,9 +156,19 @@ public class NetworkSession extends RpcSession {
                 sendNext(new ServerDisconnectNVo(reason));
             }
 
-            // 如果实体还未移除 移除实体
-            if (entity.get() != null && getWorld() != null) {
-                getWorld().removeEntity(entity.get());
+            // 在玩家所在世界的线程中记录玩家的最终状态并移除实体 玩家数据由后台线程写入
+            var player = entity.get();
+            if (player != null) {
+                var playerService = sns.getServer().getArchiveService().getPlayerService();
+                var playerWorld = getWorld();
+                if (playerWorld != null) {
+                    playerWorld.runAtTickBoundary(() -> {
+                        playerService.logoutPlayer(player);
+                        playerWorld.removeEntity(player);
+                    });
+                } else {
+                    playerService.logoutPlayer(player);
+                }
             }
 
             socket.close();
@@ -8,10 +8,11 @@ import com.ksptool.ourcraft.server.world.chunk.FlexServerChunk;
 import com.ksptool.ourcraft.server.world.chunk.FlexServerChunkService;
 import com.ksptool.ourcraft.server.world.gen.NoiseGenerator;
 import com.ksptool.ourcraft.sharedcore.BoundingBox;
-import com.ksptool.ourcraft.sharedcore.GlobalPalette;
 import com.ksptool.ourcraft.sharedcore.Registry;
+import com.ksptool.ourcraft.sharedcore.utils.FlexChunkHeightmap;
 import com.ksptool.ourcraft.sharedcore.utils.SimpleEventQueue;
 import com.ksptool.ourcraft.sharedcore.enums.BlockEnums;
+import com.ksptool.ourcraft.sharedcore.enums.EngineDefault;
 import com.ksptool.ourcraft.sharedcore.utils.position.ChunkPos;
 import com.ksptool.ourcraft.sharedcore.utils.position.Pos;
 import com.ksptool.ourcraft.sharedcore.world.BlockState;
@@ -24,12 +25,15 @@ import com.ksptool.ourcraft.sharedcore.world.WorldTemplate;
 import com.ksptool.ourcraft.server.archive.model.ArchiveWorldIndexVo;
 import com.ksptool.ourcraft.sharedcore.world.gen.GenerationContext;
 import com.ksptool.ourcraft.sharedcore.world.gen.TerrainGenerator;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import org.joml.Vector3d;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -83,6 +87,16 @@ public class ServerWorld implements SharedWorld {
 
     private final SimpleEventQueue seq;
 
+    // 距离上次写入在线玩家状态经过的时间(秒)
+    private double playerSaveTimer = 0;
+
+    // 在Tick边界执行的任务(由其他线程提交 世界线程在下一次Action开始前执行)
+    @Getter(AccessLevel.NONE)
+    private final Queue<Runnable> tickTasks = new ConcurrentLinkedQueue<>();
+
+    // 世界线程是否正在运行 未运行时提交的Tick边界任务直接在提交的线程中执行
+    private boolean ticking = false;
+
     public ServerWorld(OurCraftServer server, WorldTemplate template) {
         this.template = template;
         this.fcls = new FlexChunkLeaseService(this);
@@ -188,6 +202,9 @@ public class ServerWorld implements SharedWorld {
     @Override
     public void action(double delta) {
 
+        // 执行Tick边界任务(例如创建存盘快照) 此时上一次Action的修改已全部完成
+        runTickTasks();
+
         // 时间服务动作(时间推进)
         swts.action(delta, this);
 
@@ -206,6 +223,60 @@ public class ServerWorld implements SharedWorld {
         //处理网络事件同步
         swns.action(delta, this);
 
+        //定期将在线玩家的状态写入内存中的玩家数据(由归档玩家管理器的后台线程批量写入归档)
+        playerSaveTimer += delta;
+        if (playerSaveTimer >= EngineDefault.PLAYER_SAVE_INTERVAL_SECONDS) {
+            playerSaveTimer = 0;
+            var aps = server.getArchiveService().getPlayerService();
+            for (var entity : ses.getEntities()) {
+                if (entity instanceof ServerPlayer player) {
+                    aps.updatePlayer(player);
+                }
+            }
+        }
+
+    }
+
+    /**
+     * 在Tick边界执行任务 世界线程未运行时直接在当前线程执行
+     * 任务在世界线程中执行，可以读取到一致的世界状态，但应尽快返回(耗时的工作交给其他线程)
+     * @param task 任务
+     */
+    public void runAtTickBoundary(Runnable task) {
+        synchronized (tickTasks) {
+            if (ticking) {
+                tickTasks.add(task);
+                return;
+            }
+        }
+        task.run();
+    }
+
+    /**
+     * 设置世界线程是否正在运行(由SWEU调用) 停止时执行所有尚未执行的Tick边界任务
+     * @param ticking 是否正在运行
+     */
+    public void setTicking(boolean ticking) {
+        synchronized (tickTasks) {
+            this.ticking = ticking;
+        }
+        if (!ticking) {
+            runTickTasks();
+        }
+    }
+
+    /**
+     * 执行所有已提交的Tick边界任务
+     */
+    private void runTickTasks() {
+        Runnable task;
+        while ((task = tickTasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                log.error("世界:{} Tick边界任务执行失败", name, e);
+            }
+        }
     }
 
     /**
@@ -252,30 +323,29 @@ public class ServerWorld implements SharedWorld {
                 }
 
                 var chunkSizeX = template.getChunkSizeX();
-                var chunkSizeY = template.getChunkSizeY();
                 var chunkSizeZ = template.getChunkSizeZ();
 
+                //通过高度图直接定位每一列最高的阻挡方块，无需自上而下逐个扫描
                 for (int localX = 0; localX < chunkSizeX; localX++) {
                     for (int localZ = 0; localZ < chunkSizeZ; localZ++) {
-                        for (int y = chunkSizeY - 1; y >= 0; y--) {
-                            BlockState state = chunk.getBlockState(localX, y, localZ);
-                            if (state == null) {
-                                continue;
-                            }
-                            if (state.getSharedBlock() == null) {
-                                continue;
-                            }
-                            if (!state.getSharedBlock().getStdRegName()
-                                    .equals(BlockEnums.GRASS_BLOCK.getStdRegName())) {
-                                continue;
-                            }
-                            if (y <= bestSpawnY) {
-                                continue;
-                            }
-                            bestSpawnY = y;
-                            bestSpawnX = chunkX * chunkSizeX + localX;
-                            bestSpawnZ = chunkZ * chunkSizeZ + localZ;
+                        int y = chunk.getColumnHeight(FlexChunkHeightmap.Type.MOTION_BLOCKING, localX, localZ) - 1;
+                        if (y <= bestSpawnY) {
+                            continue;
+                        }
+                        BlockState state = chunk.getBlockState(localX, y, localZ);
+                        if (state == null) {
+                            continue;
+                        }
+                        if (state.getSharedBlock() == null) {
+                            continue;
+                        }
+                        if (!state.getSharedBlock().getStdRegName()
+                                .equals(BlockEnums.GRASS_BLOCK.getStdRegName())) {
+                            continue;
                         }
+                        bestSpawnY = y;
+                        bestSpawnX = chunkX * chunkSizeX + localX;
+                        bestSpawnZ = chunkZ * chunkSizeZ + localZ;
                     }
                 }
             }
@@ -341,7 +411,7 @@ public class ServerWorld implements SharedWorld {
 
 
     public int getBlockState(int x, int y, int z) {
-        return GlobalPalette.getInstance().getStateId(fscs.getBlockState(Pos.of(x, y, z)));
+        return fscs.getBlockStateId(x, y, z);
     }
 
     public FlexServerChunk getChunk(ChunkPos chunkPos) {
@@ -349,7 +419,7 @@ public class ServerWorld implements SharedWorld {
     }
 
     public void setBlockState(int x, int y, int z, int stateId) {
-        fscs.setBlockState(Pos.of(x, y, z), GlobalPalette.getInstance().getState(stateId));
+        fscs.setBlockStateId(x, y, z, stateId);
     }
 
     public boolean canMoveTo(Vector3d position, double height) {
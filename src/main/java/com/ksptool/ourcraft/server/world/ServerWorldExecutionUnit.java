@@ -42,6 +42,9 @@ public class ServerWorldExecutionUnit implements Runnable {
             return;
         }
 
+        //此后提交的Tick边界任务由世界线程执行
+        serverWorld.setTicking(true);
+
         final double tickRate = serverWorld.getTemplate().getActionPerSecond();
         final double tickTime = 1.0 / tickRate;
 
@@ -75,6 +78,9 @@ public class ServerWorldExecutionUnit implements Runnable {
             }
         }
 
+        //执行停止前提交的Tick边界任务 此后提交的任务直接在提交的线程中执行
+        serverWorld.setTicking(false);
+
         log.info("世界执行单元已停止: {}", worldName);
     }
 
@@ -5,7 +5,6 @@ import com.ksptool.ourcraft.server.network.NetworkSession;
 import com.ksptool.ourcraft.server.world.chunk.FlexServerChunkService;
 import com.ksptool.ourcraft.sharedcore.network.nvo.HuChunkNVo;
 import com.ksptool.ourcraft.sharedcore.network.nvo.HuPlayerLocationNVo;
-import com.ksptool.ourcraft.sharedcore.utils.FlexChunkSerializer;
 import com.ksptool.ourcraft.sharedcore.network.nvo.PsChunkNVo;
 import com.ksptool.ourcraft.sharedcore.utils.position.ChunkPos;
 import com.ksptool.ourcraft.sharedcore.utils.viewport.ChunkViewPort;
@@ -122,7 +121,7 @@ public class ServerWorldNetworkService extends WorldService {
                         }
 
                         // 序列化区块数据
-                        var serializedData = FlexChunkSerializer.serialize(chunk.getFlexChunkData());
+                        var serializedData = chunk.getSerializedData();
 
                         // 发送区块数据包
                         var chunkPacket = HuChunkNVo.of(
@@ -6,13 +6,18 @@ import com.ksptool.ourcraft.server.archive.ArchivePaletteService;
 import com.ksptool.ourcraft.server.archive.ArchiveWorldService;
 import com.ksptool.ourcraft.server.archive.model.ArchiveWorldIndexDto;
 import com.ksptool.ourcraft.server.archive.model.ArchiveWorldIndexVo;
+import com.ksptool.ourcraft.server.world.chunk.FlexChunkPregenerator;
 import org.apache.commons.lang3.StringUtils;
 import com.ksptool.ourcraft.sharedcore.GlobalPalette;
 import com.ksptool.ourcraft.sharedcore.Registry;
+import com.ksptool.ourcraft.sharedcore.utils.position.ChunkPos;
 import com.ksptool.ourcraft.sharedcore.world.WorldTemplate;
 import lombok.extern.slf4j.Slf4j;
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -28,6 +33,9 @@ public class ServerWorldService {
     // 暂时直接使用OurCraftServerInstance的引用来获取网络连接(因为网络层还未完成，目前它是全局的)
     private final OurCraftServer server;
 
+    // 正在执行的区块预生成 世界名称 -> 预生成器
+    private final Map<String, FlexChunkPregenerator> pregenerators = new ConcurrentHashMap<>();
+
     public ServerWorldService(OurCraftServer server) {
         this.server = server;
     }
@@ -164,38 +172,99 @@ public class ServerWorldService {
 
 
     /**
-     * 保存世界
+     * 保存世界(阻塞直到保存完成 不能在世界线程中调用)
      * 
      * @param worldName 世界名称
      */
     public void saveWorld(String worldName) {
+        try {
+            saveWorldAsync(worldName).join();
+        } catch (CompletionException e) {
+            log.error("保存世界失败: {}", worldName, e.getCause());
+        }
+    }
+
+    /**
+     * 异步保存世界 世界线程只在Tick边界创建快照，序列化与写入在区块处理线程池中并行进行
+     * 
+     * @param worldName 世界名称
+     * @return 保存任务 完成时返回写入的区块数量
+     */
+    public CompletableFuture<Integer> saveWorldAsync(String worldName) {
 
         ServerWorldExecutionUnit unit = worldExecutors.get(worldName);
         if (unit == null) {
             log.error("保存世界失败: 世界 {} 不存在或未加载", worldName);
-            return;
+            return CompletableFuture.completedFuture(0);
         }
 
         ServerWorld world = unit.getServerWorld();
         if (world == null) {
             log.error("保存世界失败: 世界实例为空 {}", worldName);
-            return;
+            return CompletableFuture.completedFuture(0);
         }
 
         ArchiveService archiveService = server.getArchiveService();
         if (archiveService == null) {
             log.error("保存世界失败: 归档管理器不存在 {}", worldName);
-            return;
+            return CompletableFuture.completedFuture(0);
         }
 
         ArchiveWorldService archiveWorldService = archiveService.getWorldService();
         if (archiveWorldService == null) {
             log.error("保存世界失败: 归档世界管理器不存在 {}", worldName);
-            return;
+            return CompletableFuture.completedFuture(0);
         }
 
         //保存世界
-        archiveWorldService.saveWorld(world);
+        return archiveWorldService.saveWorldAsync(world);
+    }
+
+    /**
+     * 以世界的默认出生点为中心预生成区块并写入归档(阻塞直到完成或被停止)
+     * 世界需要先加载，可以在世界运行时调用；已存在于归档中的区块会被跳过，中断后重新调用会从中断的位置继续
+     *
+     * @param worldName 世界名称
+     * @param radius 半径(区块)
+     * @return 是否全部完成
+     */
+    public boolean pregenerateWorld(String worldName, int radius) {
+
+        ServerWorldExecutionUnit unit = worldExecutors.get(worldName);
+        if (unit == null || unit.getServerWorld() == null) {
+            log.error("预生成失败: 世界 {} 不存在或未加载", worldName);
+            return false;
+        }
+
+        ServerWorld world = unit.getServerWorld();
+        var pregenerator = new FlexChunkPregenerator(world);
+        if (pregenerators.putIfAbsent(worldName, pregenerator) != null) {
+            log.warn("预生成失败: 世界 {} 正在预生成中", worldName);
+            return false;
+        }
+
+        //没有出生点时以原点为中心
+        var template = world.getTemplate();
+        var center = ChunkPos.of(0, 0);
+        if (world.getDefaultSpawnPos() != null) {
+            center = world.getDefaultSpawnPos().toChunkPos(template.getChunkSizeX(), template.getChunkSizeZ());
+        }
+
+        try {
+            return pregenerator.run(center, radius);
+        } finally {
+            pregenerators.remove(worldName);
+        }
+    }
+
+    /**
+     * 获取世界正在执行的区块预生成(用于查询进度)
+     *
+     * @param worldName 世界名称
+     * @return 预生成器 没有正在执行的预生成时返回null
+     */
+    public FlexChunkPregenerator getPregenerator(String worldName) {
+        return pregenerators.get(worldName);
     }
 
     /**
@@ -260,9 +329,22 @@ public class ServerWorldService {
      * 停止全部世界、关闭WorldDriver并保存世界
      */
     public void shutdown() {
+        //先停止正在执行的预生成 已生成的区块会写入归档
+        for (FlexChunkPregenerator pregenerator : pregenerators.values()) {
+            pregenerator.cancel();
+        }
+        //所有世界并行保存 快照会在各自的世界线程停止前的最后一个Tick边界创建
+        var saves = new ArrayList<CompletableFuture<Integer>>();
         for (String worldName : worldExecutors.keySet()) {
             stopWorld(worldName);
-            saveWorld(worldName);
+            saves.add(saveWorldAsync(worldName));
+        }
+        for (var save : saves) {
+            try {
+                save.join();
+            } catch (CompletionException e) {
+                log.error("保存世界失败", e.getCause());
+            }
         }
         worldExecutors.clear();
         server.getSWEU_THREAD_POOL().shutdown();
@@ -21,6 +21,11 @@ import lombok.extern.slf4j.Slf4j;
 
 /**
  * 区块租约服务，负责管理区块的租约
+ *
+ * 玩家持有两类租约:
+ * 视口租约(HIGH) 覆盖玩家当前视口内的区块，记录在playerLeaseMap中
+ * 预取租约(LOW/MEDIUM) 按玩家的移动速度预测即将进入视口的区块并提前加载，记录在playerPrefetchMap中，
+ * 玩家转向后不再处于预测路径上的预取租约会降级为短期租约，到期后移除(短时间内转回原方向时直接恢复)
  */
 @Slf4j
 public class FlexChunkLeaseService extends WorldService{
@@ -34,6 +39,9 @@ public class FlexChunkLeaseService extends WorldService{
     //Player SessionID->该玩家持有的所有区块坐标集
     private final Map<Long, Set<ChunkPos>> playerLeaseMap = new ConcurrentHashMap<>();
 
+    //Player SessionID->该玩家持有的所有预取区块坐标集
+    private final Map<Long, Set<ChunkPos>> playerPrefetchMap = new ConcurrentHashMap<>();
+
     //用于存储在action中发生变化的区块(原理: 这个集合会记录在每一次Action更新中发生变化的租约) 无论是主线程还是网络线程，统一写入这里，安全且无竞态
     private final Set<ChunkPos> changes = ConcurrentHashMap.newKeySet();
 
@@ -50,11 +58,28 @@ public class FlexChunkLeaseService extends WorldService{
     //租约过期时间
     private final int maxPlayerChunkLeaseAction;
 
+    //预取前瞻时间(秒)
+    private final double prefetchLookaheadSeconds;
+
+    //触发预取的最小水平速度(方块/秒)
+    private final double prefetchMinSpeed;
+
+    //单个玩家最多持有的预取区块数
+    private final int maxPrefetchChunks;
+
+    //被撤销的预取租约保留多少Action后移除
+    private final int prefetchCancelAction;
+
     public FlexChunkLeaseService(ServerWorld world) {
         this.world = world;
         this.ses = world.getSes();
         this.swts = world.getSwts();
-        this.maxPlayerChunkLeaseAction = world.getTemplate().getMaxPlayerChunkLeaseAction();
+        var template = world.getTemplate();
+        this.maxPlayerChunkLeaseAction = template.getMaxPlayerChunkLeaseAction();
+        this.prefetchLookaheadSeconds = template.getChunkPrefetchLookaheadSeconds();
+        this.prefetchMinSpeed = template.getChunkPrefetchMinSpeed();
+        this.maxPrefetchChunks = template.getMaxPrefetchChunksPerPlayer();
+        this.prefetchCancelAction = (int) Math.ceil(Math.max(prefetchLookaheadSeconds, 1) * template.getActionPerSecond());
     }
 
     @Override
@@ -294,6 +319,9 @@ public class FlexChunkLeaseService extends WorldService{
     public void action(double delta, SharedWorld world) {
 
         var entities = ses.getEntities();
+
+        //本次Action中在线的玩家
+        var onlinePlayers = new HashSet<Long>();
         
         //玩家租约管理
         for(var entity : entities){
@@ -302,6 +330,8 @@ public class FlexChunkLeaseService extends WorldService{
                 continue;
             }
 
+            onlinePlayers.add(p.getSession().getId());
+
             //如果未完成租约初始化,则需要初始化租约
             if(!p.isLeaseInited()){
                 var vp = ChunkViewPort.of(p.getCurrentChunkPos(), p.getViewDistance());
@@ -312,6 +342,9 @@ public class FlexChunkLeaseService extends WorldService{
                 continue;
             }
 
+            //预取租约管理(每个Action都根据当前速度重新预测)
+            updatePrefetchLeases(p);
+
             //已经完成租约初始化,则需要更新租约,先判断Player有没有离开当前区块
             if(!p.getCurrentChunkPos().equals(p.getPreviousChunkPos())){
 
@@ -337,6 +370,13 @@ public class FlexChunkLeaseService extends WorldService{
 
         }
 
+        //撤销已离开世界的玩家的预取租约
+        for(var sessionId : playerPrefetchMap.keySet()){
+            if(!onlinePlayers.contains(sessionId)){
+                cancelPrefetchLeases(sessionId, Collections.emptySet());
+            }
+        }
+
         //过期队列处理
         while(!expiredLeases.isEmpty()){
 
@@ -372,6 +412,161 @@ public class FlexChunkLeaseService extends WorldService{
 
     }
 
+    /**
+     * 更新玩家的预取租约
+     * 为预测路径上的区块签发(或恢复)预取租约，撤销不再处于预测路径上的预取租约
+     * 玩家的移动方向与朝向一致时(例如向前冲刺或飞行)使用MEDIUM级别，否则使用LOW级别
+     * @param p 玩家
+     */
+    private void updatePrefetchLeases(ServerPlayer p){
+
+        var sessionId = p.getSession().getId();
+        var predicted = predictPrefetchChunks(p);
+
+        //撤销不再处于预测路径上的预取租约
+        cancelPrefetchLeases(sessionId, predicted);
+
+        if(predicted.isEmpty()){
+            return;
+        }
+
+        //移动方向与朝向的夹角小于约45度时认为预测更可靠
+        var velocity = p.getVelocity();
+        double yawRad = Math.toRadians(p.getYaw());
+        double speed = Math.hypot(velocity.x, velocity.z);
+        double alignment = (velocity.x * Math.sin(yawRad) - velocity.z * Math.cos(yawRad)) / speed;
+        var level = alignment >= 0.7 ? Level.MEDIUM : Level.LOW;
+
+        for(var chunkPos : predicted){
+            issuePrefetchLease(chunkPos, sessionId, level);
+        }
+    }
+
+    /**
+     * 预测玩家即将进入视口的区块
+     * 沿当前水平速度前推预取前瞻时间，每前进一个区块计算一次视口，收集尚未被当前视口覆盖的区块(按距离由近到远)
+     * @param p 玩家
+     * @return 预取区块坐标集 速度过低或关闭预取时为空集
+     */
+    private Set<ChunkPos> predictPrefetchChunks(ServerPlayer p){
+
+        var velocity = p.getVelocity();
+        double speed = Math.hypot(velocity.x, velocity.z);
+
+        if(prefetchLookaheadSeconds <= 0 || maxPrefetchChunks <= 0 || speed < prefetchMinSpeed){
+            return Collections.emptySet();
+        }
+
+        var template = world.getTemplate();
+        int chunkSizeX = template.getChunkSizeX();
+        int chunkSizeZ = template.getChunkSizeZ();
+        var position = p.getPosition();
+
+        var currentViewport = ChunkViewPort.of(p.getCurrentChunkPos(), p.getViewDistance());
+        var result = new LinkedHashSet<ChunkPos>();
+
+        double distance = speed * prefetchLookaheadSeconds;
+        double step = Math.min(chunkSizeX, chunkSizeZ);
+        ChunkPos previous = p.getCurrentChunkPos();
+
+        for(double d = step; d < distance + step && result.size() < maxPrefetchChunks; d += step){
+
+            double t = Math.min(d, distance) / speed;
+            int blockX = (int) Math.floor(position.x + velocity.x * t);
+            int blockZ = (int) Math.floor(position.z + velocity.z * t);
+            var predictedPos = ChunkPos.of(Math.floorDiv(blockX, chunkSizeX), Math.floorDiv(blockZ, chunkSizeZ));
+
+            if(predictedPos.equals(previous)){
+                continue;
+            }
+            previous = predictedPos;
+
+            for(var chunkPos : ChunkViewPort.of(predictedPos, p.getViewDistance()).getChunkPosSet()){
+                if(result.size() >= maxPrefetchChunks){
+                    break;
+                }
+                if(!currentViewport.contains(chunkPos)){
+                    result.add(chunkPos);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * 签发预取租约 已存在被撤销的预取租约时恢复为永久租约
+     * @param chunkPos 区块坐标
+     * @param playerSessionId 玩家SessionID
+     * @param level 租约等级(LOW/MEDIUM)
+     */
+    private void issuePrefetchLease(ChunkPos chunkPos, long playerSessionId, Level level){
+
+        chunkLeasesMap.compute(chunkPos, (cp, set) -> {
+
+            if(set == null){
+                set = ConcurrentHashMap.newKeySet();
+            }
+
+            var exists = getPrefetchLeaseInternal(set, playerSessionId);
+            if(exists != null){
+                if(!exists.isPermanent()){
+                    exists.upgradeToPermanent();
+                }
+                return set;
+            }
+
+            set.add(new FlexChunkLease(chunkPos, HolderType.PLAYER, playerSessionId, level, -1));
+
+            //标记区块发生变化
+            markChangedInternal(chunkPos);
+            return set;
+        });
+
+        playerPrefetchMap.computeIfAbsent(playerSessionId, k -> ConcurrentHashMap.newKeySet()).add(chunkPos);
+    }
+
+    /**
+     * 撤销玩家不在保留集合中的预取租约(降级为短期租约 到期后由过期队列移除)
+     * @param playerSessionId 玩家SessionID
+     * @param keep 需要保留的预取区块
+     */
+    private void cancelPrefetchLeases(long playerSessionId, Set<ChunkPos> keep){
+
+        var held = playerPrefetchMap.get(playerSessionId);
+        if(held == null){
+            return;
+        }
+
+        for(var chunkPos : held){
+            if(keep.contains(chunkPos)){
+                continue;
+            }
+            var set = chunkLeasesMap.get(chunkPos);
+            var lease = set == null ? null : getPrefetchLeaseInternal(set, playerSessionId);
+            if(lease == null || !lease.isPermanent()){
+                continue;
+            }
+            lease.downgradeToFinite(swts.getTotalActions() + prefetchCancelAction);
+            expiredLeases.add(lease);
+        }
+    }
+
+    /**
+     * 获取玩家的预取租约(LOW/MEDIUM)
+     * @param leases 租约集合
+     * @param holderId 持有人ID
+     * @return 租约 不存在则返回null
+     */
+    private FlexChunkLease getPrefetchLeaseInternal(Set<FlexChunkLease> leases, long holderId){
+        for (FlexChunkLease lease : leases) {
+            if (lease.getHolderType() == HolderType.PLAYER && lease.getHolderId() == holderId && lease.getLevel() != Level.HIGH) {
+                return lease;
+            }
+        }
+        return null;
+    }
+
     /**
      * 获取并清空发生变化的区块集合
      * @return 发生变化的区块集合
@@ -447,10 +642,12 @@ public class FlexChunkLeaseService extends WorldService{
 
             set.remove(lease);
 
-            //如果租约是Player租约 则清除Player租约集合
+            //如果租约是Player租约 则清除Player租约集合(视口租约与预取租约分别记录)
             if(lease.isPlayerHolder()){
 
-                playerLeaseMap.computeIfPresent(lease.getHolderId(), (_1, pSet) -> {
+                var holderMap = lease.getLevel() == Level.HIGH ? playerLeaseMap : playerPrefetchMap;
+
+                holderMap.computeIfPresent(lease.getHolderId(), (_1, pSet) -> {
 
                     pSet.remove(lease.getChunkPos());
 
@@ -472,6 +669,16 @@ public class FlexChunkLeaseService extends WorldService{
             return set;
         });
 
+        //标记区块发生变化(没有剩余租约时区块服务会卸载该区块)
+        markChangedInternal(chunk);
+    }
+
+    /**
+     * 标记发生变化的区块 下一次Action时区块服务会按租约重新加载或卸载该区块
+     * @param chunkPos 区块坐标
+     */
+    public void markChanged(ChunkPos chunkPos) {
+        markChangedInternal(chunkPos);
     }
 
     /**
@@ -0,0 +1,294 @@
+package com.ksptool.ourcraft.server.world.chunk;
+
+import com.ksptool.ourcraft.server.archive.ArchiveSuperChunkService;
+import com.ksptool.ourcraft.server.world.ServerWorld;
+import com.ksptool.ourcraft.sharedcore.enums.EngineDefault;
+import com.ksptool.ourcraft.sharedcore.utils.ThreadFactoryUtils;
+import com.ksptool.ourcraft.sharedcore.utils.position.ChunkPos;
+import com.ksptool.ourcraft.sharedcore.utils.position.ScaPos;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 区块预生成器
+ * 开服前以出生点为中心预先生成一片圆形区域内的区块并写入SCA归档
+ *
+ * 按SCA文件逐个区域处理(从中心向外): 区域内的区块分发到所有CPU核心并行生成，生成完成后立即序列化并释放方块数据，
+ * 区块不会进入FlexServerChunkService的区块表。每个区域只执行一次批量写入(每个SCA文件一次组提交)，
+ * 写入与下一个区域的生成并行进行，内存中最多只保留两个区域的序列化数据。
+ *
+ * 已经存在于归档中的区块会被跳过(由SCA文件内存中的索引表判断，不产生额外I/O)，因此中断后重新执行会从中断的位置继续
+ */
+@Slf4j
+public class FlexChunkPregenerator {
+
+    //世界
+    private final ServerWorld world;
+
+    //归档区块管理器
+    private final ArchiveSuperChunkService ascs;
+
+    //生成线程数
+    private final int threadCount;
+
+    //需要处理的区块总数
+    @Getter
+    private volatile long total;
+
+    //已处理的区块数量(包括跳过的区块)
+    private final AtomicLong processed = new AtomicLong();
+
+    //新生成并写入归档的区块数量
+    private final AtomicLong generated = new AtomicLong();
+
+    //已存在于归档中而跳过的区块数量
+    private final AtomicLong skipped = new AtomicLong();
+
+    //生成失败的区块数量(重新执行时会再次尝试)
+    private final AtomicLong failed = new AtomicLong();
+
+    //是否已请求停止
+    private volatile boolean cancelled = false;
+
+    //预生成结束时完成
+    private final CompletableFuture<Void> finished = new CompletableFuture<>();
+
+    public FlexChunkPregenerator(ServerWorld world) {
+        this.world = world;
+        this.ascs = world.getServer().getArchiveService().getChunkService();
+        this.threadCount = Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * 获取已处理的区块数量(包括跳过的区块)
+     */
+    public long getProcessed() {
+        return processed.get();
+    }
+
+    /**
+     * 获取新生成并写入归档的区块数量
+     */
+    public long getGenerated() {
+        return generated.get();
+    }
+
+    /**
+     * 获取已存在于归档中而跳过的区块数量
+     */
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    /**
+     * 获取生成失败的区块数量
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * 执行预生成(阻塞直到完成或被停止)
+     * @param center 中心区块
+     * @param radius 半径(区块)
+     * @return 是否全部完成 被停止或有区块生成失败时返回false
+     */
+    public boolean run(ChunkPos center, int radius) {
+        if (radius < 0) {
+            throw new IllegalArgumentException("预生成半径不能小于0: " + radius);
+        }
+
+        var regions = collectRegions(center, radius);
+        total = regions.values().stream().mapToLong(List::size).sum();
+        log.info("开始预生成世界:{} 中心:{} 半径:{} 区块数:{} SCA文件数:{} 线程数:{}", world.getName(), center, radius, total, regions.size(), threadCount);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount, ThreadFactoryUtils.createChunkProcessThreadFactory());
+        long start = System.currentTimeMillis();
+        CompletableFuture<List<ChunkPos>> pendingWrite = CompletableFuture.completedFuture(List.of());
+        Collection<ChunkPos> pendingPositions = List.of();
+        int regionIndex = 0;
+
+        try {
+            for (var region : regions.entrySet()) {
+                if (cancelled) {
+                    break;
+                }
+                regionIndex++;
+
+                var data = generateRegion(region.getValue(), executor);
+
+                //等待上一个区域写入完成后再提交 保证内存中最多只有两个区域的数据
+                awaitWrite(pendingWrite, pendingPositions);
+                //只写入归档中仍不存在的区块(在SCA文件的写锁内判断) 生成期间被玩家加载并保存的区块不会被覆盖
+                pendingWrite = data.isEmpty() ? CompletableFuture.completedFuture(List.of()) : ascs.writeChunksAsync(world.getName(), data, true);
+                pendingPositions = data.keySet();
+
+                long elapsed = Math.max(System.currentTimeMillis() - start, 1);
+                long done = processed.get();
+                long rate = generated.get() * 1000 / elapsed;
+                log.info("预生成进度: {}/{} ({}%) SCA文件:{}/{} {} 新生成:{} 跳过:{} 失败:{} 速度:{}区块/秒 预计剩余:{}秒",
+                        done, total, total == 0 ? 100 : done * 100 / total, regionIndex, regions.size(), region.getKey(),
+                        generated.get(), skipped.get(), failed.get(), rate, rate == 0 ? "-" : (total - done) / Math.max(rate, 1));
+            }
+            awaitWrite(pendingWrite, pendingPositions);
+        } finally {
+            executor.shutdownNow();
+            finished.complete(null);
+        }
+
+        log.info("预生成{}: 世界:{} 新生成:{} 跳过:{} 失败:{} 耗时:{}ms", cancelled ? "已停止" : "完成", world.getName(),
+                generated.get(), skipped.get(), failed.get(), System.currentTimeMillis() - start);
+        return !cancelled && failed.get() == 0;
+    }
+
+    /**
+     * 请求停止预生成并等待正在处理的区域写入完成
+     * 已生成的区块会被写入归档，重新执行时从中断的位置继续
+     */
+    public void cancel() {
+        cancelled = true;
+        try {
+            finished.get(60, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            log.warn("预生成未能在60秒内停止: {}", world.getName());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.error("等待预生成停止失败: {}", world.getName(), e);
+        }
+    }
+
+    /**
+     * 收集半径内的区块 按SCA文件分组，SCA文件按与中心的距离排序
+     * @param center 中心区块
+     * @param radius 半径(区块)
+     * @return SCA文件坐标 -> 区块位置
+     */
+    private Map<ScaPos, List<ChunkPos>> collectRegions(ChunkPos center, int radius) {
+        var groups = new HashMap<ScaPos, List<ChunkPos>>();
+        long radiusSq = (long) radius * radius;
+        for (int dx = -radius; dx <= radius; dx++) {
+            for (int dz = -radius; dz <= radius; dz++) {
+                if ((long) dx * dx + (long) dz * dz > radiusSq) {
+                    continue;
+                }
+                var pos = ChunkPos.of(center.getX() + dx, center.getZ() + dz);
+                groups.computeIfAbsent(pos.toScaPos(EngineDefault.SCA_PACKAGE_SIZE), k -> new ArrayList<>()).add(pos);
+            }
+        }
+
+        int size = EngineDefault.SCA_PACKAGE_SIZE;
+        var ret = new LinkedHashMap<ScaPos, List<ChunkPos>>();
+        groups.entrySet().stream()
+                .sorted(Comparator.comparingLong(e -> {
+                    long cx = (long) e.getKey().getX() * size + size / 2 - center.getX();
+                    long cz = (long) e.getKey().getZ() * size + size / 2 - center.getZ();
+                    return cx * cx + cz * cz;
+                }))
+                .forEach(e -> ret.put(e.getKey(), e.getValue()));
+        return ret;
+    }
+
+    /**
+     * 并行生成一个区域内尚未存在于归档中的区块
+     * @param positions 区域内的区块位置
+     * @param executor 生成线程池
+     * @return 区块位置 -> 序列化后的区块数据
+     */
+    private Map<ChunkPos, byte[]> generateRegion(List<ChunkPos> positions, ExecutorService executor) {
+        var fscs = world.getFscs();
+        var futures = new ArrayList<CompletableFuture<byte[]>>(positions.size());
+        var targets = new ArrayList<ChunkPos>(positions.size());
+
+        for (var pos : positions) {
+            //已存在于归档中或已被玩家加载(避免覆盖玩家的修改)的区块跳过
+            if (ascs.hasChunk(world.getName(), pos) || fscs.getChunk(pos) != null) {
+                skipped.incrementAndGet();
+                processed.incrementAndGet();
+                continue;
+            }
+            targets.add(pos);
+            futures.add(CompletableFuture.supplyAsync(() -> generate(pos), executor));
+        }
+
+        var ret = new HashMap<ChunkPos, byte[]>();
+        for (int i = 0; i < targets.size(); i++) {
+            var pos = targets.get(i);
+            try {
+                var data = futures.get(i).join();
+                if (data != null) {
+                    ret.put(pos, data);
+                }
+            } catch (Exception e) {
+                failed.incrementAndGet();
+                log.error("预生成区块失败: {}", pos, e);
+            }
+            processed.incrementAndGet();
+        }
+        return ret;
+    }
+
+    /**
+     * 生成单个区块并序列化 区块不加入区块表，序列化后立即释放方块数据
+     * @param pos 区块位置
+     * @return 序列化后的区块数据 已停止时返回null
+     */
+    private byte[] generate(ChunkPos pos) {
+        if (cancelled) {
+            return null;
+        }
+        var chunk = new FlexServerChunk(pos, world);
+        try {
+            world.getTerrainGenerator().execute(chunk, world.getGenerationContext());
+            //整理调色板 让全部为同一种方块的区块段(如地下的石头层)转为单值模式
+            chunk.getFlexChunkData().compact();
+            return chunk.getArchiveData(ascs.getCurrentDictionary(world.getName()));
+        } finally {
+            chunk.getFlexChunkData().release();
+        }
+    }
+
+    /**
+     * 等待区域写入完成并统计写入的区块数量
+     * 未写入的区块中，写入前已被其他线程保存到归档的计为跳过，其余计为失败
+     * @param write 写入任务
+     * @param positions 提交写入的区块位置
+     */
+    private void awaitWrite(CompletableFuture<List<ChunkPos>> write, Collection<ChunkPos> positions) {
+        List<ChunkPos> written = List.of();
+        try {
+            written = write.join();
+        } catch (Exception e) {
+            log.error("预生成区块写入归档失败", e);
+        }
+        generated.addAndGet(written.size());
+
+        var writtenSet = new HashSet<>(written);
+        for (var pos : positions) {
+            if (writtenSet.contains(pos)) {
+                continue;
+            }
+            if (ascs.hasChunk(world.getName(), pos)) {
+                skipped.incrementAndGet();
+                continue;
+            }
+            failed.incrementAndGet();
+        }
+    }
+
+}
@@ -3,13 +3,19 @@ package com.ksptool.ourcraft.server.world.chunk;
 import com.ksptool.ourcraft.server.world.ServerWorld;
 import com.ksptool.ourcraft.sharedcore.GlobalPalette;
 import com.ksptool.ourcraft.sharedcore.utils.FlexChunkData;
+import com.ksptool.ourcraft.sharedcore.utils.FlexChunkDictionary;
+import com.ksptool.ourcraft.sharedcore.utils.FlexChunkHeightmap;
+import com.ksptool.ourcraft.sharedcore.utils.FlexChunkSerializer;
 import com.ksptool.ourcraft.sharedcore.utils.position.ChunkPos;
 import com.ksptool.ourcraft.sharedcore.world.BlockState;
 import com.ksptool.ourcraft.sharedcore.world.SharedChunk;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 @Getter
 public class FlexServerChunk implements SharedChunk {
@@ -77,6 +83,62 @@ public class FlexServerChunk implements SharedChunk {
     //区块加载任务
     private final CompletableFuture<FlexServerChunk> loadFuture = new CompletableFuture<>();
 
+    //修订号基数 替换原始区块数据时累加旧数据的修订号，保证区块的修订号单调递增
+    @Getter(AccessLevel.NONE)
+    private volatile long revisionBase = 0;
+
+    //按修订号缓存的序列化数据
+    @Getter(AccessLevel.NONE)
+    private volatile SerializedCache serializedCache;
+
+    //序列化锁 多个玩家同时请求同一个区块时只序列化一次
+    @Getter(AccessLevel.NONE)
+    private final Object serializeLock = new Object();
+
+    /**
+     * 序列化缓存
+     * @param revision 序列化前读取的区块修订号(数据内容不会比该修订号更旧)
+     * @param data 序列化(已压缩)后的数据
+     */
+    private record SerializedCache(long revision, byte[] data) {}
+
+    //按修订号缓存的归档数据(使用世界的区块压缩字典压缩)
+    @Getter(AccessLevel.NONE)
+    private volatile ArchiveCache archiveCache;
+
+    /**
+     * 归档数据缓存
+     * @param revision 序列化前读取的区块修订号
+     * @param dictionary 压缩使用的字典
+     * @param data 使用字典压缩后的数据
+     */
+    private record ArchiveCache(long revision, FlexChunkDictionary dictionary, byte[] data) {
+
+        private boolean matches(long revision, FlexChunkDictionary dictionary) {
+            return this.revision == revision && this.dictionary == dictionary;
+        }
+    }
+
+    //数据锁 保护存盘快照的引用计数与区块数据的释放
+    @Getter(AccessLevel.NONE)
+    private final Object dataLock = new Object();
+
+    //正在使用区块数据快照的存盘任务数量
+    @Getter(AccessLevel.NONE)
+    private int snapshotUsers = 0;
+
+    //区块数据是否已请求释放(卸载时仍有存盘任务在使用快照则推迟到最后一个任务结束时释放)
+    @Getter(AccessLevel.NONE)
+    private boolean releasePending = false;
+
+    //存盘锁 同一个区块写入归档(世界保存与卸载)按顺序执行
+    @Getter(AccessLevel.NONE)
+    private final ReentrantLock saveLock = new ReentrantLock();
+
+    //已写入归档的最新修订号(需持有存盘锁) 修订号不大于它的数据不再写入，旧快照不会覆盖卸载时写入的新数据
+    @Getter(AccessLevel.NONE)
+    private long savedRevision = -1;
+
 
     /**
      * 构造函数
@@ -108,7 +170,7 @@ public class FlexServerChunk implements SharedChunk {
 
     @Override
     public void setBlockState(int x, int y, int z, int stateId) {
-        blockData.setBlock(x, y, z, globalPalette.getState(stateId));
+        blockData.setBlockId(x, y, z, stateId);
         isDirty = true;
     }
 
@@ -118,6 +180,24 @@ public class FlexServerChunk implements SharedChunk {
         isDirty = true;
     }
 
+    @Override
+    public void setBlockStates(int[] stateIds) {
+        blockData.setBlocks(stateIds);
+        isDirty = true;
+    }
+
+    @Override
+    public void fillBlockState(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, int stateId) {
+        blockData.fill(minX, minY, minZ, maxX, maxY, maxZ, stateId);
+        isDirty = true;
+    }
+
+    @Override
+    public void setBlockStateColumn(int x, int z, int minY, int[] stateIds) {
+        blockData.setColumn(x, z, minY, stateIds);
+        isDirty = true;
+    }
+
     @Override
     public BlockState getBlockState(int x, int y, int z) {
         return blockData.getBlock(x, y, z);
@@ -125,7 +205,17 @@ public class FlexServerChunk implements SharedChunk {
 
     @Override
     public int getBlockStateId(int x, int y, int z) {
-        return globalPalette.getStateId(blockData.getBlock(x, y, z));
+        return blockData.getBlockId(x, y, z);
+    }
+
+    /**
+     * 获取某一列的高度(最高的满足条件的方块Y坐标 + 1，0表示没有)
+     * @param type 高度图类型
+     * @param x 区块内X坐标
+     * @param z 区块内Z坐标
+     */
+    public int getColumnHeight(FlexChunkHeightmap.Type type, int x, int z) {
+        return blockData.getColumnHeight(type, x, z);
     }
 
     @Override
@@ -139,6 +229,186 @@ public class FlexServerChunk implements SharedChunk {
     }
 
 
+    /**
+     * 获取区块修订号 区块的方块数据每次发生变化(包括替换原始区块数据)时递增
+     */
+    public long getRevision() {
+        return revisionBase + blockData.getRevision();
+    }
+
+    /**
+     * 获取序列化(已压缩)的区块数据
+     * 区块未发生变化时直接返回缓存，网络发送与存盘共享同一份数据，调用方不得修改返回的数组
+     * @return 序列化后的区块数据
+     */
+    public byte[] getSerializedData() {
+        var cache = serializedCache;
+        if (cache != null && cache.revision() == getRevision()) {
+            return cache.data();
+        }
+
+        synchronized (serializeLock) {
+            //先读取修订号再序列化 缓存的内容只可能比修订号更新，不会把旧数据当作新数据返回
+            long revision = getRevision();
+            cache = serializedCache;
+            if (cache != null && cache.revision() == revision) {
+                return cache.data();
+            }
+            var data = FlexChunkSerializer.serialize(blockData);
+            serializedCache = new SerializedCache(revision, data);
+            return data;
+        }
+    }
+
+    /**
+     * 获取写入归档的区块数据
+     * 没有字典时与getSerializedData()相同，否则按修订号缓存使用字典压缩的数据，区块没有变化时多次存盘只压缩一次
+     * @param dictionary 世界当前的区块压缩字典 没有时为null
+     * @return 写入归档的区块数据
+     */
+    public byte[] getArchiveData(FlexChunkDictionary dictionary) {
+        if (dictionary == null) {
+            return getSerializedData();
+        }
+        var cache = archiveCache;
+        if (cache != null && cache.matches(getRevision(), dictionary)) {
+            return cache.data();
+        }
+
+        synchronized (serializeLock) {
+            long revision = getRevision();
+            cache = archiveCache;
+            if (cache != null && cache.matches(revision, dictionary)) {
+                return cache.data();
+            }
+            var data = FlexChunkSerializer.serialize(blockData, dictionary);
+            archiveCache = new ArchiveCache(revision, dictionary, data);
+            return data;
+        }
+    }
+
+    /**
+     * 创建存盘快照 应在世界线程中(Tick边界)调用，快照内容与修订号一致
+     * 区块未发生变化时直接引用缓存的序列化数据，否则创建写时复制的只读快照，序列化可以在其他线程中进行而不阻塞世界线程
+     * @return 存盘快照 区块数据已释放时返回null
+     */
+    public SaveSnapshot createSaveSnapshot() {
+        long revision = getRevision();
+        var cache = serializedCache;
+        if (cache != null && cache.revision() == revision) {
+            return new SaveSnapshot(this, revision, cache.data(), null);
+        }
+
+        synchronized (dataLock) {
+            if (releasePending) {
+                return null;
+            }
+            blockData.compact();
+            var blocks = blockData.createSnapshot();
+            snapshotUsers++;
+            return new SaveSnapshot(this, revisionBase + blocks.getRevision(), null, blocks);
+        }
+    }
+
+    /**
+     * 存盘完成后清除脏标记 区块在存盘期间发生变化(修订号不同)时保持脏标记
+     * @param revision 存盘快照的修订号
+     */
+    public void clearDirty(long revision) {
+        if (getRevision() != revision) {
+            return;
+        }
+        isDirty = false;
+        //清除期间发生了修改 恢复脏标记
+        if (getRevision() != revision) {
+            isDirty = true;
+        }
+    }
+
+    /**
+     * 获取存盘锁 写入归档前调用，与unlockSave()成对使用
+     * 同时锁定多个区块时需要按区块坐标排序后依次获取
+     */
+    public void lockSave() {
+        saveLock.lock();
+    }
+
+    /**
+     * 释放存盘锁
+     */
+    public void unlockSave() {
+        saveLock.unlock();
+    }
+
+    /**
+     * 判断该修订号的数据是否比归档中的更新(需持有存盘锁)
+     * @param revision 待写入数据的修订号
+     */
+    public boolean isNewerThanSaved(long revision) {
+        return revision > savedRevision;
+    }
+
+    /**
+     * 记录已写入归档的修订号并清除脏标记(需持有存盘锁)
+     * @param revision 已写入数据的修订号
+     */
+    public void markSaved(long revision) {
+        if (revision > savedRevision) {
+            savedRevision = revision;
+        }
+        clearDirty(revision);
+    }
+
+    /**
+     * 释放区块数据(卸载时调用) 仍有存盘快照在使用区块段时推迟到最后一个快照结束时释放
+     */
+    public void releaseData() {
+        synchronized (dataLock) {
+            releasePending = true;
+            if (snapshotUsers > 0) {
+                return;
+            }
+        }
+        blockData.release();
+    }
+
+    /**
+     * 存盘快照使用结束 区块已请求释放且没有其他快照在使用时释放区块数据
+     */
+    private void releaseSnapshot() {
+        synchronized (dataLock) {
+            snapshotUsers--;
+            if (snapshotUsers > 0 || !releasePending) {
+                return;
+            }
+        }
+        blockData.release();
+    }
+
+    /**
+     * 缓存序列化数据 已有更新的缓存时忽略
+     */
+    private void cacheSerializedData(long revision, byte[] data) {
+        synchronized (serializeLock) {
+            var cache = serializedCache;
+            if (cache == null || cache.revision() < revision) {
+                serializedCache = new SerializedCache(revision, data);
+            }
+        }
+    }
+
+    /**
+     * 缓存归档数据 已有更新的缓存时忽略(字典不同时直接替换)
+     */
+    private void cacheArchiveData(long revision, FlexChunkDictionary dictionary, byte[] data) {
+        synchronized (serializeLock) {
+            var cache = archiveCache;
+            if (cache == null || cache.dictionary() != dictionary || cache.revision() < revision) {
+                archiveCache = new ArchiveCache(revision, dictionary, data);
+            }
+        }
+    }
+
     /**
      * 获取原始区块数据
      * @return 原始区块数据
@@ -154,7 +424,10 @@ public class FlexServerChunk implements SharedChunk {
             throw new RuntimeException("区块状态为READY时无法设置原始区块数据");
         }
 
-        //设置原始区块数据
+        //设置原始区块数据 累加旧数据的修订号使区块修订号继续递增
+        serializedCache = null;
+        archiveCache = null;
+        revisionBase += blockData.getRevision() + 1;
         this.blockData = fcd;
         isDirty = true;
     }
@@ -181,5 +454,98 @@ public class FlexServerChunk implements SharedChunk {
         return !isOutOfRange(x, y, z);
     }
 
+    /**
+     * 区块存盘快照
+     * 持有写时复制的区块段时，序列化或丢弃之前区块数据不会被释放，因此必须调用serialize()或discard()之一
+     */
+    @Getter
+    public static class SaveSnapshot {
+
+        //区块
+        private final FlexServerChunk chunk;
+
+        //快照的修订号
+        private final long revision;
+
+        //缓存的序列化数据 为null时需要从blocks序列化
+        @Getter(AccessLevel.NONE)
+        private final byte[] data;
+
+        //只读的区块数据快照
+        @Getter(AccessLevel.NONE)
+        private final FlexChunkData.Snapshot blocks;
+
+        //区块段是否已归还
+        @Getter(AccessLevel.NONE)
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        private SaveSnapshot(FlexServerChunk chunk, long revision, byte[] data, FlexChunkData.Snapshot blocks) {
+            this.chunk = chunk;
+            this.revision = revision;
+            this.data = data;
+            this.blocks = blocks;
+        }
+
+        /**
+         * 序列化快照(可在任意线程中调用) 结果会作为区块的序列化缓存供网络发送复用
+         * @return 序列化后的区块数据
+         */
+        public byte[] serialize() {
+            if (data != null) {
+                return data;
+            }
+            if (released.get()) {
+                throw new IllegalStateException("存盘快照已被丢弃: " + chunk.getChunkPos());
+            }
+            try {
+                var result = FlexChunkSerializer.serialize(blocks);
+                chunk.cacheSerializedData(revision, result);
+                return result;
+            } finally {
+                discard();
+            }
+        }
+
+        /**
+         * 使用世界的区块压缩字典序列化快照(可在任意线程中调用) 结果会作为区块的归档数据缓存
+         * @param dictionary 世界当前的区块压缩字典 为null时与serialize()相同
+         * @return 写入归档的区块数据
+         */
+        public byte[] serialize(FlexChunkDictionary dictionary) {
+            if (dictionary == null) {
+                return serialize();
+            }
+            var cache = chunk.archiveCache;
+            if (cache != null && cache.matches(revision, dictionary)) {
+                discard();
+                return cache.data();
+            }
+            if (data != null) {
+                var result = FlexChunkSerializer.recompress(data, dictionary);
+                chunk.cacheArchiveData(revision, dictionary, result);
+                return result;
+            }
+            if (released.get()) {
+                throw new IllegalStateException("存盘快照已被丢弃: " + chunk.getChunkPos());
+            }
+            try {
+                var result = FlexChunkSerializer.serialize(blocks, dictionary);
+                chunk.cacheArchiveData(revision, dictionary, result);
+                return result;
+            } finally {
+                discard();
+            }
+        }
+
+        /**
+         * 不再使用快照 归还区块段
+         */
+        public void discard() {
+            if (blocks != null && released.compareAndSet(false, true)) {
+                chunk.releaseSnapshot();
+            }
+        }
+    }
+
 
 }
@@ -1,20 +1,30 @@
 package com.ksptool.ourcraft.server.world.chunk;
 
+import com.ksptool.ourcraft.sharedcore.utils.EntitySerializer;
 import com.ksptool.ourcraft.sharedcore.utils.FlexChunkSerializer;
 import lombok.extern.slf4j.Slf4j;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.stream.Collectors;
 import com.ksptool.ourcraft.server.OurCraftServer;
+import com.ksptool.ourcraft.server.archive.ArchiveChunkEntityService;
+import com.ksptool.ourcraft.server.archive.ArchiveChunkEntityService.ChunkEntities;
 import com.ksptool.ourcraft.server.archive.ArchiveSuperChunkService;
+import com.ksptool.ourcraft.server.entity.ServerEntity;
+import com.ksptool.ourcraft.server.entity.ServerPlayer;
 import com.ksptool.ourcraft.server.event.ServerChunkReadyEvent;
 import com.ksptool.ourcraft.server.event.ServerChunkUnloadedEvent;
 import com.ksptool.ourcraft.server.world.ServerWorld;
 import com.ksptool.ourcraft.sharedcore.utils.position.ChunkPos;
 import com.ksptool.ourcraft.sharedcore.utils.position.Pos;
+import com.ksptool.ourcraft.sharedcore.utils.position.PrecisionPos;
 import com.ksptool.ourcraft.sharedcore.world.BlockState;
 import com.ksptool.ourcraft.sharedcore.world.WorldService;
 import com.ksptool.ourcraft.sharedcore.world.SharedWorld;
@@ -41,6 +51,9 @@ public class FlexServerChunkService extends WorldService{
     //归档区块管理器
     private final ArchiveSuperChunkService ascs;
 
+    //归档区块实体管理器
+    private final ArchiveChunkEntityService aces;
+
     //区块租约服务
     private final FlexChunkLeaseService fcls;
 
@@ -55,6 +68,7 @@ public class FlexServerChunkService extends WorldService{
         this.server = server;
         this.world = world;
         ascs = server.getArchiveService().getChunkService();
+        aces = server.getArchiveService().getChunkEntityService();
         fcls = world.getFcls();
 
         if(!server.getArchiveService().isConnectedArchiveIndex()){
@@ -138,20 +152,37 @@ public class FlexServerChunkService extends WorldService{
 
     /**
      * 获取区块块状态ID
+     * 全程使用整型计算，不创建BlockState，也不经过全局调色板的反查
      * @param x 块坐标X
      * @param y 块坐标Y
      * @param z 块坐标Z
      * @return 块状态ID
      */
     public int getBlockStateId(int x, int y, int z){
-        var worldPos = Pos.of(x, y, z);
-        var chunkPos = worldPos.toChunkPos(chunkSizeX, chunkSizeZ);
-        var chunk = chunks.get(chunkPos);
+        int chunkX = Math.floorDiv(x, chunkSizeX);
+        int chunkZ = Math.floorDiv(z, chunkSizeZ);
+        var chunk = chunks.get(ChunkPos.of(chunkX, chunkZ));
         if(chunk == null){
             throw new RuntimeException("区块尚未完成初始化: X:" + x + " Y:" + y + " Z:" + z);
         }
-        var localPos = worldPos.toLocalPos(chunkSizeX, chunkSizeZ);
-        return chunk.getBlockStateId(localPos.getX(), localPos.getY(), localPos.getZ());
+        return chunk.getBlockStateId(x - chunkX * chunkSizeX, y, z - chunkZ * chunkSizeZ);
+    }
+
+    /**
+     * 设置区块块状态ID
+     * @param x 块坐标X
+     * @param y 块坐标Y
+     * @param z 块坐标Z
+     * @param stateId 块状态ID
+     */
+    public void setBlockStateId(int x, int y, int z, int stateId){
+        int chunkX = Math.floorDiv(x, chunkSizeX);
+        int chunkZ = Math.floorDiv(z, chunkSizeZ);
+        var chunk = chunks.get(ChunkPos.of(chunkX, chunkZ));
+        if(chunk == null){
+            throw new RuntimeException("区块尚未完成初始化: X:" + x + " Y:" + y + " Z:" + z);
+        }
+        chunk.setBlockState(x - chunkX * chunkSizeX, y, z - chunkZ * chunkSizeZ, stateId);
     }
 
     /**
@@ -198,40 +229,67 @@ public class FlexServerChunkService extends WorldService{
 
             var tp = server.getCHUNK_PROCESS_THREAD_POOL();
 
-            //提交异步任务
-            tp.submit(() -> {
+            //区块实体与区块数据同时读取 只有存在实体记录的区块才会访问数据库(等待中的请求合并为一次查询)
+            var entityRead = aces.readEntitiesAsync(world.getName(), pos);
+
+            //先在归档I/O线程池中读取(同一个SCA文件上等待中的读取会被合并)，再回到区块处理线程池中反序列化或生成
+            ascs.readChunkAsync(world.getName(), pos).thenCombine(entityRead, ChunkLoadData::new).whenCompleteAsync((loaded, error) -> {
+
+                if (error != null) {
+                    log.error("区块加载失败: {}", pos, error);
+                    newChunk.getLoadFuture().completeExceptionally(error);
+                    return;
+                }
+
                 try {
-                    // 优先从归档SCA文件加载
-                    if (ascs.hasChunk(world.getName(), pos)) {
-                        var data = ascs.readChunk(world.getName(), pos);
-                        var fcd = FlexChunkSerializer.deserialize(data);
+                    // 优先从归档SCA文件加载 不存在时为null(存在判断由内存中的索引表完成，不产生额外I/O)
+                    var data = loaded.blocks();
+                    if (data != null) {
+                        var fcd = FlexChunkSerializer.deserialize(data, id -> ascs.getDictionary(world.getName(), id));
                         newChunk.setFlexChunkData(fcd);
                         newChunk.setStage(FlexServerChunk.Stage.READY);
                         log.info("从SCA归档中加载区块: {}", pos);
                     }
                     // 归档不存在则生成
-                    if(!ascs.hasChunk(world.getName(), pos)){
+                    if(data == null){
                         //直接用外层的 world 变量，避免变量名遮蔽
                         var tg = world.getTerrainGenerator();
                         tg.execute(newChunk, world.getGenerationContext());
+                        //整理调色板 让全部为同一种方块的区块段(如地下的石头层)转为单值模式
+                        newChunk.getFlexChunkData().compact();
                         newChunk.setStage(FlexServerChunk.Stage.READY);
                         newChunk.setDirty(true);
                         log.info("生成新区块数据: {}", pos);
                     }
 
+                    //投放区块中保存的实体(在Tick边界执行 不与世界线程的实体更新并发)
+                    if (loaded.entities() != null) {
+                        world.runAtTickBoundary(() -> spawnEntities(pos, loaded.entities()));
+                    }
+
                     //成功完成 Future
                     newChunk.getLoadFuture().complete(newChunk);
 
                     //发布事件 (应放在 complete 之后，确保监听者拿到的是完成状态的 Future)
                     world.getSweb().publish(new ServerChunkReadyEvent(newChunk));
 
+                    //加载期间租约已被撤销(例如玩家转向后撤销的预取租约) 此时无法在租约变化时卸载，需要补充卸载
+                    //卸载会移出区块中的实体，因此在Tick边界(实体投放之后)执行，并在执行时重新检查租约
+                    if (fcls.getLeaseLevel(pos) == null) {
+                        world.runAtTickBoundary(() -> {
+                            if (fcls.getLeaseLevel(pos) == null) {
+                                unloadAndSave(pos);
+                            }
+                        });
+                    }
+
                 } catch (Exception e) {
                     log.error("区块加载/生成失败: {}", pos, e);
                     newChunk.getLoadFuture().completeExceptionally(e);
                     // 可选：如果加载失败，可能需要从 chunks Map 中移除这个损坏的占位符区块
                     // chunks.remove(key);
                 }
-            });
+            }, tp);
 
             return newChunk;
         });
@@ -241,14 +299,14 @@ public class FlexServerChunkService extends WorldService{
 
 
     /**
-     * 卸载并保存区块数据(线程安全)
+     * 卸载并保存区块数据(线程安全) 会将区块中的实体移出世界，因此应在世界线程中调用
      * @param chunkPos 块坐标
      * @return 区块卸载任务
      */
     public CompletableFuture<FlexServerChunk> unloadAndSave(ChunkPos chunkPos) {
         // 使用 computeIfAbsent 实现原子性的"检查并初始化"
         // 如果已经存在卸载任务，直接返回同一个 Future
-        return chunkUnloadMap.computeIfAbsent(chunkPos, pos -> {
+        var future = chunkUnloadMap.computeIfAbsent(chunkPos, pos -> {
 
             // 从 chunks Map 获取区块
             var chunk = chunks.get(pos);
@@ -269,28 +327,58 @@ public class FlexServerChunkService extends WorldService{
             // 设置状态为 PROCESSING_UNLOAD
             chunk.setStage(FlexServerChunk.Stage.PROCESSING_UNLOAD);
 
+            // 将区块中的实体移出世界 在卸载任务中序列化并加入写入队列
+            var entities = takeEntities(pos);
+            long entityRevision = aces.nextRevision();
+
             // 创建卸载 Future
             var newUnloadFuture = new CompletableFuture<FlexServerChunk>();
 
             var tp = server.getCHUNK_PROCESS_THREAD_POOL();
 
             // 提交异步任务
-            tp.submit(() -> {
+            Runnable unloadTask = () -> {
                 try {
                     log.info("开始卸载区块: {}", pos);
 
-                    // 如果区块是脏的，需要保存
+                    // 如果区块是脏的，需要保存(持有存盘锁 与正在进行的世界保存按顺序写入)
                     if(chunk.isDirty()){
-                        var fcd = chunk.getFlexChunkData();
-                        var data = FlexChunkSerializer.serialize(fcd);
-                        ascs.writeChunk(world.getName(), pos, data);
-                        chunk.setDirty(false);
+                        boolean saved;
+                        chunk.lockSave();
+                        try {
+                            // 先读取修订号再序列化 写入的数据不会比该修订号更旧
+                            long revision = chunk.getRevision();
+                            saved = !chunk.isNewerThanSaved(revision)
+                                    || ascs.writeChunk(world.getName(), pos, chunk.getArchiveData(ascs.getCurrentDictionary(world.getName())));
+                            if(saved){
+                                chunk.markSaved(revision);
+                            }
+                        } finally {
+                            chunk.unlockSave();
+                        }
+
+                        // 写入失败时保留区块(仍为脏) 由下一次世界保存或租约再次变化时的卸载重新写入
+                        if(!saved){
+                            chunk.setStage(FlexServerChunk.Stage.READY);
+                            world.runAtTickBoundary(() -> entities.forEach(world::addEntity));
+                            newUnloadFuture.completeExceptionally(new IOException("区块保存失败，取消卸载: " + pos));
+                            return;
+                        }
                         log.info("保存脏区块数据: {}", pos);
                     }
 
+                    // 保存区块中的实体(由归档区块实体管理器批量写入 不等待数据库)
+                    var chunkEntities = serializeEntities(pos, entities, entityRevision);
+                    if(chunkEntities != null){
+                        aces.writeEntitiesAsync(world.getName(), pos, chunkEntities);
+                    }
+
                     // 从 chunks Map 中移除区块
                     chunks.remove(pos);
 
+                    // 释放区块数据(堆外存储时立即归还给分配器 仍有存盘快照在使用时推迟到快照使用结束)
+                    chunk.releaseData();
+
                     // 设置状态为 INVALID
                     chunk.setStage(FlexServerChunk.Stage.INVALID);
 
@@ -313,11 +401,30 @@ public class FlexServerChunkService extends WorldService{
                 } finally {
                     // 无论成功或失败，都从 chunkUnloadMap 中移除
                     chunkUnloadMap.remove(pos);
+                    aces.releaseRevision(entityRevision);
                 }
-            });
+            };
+
+            try {
+                tp.execute(unloadTask);
+            } catch (RejectedExecutionException e) {
+                // 区块处理线程池已满 放回实体并保留区块，在下一次Action时重新尝试卸载
+                log.warn("区块处理线程池已满，推迟卸载: {}", pos);
+                aces.releaseRevision(entityRevision);
+                chunk.setStage(FlexServerChunk.Stage.READY);
+                world.runAtTickBoundary(() -> entities.forEach(world::addEntity));
+                fcls.markChanged(pos);
+                newUnloadFuture.completeExceptionally(e);
+            }
 
             return newUnloadFuture;
         });
+
+        // 未能开始的卸载不保留在 chunkUnloadMap 中 否则之后的卸载请求会一直拿到这个失败的 Future
+        if (future.isCompletedExceptionally()) {
+            chunkUnloadMap.remove(chunkPos, future);
+        }
+        return future;
     }
 
 
@@ -336,6 +443,131 @@ public class FlexServerChunkService extends WorldService{
         return chunk.getStage() == FlexServerChunk.Stage.READY;
     }
 
+    /**
+     * 获取已加载区块中的实体快照(玩家与已死亡的实体除外)
+     * 已加载但实体已全部离开的区块在归档中存在实体记录时也会包含在内(实体数量为0 写入时删除记录)
+     * @param revision 快照的修订号(ArchiveChunkEntityService.nextRevision) 写入后由调用方释放
+     * @return 区块位置 -> 实体数据
+     */
+    public Map<ChunkPos, ChunkEntities> getEntitySnapshot(long revision){
+        var groups = new HashMap<ChunkPos, List<ServerEntity>>();
+        for (var entity : world.getEntities()) {
+            if (!isPersistent(entity)) {
+                continue;
+            }
+            var pos = toChunkPos(entity);
+            if (isChunkReady(pos)) {
+                groups.computeIfAbsent(pos, k -> new ArrayList<>()).add(entity);
+            }
+        }
+        for (var chunk : chunks.values()) {
+            var pos = chunk.getChunkPos();
+            if (chunk.getStage() == FlexServerChunk.Stage.READY && !groups.containsKey(pos) && aces.hasEntities(world.getName(), pos)) {
+                groups.put(pos, List.of());
+            }
+        }
+
+        var ret = new HashMap<ChunkPos, ChunkEntities>();
+        for (var entry : groups.entrySet()) {
+            var chunkEntities = serializeEntities(entry.getKey(), entry.getValue(), revision);
+            if (chunkEntities != null) {
+                ret.put(entry.getKey(), chunkEntities);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * 将区块中的实体移出世界
+     * @param pos 区块位置
+     * @return 移出的实体
+     */
+    private List<ServerEntity> takeEntities(ChunkPos pos){
+        var ret = new ArrayList<ServerEntity>();
+        for (var entity : world.getEntities()) {
+            if (isPersistent(entity) && pos.equals(toChunkPos(entity))) {
+                ret.add(entity);
+            }
+        }
+        for (var entity : ret) {
+            world.removeEntity(entity);
+        }
+        return ret;
+    }
+
+    /**
+     * 反序列化区块中保存的实体并投放到世界中 实体数据损坏时丢弃并记录日志 应在世界线程中(Tick边界)调用
+     * @param pos 区块位置
+     * @param data 序列化后的实体数据
+     */
+    private void spawnEntities(ChunkPos pos, byte[] data){
+        try {
+            var entities = EntitySerializer.deserialize(data, world);
+            for (var entity : entities) {
+                world.addEntity(entity);
+            }
+            log.debug("从归档中加载区块实体: {} 数量: {}", pos, entities.size());
+        } catch (IOException | RuntimeException e) {
+            log.error("区块实体数据反序列化失败: {}", pos, e);
+        }
+    }
+
+    /**
+     * 序列化区块中的实体
+     * @param pos 区块位置
+     * @param entities 实体
+     * @param revision 取得实体时分配的修订号
+     * @return 实体数据 序列化失败时返回null(归档中的记录保持不变)
+     */
+    private ChunkEntities serializeEntities(ChunkPos pos, List<ServerEntity> entities, long revision){
+        if (entities.isEmpty()) {
+            return new ChunkEntities(0, null, revision);
+        }
+        try {
+            return new ChunkEntities(entities.size(), EntitySerializer.serialize(entities), revision);
+        } catch (IOException | RuntimeException e) {
+            log.error("区块实体数据序列化失败: {}", pos, e);
+            return null;
+        }
+    }
+
+    /**
+     * 判断实体是否需要随区块保存(玩家由玩家归档保存 已死亡的实体不保存)
+     */
+    private boolean isPersistent(ServerEntity entity){
+        return !(entity instanceof ServerPlayer) && !entity.isDead();
+    }
+
+    /**
+     * 获取实体所在的区块位置
+     */
+    private ChunkPos toChunkPos(ServerEntity entity){
+        return PrecisionPos.of(entity.getPosition()).toChunkPos(chunkSizeX, chunkSizeZ);
+    }
+
+    /**
+     * 区块加载时读取到的数据
+     * @param blocks 序列化后的区块数据 归档中不存在时为null
+     * @param entities 序列化后的实体数据 区块没有实体时为null
+     */
+    private record ChunkLoadData(byte[] blocks, byte[] entities) {
+    }
+
+    /**
+     * 为所有脏区块创建存盘快照 应在世界线程中(Tick边界)调用
+     * @return 存盘快照 使用者必须对每个快照调用serialize()或discard()
+     */
+    public List<FlexServerChunk.SaveSnapshot> createSaveSnapshots(){
+        var ret = new ArrayList<FlexServerChunk.SaveSnapshot>();
+        for (var chunk : getDirtySnapshot()) {
+            var snapshot = chunk.createSaveSnapshot();
+            if (snapshot != null) {
+                ret.add(snapshot);
+            }
+        }
+        return ret;
+    }
+
     /**
      * 获取脏区块快照
      * @return 所有脏区块的快照数据
@@ -1,9 +1,8 @@
 package com.ksptool.ourcraft.server.world.gen.layers;
 
 import com.ksptool.ourcraft.sharedcore.enums.BlockEnums;
-import com.ksptool.ourcraft.sharedcore.GlobalPalette;
 import com.ksptool.ourcraft.sharedcore.blocks.inner.SharedBlock;
-import com.ksptool.ourcraft.sharedcore.world.BlockState;
+import com.ksptool.ourcraft.sharedcore.utils.FlexChunkHeightmap;
 import com.ksptool.ourcraft.sharedcore.world.gen.GenerationContext;
 import com.ksptool.ourcraft.sharedcore.world.gen.TerrainLayer;
 import com.ksptool.ourcraft.server.world.ServerWorld;
@@ -55,7 +54,6 @@ public class FeatureLayer implements TerrainLayer {
     }
 
     private int findSurfaceY(int[][][] chunkData, int x, int z, GenerationContext context) {
-        GlobalPalette palette = context.getGlobalPalette();
         var t = ((ServerWorld)context.getWorld()).getTemplate();
         var chunkSizeY = t.getChunkSizeY();
         for (int y = chunkSizeY - 1; y >= 0; y--) {
@@ -63,9 +61,8 @@ public class FeatureLayer implements TerrainLayer {
             if (stateId == AIR_STATE_ID) {
                 continue;
             }
-            BlockState state = palette.getState(stateId);
-            SharedBlock sharedBlock = state.getSharedBlock();
-            if (sharedBlock.isSolid() && !sharedBlock.isFluid()) {
+            //与区块高度图的SOLID类型使用相同的判定(按全局ID缓存，无需逐个查询方块属性)
+            if (FlexChunkHeightmap.matches(FlexChunkHeightmap.Type.SOLID, stateId)) {
                 return y;
             }
         }
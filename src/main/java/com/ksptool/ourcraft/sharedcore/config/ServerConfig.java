@@ -27,4 +27,7 @@ public class ServerConfig {
     //主世界名称
     private String mainWorldName;
 
+    //是否将已加载区块的方块数据存放在堆外内存中
+    private boolean offHeapChunkStorage;
+
 }
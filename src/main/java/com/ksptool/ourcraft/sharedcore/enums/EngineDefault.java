@@ -8,6 +8,24 @@ public class EngineDefault {
     //SCA封装大小(这决定了一个SCA文件将封装多少个区块，通常为40即40x40个区块 警告: 如果修改了这个值则旧的SCA文件将无法加载)
     public static int SCA_PACKAGE_SIZE = 40;
 
+    //SCA后台碎片整理: 碎片率(数据区中空闲扇区的比例)达到该值的已打开SCA文件会被整理
+    public static double SCA_COMPACTION_THRESHOLD = 0.3;
+
+    //SCA后台碎片整理: 小于该大小(字节)的SCA文件不整理
+    public static long SCA_COMPACTION_MIN_FILE_SIZE = 1024 * 1024;
+
+    //SCA后台碎片整理: 拷贝带宽上限(字节/秒 小于等于0表示不限制)
+    public static long SCA_COMPACTION_BANDWIDTH = 8 * 1024 * 1024;
+
+    //SCA后台碎片整理: 检查间隔(秒) 每次最多整理一个文件
+    public static int SCA_COMPACTION_INTERVAL_SECONDS = 60;
+
+    //SCA区块压缩字典: 世界还没有字典时收集多少个写入的区块作为样本来训练字典(小于等于0表示不使用字典)
+    public static int SCA_DICTIONARY_SAMPLE_COUNT = 64;
+
+    //玩家数据写入间隔(秒) 在线玩家的状态按该间隔写入内存，并由后台线程批量写入归档
+    public static int PLAYER_SAVE_INTERVAL_SECONDS = 10;
+
     //默认世界名称
     public static String DEFAULT_WORLD_NAME = "earth_like";
 
@@ -20,8 +38,14 @@ public class EngineDefault {
     //最大服务端世界执行单元队列大小(-1表示不限制)
     public static int MAX_SWEU_QUEUE_SIZE = -1;
 
-    //最大区块处理线程数(-1表示不限制)
-    public static int MAX_CHUNK_PROCESS_THREAD_COUNT = 2;
+    //最大区块处理线程数(-1表示不限制) SCA文件支持并发读取，默认与CPU核心数相同
+    public static int MAX_CHUNK_PROCESS_THREAD_COUNT = Runtime.getRuntime().availableProcessors();
+
+    //归档I/O线程数 SCA文件的异步读写在独立的线程池中执行，不占用区块生成的CPU线程
+    public static int ARCHIVE_IO_THREAD_COUNT = 4;
+
+    //世界保存线程数 保存时区块快照的序列化与写入在独立的线程池中执行(队列不限长度 任务不会被丢弃)
+    public static int ARCHIVE_SAVE_THREAD_COUNT = Runtime.getRuntime().availableProcessors();
 
     //最大区块处理队列大小(-1表示不限制)
     public static int MAX_CHUNK_PROCESS_QUEUE_SIZE = 5000;
@@ -2,59 +2,230 @@ package com.ksptool.ourcraft.sharedcore.utils;
 
 import lombok.Getter;
 
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+
+/**
+ * 位存储
+ * 使用字对齐布局: 每个long中存放 64 / bitsPerEntry 个块，块不会跨越两个long，
+ * 因此读写只访问一个long，且可以按long为单位批量打包/解包(packAll/unpackAll)
+ *
+ * 默认使用堆内的long数组，设置了堆外分配器后新创建的位存储从堆外内存板(Slab)中分配，
+ * 堆外块可以通过 release() 显式归还，未显式归还的块在位存储被GC回收后由Cleaner自动归还
+ */
 public class BitStorage {
 
-    @Getter
-    //块数据
+    //用于在位存储被回收后归还堆外块
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    //单个位存储允许的最大块数(保证除法优化的结果精确)
+    private static final int MAX_SIZE = 1 << 26;
+
+    //堆外分配器(为null时使用堆内存储)
+    private static volatile OffHeapSlabAllocator allocator;
+
+    //块数据(堆内存储) 堆外存储时为null
     private final long[] data;
 
+    //块数据(堆外存储) 堆内存储或已释放时为null
+    private LongBuffer buffer;
+
+    //堆外块的归还动作 堆内存储时为null
+    private final Cleaner.Cleanable cleanable;
+
     @Getter
     //每个块需要多少位来存储
-    private final int bitsPerEntry; 
+    private final int bitsPerEntry;
 
     //总块大小
+    @Getter
     private final int size;
 
+    //每个long中存放的块数量
+    private final int entriesPerLong;
+
+    //用乘法代替除以entriesPerLong (index * divideMul) >>> 32 == index / entriesPerLong
+    private final long divideMul;
+
+    //long数组长度
+    @Getter
+    private final int dataLength;
+
     //最大块值(用于位运算)
     private final long maxEntryValue;
 
     /**
      * 构造函数
-     * @param bitsPerEntry 每个块需要多少位来存储
+     * 设置了堆外分配器时从堆外内存分配
+     * @param bitsPerEntry 每个块需要多少位来存储(1~32)
      * @param size 总块数
      */
     public BitStorage(int bitsPerEntry, int size) {
+        if (bitsPerEntry < 1 || bitsPerEntry > 32) {
+            throw new IllegalArgumentException("不支持的存储位数: " + bitsPerEntry);
+        }
+        if (size < 0 || size > MAX_SIZE) {
+            throw new IllegalArgumentException("不支持的块数量: " + size);
+        }
         this.bitsPerEntry = bitsPerEntry;
         this.size = size;
-        this.maxEntryValue = (bitsPerEntry == 64) ? -1L : (1L << bitsPerEntry) - 1;
-        int arraySize = (int) (((long) size * bitsPerEntry + 63) / 64);
-        this.data = new long[arraySize];
+        this.maxEntryValue = (1L << bitsPerEntry) - 1;
+        this.entriesPerLong = 64 / bitsPerEntry;
+        this.divideMul = (1L << 32) / entriesPerLong + 1;
+        this.dataLength = (size + entriesPerLong - 1) / entriesPerLong;
+
+        var offHeap = allocator;
+        if (offHeap == null) {
+            this.data = new long[dataLength];
+            this.buffer = null;
+            this.cleanable = null;
+            return;
+        }
+
+        var block = offHeap.allocate(dataLength);
+        this.data = null;
+        this.buffer = block;
+        this.cleanable = CLEANER.register(this, () -> offHeap.free(block));
     }
 
     /**
      * 构造函数
-     * @param x 区块X尺寸
-     * @param y 区块Y尺寸
-     * @param z 区块Z尺寸
-     * @param bitsPerEntry 每个块需要多少位来存储
+     * 包装已有的long数组(字对齐布局)，始终使用堆内存储
+     * @param bitsPerEntry 每个块需要多少位来存储(1~32)
+     * @param size 总块数
      * @param data 数据数组
      */
-    public BitStorage(int x, int y, int z,int bitsPerEntry, long[] data) {
+    public BitStorage(int bitsPerEntry, int size, long[] data) {
+        if (bitsPerEntry < 1 || bitsPerEntry > 32) {
+            throw new IllegalArgumentException("不支持的存储位数: " + bitsPerEntry);
+        }
+        if (size < 0 || size > MAX_SIZE) {
+            throw new IllegalArgumentException("不支持的块数量: " + size);
+        }
         this.bitsPerEntry = bitsPerEntry; //每个块需要多少位来存储
-        this.size = x * y * z; //总块数
-        this.maxEntryValue = (bitsPerEntry == 64) ? -1L : (1L << bitsPerEntry) - 1; //最大值
+        this.size = size; //总块数
+        this.maxEntryValue = (1L << bitsPerEntry) - 1; //最大值
+        this.entriesPerLong = 64 / bitsPerEntry;
+        this.divideMul = (1L << 32) / entriesPerLong + 1;
+        this.dataLength = (size + entriesPerLong - 1) / entriesPerLong;
+        if (data.length != dataLength) {
+            throw new IllegalArgumentException("数据数组长度不正确: 期望 " + dataLength + " 实际 " + data.length);
+        }
         this.data = data; //数据数组
+        this.buffer = null;
+        this.cleanable = null;
     }
 
     /**
      * 高性能的拷贝构造函数 用于实现COW
-     * 直接克隆底层数组
+     * 直接克隆底层数据
      */
     public BitStorage(BitStorage other) {
-        this.bitsPerEntry = other.bitsPerEntry;
-        this.size = other.size;
-        this.maxEntryValue = other.maxEntryValue;
-        this.data = other.data.clone();
+        this(other.bitsPerEntry, other.size);
+        for (int i = 0; i < dataLength; i++) {
+            writeLong(i, other.readLong(i));
+        }
+    }
+
+    /**
+     * 获取堆外分配器 未启用堆外存储时返回null
+     */
+    public static OffHeapSlabAllocator getAllocator() {
+        return allocator;
+    }
+
+    /**
+     * 设置堆外分配器 为null时此后创建的位存储使用堆内存储
+     * 已经创建的位存储不受影响
+     * @param offHeapAllocator 堆外分配器
+     */
+    public static void setAllocator(OffHeapSlabAllocator offHeapAllocator) {
+        allocator = offHeapAllocator;
+    }
+
+    /**
+     * 是否使用堆外存储
+     */
+    public boolean isOffHeap() {
+        return data == null;
+    }
+
+    /**
+     * 获取块数据
+     * 堆外存储时返回一份拷贝
+     */
+    public long[] getData() {
+        if (data != null) {
+            return data;
+        }
+        long[] copy = new long[dataLength];
+        for (int i = 0; i < dataLength; i++) {
+            copy[i] = buffer.get(i);
+        }
+        return copy;
+    }
+
+    /**
+     * 读取底层数组中指定位置的long
+     * @param i long数组索引
+     */
+    public long readLong(int i) {
+        return data != null ? data[i] : buffer.get(i);
+    }
+
+    /**
+     * 写入底层数组中指定位置的long
+     * @param i long数组索引
+     * @param value 值
+     */
+    public void writeLong(int i, long value) {
+        if (data != null) {
+            data[i] = value;
+            return;
+        }
+        buffer.put(i, value);
+    }
+
+    /**
+     * 将块数据批量写入缓冲区的当前位置(字节序由缓冲区决定)，写入后缓冲区位置前进 dataLength * 8 字节
+     * 堆内存储直接整段拷贝long数组，堆外存储在两个缓冲区之间整段拷贝，不经过临时数组
+     * @param dest 目标缓冲区 剩余空间不小于 dataLength * 8 字节
+     */
+    public void writeTo(ByteBuffer dest) {
+        var longs = dest.asLongBuffer();
+        if (data != null) {
+            longs.put(data, 0, dataLength);
+        } else {
+            longs.put(buffer.duplicate().clear());
+        }
+        dest.position(dest.position() + dataLength * Long.BYTES);
+    }
+
+    /**
+     * 从缓冲区的当前位置批量读取并覆盖块数据(字节序由缓冲区决定)，读取后缓冲区位置前进 dataLength * 8 字节
+     * @param src 源缓冲区 剩余数据不少于 dataLength * 8 字节
+     */
+    public void readFrom(ByteBuffer src) {
+        var longs = src.asLongBuffer().limit(dataLength);
+        if (data != null) {
+            longs.get(data, 0, dataLength);
+        } else {
+            buffer.duplicate().clear().put(longs);
+        }
+        src.position(src.position() + dataLength * Long.BYTES);
+    }
+
+    /**
+     * 立即将堆外块归还给分配器(堆内存储时无操作)
+     * 释放后不可再读写该位存储，重复调用无副作用
+     */
+    public void release() {
+        if (cleanable == null) {
+            return;
+        }
+        buffer = null;
+        cleanable.clean();
     }
 
     /**
@@ -64,24 +235,13 @@ public class BitStorage {
      */
     public void set(int index, int value) {
         // 移除边界检查以提升性能（调用端保证安全）
-        long bitIndex = (long) index * bitsPerEntry;
-        int longIndex = (int) (bitIndex >> 6);
-        int bitOffset = (int) (bitIndex & 63);
+        int longIndex = (int) ((index * divideMul) >>> 32);
+        int bitOffset = (index - longIndex * entriesPerLong) * bitsPerEntry;
 
-        long currentLong = data[longIndex];
+        long currentLong = readLong(longIndex);
         currentLong &= ~(maxEntryValue << bitOffset);
         currentLong |= ((long) value & maxEntryValue) << bitOffset;
-        data[longIndex] = currentLong;
-
-        int bitsWritten = 64 - bitOffset;
-        if (bitsWritten < bitsPerEntry) {
-            int longIndexNext = longIndex + 1;
-            long nextLong = data[longIndexNext];
-            int bitsLeft = bitsPerEntry - bitsWritten;
-            nextLong &= -(1L << bitsLeft);
-            nextLong |= ((long) value & maxEntryValue) >> bitsWritten;
-            data[longIndexNext] = nextLong;
-        }
+        writeLong(longIndex, currentLong);
     }
 
     /**
@@ -90,31 +250,111 @@ public class BitStorage {
      * @return 值
      */
     public int get(int index) {
-        long bitIndex = (long) index * bitsPerEntry;
-        int longIndex = (int) (bitIndex >> 6);
-        int bitOffset = (int) (bitIndex & 63);
+        int longIndex = (int) ((index * divideMul) >>> 32);
+        int bitOffset = (index - longIndex * entriesPerLong) * bitsPerEntry;
+        return (int) ((readLong(longIndex) >>> bitOffset) & maxEntryValue);
+    }
 
-        long currentLong = data[longIndex];
-        long value = (currentLong >>> bitOffset);
+    /**
+     * 批量解包所有块
+     * @param out 输出数组 长度不小于size
+     */
+    public void unpackAll(int[] out) {
+        unpackAll(out, 0);
+    }
 
-        int bitsRead = 64 - bitOffset;
-        if (bitsRead < bitsPerEntry) {
-            long nextLong = data[longIndex + 1];
-            value |= (nextLong << bitsRead);
+    /**
+     * 批量解包所有块 按long顺序读取，每个long只读取一次
+     * @param out 输出数组
+     * @param offset 写入的起始偏移量
+     */
+    public void unpackAll(int[] out, int offset) {
+        int index = 0;
+        for (int i = 0; i < dataLength; i++) {
+            long word = readLong(i);
+            int end = Math.min(index + entriesPerLong, size);
+            for (; index < end; index++) {
+                out[offset + index] = (int) (word & maxEntryValue);
+                word >>>= bitsPerEntry;
+            }
+        }
+    }
+
+    /**
+     * 批量打包并覆盖所有块 每个long在局部变量中拼接完成后只写入一次
+     * @param values 值数组 长度不小于size
+     */
+    public void packAll(int[] values) {
+        int index = 0;
+        for (int i = 0; i < dataLength; i++) {
+            long word = 0;
+            int end = Math.min(index + entriesPerLong, size);
+            for (int shift = 0; index < end; index++, shift += bitsPerEntry) {
+                word |= ((long) values[index] & maxEntryValue) << shift;
+            }
+            writeLong(i, word);
+        }
+    }
+
+    /**
+     * 将一组值一次性打包为BitStorage
+     * @param bitsPerEntry 每个块需要多少位来存储
+     * @param values 值数组
+     * @return 新的BitStorage
+     */
+    public static BitStorage pack(int bitsPerEntry, int[] values) {
+        var result = new BitStorage(bitsPerEntry, values.length);
+        result.packAll(values);
+        return result;
+    }
+
+    /**
+     * 解包旧版(块可以跨越两个long)布局的数据 用于读取旧的存档格式
+     * @param bitsPerEntry 每个块需要多少位来存储
+     * @param size 总块数
+     * @param legacyData 旧版布局的数据
+     * @param out 输出数组 长度不小于size
+     */
+    public static void unpackLegacy(int bitsPerEntry, int size, long[] legacyData, int[] out) {
+        long mask = (bitsPerEntry == 64) ? -1L : (1L << bitsPerEntry) - 1;
+        for (int index = 0; index < size; index++) {
+            long bitIndex = (long) index * bitsPerEntry;
+            int longIndex = (int) (bitIndex >> 6);
+            int bitOffset = (int) (bitIndex & 63);
+
+            long value = legacyData[longIndex] >>> bitOffset;
+            int bitsRead = 64 - bitOffset;
+            if (bitsRead < bitsPerEntry) {
+                value |= legacyData[longIndex + 1] << bitsRead;
+            }
+            out[index] = (int) (value & mask);
+        }
+    }
+
+    /**
+     * 将所有块设置为同一个值
+     * @param value 值
+     */
+    public void fill(int value) {
+        long word = 0;
+        long v = (long) value & maxEntryValue;
+        for (int shift = 0; shift + bitsPerEntry <= 64; shift += bitsPerEntry) {
+            word |= v << shift;
+        }
+        for (int i = 0; i < dataLength; i++) {
+            writeLong(i, word);
         }
-        return (int) (value & maxEntryValue);
     }
 
     /**
      * 拷贝构造函数
+     * 批量解包后按新的位宽重新打包
      * @param newBitsPerEntry 新的存储位数
      * @return 新的BitStorage
      */
     public BitStorage copy(int newBitsPerEntry) {
-        BitStorage newStorage = new BitStorage(newBitsPerEntry, size);
-        for (int i = 0; i < size; i++) {
-            newStorage.set(i, this.get(i));
-        }
-        return newStorage;
+        int[] values = new int[size];
+        unpackAll(values);
+        return pack(newBitsPerEntry, values);
     }
-}
\ No newline at end of file
+}
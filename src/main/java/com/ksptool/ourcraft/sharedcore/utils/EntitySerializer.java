@@ -29,6 +29,7 @@ public class EntitySerializer {
     private static final byte TYPE_UUID = 0x03;
     private static final byte TYPE_INT = 0x04;
     private static final byte TYPE_BOOLEAN = 0x05;
+    private static final byte TYPE_DOUBLE = 0x06;
     
     public static byte[] serialize(List<ServerEntity> entities) throws IOException {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
@@ -169,16 +170,16 @@ public class EntitySerializer {
             return null;
         }
         
-        Float posX = getFloat(kvMap, "core:pos.x");
-        Float posY = getFloat(kvMap, "core:pos.y");
-        Float posZ = getFloat(kvMap, "core:pos.z");
+        Double posX = getDouble(kvMap, "core:pos.x");
+        Double posY = getDouble(kvMap, "core:pos.y");
+        Double posZ = getDouble(kvMap, "core:pos.z");
         if (posX != null && posY != null && posZ != null) {
             entity.getPosition().set(posX, posY, posZ);
         }
         
-        Float velX = getFloat(kvMap, "core:vel.x");
-        Float velY = getFloat(kvMap, "core:vel.y");
-        Float velZ = getFloat(kvMap, "core:vel.z");
+        Double velX = getDouble(kvMap, "core:vel.x");
+        Double velY = getDouble(kvMap, "core:vel.y");
+        Double velZ = getDouble(kvMap, "core:vel.z");
         if (velX != null && velY != null && velZ != null) {
             entity.getVelocity().set(velX, velY, velZ);
         }
@@ -240,6 +241,11 @@ public class EntitySerializer {
             } else if (value instanceof Boolean) {
                 dos.writeByte(TYPE_BOOLEAN);
                 dos.writeBoolean((Boolean) value);
+            } else if (value instanceof Double) {
+                dos.writeByte(TYPE_DOUBLE);
+                dos.writeDouble((Double) value);
+            } else {
+                throw new IOException("Unsupported entity value type: " + key + " -> " + (value == null ? null : value.getClass().getName()));
             }
         }
         
@@ -276,6 +282,8 @@ public class EntitySerializer {
                 value = dis.readInt();
             } else if (type == TYPE_BOOLEAN) {
                 value = dis.readBoolean();
+            } else if (type == TYPE_DOUBLE) {
+                value = dis.readDouble();
             }
             
             if (value != null) {
@@ -286,6 +294,17 @@ public class EntitySerializer {
         return kvMap;
     }
     
+    private static Double getDouble(Map<String, Object> map, String key) {
+        Object value = map.get(key);
+        if (value instanceof Double) {
+            return (Double) value;
+        }
+        if (value instanceof Float) {
+            return ((Float) value).doubleValue();
+        }
+        return null;
+    }
+
     private static Float getFloat(Map<String, Object> map, String key) {
         Object value = map.get(key);
         if (value instanceof Float) {
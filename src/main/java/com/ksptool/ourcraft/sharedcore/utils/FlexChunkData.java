@@ -5,11 +5,25 @@ import com.ksptool.ourcraft.sharedcore.blocks.inner.SharedBlock;
 import com.ksptool.ourcraft.sharedcore.world.BlockState;
 import com.ksptool.ourcraft.sharedcore.GlobalPalette;
 import com.ksptool.ourcraft.sharedcore.Registry;
-import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
-import it.unimi.dsi.fastutil.ints.IntArrayList;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * 区块方块数据
+ * 区块在Y轴上被切分为多个高度为16的区块段(FlexChunkSection)，每个区块段拥有独立的局部调色板与位存储
+ * 全空气的区块段以null表示，不占用任何存储
+ *
+ * 并发: 使用StampedLock，读操作先进行乐观读(不加锁、不阻塞写线程)，
+ * 只有在读取期间有写操作发生(stamp校验失败)时才退化为悲观读锁重试
+ *
+ * 高度图: 写入方块时同步维护每一列的最高非空气/固体/阻挡移动方块(FlexChunkHeightmap)
+ *
+ * 快照: 快照直接引用当前的区块段并将其标记为共享，写入共享的区块段前会先拷贝该区块段(写时复制)，
+ * 因此未被修改的区块段在多个快照版本之间共享。区块未发生变化时重复创建快照会直接返回同一个快照对象
+ */
 @Slf4j
 public class FlexChunkData {
 
@@ -22,57 +36,30 @@ public class FlexChunkData {
     @Getter
     private final int depth;  // Z轴
 
-    private final int totalSize; // 总方块数 (w * h * d)
-
     //预计算层面积 (width * depth)，用于加速索引计算
     private final int layerArea;
 
-    //区块中的方块数据(使用压缩的Long数组)
-    @Getter
-    private volatile BitStorage storage;
-
-    //本地调色板
+    //区块段数量 (height / 16 向上取整)
     @Getter
-    private final IntArrayList localPalette;
+    private final int sectionCount;
 
-    //全局ID到局部ID的映射
-    @Getter
-    private final Int2IntOpenHashMap globalToLocal;
+    //区块段数组(null表示该区块段全部为空气)
+    private final FlexChunkSection[] sections;
 
-    //非空气方块数量
-    private int nonAirBlockCount = 0;
+    //高度图
+    private final FlexChunkHeightmap heightmap;
 
     //缓存的空气方块全局ID
     private static int CACHED_AIR_GLOBAL_ID = -1;
 
-    //锁对象
-    private final Object lock = new Object();
+    //读写锁(支持乐观读)
+    private final StampedLock lock = new StampedLock();
 
-    /**
-     * 构造函数
-     * @param x 区块X尺寸
-     * @param y 区块Y尺寸
-     * @param z 区块Z尺寸
-     * @param bitsPerEntry 每个块需要多少位来存储
-     * @param data 数据数组
-     */
-    public FlexChunkData(int x, int y, int z, int bitsPerEntry, long[] data, IntArrayList palette) {
-        this.width = x;
-        this.height = y;
-        this.depth = z;
-        this.layerArea = x * z;
-        this.totalSize = this.layerArea * y;
-        this.localPalette = palette;
-        this.globalToLocal = new Int2IntOpenHashMap();
-        this.globalToLocal.defaultReturnValue(-1);
-        this.storage = new BitStorage(x, y, z, bitsPerEntry, data);
-
-        //初始化空气
-        int airGlobalId = getAirGlobalId();
-        localPalette.add(airGlobalId);
-        globalToLocal.put(airGlobalId, 0);
-    }
+    //修订号 每次方块数据发生变化时递增
+    private volatile long revision = 0;
 
+    //当前修订号对应的快照(数据发生变化后置为null)
+    private volatile Snapshot cachedSnapshot;
 
     /**
      * 构造支持任意尺寸的区块数据
@@ -86,88 +73,471 @@ public class FlexChunkData {
         this.height = height;
         this.depth = depth;
         this.layerArea = width * depth;
-        this.totalSize = this.layerArea * height;
+        this.sectionCount = (height + FlexChunkSection.SECTION_HEIGHT - 1) >> FlexChunkSection.SECTION_SHIFT;
+        this.sections = new FlexChunkSection[sectionCount];
+        this.heightmap = new FlexChunkHeightmap(width, depth);
+    }
+
+    /**
+     * 从已有的区块段与高度图创建区块数据(用于反序列化)
+     * @param width  X轴大小
+     * @param height Y轴大小
+     * @param depth  Z轴大小
+     * @param sections 区块段数组(null表示全空气)，长度必须与区块段数量一致
+     * @param heightmap 高度图 为null时根据区块段重新计算
+     */
+    public FlexChunkData(int width, int height, int depth, FlexChunkSection[] sections, FlexChunkHeightmap heightmap) {
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        this.layerArea = width * depth;
+        this.sectionCount = (height + FlexChunkSection.SECTION_HEIGHT - 1) >> FlexChunkSection.SECTION_SHIFT;
+        this.sections = new FlexChunkSection[sectionCount];
 
-        this.localPalette = new IntArrayList();
-        this.globalToLocal = new Int2IntOpenHashMap();
-        this.globalToLocal.defaultReturnValue(-1);
+        if (sections.length != sectionCount) {
+            throw new IllegalArgumentException("区块段数量不匹配: 期望 " + sectionCount + " 实际 " + sections.length);
+        }
+
+        for (int i = 0; i < sectionCount; i++) {
+            //全空气的区块段不保留
+            if (sections[i] != null && !sections[i].isEmpty()) {
+                this.sections[i] = sections[i];
+            }
+        }
 
-        // 根据动态计算的总大小初始化存储
-        this.storage = new BitStorage(4, totalSize);
+        if (heightmap != null) {
+            if (heightmap.getWidth() != width || heightmap.getDepth() != depth) {
+                throw new IllegalArgumentException("高度图尺寸不匹配");
+            }
+            this.heightmap = heightmap;
+            return;
+        }
 
-        //初始化空气
-        int airGlobalId = getAirGlobalId();
-        localPalette.add(airGlobalId);
-        globalToLocal.put(airGlobalId, 0);
+        this.heightmap = new FlexChunkHeightmap(width, depth);
+        for (int z = 0; z < depth; z++) {
+            for (int x = 0; x < width; x++) {
+                rescanColumn(x, z, height - 1, FlexChunkHeightmap.ALL_TYPES);
+            }
+        }
     }
 
 
     public BlockState getBlock(int x, int y, int z) {
-        //需在调用层做坐标范围检查，这里为了极致性能可省略
-        int index = getIndex(x, y, z);
+        return GlobalPalette.getInstance().getState(getBlockId(x, y, z));
+    }
 
-        synchronized (lock) {
+    /**
+     * 获取方块的全局ID(不创建BlockState对象 也不经过全局调色板的反查)
+     * @param x X坐标
+     * @param y Y坐标
+     * @param z Z坐标
+     * @return 全局ID
+     */
+    public int getBlockId(int x, int y, int z) {
+        //需在调用层做坐标范围检查，这里为了极致性能可省略
+        int sectionIndex = y >> FlexChunkSection.SECTION_SHIFT;
+        int index = getSectionIndex(x, y, z);
+        int airId = getAirGlobalId();
 
-            int localId = storage.get(index);
+        //乐观读 不阻塞也不会被写线程阻塞
+        long stamp = lock.tryOptimisticRead();
 
-            if (localId >= localPalette.size()) {
-                return GlobalPalette.getInstance().getState(getAirGlobalId());
+        if (stamp != 0L) {
+            try {
+                int globalId = readGlobalId(sectionIndex, index, airId);
+                if (lock.validate(stamp)) {
+                    return globalId;
+                }
+            } catch (RuntimeException e) {
+                //读取期间区块段被并发修改(如调色板扩容、转为单值模式)，读到了不一致的中间状态，退化为悲观读
             }
+        }
 
-            int globalId = localPalette.getInt(localId);
-            return GlobalPalette.getInstance().getState(globalId);
+        stamp = lock.readLock();
+        try {
+            return readGlobalId(sectionIndex, index, airId);
+        } finally {
+            lock.unlockRead(stamp);
         }
     }
 
+    /**
+     * 读取方块全局ID(不加锁 由调用方负责校验或加锁)
+     */
+    private int readGlobalId(int sectionIndex, int index, int airId) {
+        var section = sections[sectionIndex];
+
+        if (section == null) {
+            return airId;
+        }
+
+        return section.getGlobalId(index, airId);
+    }
+
     public void setBlock(int x, int y, int z, BlockState state) {
-        int globalId = GlobalPalette.getInstance().getStateId(state);
-        int index = getIndex(x, y, z);
+        setBlockId(x, y, z, GlobalPalette.getInstance().getStateId(state));
+    }
+
+    /**
+     * 使用全局ID设置方块
+     * @param x X坐标
+     * @param y Y坐标
+     * @param z Z坐标
+     * @param globalId 全局ID
+     */
+    public void setBlockId(int x, int y, int z, int globalId) {
+        int sectionIndex = y >> FlexChunkSection.SECTION_SHIFT;
+        int index = getSectionIndex(x, y, z);
         int airId = getAirGlobalId();
 
-        synchronized (lock) {
-            int oldLocalId = storage.get(index);
-            int oldGlobalId = localPalette.getInt(oldLocalId);
+        long stamp = lock.writeLock();
+        try {
+            var section = sections[sectionIndex];
+
+            if (section == null) {
+
+                //向全空气的区块段写入空气 无需任何操作
+                if (globalId == airId) return;
+
+                section = new FlexChunkSection(getSectionSize(sectionIndex), airId);
+                sections[sectionIndex] = section;
+            }
 
-            if (globalId == oldGlobalId) return;
+            //方块没有变化
+            if (section.getGlobalId(index, airId) == globalId) {
+                return;
+            }
 
-            if (oldGlobalId == airId) nonAirBlockCount++;
-            if (globalId == airId) nonAirBlockCount--;
+            //区块段已被快照共享 写时复制
+            if (section.isShared()) {
+                section = new FlexChunkSection(section);
+                sections[sectionIndex] = section;
+            }
 
-            int localIndex = globalToLocal.get(globalId);
+            section.setGlobalId(index, globalId, airId);
 
-            if (localIndex == -1) {
-                localIndex = localPalette.size();
-                int requiredBits = 32 - Integer.numberOfLeadingZeros(localIndex);
+            //区块段变为全空气时释放它
+            if (section.isEmpty()) {
+                replaceSection(sectionIndex, null);
+            }
 
-                if (requiredBits > storage.getBitsPerEntry()) {
-                    storage = storage.copy(requiredBits);
+            //更新高度图 当前最高的方块被移除时向下重新扫描该列
+            int rescan = heightmap.update(x, y, z, globalId);
+            if (rescan != 0) {
+                rescanColumn(x, z, y - 1, rescan);
+            }
+
+            markChanged();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * 批量写入整个区块的方块(按区块段一次性构建调色板并打包位存储)
+     * @param globalIds 全局ID数组 长度为 width * height * depth，顺序: Y -> Z -> X
+     */
+    public void setBlocks(int[] globalIds) {
+        if (globalIds.length != layerArea * height) {
+            throw new IllegalArgumentException("方块数组长度不匹配: 期望 " + (layerArea * height) + " 实际 " + globalIds.length);
+        }
+
+        int airId = getAirGlobalId();
+
+        long stamp = lock.writeLock();
+        try {
+            for (int i = 0; i < sectionCount; i++) {
+                int offset = (i << FlexChunkSection.SECTION_SHIFT) * layerArea;
+                var section = FlexChunkSection.of(globalIds, offset, getSectionSize(i), airId);
+                replaceSection(i, section.isEmpty() ? null : section);
+            }
+
+            //按Y从低到高遍历 最终留下的就是每一列最高的方块
+            heightmap.clear();
+            var types = FlexChunkHeightmap.TYPES;
+            for (int y = 0; y < height; y++) {
+                for (int z = 0; z < depth; z++) {
+                    for (int x = 0; x < width; x++) {
+                        int flags = FlexChunkHeightmap.getFlags(globalIds[(y * layerArea) + (z * width) + x]);
+                        if (flags == 0) {
+                            continue;
+                        }
+                        for (int t = 0; t < types.length; t++) {
+                            if ((flags & (1 << t)) != 0) {
+                                heightmap.setHeight(types[t], x, z, y + 1);
+                            }
+                        }
+                    }
+                }
+            }
+            markChanged();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * 使用同一种方块填充一个长方体区域
+     * 完全覆盖的区块段直接替换为单值区块段，部分覆盖的区块段解码后整体重新打包
+     * @param minX 最小X(包含)
+     * @param minY 最小Y(包含)
+     * @param minZ 最小Z(包含)
+     * @param maxX 最大X(不包含)
+     * @param maxY 最大Y(不包含)
+     * @param maxZ 最大Z(不包含)
+     * @param globalId 全局ID
+     */
+    public void fill(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, int globalId) {
+        if (minX < 0 || minY < 0 || minZ < 0 || maxX > width || maxY > height || maxZ > depth) {
+            throw new IllegalArgumentException("填充区域超出区块范围");
+        }
+        if (minX >= maxX || minY >= maxY || minZ >= maxZ) {
+            return;
+        }
+
+        int airId = getAirGlobalId();
+        boolean fullLayer = minX == 0 && minZ == 0 && maxX == width && maxZ == depth;
+        int[] buffer = null;
+
+        long stamp = lock.writeLock();
+        try {
+            for (int i = minY >> FlexChunkSection.SECTION_SHIFT; i <= (maxY - 1) >> FlexChunkSection.SECTION_SHIFT; i++) {
+                int sectionBottom = i << FlexChunkSection.SECTION_SHIFT;
+                int sectionSize = getSectionSize(i);
+                int fromY = Math.max(minY, sectionBottom) - sectionBottom;
+                int toY = Math.min(maxY, sectionBottom + FlexChunkSection.SECTION_HEIGHT) - sectionBottom;
+                var section = sections[i];
+
+                //整个区块段被覆盖
+                if (fullLayer && fromY == 0 && toY * layerArea == sectionSize) {
+                    replaceSection(i, globalId == airId ? null : new FlexChunkSection(sectionSize, globalId, airId));
+                    continue;
+                }
+
+                //向全空气的区块段填充空气
+                if (section == null && globalId == airId) {
+                    continue;
+                }
+
+                if (buffer == null) {
+                    buffer = new int[FlexChunkSection.SECTION_HEIGHT * layerArea];
+                }
+
+                if (section == null) {
+                    Arrays.fill(buffer, 0, sectionSize, airId);
+                } else {
+                    section.getGlobalIds(buffer, 0, airId);
                 }
 
-                localPalette.add(globalId);
-                globalToLocal.put(globalId, localIndex);
+                for (int y = fromY; y < toY; y++) {
+                    for (int z = minZ; z < maxZ; z++) {
+                        int rowStart = (y * layerArea) + (z * width);
+                        Arrays.fill(buffer, rowStart + minX, rowStart + maxX, globalId);
+                    }
+                }
+
+                section = FlexChunkSection.of(buffer, 0, sectionSize, airId);
+                replaceSection(i, section.isEmpty() ? null : section);
             }
 
-            storage.set(index, localIndex);
+            //重新计算被填充区域内各列的高度
+            for (int z = minZ; z < maxZ; z++) {
+                for (int x = minX; x < maxX; x++) {
+                    rescanColumn(x, z, height - 1, FlexChunkHeightmap.ALL_TYPES);
+                }
+            }
+            markChanged();
+        } finally {
+            lock.unlockWrite(stamp);
         }
     }
 
     /**
-     * 获取线性索引。
+     * 批量写入一列方块
+     * @param x 列的X坐标
+     * @param z 列的Z坐标
+     * @param minY 起始Y坐标(包含)
+     * @param globalIds 全局ID数组 globalIds[0]对应minY
+     */
+    public void setColumn(int x, int z, int minY, int[] globalIds) {
+        int maxY = minY + globalIds.length;
+        if (x < 0 || z < 0 || x >= width || z >= depth || minY < 0 || maxY > height) {
+            throw new IllegalArgumentException("列超出区块范围");
+        }
+        if (globalIds.length == 0) {
+            return;
+        }
+
+        int airId = getAirGlobalId();
+        int[] indexes = new int[FlexChunkSection.SECTION_HEIGHT];
+        int[] ids = new int[FlexChunkSection.SECTION_HEIGHT];
+        boolean changed = false;
+
+        long stamp = lock.writeLock();
+        try {
+            for (int i = minY >> FlexChunkSection.SECTION_SHIFT; i <= (maxY - 1) >> FlexChunkSection.SECTION_SHIFT; i++) {
+                int sectionBottom = i << FlexChunkSection.SECTION_SHIFT;
+                int fromY = Math.max(minY, sectionBottom);
+                int toY = Math.min(maxY, sectionBottom + FlexChunkSection.SECTION_HEIGHT);
+
+                int count = 0;
+                boolean allAir = true;
+                for (int y = fromY; y < toY; y++) {
+                    indexes[count] = getSectionIndex(x, y, z);
+                    ids[count] = globalIds[y - minY];
+                    if (ids[count] != airId) {
+                        allAir = false;
+                    }
+                    count++;
+                }
+
+                var section = sections[i];
+
+                if (section == null) {
+                    //向全空气的区块段写入空气 无需任何操作
+                    if (allAir) {
+                        continue;
+                    }
+                    section = new FlexChunkSection(getSectionSize(i), airId);
+                }
+
+                //区块段已被快照共享 写时复制
+                if (section.isShared()) {
+                    section = new FlexChunkSection(section);
+                }
+
+                if (!section.setGlobalIds(indexes, ids, count, airId)) {
+                    continue;
+                }
+
+                replaceSection(i, section.isEmpty() ? null : section);
+                changed = true;
+            }
+
+            if (changed) {
+                rescanColumn(x, z, height - 1, FlexChunkHeightmap.ALL_TYPES);
+                markChanged();
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * 获取某一列的高度(最高的满足条件的方块Y坐标 + 1，0表示没有)
+     * @param type 高度图类型
+     * @param x X坐标
+     * @param z Z坐标
+     */
+    public int getColumnHeight(FlexChunkHeightmap.Type type, int x, int z) {
+        long stamp = lock.tryOptimisticRead();
+        int result = heightmap.getHeight(type, x, z);
+
+        if (lock.validate(stamp)) {
+            return result;
+        }
+
+        stamp = lock.readLock();
+        try {
+            return heightmap.getHeight(type, x, z);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * 自上而下重新扫描一列，更新指定类型的高度(需持有写锁或在构造期间调用)
+     * 全空气的区块段整体跳过
+     * @param x X坐标
+     * @param z Z坐标
+     * @param fromY 开始扫描的Y坐标(包含)
+     * @param typeMask 需要更新的高度图类型标记
+     */
+    private void rescanColumn(int x, int z, int fromY, int typeMask) {
+        int airId = getAirGlobalId();
+        var types = FlexChunkHeightmap.TYPES;
+
+        for (int t = 0; t < types.length; t++) {
+            if ((typeMask & (1 << t)) != 0) {
+                heightmap.setHeight(types[t], x, z, 0);
+            }
+        }
+
+        int y = fromY;
+        while (y >= 0 && typeMask != 0) {
+            int sectionIndex = y >> FlexChunkSection.SECTION_SHIFT;
+            var section = sections[sectionIndex];
+
+            //全空气的区块段 直接跳到下一个区块段
+            if (section == null) {
+                y = (sectionIndex << FlexChunkSection.SECTION_SHIFT) - 1;
+                continue;
+            }
+
+            int flags = FlexChunkHeightmap.getFlags(section.getGlobalId(getSectionIndex(x, y, z), airId));
+            int hit = flags & typeMask;
+            if (hit != 0) {
+                for (int t = 0; t < types.length; t++) {
+                    if ((hit & (1 << t)) != 0) {
+                        heightmap.setHeight(types[t], x, z, y + 1);
+                    }
+                }
+                typeMask &= ~hit;
+            }
+            y--;
+        }
+    }
+
+    /**
+     * 获取区块段内的线性索引。
      * 为了支持任意尺寸，必须使用乘法计算。
      * 顺序：Y -> Z -> X (Y为主轴，适合垂直堆叠的结构)
      */
-    private int getIndex(int x, int y, int z) {
-        //公式：(y * layerArea) + (z * width) + x
-        return (y * layerArea) + (z * width) + x;
+    private int getSectionIndex(int x, int y, int z) {
+        //公式：(localY * layerArea) + (z * width) + x
+        return ((y & (FlexChunkSection.SECTION_HEIGHT - 1)) * layerArea) + (z * width) + x;
+    }
+
+    /**
+     * 获取指定区块段的方块总数(最上方的区块段可能不足16层)
+     * @param sectionIndex 区块段索引
+     * @return 方块总数
+     */
+    public int getSectionSize(int sectionIndex) {
+        int sectionBottom = sectionIndex << FlexChunkSection.SECTION_SHIFT;
+        int sectionHeight = Math.min(FlexChunkSection.SECTION_HEIGHT, height - sectionBottom);
+        return sectionHeight * layerArea;
     }
 
     public boolean isEmpty() {
-        synchronized (lock) {
-            return nonAirBlockCount == 0;
+        long stamp = lock.tryOptimisticRead();
+        boolean empty = hasNoSection();
+
+        if (lock.validate(stamp)) {
+            return empty;
+        }
+
+        stamp = lock.readLock();
+        try {
+            return hasNoSection();
+        } finally {
+            lock.unlockRead(stamp);
         }
     }
 
-    private int getAirGlobalId() {
+    private boolean hasNoSection() {
+        for (var section : sections) {
+            if (section != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 获取空气的全局ID(首次调用后缓存)
+     */
+    public static int getAirGlobalId() {
         if (CACHED_AIR_GLOBAL_ID == -1) {
             SharedBlock airBlock = Registry.getInstance().getBlock(BlockEnums.AIR.getStdRegName());
             if (airBlock == null) throw new IllegalStateException("Air block missing");
@@ -177,88 +547,156 @@ public class FlexChunkData {
         return CACHED_AIR_GLOBAL_ID;
     }
 
+    /**
+     * 整理所有区块段的调色板(移除失效条目、缩小位宽、转为单值模式)
+     * 依据引用计数判断，不需要整理的区块段不会被扫描，因此可以频繁调用
+     * 整理不改变方块内容，所以不会递增修订号，但会让缓存的快照失效以便之后的快照使用整理后的区块段
+     */
     public void compact() {
-        synchronized (lock) {
-            int currentPaletteSize = localPalette.size();
-            boolean[] used = new boolean[currentPaletteSize];
-            used[0] = true;
-
-            // 使用实例变量 totalSize 进行循环
-            for (int i = 0; i < totalSize; i++) {
-                int localId = storage.get(i);
-                if (localId < currentPaletteSize) {
-                    used[localId] = true;
+
+        //乐观检查 没有需要整理的区块段时不获取写锁
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0L) {
+            try {
+                boolean needed = anySectionNeedsCompact();
+                if (lock.validate(stamp) && !needed) {
+                    return;
                 }
+            } catch (RuntimeException e) {
+                //读取期间区块段被并发修改，直接进入加锁整理
             }
+        }
 
-            int newSize = 0;
-            for (boolean b : used) if (b) newSize++;
-
-            if (newSize == currentPaletteSize) return;
-
-            int[] oldToNewMap = new int[currentPaletteSize];
-            IntArrayList newLocalPalette = new IntArrayList(newSize);
-            Int2IntOpenHashMap newGlobalToLocal = new Int2IntOpenHashMap(newSize);
-            newGlobalToLocal.defaultReturnValue(-1);
-
-            int nextNewId = 0;
-            for (int oldId = 0; oldId < currentPaletteSize; oldId++) {
-                if (used[oldId]) {
-                    oldToNewMap[oldId] = nextNewId;
-                    int globalId = localPalette.getInt(oldId);
-                    newLocalPalette.add(globalId);
-                    newGlobalToLocal.put(globalId, nextNewId);
-                    nextNewId++;
-                } else {
-                    oldToNewMap[oldId] = -1;
+        stamp = lock.writeLock();
+        try {
+            int compacted = 0;
+            for (int i = 0; i < sectionCount; i++) {
+                var section = sections[i];
+                if (section == null || !section.needsCompact()) {
+                    continue;
+                }
+                //已被快照共享的区块段在副本上整理
+                if (section.isShared()) {
+                    section = new FlexChunkSection(section);
+                }
+                if (section.compact()) {
+                    sections[i] = section;
+                    compacted++;
                 }
             }
+            if (compacted > 0) {
+                cachedSnapshot = null;
+                log.debug("Chunk compacted ({}x{}x{}): {} sections", width, height, depth, compacted);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
 
-            int requiredBits = 32 - Integer.numberOfLeadingZeros(newSize - 1);
-            if (requiredBits < 4) requiredBits = 4;
+    /**
+     * 替换区块段(需持有写锁)
+     * 被替换的区块段如果没有被快照共享则立即释放其位存储
+     * @param sectionIndex 区块段索引
+     * @param section 新的区块段(null表示全空气)
+     */
+    private void replaceSection(int sectionIndex, FlexChunkSection section) {
+        var old = sections[sectionIndex];
+        sections[sectionIndex] = section;
+        if (old != null && old != section && !old.isShared()) {
+            old.release();
+        }
+    }
 
-            // 使用 totalSize 创建新存储
-            BitStorage newStorage = new BitStorage(requiredBits, totalSize);
-            for (int i = 0; i < totalSize; i++) {
-                int oldId = storage.get(i);
-                if (oldId >= currentPaletteSize || !used[oldId]) {
-                    newStorage.set(i, 0);
-                } else {
-                    newStorage.set(i, oldToNewMap[oldId]);
+    /**
+     * 释放所有区块段的位存储(堆外存储时立即归还给分配器)
+     * 用于区块卸载，调用后区块数据变为全空气
+     * 被快照共享的区块段可能仍在其他线程中被读取(如网络发送的序列化)，不在这里释放，由位存储的Cleaner在快照不再被引用后回收
+     */
+    public void release() {
+        long stamp = lock.writeLock();
+        try {
+            for (int i = 0; i < sectionCount; i++) {
+                if (sections[i] != null) {
+                    if (!sections[i].isShared()) {
+                        sections[i].release();
+                    }
+                    sections[i] = null;
                 }
             }
+            heightmap.clear();
+            markChanged();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
 
-            this.localPalette.clear();
-            this.localPalette.addAll(newLocalPalette);
-            this.globalToLocal.clear();
-            this.globalToLocal.putAll(newGlobalToLocal);
-            this.storage = newStorage;
-
-            log.debug("Chunk compacted ({}x{}x{}): Palette {}->{}", width, height, depth, currentPaletteSize, newSize);
+    private boolean anySectionNeedsCompact() {
+        for (var section : sections) {
+            if (section != null && section.needsCompact()) {
+                return true;
+            }
         }
+        return false;
+    }
+
+    /**
+     * 获取当前修订号 每次方块数据发生变化时递增
+     */
+    public long getRevision() {
+        return revision;
     }
 
+    /**
+     * 标记方块数据发生了变化(需持有写锁)
+     */
+    private void markChanged() {
+        revision++;
+        cachedSnapshot = null;
+    }
 
+    /**
+     * 创建只读快照
+     * 快照与区块数据共享区块段，数据未发生变化时返回同一个快照对象，不产生任何分配
+     */
     public Snapshot createSnapshot() {
-        synchronized (lock) {
-            //克隆 storage 和 palette
-            BitStorage storageCopy = new BitStorage(this.storage);
-            IntArrayList paletteCopy = new IntArrayList(this.localPalette);
-            return new Snapshot(storageCopy, paletteCopy, width, height, layerArea);
+        var snapshot = cachedSnapshot;
+        if (snapshot != null) {
+            return snapshot;
+        }
+
+        long stamp = lock.writeLock();
+        try {
+            snapshot = cachedSnapshot;
+            if (snapshot != null) {
+                return snapshot;
+            }
+
+            //直接引用区块段并标记为共享 空区块段保持为null
+            var sectionsCopy = new FlexChunkSection[sectionCount];
+            for (int i = 0; i < sectionCount; i++) {
+                var section = sections[i];
+                if (section != null) {
+                    section.markShared();
+                    sectionsCopy[i] = section;
+                }
+            }
+            snapshot = new Snapshot(sectionsCopy, width, height, depth, layerArea, revision, new FlexChunkHeightmap(heightmap));
+            cachedSnapshot = snapshot;
+            return snapshot;
+        } finally {
+            lock.unlockWrite(stamp);
         }
     }
 
     /**
      * 渲染器专用的快照类。
      * 只读，无锁，线程安全。
+     * 快照中的区块段都是共享的，不可修改
      */
     public static class Snapshot {
 
-        @Getter
-        private final BitStorage storage;
-
-        @Getter
-        private final IntArrayList localPalette;
+        //区块段数组(null表示该区块段全部为空气)
+        private final FlexChunkSection[] sections;
 
         @Getter
         private final int width;
@@ -266,15 +704,66 @@ public class FlexChunkData {
         @Getter
         private final int height;
 
+        @Getter
+        private final int depth;
+
         @Getter
         private final int layerArea;
 
-        public Snapshot(BitStorage storage, IntArrayList localPalette, int width, int height, int layerArea) {
-            this.storage = storage;
-            this.localPalette = localPalette;
+        //创建快照时区块数据的修订号
+        @Getter
+        private final long revision;
+
+        //创建快照时的高度图(副本)
+        @Getter
+        private final FlexChunkHeightmap heightmap;
+
+        public Snapshot(FlexChunkSection[] sections, int width, int height, int depth, int layerArea, long revision, FlexChunkHeightmap heightmap) {
+            this.sections = sections;
             this.width = width;
             this.height = height;
+            this.depth = depth;
             this.layerArea = layerArea;
+            this.revision = revision;
+            this.heightmap = heightmap;
+        }
+
+        /**
+         * 获取区块段数量
+         */
+        public int getSectionCount() {
+            return sections.length;
+        }
+
+        /**
+         * 获取区块段
+         * @param sectionIndex 区块段索引
+         * @return 区块段 全空气时返回null
+         */
+        public FlexChunkSection getSection(int sectionIndex) {
+            return sections[sectionIndex];
+        }
+
+        /**
+         * 区块段是否全部为空气(渲染器与序列化器可以直接跳过这些区块段)
+         * @param sectionIndex 区块段索引
+         */
+        public boolean isSectionEmpty(int sectionIndex) {
+            return sections[sectionIndex] == null;
+        }
+
+        /**
+         * 批量解码整个区块段的方块全局ID(按long批量解包，不逐个调用get)
+         * @param sectionIndex 区块段索引
+         * @param out 输出数组(顺序: Y -> Z -> X) 长度不小于区块段内的方块总数
+         */
+        public void getSectionBlockIds(int sectionIndex, int[] out) {
+            var section = sections[sectionIndex];
+            if (section == null) {
+                Arrays.fill(out, 0, Math.min(out.length, FlexChunkSection.SECTION_HEIGHT * layerArea), getAirGlobalId());
+                return;
+            }
+            section.getGlobalIds(out, 0, getAirGlobalId());
         }
 
         /**
@@ -282,38 +771,36 @@ public class FlexChunkData {
          * 绝对无锁
          */
         public BlockState getBlock(int x, int y, int z) {
-            // 内联计算索引，避免方法调用开销
-            int index = (y * layerArea) + (z * width) + x;
-
-            // 直接读取，无并发风险
-            int localId = storage.get(index);
+            var section = sections[y >> FlexChunkSection.SECTION_SHIFT];
 
-            // 这里的逻辑和主类一致，但没有任何 synchronized
-            if (localId >= localPalette.size()) {
-                // 这里需要处理一下，通常快照里的 palette 和 storage 是同步的，
-                // 但为了安全起见，如果越界这通常意味着空气
-                return GlobalPalette.getInstance().getState(CACHED_AIR_GLOBAL_ID);
+            if (section == null) {
+                return GlobalPalette.getInstance().getState(getAirGlobalId());
             }
 
-            int globalId = localPalette.getInt(localId);
-            return GlobalPalette.getInstance().getState(globalId);
+            // 内联计算索引，避免方法调用开销
+            int index = ((y & (FlexChunkSection.SECTION_HEIGHT - 1)) * layerArea) + (z * width) + x;
+
+            // 这里的逻辑和主类一致，但没有任何 synchronized
+            return GlobalPalette.getInstance().getState(section.getGlobalId(index, getAirGlobalId()));
         }
 
         /**
          * 利用 "Local ID 0 始终是 Air" 的约定，避免所有对象创建和字符串比较。
          */
         public boolean isAir(int x, int y, int z) {
-            //手动内联索引计算，避免方法调用开销
-            int index = (y * layerArea) + (z * width) + x;
+            var section = sections[y >> FlexChunkSection.SECTION_SHIFT];
 
-            //直接从 BitStorage 获取本地调色板 ID
-            int localId = storage.get(index);
+            //空区块段全部为空气
+            if (section == null) {
+                return true;
+            }
+
+            //手动内联索引计算，避免方法调用开销
+            int index = ((y & (FlexChunkSection.SECTION_HEIGHT - 1)) * layerArea) + (z * width) + x;
 
-            //快速整型比较
-            //localId == 0: 构造函数保证了 0 号索引永远是 Air
-            //localId >= size: 越界保护，通常意味着未初始化区域，默认为 Air
-            return localId == 0 || localId >= localPalette.size();
+            //单值模式直接比较 调色板模式比较本地调色板 ID
+            return section.isAir(index, getAirGlobalId());
         }
     }
 
-}
\ No newline at end of file
+}
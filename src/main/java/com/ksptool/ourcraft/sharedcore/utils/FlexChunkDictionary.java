@@ -0,0 +1,230 @@
+package com.ksptool.ourcraft.sharedcore.utils;
+
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.zip.Adler32;
+
+/**
+ * 区块压缩预设字典
+ * 同一个世界的区块之间高度相似(相同的调色板、分层结构与高度图)，但每个区块是独立压缩的，压缩器无法利用区块之间的重复。
+ * 预设字典(Deflater.setDictionary)由样本区块中最具代表性的数据块拼接而成，压缩时可以直接引用字典中的内容。
+ *
+ * 字典ID为字典内容的Adler32，与zlib数据流头部记录的字典ID相同。
+ * Adler32只有32位，不同世界的字典可能冲突，因此字典不做全局注册，由各世界的归档自行管理，反序列化时传入该世界的字典查找函数
+ */
+@Getter
+public class FlexChunkDictionary {
+
+    //字典的最大长度(Deflate的窗口大小 超出的部分无法被引用)
+    public static final int MAX_SIZE = 32 * 1024;
+
+    //训练时统计的片段长度
+    private static final int SEGMENT_LENGTH = 16;
+
+    //字典由样本中的数据块拼接而成 每个数据块的长度
+    private static final int BLOCK_SIZE = 512;
+
+    //滚动哈希的乘数
+    private static final long HASH_PRIME = 1_000_003L;
+
+    //滚动哈希中最早进入窗口的字节的权重 HASH_PRIME ^ (SEGMENT_LENGTH - 1)
+    private static final long HASH_POWER;
+
+    //采样比例 只统计哈希值落在 1/2^SAMPLE_BITS 范围内的片段(按内容采样，同样的内容在不同样本的不同偏移量上都会被选中)
+    private static final int SAMPLE_BITS = 2;
+
+    static {
+        long power = 1;
+        for (int i = 0; i < SEGMENT_LENGTH - 1; i++) {
+            power *= HASH_PRIME;
+        }
+        HASH_POWER = power;
+    }
+
+    //字典ID(字典内容的Adler32)
+    private final int id;
+
+    //字典内容
+    private final byte[] data;
+
+    /**
+     * 构造函数
+     * @param data 字典内容 长度不超过MAX_SIZE
+     */
+    public FlexChunkDictionary(byte[] data) {
+        if (data == null || data.length == 0 || data.length > MAX_SIZE) {
+            throw new IllegalArgumentException("Invalid dictionary size: " + (data == null ? 0 : data.length));
+        }
+        var adler = new Adler32();
+        adler.update(data);
+        this.id = (int) adler.getValue();
+        this.data = data;
+    }
+
+    /**
+     * 从序列化后的区块数据(未使用字典压缩)中训练字典
+     * 先统计每个片段出现在多少个不同的样本中，再把样本切分为数据块，按"未被已选数据块覆盖的片段的出现次数之和"贪心地挑选数据块拼接为字典，
+     * 先选中的数据块放在字典末尾(距离被压缩的数据最近，引用的距离编码最短)
+     * @param samples 序列化后的区块数据
+     * @return 字典 样本中没有可复用的片段时返回null
+     */
+    public static FlexChunkDictionary train(List<byte[]> samples) {
+        var bodies = new ArrayList<byte[]>(samples.size());
+        for (var sample : samples) {
+            var body = FlexChunkSerializer.inflateBody(sample);
+            if (body != null && body.length >= SEGMENT_LENGTH) {
+                bodies.add(body);
+            }
+        }
+        if (bodies.size() < 2) {
+            return null;
+        }
+
+        //每个样本中每个位置开始的片段哈希 未被采样的位置为0
+        var hashes = new ArrayList<long[]>(bodies.size());
+        //片段哈希 -> 出现在多少个不同的样本中
+        var frequencies = new HashMap<Long, Integer>();
+
+        for (var body : bodies) {
+            long[] bodyHashes = hashSegments(body);
+            hashes.add(bodyHashes);
+            var seen = new HashSet<Long>();
+            for (long hash : bodyHashes) {
+                if (hash != 0 && seen.add(hash)) {
+                    frequencies.merge(hash, 1, Integer::sum);
+                }
+            }
+        }
+
+        //切分数据块 只保留至少在两个样本中出现过的片段
+        var queue = new PriorityQueue<Block>((a, b) -> Integer.compare(b.score, a.score));
+        for (int s = 0; s < bodies.size(); s++) {
+            long[] bodyHashes = hashes.get(s);
+            int length = bodies.get(s).length;
+            for (int offset = 0; offset < length; offset += BLOCK_SIZE) {
+                int end = Math.min(offset + BLOCK_SIZE, length);
+                var segments = new HashSet<Long>();
+                for (int i = offset; i + SEGMENT_LENGTH <= end; i++) {
+                    long hash = bodyHashes[i];
+                    if (hash != 0 && frequencies.get(hash) >= 2) {
+                        segments.add(hash);
+                    }
+                }
+                if (segments.isEmpty()) {
+                    continue;
+                }
+                var block = new Block(s, offset, end - offset, segments);
+                block.score = score(block, frequencies, Set.of());
+                queue.add(block);
+            }
+        }
+
+        //贪心挑选数据块 已选数据块覆盖的片段不再计分
+        //数据块的得分只会随着覆盖范围扩大而降低，因此只需要在出队时重新计算得分(惰性贪心)
+        var covered = new HashSet<Long>();
+        var selected = new ArrayList<Block>();
+        int total = 0;
+        while (total < MAX_SIZE && !queue.isEmpty()) {
+            var block = queue.poll();
+            int score = score(block, frequencies, covered);
+            if (score == 0) {
+                continue;
+            }
+            if (!queue.isEmpty() && score < queue.peek().score) {
+                block.score = score;
+                queue.add(block);
+                continue;
+            }
+            covered.addAll(block.segments);
+            selected.add(block);
+            total += block.length;
+        }
+        if (selected.isEmpty()) {
+            return null;
+        }
+
+        //先选中的数据块写在末尾 超出MAX_SIZE的部分从最后选中的数据块开头截断
+        int size = Math.min(total, MAX_SIZE);
+        byte[] data = new byte[size];
+        int position = size;
+        for (var block : selected) {
+            int length = Math.min(block.length, position);
+            position -= length;
+            System.arraycopy(bodies.get(block.sample), block.offset + block.length - length, data, position, length);
+        }
+        return new FlexChunkDictionary(data);
+    }
+
+    /**
+     * 计算每个位置开始的片段的滚动哈希
+     * @param body 样本数据
+     * @return 片段哈希 未被采样的位置为0
+     */
+    private static long[] hashSegments(byte[] body) {
+        long[] result = new long[body.length - SEGMENT_LENGTH + 1];
+        long hash = 0;
+        for (int i = 0; i < SEGMENT_LENGTH; i++) {
+            hash = hash * HASH_PRIME + (body[i] & 0xFF);
+        }
+        for (int offset = 0; ; offset++) {
+            //打散哈希值后再采样，避免采样结果只取决于字节的低位
+            if ((hash * 0x9E3779B97F4A7C15L) >>> (64 - SAMPLE_BITS) == 0) {
+                result[offset] = hash != 0 ? hash : 1;
+            }
+            if (offset + SEGMENT_LENGTH >= body.length) {
+                break;
+            }
+            hash = (hash - (body[offset] & 0xFF) * HASH_POWER) * HASH_PRIME + (body[offset + SEGMENT_LENGTH] & 0xFF);
+        }
+        return result;
+    }
+
+    /**
+     * 计算数据块的得分 未被覆盖的片段的出现次数之和
+     */
+    private static int score(Block block, Map<Long, Integer> frequencies, Set<Long> covered) {
+        int score = 0;
+        for (long hash : block.segments) {
+            if (!covered.contains(hash)) {
+                score += frequencies.get(hash);
+            }
+        }
+        return score;
+    }
+
+    /**
+     * 训练时的候选数据块
+     */
+    private static final class Block {
+
+        //所在的样本索引
+        private final int sample;
+
+        //在样本中的偏移量
+        private final int offset;
+
+        //长度
+        private final int length;
+
+        //包含的片段哈希(只包含至少在两个样本中出现过的片段)
+        private final Set<Long> segments;
+
+        //最近一次计算的得分
+        private int score;
+
+        private Block(int sample, int offset, int length, Set<Long> segments) {
+            this.sample = sample;
+            this.offset = offset;
+            this.length = length;
+            this.segments = segments;
+        }
+    }
+
+}
@@ -0,0 +1,219 @@
+package com.ksptool.ourcraft.sharedcore.utils;
+
+import com.ksptool.ourcraft.sharedcore.GlobalPalette;
+import com.ksptool.ourcraft.sharedcore.blocks.inner.SharedBlock;
+import lombok.Getter;
+
+import java.util.Arrays;
+
+/**
+ * 区块高度图
+ * 为区块的每一列记录不同类型方块的最高位置，避免生成、出生点搜索、网格构建等场景逐方块自上而下扫描
+ * 高度值为 "最高的满足条件的方块Y坐标 + 1"，0 表示该列没有满足条件的方块
+ * 该类本身不是线程安全的，并发控制由 FlexChunkData 负责
+ */
+public class FlexChunkHeightmap {
+
+    /**
+     * 高度图类型
+     */
+    public enum Type {
+
+        /**
+         * WORLD_SURFACE(世界表面): 最高的非空气方块
+         */
+        WORLD_SURFACE,
+
+        /**
+         * SOLID(固体): 最高的固体方块(不含流体)
+         */
+        SOLID,
+
+        /**
+         * MOTION_BLOCKING(阻挡移动): 最高的固体或流体方块
+         */
+        MOTION_BLOCKING,
+    }
+
+    //所有高度图类型
+    public static final Type[] TYPES = Type.values();
+
+    //包含所有高度图类型的标记
+    public static final int ALL_TYPES = (1 << TYPES.length) - 1;
+
+    //按全局ID缓存的方块类型标记 第N位表示是否满足第N种高度图类型
+    private static volatile byte[] CACHED_FLAGS = new byte[0];
+
+    //X轴大小
+    @Getter
+    private final int width;
+
+    //Z轴大小
+    @Getter
+    private final int depth;
+
+    //高度数据 [类型][z * width + x]
+    private final short[][] heights;
+
+    /**
+     * 创建一个空的高度图(所有列高度为0)
+     * @param width X轴大小
+     * @param depth Z轴大小
+     */
+    public FlexChunkHeightmap(int width, int depth) {
+        this.width = width;
+        this.depth = depth;
+        this.heights = new short[TYPES.length][width * depth];
+    }
+
+    /**
+     * 拷贝构造函数
+     * @param other 被拷贝的高度图
+     */
+    public FlexChunkHeightmap(FlexChunkHeightmap other) {
+        this.width = other.width;
+        this.depth = other.depth;
+        this.heights = new short[TYPES.length][];
+        for (int i = 0; i < TYPES.length; i++) {
+            this.heights[i] = other.heights[i].clone();
+        }
+    }
+
+    /**
+     * 判断方块是否满足指定的高度图类型
+     * @param type 高度图类型
+     * @param globalId 方块全局ID
+     */
+    public static boolean matches(Type type, int globalId) {
+        return (getFlags(globalId) & (1 << type.ordinal())) != 0;
+    }
+
+    /**
+     * 获取方块满足的所有高度图类型标记
+     * @param globalId 方块全局ID
+     */
+    public static int getFlags(int globalId) {
+        byte[] flags = CACHED_FLAGS;
+        if (globalId >= flags.length) {
+            flags = buildFlags();
+            if (globalId >= flags.length) {
+                return 0;
+            }
+        }
+        return flags[globalId];
+    }
+
+    /**
+     * 从全局调色板构建方块类型标记
+     */
+    private static synchronized byte[] buildFlags() {
+        var palette = GlobalPalette.getInstance();
+        int count = palette.getStateCount();
+        if (CACHED_FLAGS.length == count) {
+            return CACHED_FLAGS;
+        }
+
+        byte[] flags = new byte[count];
+        int airId = FlexChunkData.getAirGlobalId();
+
+        for (int id = 0; id < count; id++) {
+            if (id == airId) {
+                continue;
+            }
+            SharedBlock block = palette.getState(id).getSharedBlock();
+            int flag = 1 << Type.WORLD_SURFACE.ordinal();
+            if (block.isSolid() && !block.isFluid()) {
+                flag |= 1 << Type.SOLID.ordinal();
+            }
+            if (block.isSolid() || block.isFluid()) {
+                flag |= 1 << Type.MOTION_BLOCKING.ordinal();
+            }
+            flags[id] = (byte) flag;
+        }
+
+        CACHED_FLAGS = flags;
+        return flags;
+    }
+
+    /**
+     * 获取某一列的高度(最高的满足条件的方块Y坐标 + 1，0表示没有)
+     * @param type 高度图类型
+     * @param x X坐标
+     * @param z Z坐标
+     */
+    public int getHeight(Type type, int x, int z) {
+        return heights[type.ordinal()][z * width + x];
+    }
+
+    /**
+     * 设置某一列的高度
+     * @param type 高度图类型
+     * @param x X坐标
+     * @param z Z坐标
+     * @param height 高度(最高的满足条件的方块Y坐标 + 1)
+     */
+    public void setHeight(Type type, int x, int z, int height) {
+        heights[type.ordinal()][z * width + x] = (short) height;
+    }
+
+    /**
+     * 获取整个区块中指定类型的最大高度
+     * @param type 高度图类型
+     */
+    public int getMaxHeight(Type type) {
+        int max = 0;
+        for (short h : heights[type.ordinal()]) {
+            if (h > max) {
+                max = h;
+            }
+        }
+        return max;
+    }
+
+    /**
+     * 方块发生变化后更新高度图
+     * 新方块高于当前高度时直接抬高，当前最高的方块被移除时返回需要向下重新扫描的类型标记
+     * @param x X坐标
+     * @param y Y坐标
+     * @param z Z坐标
+     * @param globalId 新方块的全局ID
+     * @return 需要重新扫描的高度图类型标记(第N位对应第N种类型) 0表示无需扫描
+     */
+    public int update(int x, int y, int z, int globalId) {
+        int column = z * width + x;
+        int flags = getFlags(globalId);
+        int rescan = 0;
+
+        for (int t = 0; t < TYPES.length; t++) {
+            int height = heights[t][column];
+            if ((flags & (1 << t)) != 0) {
+                if (y + 1 > height) {
+                    heights[t][column] = (short) (y + 1);
+                }
+                continue;
+            }
+            if (y + 1 == height) {
+                rescan |= 1 << t;
+            }
+        }
+        return rescan;
+    }
+
+    /**
+     * 将所有列的高度重置为0
+     */
+    public void clear() {
+        for (short[] h : heights) {
+            Arrays.fill(h, (short) 0);
+        }
+    }
+
+    /**
+     * 获取原始高度数据(用于序列化)
+     * @param type 高度图类型
+     */
+    public short[] getRawHeights(Type type) {
+        return heights[type.ordinal()];
+    }
+
+}
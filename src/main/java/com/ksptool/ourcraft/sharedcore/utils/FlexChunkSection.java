@@ -0,0 +1,612 @@
+package com.ksptool.ourcraft.sharedcore.utils;
+
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import lombok.Getter;
+
+import java.util.Arrays;
+
+/**
+ * 区块段(Section)
+ * FlexChunkData 在Y轴上被切分为多个高度为 SECTION_HEIGHT 的区块段，每个区块段拥有独立的局部调色板与位存储
+ * 全空气的区块段不会被创建(在FlexChunkData中以null表示)，因此高空中的空气不占用任何存储
+ *
+ * 单值模式: 当区块段内只有一种方块状态时(例如地下深处全是石头、海洋中全是水)，区块段只保存该方块的全局ID，
+ * 不分配调色板与位存储，读取为O(1)。第一次写入不同的方块时才会展开为调色板+位存储模式。
+ *
+ * 引用计数: 调色板模式下每个调色板条目都记录了有多少个方块在使用它，写入时同步维护，
+ * 因此可以O(1)得知是否存在失效的条目(引用数为0)以及是否需要整理，无需扫描整个位存储
+ *
+ * 约定: 调色板模式下局部调色板的0号索引永远是空气
+ * 该类本身不是线程安全的，并发控制由 FlexChunkData 负责
+ * 被快照引用的区块段会被标记为共享(shared)，共享的区块段不可再被修改，写入前需要先拷贝(写时复制)
+ */
+public class FlexChunkSection {
+
+    //区块段高度(Y轴)
+    public static final int SECTION_HEIGHT = 16;
+
+    //区块段高度的位移量(y >> SECTION_SHIFT 即可得到区块段索引)
+    public static final int SECTION_SHIFT = 4;
+
+    //位存储的最小位宽
+    private static final int MIN_BITS = 4;
+
+    //区块段内的方块总数(width * sectionHeight * depth)
+    @Getter
+    private final int size;
+
+    //区块段中的方块数据(使用压缩的Long数组) 单值模式下为null
+    @Getter
+    private BitStorage storage;
+
+    //本地调色板 单值模式下为null
+    @Getter
+    private IntArrayList localPalette;
+
+    //全局ID到局部ID的映射 单值模式下为null
+    private Int2IntOpenHashMap globalToLocal;
+
+    //调色板条目的引用计数 与localPalette一一对应 单值模式下为null
+    private IntArrayList refCounts;
+
+    //失效的调色板条目数量(引用数为0 不含0号空气条目)
+    @Getter
+    private int deadEntryCount = 0;
+
+    //单值模式下整个区块段的方块全局ID
+    @Getter
+    private int singleValue;
+
+    //非空气方块数量
+    @Getter
+    private int nonAirBlockCount = 0;
+
+    //是否已被快照共享(共享后不可修改)
+    @Getter
+    private boolean shared = false;
+
+    /**
+     * 创建一个全空气的区块段(单值模式)
+     * @param size 区块段内的方块总数
+     * @param airGlobalId 空气的全局ID
+     */
+    public FlexChunkSection(int size, int airGlobalId) {
+        this(size, airGlobalId, airGlobalId);
+    }
+
+    /**
+     * 创建一个只包含单一方块状态的区块段(单值模式)
+     * @param size 区块段内的方块总数
+     * @param globalId 方块的全局ID
+     * @param airGlobalId 空气的全局ID
+     */
+    public FlexChunkSection(int size, int globalId, int airGlobalId) {
+        this.size = size;
+        this.singleValue = globalId;
+        this.nonAirBlockCount = globalId == airGlobalId ? 0 : size;
+    }
+
+    /**
+     * 从已有的数据创建区块段(用于反序列化)
+     * 调色板中的0号索引必须是空气，如果所有方块都是同一种状态则自动转为单值模式
+     * 调色板中重复的条目与越界的局部ID会被规范化(越界的局部ID视为空气)
+     * @param size 区块段内的方块总数
+     * @param storage 位存储
+     * @param palette 本地调色板
+     * @param airGlobalId 空气的全局ID
+     */
+    public FlexChunkSection(int size, BitStorage storage, IntArrayList palette, int airGlobalId) {
+
+        if (palette.isEmpty() || palette.getInt(0) != airGlobalId) {
+            throw new IllegalArgumentException("区块段调色板的0号索引必须是空气");
+        }
+
+        this.size = size;
+        this.storage = storage;
+        this.localPalette = palette;
+        this.globalToLocal = new Int2IntOpenHashMap(palette.size());
+        this.globalToLocal.defaultReturnValue(-1);
+
+        int paletteSize = palette.size();
+
+        //重复的条目统一映射到第一次出现的位置
+        int[] canonical = new int[paletteSize];
+        for (int i = 0; i < paletteSize; i++) {
+            globalToLocal.putIfAbsent(palette.getInt(i), i);
+            canonical[i] = globalToLocal.get(palette.getInt(i));
+        }
+
+        //统计引用计数与非空气方块数量
+        int[] localIds = new int[size];
+        storage.unpackAll(localIds);
+        int[] counts = new int[paletteSize];
+        boolean normalized = false;
+        for (int i = 0; i < size; i++) {
+            int localId = localIds[i];
+            int target = localId < paletteSize ? canonical[localId] : 0;
+            if (target != localId) {
+                localIds[i] = target;
+                normalized = true;
+            }
+            counts[target]++;
+        }
+        if (normalized) {
+            storage.packAll(localIds);
+        }
+
+        this.refCounts = IntArrayList.wrap(counts);
+        this.nonAirBlockCount = size - counts[0];
+        for (int i = 1; i < paletteSize; i++) {
+            if (counts[i] == 0) {
+                deadEntryCount++;
+            }
+        }
+
+        //所有方块都是同一种状态
+        for (int i = 0; i < paletteSize; i++) {
+            if (counts[i] == size) {
+                toSingleValue(palette.getInt(i));
+                break;
+            }
+        }
+    }
+
+    /**
+     * 从已经构建好的调色板与位存储创建区块段(内部使用，不做校验)
+     */
+    private FlexChunkSection(int size, BitStorage storage, IntArrayList palette, Int2IntOpenHashMap globalToLocal, IntArrayList refCounts) {
+        this.size = size;
+        this.storage = storage;
+        this.localPalette = palette;
+        this.globalToLocal = globalToLocal;
+        this.refCounts = refCounts;
+        this.nonAirBlockCount = size - refCounts.getInt(0);
+        for (int i = 1; i < refCounts.size(); i++) {
+            if (refCounts.getInt(i) == 0) {
+                deadEntryCount++;
+            }
+        }
+    }
+
+    /**
+     * 从全局ID数组批量创建区块段
+     * 一次遍历计算出最终的调色板与位宽，然后一次性打包位存储，全部为同一种方块时直接创建单值区块段
+     * @param globalIds 全局ID数组(顺序: Y -> Z -> X)
+     * @param offset 区块段第一个方块在数组中的偏移量
+     * @param size 区块段内的方块总数
+     * @param airGlobalId 空气的全局ID
+     * @return 区块段
+     */
+    public static FlexChunkSection of(int[] globalIds, int offset, int size, int airGlobalId) {
+
+        int first = globalIds[offset];
+        boolean uniform = true;
+        for (int i = 1; i < size; i++) {
+            if (globalIds[offset + i] != first) {
+                uniform = false;
+                break;
+            }
+        }
+
+        if (uniform) {
+            return new FlexChunkSection(size, first, airGlobalId);
+        }
+
+        var palette = new IntArrayList();
+        var refCounts = new IntArrayList();
+        var globalToLocal = new Int2IntOpenHashMap();
+        globalToLocal.defaultReturnValue(-1);
+        palette.add(airGlobalId);
+        refCounts.add(0);
+        globalToLocal.put(airGlobalId, 0);
+
+        int[] localIds = new int[size];
+
+        for (int i = 0; i < size; i++) {
+            int globalId = globalIds[offset + i];
+            int localId = globalToLocal.get(globalId);
+            if (localId == -1) {
+                localId = palette.size();
+                palette.add(globalId);
+                refCounts.add(0);
+                globalToLocal.put(globalId, localId);
+            }
+            localIds[i] = localId;
+            refCounts.set(localId, refCounts.getInt(localId) + 1);
+        }
+
+        return new FlexChunkSection(size, BitStorage.pack(requiredBits(palette.size()), localIds), palette, globalToLocal, refCounts);
+    }
+
+    /**
+     * 拷贝构造函数(深拷贝)
+     * 拷贝出的区块段不是共享的，可以被修改
+     * @param other 被拷贝的区块段
+     */
+    public FlexChunkSection(FlexChunkSection other) {
+        this.size = other.size;
+        this.singleValue = other.singleValue;
+        this.nonAirBlockCount = other.nonAirBlockCount;
+        this.deadEntryCount = other.deadEntryCount;
+
+        if (other.isSingleValue()) {
+            return;
+        }
+
+        this.storage = new BitStorage(other.storage);
+        this.localPalette = new IntArrayList(other.localPalette);
+        this.refCounts = new IntArrayList(other.refCounts);
+        this.globalToLocal = new Int2IntOpenHashMap(other.globalToLocal.size());
+        this.globalToLocal.defaultReturnValue(-1);
+        this.globalToLocal.putAll(other.globalToLocal);
+    }
+
+    /**
+     * 将区块段标记为共享 此后该区块段不可再被修改
+     */
+    public void markShared() {
+        shared = true;
+    }
+
+    /**
+     * 区块段是否处于单值模式
+     */
+    public boolean isSingleValue() {
+        return storage == null;
+    }
+
+    /**
+     * 获取指定索引处方块的全局ID
+     * @param index 区块段内的线性索引
+     * @param airGlobalId 空气的全局ID
+     * @return 全局ID
+     */
+    public int getGlobalId(int index, int airGlobalId) {
+        if (storage == null) {
+            return singleValue;
+        }
+        int localId = storage.get(index);
+        if (localId >= localPalette.size()) {
+            return airGlobalId;
+        }
+        return localPalette.getInt(localId);
+    }
+
+    /**
+     * 将整个区块段解码为全局ID
+     * @param out 输出数组(顺序: Y -> Z -> X)
+     * @param offset 写入的起始偏移量
+     * @param airGlobalId 空气的全局ID
+     */
+    public void getGlobalIds(int[] out, int offset, int airGlobalId) {
+        if (storage == null) {
+            Arrays.fill(out, offset, offset + size, singleValue);
+            return;
+        }
+        storage.unpackAll(out, offset);
+        int paletteSize = localPalette.size();
+        int[] palette = localPalette.elements();
+        for (int i = offset; i < offset + size; i++) {
+            int localId = out[i];
+            out[i] = localId < paletteSize ? palette[localId] : airGlobalId;
+        }
+    }
+
+    /**
+     * 判断指定索引处是否为空气
+     * @param index 区块段内的线性索引
+     * @param airGlobalId 空气的全局ID
+     */
+    public boolean isAir(int index, int airGlobalId) {
+        if (storage == null) {
+            return singleValue == airGlobalId;
+        }
+
+        //localId == 0: 调色板的 0 号索引永远是 Air
+        //localId >= size: 越界保护，通常意味着未初始化区域，默认为 Air
+        int localId = storage.get(index);
+        return localId == 0 || localId >= localPalette.size();
+    }
+
+    /**
+     * 设置指定索引处方块的全局ID
+     * @param index 区块段内的线性索引
+     * @param globalId 全局ID
+     * @param airGlobalId 空气的全局ID
+     * @return 方块是否发生了变化
+     */
+    public boolean setGlobalId(int index, int globalId, int airGlobalId) {
+        int oldGlobalId = getGlobalId(index, airGlobalId);
+
+        if (globalId == oldGlobalId) {
+            return false;
+        }
+
+        if (shared) {
+            throw new IllegalStateException("共享的区块段不可修改");
+        }
+
+        //单值模式遇到第一个不同的方块 展开为调色板模式
+        if (storage == null) {
+            expand(airGlobalId);
+        }
+
+        int localIndex = globalToLocal.get(globalId);
+
+        if (localIndex == -1) {
+            localIndex = addEntry(globalId);
+            int requiredBits = requiredBits(localPalette.size());
+
+            if (requiredBits > storage.getBitsPerEntry()) {
+                resize(requiredBits);
+            }
+        }
+
+        replace(index, localIndex);
+        return true;
+    }
+
+    /**
+     * 批量设置多个方块的全局ID
+     * 先一次性补全调色板并扩展位宽，再逐个写入，避免位存储被反复扩容
+     * @param indexes 区块段内的线性索引
+     * @param globalIds 全局ID 与indexes一一对应
+     * @param count 数量
+     * @param airGlobalId 空气的全局ID
+     * @return 是否有方块发生了变化
+     */
+    public boolean setGlobalIds(int[] indexes, int[] globalIds, int count, int airGlobalId) {
+
+        if (storage == null) {
+            boolean same = true;
+            for (int k = 0; k < count; k++) {
+                if (globalIds[k] != singleValue) {
+                    same = false;
+                    break;
+                }
+            }
+            if (same) {
+                return false;
+            }
+        }
+
+        if (shared) {
+            throw new IllegalStateException("共享的区块段不可修改");
+        }
+
+        if (storage == null) {
+            expand(airGlobalId);
+        }
+
+        //补全调色板
+        for (int k = 0; k < count; k++) {
+            if (globalToLocal.get(globalIds[k]) == -1) {
+                addEntry(globalIds[k]);
+            }
+        }
+
+        int requiredBits = requiredBits(localPalette.size());
+        if (requiredBits > storage.getBitsPerEntry()) {
+            resize(requiredBits);
+        }
+
+        boolean changed = false;
+        for (int k = 0; k < count; k++) {
+            int index = indexes[k];
+            int localIndex = globalToLocal.get(globalIds[k]);
+
+            if (storage.get(index) == localIndex) {
+                continue;
+            }
+
+            replace(index, localIndex);
+            changed = true;
+        }
+        return changed;
+    }
+
+    /**
+     * 区块段是否全部为空气
+     */
+    public boolean isEmpty() {
+        return nonAirBlockCount == 0;
+    }
+
+    /**
+     * 是否需要整理(O(1)判断)
+     * 存在失效的调色板条目，或者只剩一种方块状态(可以转为单值模式)时需要整理
+     */
+    public boolean needsCompact() {
+        if (storage == null) {
+            return false;
+        }
+        return deadEntryCount > 0 || getLiveEntryCount() == 1;
+    }
+
+    /**
+     * 获取仍在使用的调色板条目数量(包含空气)
+     */
+    private int getLiveEntryCount() {
+        int live = localPalette.size() - deadEntryCount;
+        if (refCounts.getInt(0) == 0) {
+            live--;
+        }
+        return live;
+    }
+
+    /**
+     * 向调色板追加一个新条目(引用数为0)
+     * @param globalId 全局ID
+     * @return 新条目的局部ID
+     */
+    private int addEntry(int globalId) {
+        int localIndex = localPalette.size();
+        localPalette.add(globalId);
+        refCounts.add(0);
+        globalToLocal.put(globalId, localIndex);
+        deadEntryCount++;
+        return localIndex;
+    }
+
+    /**
+     * 替换指定索引处的局部ID并维护引用计数与非空气方块数量
+     * @param index 区块段内的线性索引
+     * @param localIndex 新的局部ID
+     */
+    private void replace(int index, int localIndex) {
+        int oldLocalIndex = storage.get(index);
+
+        int oldCount = refCounts.getInt(oldLocalIndex) - 1;
+        refCounts.set(oldLocalIndex, oldCount);
+        if (oldLocalIndex == 0) {
+            nonAirBlockCount++;
+        } else if (oldCount == 0) {
+            deadEntryCount++;
+        }
+
+        int newCount = refCounts.getInt(localIndex) + 1;
+        refCounts.set(localIndex, newCount);
+        if (localIndex == 0) {
+            nonAirBlockCount--;
+        } else if (newCount == 1) {
+            deadEntryCount--;
+        }
+
+        storage.set(index, localIndex);
+    }
+
+    /**
+     * 将位存储扩展到新的位宽 旧的位存储立即释放
+     * @param requiredBits 新的位宽
+     */
+    private void resize(int requiredBits) {
+        var old = storage;
+        storage = old.copy(requiredBits);
+        old.release();
+    }
+
+    /**
+     * 立即释放区块段的位存储(堆外存储时归还给分配器)
+     * 调用后区块段不可再被读写，调用方需保证没有快照仍在使用该区块段
+     */
+    public void release() {
+        if (storage != null) {
+            storage.release();
+        }
+    }
+
+    /**
+     * 将单值模式展开为调色板+位存储模式
+     * @param airGlobalId 空气的全局ID
+     */
+    private void expand(int airGlobalId) {
+        localPalette = new IntArrayList();
+        refCounts = new IntArrayList();
+        globalToLocal = new Int2IntOpenHashMap();
+        globalToLocal.defaultReturnValue(-1);
+        localPalette.add(airGlobalId);
+        globalToLocal.put(airGlobalId, 0);
+        deadEntryCount = 0;
+
+        var newStorage = new BitStorage(MIN_BITS, size);
+
+        if (singleValue == airGlobalId) {
+            refCounts.add(size);
+        } else {
+            refCounts.add(0);
+            localPalette.add(singleValue);
+            refCounts.add(size);
+            globalToLocal.put(singleValue, 1);
+            newStorage.fill(1);
+        }
+
+        storage = newStorage;
+    }
+
+    /**
+     * 释放调色板与位存储，转为单值模式
+     * @param globalId 整个区块段的方块全局ID
+     */
+    private void toSingleValue(int globalId) {
+        singleValue = globalId;
+        if (storage != null) {
+            storage.release();
+        }
+        storage = null;
+        localPalette = null;
+        globalToLocal = null;
+        refCounts = null;
+        deadEntryCount = 0;
+    }
+
+    /**
+     * 计算容纳指定数量调色板条目所需的位宽
+     * @param paletteSize 调色板条目数量
+     */
+    private static int requiredBits(int paletteSize) {
+        return Math.max(MIN_BITS, 32 - Integer.numberOfLeadingZeros(paletteSize - 1));
+    }
+
+    /**
+     * 移除调色板中未被使用的条目并按需缩小位宽
+     * 如果只剩一种方块状态被使用，则转为单值模式
+     * 依据引用计数判断，不需要整理时为O(1)
+     * @return 是否发生了整理
+     */
+    public boolean compact() {
+
+        if (!needsCompact()) {
+            return false;
+        }
+
+        if (shared) {
+            throw new IllegalStateException("共享的区块段不可修改");
+        }
+
+        int currentPaletteSize = localPalette.size();
+
+        //只有一种方块状态被使用
+        if (getLiveEntryCount() == 1) {
+            for (int i = 0; i < currentPaletteSize; i++) {
+                if (refCounts.getInt(i) == size) {
+                    toSingleValue(localPalette.getInt(i));
+                    return true;
+                }
+            }
+        }
+
+        //空气始终保留在0号索引
+        int[] oldToNewMap = new int[currentPaletteSize];
+        IntArrayList newLocalPalette = new IntArrayList(currentPaletteSize - deadEntryCount);
+        IntArrayList newRefCounts = new IntArrayList(currentPaletteSize - deadEntryCount);
+
+        for (int oldId = 0; oldId < currentPaletteSize; oldId++) {
+            if (oldId == 0 || refCounts.getInt(oldId) > 0) {
+                oldToNewMap[oldId] = newLocalPalette.size();
+                newLocalPalette.add(localPalette.getInt(oldId));
+                newRefCounts.add(refCounts.getInt(oldId));
+            }
+        }
+
+        int newSize = newLocalPalette.size();
+        int[] localIds = new int[size];
+        storage.unpackAll(localIds);
+        for (int i = 0; i < size; i++) {
+            localIds[i] = oldToNewMap[localIds[i]];
+        }
+        BitStorage newStorage = BitStorage.pack(requiredBits(newSize), localIds);
+
+        this.localPalette = newLocalPalette;
+        this.refCounts = newRefCounts;
+        this.globalToLocal.clear();
+        for (int i = 0; i < newSize; i++) {
+            globalToLocal.put(localPalette.getInt(i), i);
+        }
+        this.deadEntryCount = 0;
+        this.storage.release();
+        this.storage = newStorage;
+        return true;
+    }
+
+}
@@ -3,119 +3,680 @@ package com.ksptool.ourcraft.sharedcore.utils;
 import it.unimi.dsi.fastutil.ints.IntArrayList;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.IntFunction;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /**
- * 数据结构
+ * 数据结构(版本2 压缩格式)
+ * 1B：版本号(不压缩)
+ * 其余部分为zlib数据流，解压后为:
+ * VarInt：区块大小X
+ * VarInt：区块大小Y
+ * VarInt：区块大小Z
+ * VarInt：区块段数量
+ * 每个区块段:
+ *   1B：区块段类型(0:全空气 后续无数据, 1:调色板模式, 2:单值模式)
+ *   单值模式:
+ *   VarInt：方块全局ID
+ *   调色板模式:
+ *   VarInt：调色板种类数量
+ *   N * VarInt：调色板数据
+ *   1B：存储位数
+ *   N * 8B：块存储数据(字对齐布局，长度由存储位数与区块段大小推导)
+ * 1B：高度图数量
+ * 每个高度图:
+ *   1B：高度图类型
+ *   1B：编码方式(0:所有列高度相同 1:逐列存储)
+ *   编码方式为0时: VarInt：所有列的高度
+ *   编码方式为1时: X * Z * VarInt：每一列的高度(顺序: Z -> X)
+ *
+ * 默认使用Deflater(BEST_SPEED)压缩；归档存储时可以使用Deflater(DEFAULT_COMPRESSION)配合预设字典(FlexChunkDictionary)压缩
+ * (BEST_SPEED的匹配链太短，几乎用不上字典；归档数据写入一次读取多次，解压速度与压缩级别无关)。
+ * 是否使用字典以及字典ID(字典内容的Adler32)由zlib数据流头部记录，反序列化时通过调用方传入的字典查找函数(同一个世界的字典)查找
+ *
+ * 数据结构(版本1 旧格式 仅支持读取)
  * 1B：版本号
  * 4B：区块大小X
  * 4B：区块大小Y
  * 4B：区块大小Z
  * 4B：调色板种类数量
- * N * 8B：调色板数据
+ * N * 4B：调色板数据
  * 4B：存储位数(对于每个块来说，需要多少位来存储)
  * 4B：块数组长度
  * N * 8B：块存储数据
  */
 public class FlexChunkSerializer {
 
+    //当前写入的格式版本 网络传输始终不使用预设字典(客户端没有字典)
+    public static final int CURRENT_VERSION = 2;
+
+    //zlib数据流头部FLG字节中表示使用预设字典的标志位
+    private static final int ZLIB_FDICT = 0x20;
+
+    //工作区缓冲区的初始大小
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+    //对象池中最多保留的工作区数量
+    private static final int MAX_POOLED_WORKSPACES = Runtime.getRuntime().availableProcessors() * 2;
+
+    //可复用的工作区 网络发送运行在虚拟线程上，ThreadLocal无法复用，因此使用共享的对象池
+    private static final ConcurrentLinkedQueue<Workspace> WORKSPACES = new ConcurrentLinkedQueue<>();
+
+    //不提供任何字典的查找函数
+    private static final IntFunction<FlexChunkDictionary> NO_DICTIONARY = id -> null;
+
+    /**
+     * 序列化工作区 包含未压缩主体缓冲区、压缩结果缓冲区以及压缩器/解压器
+     * 同一时刻只会被一个线程持有
+     */
+    private static final class Workspace {
+
+        //未压缩主体缓冲区
+        private ByteBuffer body = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+        //压缩结果缓冲区(序列化为字节数组时使用)
+        private ByteBuffer out = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+        //压缩器
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+        //使用预设字典的压缩器
+        private final Deflater dictionaryDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+
+        //解压器
+        private final Inflater inflater = new Inflater();
+    }
+
+    /**
+     * 从对象池中取出一个工作区 池为空时创建新的工作区
+     */
+    private static Workspace acquire() {
+        var workspace = WORKSPACES.poll();
+        return workspace != null ? workspace : new Workspace();
+    }
+
+    /**
+     * 将工作区归还到对象池 池已满时释放压缩器/解压器的本地内存
+     */
+    private static void release(Workspace workspace) {
+        if (WORKSPACES.size() < MAX_POOLED_WORKSPACES) {
+            WORKSPACES.offer(workspace);
+            return;
+        }
+        workspace.deflater.end();
+        workspace.dictionaryDeflater.end();
+        workspace.inflater.end();
+    }
+
     /**
      * 序列化超级区块
      * @param cbd 超级区块
      * @return 序列化后的字节数组
      */
     public static byte[] serialize(FlexChunkData cbd){
+        var workspace = acquire();
+        try {
+            return toArray(serialize(cbd, workspace.out.clear(), workspace), workspace);
+        } finally {
+            release(workspace);
+        }
+    }
+
+    /**
+     * 序列化超级区块的只读快照
+     * 快照可以在任意线程中序列化，不会与区块数据的修改互相阻塞；调用方需要保证快照的区块段在序列化期间没有被释放
+     * @param snapshot 快照
+     * @return 序列化后的字节数组
+     */
+    public static byte[] serialize(FlexChunkData.Snapshot snapshot){
+        return serialize(snapshot, null);
+    }
+
+    /**
+     * 使用预设字典序列化超级区块的只读快照 仅用于归档存储
+     * @param snapshot 快照
+     * @param dictionary 预设字典 为null时不使用字典
+     * @return 序列化后的字节数组
+     */
+    public static byte[] serialize(FlexChunkData.Snapshot snapshot, FlexChunkDictionary dictionary){
+        var workspace = acquire();
+        try {
+            var body = writeBody(snapshot, workspace);
+            var deflater = dictionary != null ? workspace.dictionaryDeflater : workspace.deflater;
+            return toArray(compress(body, workspace.out.clear(), deflater, dictionary), workspace);
+        } finally {
+            release(workspace);
+        }
+    }
+
+    /**
+     * 使用预设字典序列化超级区块 仅用于归档存储
+     * @param cbd 超级区块
+     * @param dictionary 预设字典
+     * @return 序列化后的字节数组
+     */
+    public static byte[] serialize(FlexChunkData cbd, FlexChunkDictionary dictionary){
+        var workspace = acquire();
+        try {
+            var body = writeBody(cbd, workspace);
+            return toArray(compress(body, workspace.out.clear(), workspace.dictionaryDeflater, dictionary), workspace);
+        } finally {
+            release(workspace);
+        }
+    }
+
+    /**
+     * 将未使用字典的数据转为使用预设字典压缩(只解压并重新压缩主体，不需要反序列化区块)
+     * 已经使用字典的数据以及旧版本的数据原样返回
+     * @param src 序列化后的字节数组
+     * @param dictionary 预设字典
+     * @return 使用预设字典压缩的字节数组
+     */
+    public static byte[] recompress(byte[] src, FlexChunkDictionary dictionary){
+        if (src == null || src.length == 0 || (src[0] & 0xFF) != CURRENT_VERSION || usesDictionary(src)) {
+            return src;
+        }
+        var workspace = acquire();
+        try {
+            var body = decompress(ByteBuffer.wrap(src, 1, src.length - 1), workspace, NO_DICTIONARY);
+            return toArray(compress(body, workspace.out.clear(), workspace.dictionaryDeflater, dictionary), workspace);
+        } catch (IOException e) {
+            throw new RuntimeException("Recompress failed", e);
+        } finally {
+            release(workspace);
+        }
+    }
+
+    /**
+     * 判断数据是否使用预设字典压缩
+     * @param src 序列化后的字节数组
+     * @return 当前版本且zlib数据流头部带有预设字典标志时返回true
+     */
+    public static boolean usesDictionary(byte[] src){
+        return src != null && src.length > 2 && (src[0] & 0xFF) == CURRENT_VERSION && (src[2] & ZLIB_FDICT) != 0;
+    }
+
+    /**
+     * 解压未使用字典的数据 返回未压缩的主体(用于训练预设字典)
+     * @param src 序列化后的字节数组
+     * @return 未压缩的主体 旧版本或使用字典的数据返回null
+     */
+    static byte[] inflateBody(byte[] src){
+        if (src == null || src.length == 0 || (src[0] & 0xFF) != CURRENT_VERSION || usesDictionary(src)) {
+            return null;
+        }
+        var workspace = acquire();
+        try {
+            var body = decompress(ByteBuffer.wrap(src, 1, src.length - 1), workspace, NO_DICTIONARY);
+            byte[] result = new byte[body.remaining()];
+            body.get(result);
+            return result;
+        } catch (IOException e) {
+            throw new RuntimeException("Decompress failed", e);
+        } finally {
+            release(workspace);
+        }
+    }
+
+    /**
+     * 将工作区的压缩结果缓冲区拷贝为字节数组
+     * @param out 压缩结果(工作区的out或扩容后的新缓冲区)
+     */
+    private static byte[] toArray(ByteBuffer out, Workspace workspace){
+        workspace.out = out;
+        out.flip();
+        byte[] result = new byte[out.remaining()];
+        out.get(result);
+        return result;
+    }
+
+    /**
+     * 使用指定的工作区序列化超级区块
+     */
+    private static ByteBuffer serialize(FlexChunkData cbd, ByteBuffer dest, Workspace workspace){
+        var body = writeBody(cbd, workspace);
+        return compress(body, dest, workspace.deflater, null);
+    }
+
+    /**
+     * 整理调色板、创建快照并写入未压缩的主体
+     * @return 已flip的主体缓冲区
+     */
+    private static ByteBuffer writeBody(FlexChunkData cbd, Workspace workspace){
+
+        //先整理调色板(只处理存在失效条目的区块段)，保证存储与传输的数据尽可能小
+        cbd.compact();
 
         //创建CompactBlockData的快照
         FlexChunkData.Snapshot cbdSnapshot = cbd.createSnapshot();
 
-        //创建CompactBlockData的快照
-        IntArrayList palette = cbdSnapshot.getLocalPalette();
-        BitStorage storage = cbdSnapshot.getStorage();
-        long[] blockData = storage.getData(); //块存储数据
+        return writeBody(cbdSnapshot, workspace);
+    }
+
+    /**
+     * 写入未压缩的主体到工作区的主体缓冲区
+     * @return 已flip的主体缓冲区
+     */
+    private static ByteBuffer writeBody(FlexChunkData.Snapshot cbdSnapshot, Workspace workspace){
 
-        try (ByteArrayOutputStream baos = new ByteArrayOutputStream(4096)){
+        //预先计算主体的最大长度 写入过程中不再检查容量
+        var body = ensureBodyCapacity(workspace, maxBodySize(cbdSnapshot));
 
-            DataOutputStream dos = new DataOutputStream(baos);
+        writeVarInt(body, cbdSnapshot.getWidth()); //大小X
+        writeVarInt(body, cbdSnapshot.getHeight()); //大小Y
+        writeVarInt(body, cbdSnapshot.getDepth()); //大小Z
+        writeVarInt(body, cbdSnapshot.getSectionCount()); //区块段数量
+
+        for (int i = 0; i < cbdSnapshot.getSectionCount(); i++) {
+
+            //全空气的区块段只写入1B标记
+            if (cbdSnapshot.isSectionEmpty(i)) {
+                body.put((byte) 0);
+                continue;
+            }
 
-            //写入头部
-            dos.write(1); //1B 版本
-            dos.writeInt(cbd.getWidth());  //4B 大小X
-            dos.writeInt(cbd.getHeight());  //4B 大小Y
-            dos.writeInt(cbd.getDepth());  //4B 大小Z
+            var section = cbdSnapshot.getSection(i);
+
+            //单值模式的区块段只写入方块全局ID
+            if (section.isSingleValue()) {
+                body.put((byte) 2);
+                writeVarInt(body, section.getSingleValue()); //方块全局ID
+                continue;
+            }
+
+            body.put((byte) 1);
+
+            IntArrayList palette = section.getLocalPalette();
+            BitStorage storage = section.getStorage(); //块存储数据
 
             //写入调色板
-            dos.writeInt(palette.size()); //4B 调色板种类数量
+            writeVarInt(body, palette.size()); //调色板种类数量
+            for (int p = 0; p < palette.size(); p++) {
+                writeVarInt(body, palette.getInt(p)); //调色板数据
+            }
+
+            //写入块存储数据 数组长度由存储位数与区块段大小推导
+            body.put((byte) storage.getBitsPerEntry()); //1B 存储位数
+            storage.writeTo(body); // N * 8B 整段拷贝
+        }
 
-            for (int i = 0; i < palette.size(); i++) {
-                dos.writeInt(palette.getInt(i)); // 种类数量 * 4B
+        //写入高度图
+        var heightmap = cbdSnapshot.getHeightmap();
+        body.put((byte) FlexChunkHeightmap.TYPES.length); //1B 高度图数量
+        for (var type : FlexChunkHeightmap.TYPES) {
+            body.put((byte) type.ordinal()); //1B 高度图类型
+            var heights = heightmap.getRawHeights(type);
+            if (isUniform(heights)) {
+                body.put((byte) 0); //1B 编码方式
+                writeVarInt(body, heights[0]); //所有列的高度
+                continue;
+            }
+            body.put((byte) 1); //1B 编码方式
+            for (short h : heights) {
+                writeVarInt(body, h); //每一列的高度
             }
+        }
 
-            //写入块存储数据
-            dos.writeInt(storage.getBitsPerEntry()); //4B 存储位数(对于每个块来说，需要多少位来存储)
-            dos.writeInt(blockData.length); //4B 块数组长度
-            for (long l : blockData) {
-                dos.writeLong(l); // N * 8B
+        return body.flip();
+    }
+
+    /**
+     * 计算主体的最大长度(VarInt按5B计算)
+     */
+    private static int maxBodySize(FlexChunkData.Snapshot cbdSnapshot){
+        int size = 4 * 5;
+        for (int i = 0; i < cbdSnapshot.getSectionCount(); i++) {
+            size += 1 + 5;
+            if (cbdSnapshot.isSectionEmpty(i)) {
+                continue;
             }
+            var section = cbdSnapshot.getSection(i);
+            if (section.isSingleValue()) {
+                continue;
+            }
+            size += section.getLocalPalette().size() * 5 + 1 + section.getStorage().getDataLength() * Long.BYTES;
+        }
+        size += 1 + FlexChunkHeightmap.TYPES.length * (2 + cbdSnapshot.getWidth() * cbdSnapshot.getDepth() * 5);
+        return size;
+    }
 
-            return baos.toByteArray();
+    /**
+     * 压缩主体并在最前面加上1B版本号
+     * @param body 未压缩的主体(已flip)
+     * @param dest 目标缓冲区
+     * @param deflater 压缩器
+     * @param dictionary 预设字典 为null时不使用字典
+     * @return 写入后的缓冲区(dest或扩容后的新缓冲区)
+     */
+    private static ByteBuffer compress(ByteBuffer body, ByteBuffer dest, Deflater deflater, FlexChunkDictionary dictionary) {
+        deflater.reset();
+        if (dictionary != null) {
+            deflater.setDictionary(dictionary.getData());
+        }
+        deflater.setInput(body);
+        deflater.finish();
 
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        dest = ensureRemaining(dest, body.remaining() / 4 + 16);
+        dest.put((byte) CURRENT_VERSION); //1B 版本
+        while (!deflater.finished()) {
+            if (!dest.hasRemaining()) {
+                dest = ensureRemaining(dest, dest.capacity());
+            }
+            deflater.deflate(dest);
         }
+        return dest;
     }
 
     /**
-     * 反序列化超级区块
+     * 解压版本号之后的主体到工作区的主体缓冲区
+     * 数据流要求预设字典时按数据流中记录的字典ID查找字典
+     * @param src 压缩数据(不包含1B版本号)
+     * @param workspace 工作区
+     * @param dictionaries 字典查找函数 字典ID -> 字典(不存在时返回null)
+     * @return 已flip的主体缓冲区
+     */
+    private static ByteBuffer decompress(ByteBuffer src, Workspace workspace, IntFunction<FlexChunkDictionary> dictionaries) throws IOException {
+        Inflater inflater = workspace.inflater;
+        inflater.reset();
+        inflater.setInput(src);
+
+        var body = ensureBodyCapacity(workspace, src.remaining() * 4);
+        try {
+            while (!inflater.finished()) {
+                if (!body.hasRemaining()) {
+                    body = ensureRemaining(body, body.capacity());
+                    workspace.body = body;
+                }
+                int count = inflater.inflate(body);
+                if (count == 0 && inflater.needsDictionary()) {
+                    var dictionary = dictionaries.apply(inflater.getAdler());
+                    if (dictionary == null || dictionary.getId() != inflater.getAdler()) {
+                        throw new IOException("Chunk dictionary is not found: " + Integer.toHexString(inflater.getAdler()));
+                    }
+                    inflater.setDictionary(dictionary.getData());
+                    continue;
+                }
+                if (count == 0 && inflater.needsInput()) {
+                    throw new IOException("Compressed chunk data is truncated");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Decompress failed: " + e.getMessage(), e);
+        }
+        return body.flip();
+    }
+
+    /**
+     * 保证工作区的主体缓冲区容量不小于指定值
+     * @return 已清空的主体缓冲区
+     */
+    private static ByteBuffer ensureBodyCapacity(Workspace workspace, int capacity) {
+        if (workspace.body.capacity() < capacity) {
+            workspace.body = ByteBuffer.allocate(Math.max(capacity, workspace.body.capacity() * 2));
+        }
+        return workspace.body.clear();
+    }
+
+    /**
+     * 保证缓冲区剩余空间不小于指定值 不足时分配新的缓冲区并拷贝已写入的数据
+     */
+    private static ByteBuffer ensureRemaining(ByteBuffer buffer, int remaining) {
+        if (buffer.remaining() >= remaining) {
+            return buffer;
+        }
+        int capacity = Math.max(buffer.position() + remaining, buffer.capacity() * 2);
+        var grown = buffer.isDirect() ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        return grown.put(buffer.flip());
+    }
+
+    /**
+     * 写入变长整数(每字节7位，最高位表示后面还有字节)
+     */
+    private static void writeVarInt(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * 读取变长整数
+     */
+    private static int readVarInt(ByteBuffer buffer) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = readUnsignedByte(buffer);
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("VarInt is too long");
+    }
+
+    /**
+     * 读取1B无符号整数
+     */
+    private static int readUnsignedByte(ByteBuffer buffer) throws IOException {
+        if (!buffer.hasRemaining()) {
+            throw new EOFException("Chunk data is truncated");
+        }
+        return buffer.get() & 0xFF;
+    }
+
+    /**
+     * 反序列化超级区块 不支持使用预设字典压缩的数据
      * @param src 序列化后的字节数组
      * @return 反序列化后的超级区块
      */
     public static FlexChunkData deserialize(byte[] src){
+        return deserialize(src, NO_DICTIONARY);
+    }
+
+    /**
+     * 反序列化超级区块
+     * @param src 序列化后的字节数组
+     * @param dictionaries 字典查找函数 字典ID -> 写入数据的世界的字典(不存在时返回null)
+     * @return 反序列化后的超级区块
+     */
+    public static FlexChunkData deserialize(byte[] src, IntFunction<FlexChunkDictionary> dictionaries){
 
         if (src == null || src.length == 0){
             throw new IllegalArgumentException("Deserialize data is null or empty");
         }
 
-        try (ByteArrayInputStream bais = new ByteArrayInputStream(src)){
+        return deserialize(ByteBuffer.wrap(src), dictionaries);
+    }
 
-            DataInputStream dis = new DataInputStream(bais);
+    /**
+     * 反序列化超级区块 不支持使用预设字典压缩的数据
+     * 读取src从position到limit之间的数据，读取后position移动到limit
+     * @param src 序列化后的数据(可以是直接缓冲区)
+     * @return 反序列化后的超级区块
+     */
+    public static FlexChunkData deserialize(ByteBuffer src){
+        return deserialize(src, NO_DICTIONARY);
+    }
 
-            var version = dis.read(); //1B 版本
-            var width = dis.readInt(); //4B 大小X
-            var height = dis.readInt(); //4B 大小Y
-            var depth = dis.readInt(); //4B 大小Z
+    /**
+     * 反序列化超级区块
+     * 读取src从position到limit之间的数据，读取后position移动到limit
+     * @param src 序列化后的数据(可以是直接缓冲区)
+     * @param dictionaries 字典查找函数 字典ID -> 写入数据的世界的字典(不存在时返回null)
+     * @return 反序列化后的超级区块
+     */
+    public static FlexChunkData deserialize(ByteBuffer src, IntFunction<FlexChunkDictionary> dictionaries){
 
-            //校验版本
-            if (version != 1){
-                throw new IllegalArgumentException("Unsupported version: " + version);
+        if (src == null || !src.hasRemaining()){
+            throw new IllegalArgumentException("Deserialize data is null or empty");
+        }
+
+        try {
+
+            var version = src.get(src.position()) & 0xFF; //1B 版本
+
+            if (version == CURRENT_VERSION){
+                src.position(src.position() + 1);
+                var workspace = acquire();
+                try {
+                    return readBody(decompress(src, workspace, dictionaries));
+                } finally {
+                    release(workspace);
+                }
+            }
+
+            //旧版本格式 读入数组后按流读取
+            byte[] legacy = new byte[src.remaining()];
+            src.get(legacy);
+            return readV1(new DataInputStream(new ByteArrayInputStream(legacy)));
+
+        } catch (IOException | BufferUnderflowException e) {
+            throw new RuntimeException("Deserialize failed", e);
+        }
+
+    }
+
+    /**
+     * 判断所有列的高度是否相同
+     */
+    private static boolean isUniform(short[] heights) {
+        for (int i = 1; i < heights.length; i++) {
+            if (heights[i] != heights[0]) {
+                return false;
+            }
+        }
+        return heights.length > 0;
+    }
+
+    /**
+     * 读取当前版本解压后的主体
+     */
+    private static FlexChunkData readBody(ByteBuffer body) throws IOException {
+
+        var width = readVarInt(body); //大小X
+        var height = readVarInt(body); //大小Y
+        var depth = readVarInt(body); //大小Z
+        var sectionCount = readVarInt(body); //区块段数量
+
+        var airGlobalId = FlexChunkData.getAirGlobalId();
+        var result = new FlexChunkData(width, height, depth);
+        if (sectionCount != result.getSectionCount()){
+            throw new IllegalArgumentException("Section count mismatch: " + sectionCount);
+        }
+
+        var sections = new FlexChunkSection[sectionCount];
+
+        for (int i = 0; i < sectionCount; i++) {
+
+            var sectionType = readUnsignedByte(body); //1B 区块段类型
+            var sectionSize = result.getSectionSize(i);
+
+            //全空气的区块段
+            if (sectionType == 0){
+                continue;
+            }
+
+            //单值模式的区块段
+            if (sectionType == 2){
+                sections[i] = new FlexChunkSection(sectionSize, readVarInt(body), airGlobalId);
+                continue;
             }
 
             //读调色板
-            var paletteSize = dis.readInt(); //4B 调色板种类数量
+            var paletteSize = readVarInt(body); //调色板种类数量
             var palette = new IntArrayList(paletteSize);
-            for (int i = 0; i < paletteSize; i++) {
-                palette.add(dis.readInt()); // N * 4B
+            for (int p = 0; p < paletteSize; p++) {
+                palette.add(readVarInt(body)); //调色板数据
             }
 
-            //读块存储数据
-            var bitsPerEntry = dis.readInt(); //4B 存储位数(对于每个块来说，需要多少位来存储)
-            var arrLength = dis.readInt(); //4B 块数组长度
-            var blockData = new long[arrLength];
-            for (int i = 0; i < arrLength; i++) {
-                blockData[i] = dis.readLong(); // N * 8B
+            //读块存储数据 整段拷贝到位存储
+            var bitsPerEntry = readUnsignedByte(body); //1B 存储位数
+            var storage = new BitStorage(bitsPerEntry, sectionSize);
+            if (body.remaining() < storage.getDataLength() * Long.BYTES) {
+                storage.release();
+                throw new EOFException("Chunk data is truncated");
             }
+            storage.readFrom(body); // N * 8B
 
-        
-            return new FlexChunkData(width, height, depth, bitsPerEntry, blockData,palette);
+            sections[i] = new FlexChunkSection(sectionSize, storage, palette, airGlobalId);
+        }
 
-        } catch (IOException e) {
-            throw new RuntimeException("Deserialize failed", e);
+        //读高度图 存在未知的类型或缺少某种类型时由FlexChunkData重新计算
+        var heightmap = new FlexChunkHeightmap(width, depth);
+        var count = readUnsignedByte(body); //1B 高度图数量
+        var loaded = 0;
+        for (int i = 0; i < count; i++) {
+            var ordinal = readUnsignedByte(body); //1B 高度图类型
+            var known = ordinal < FlexChunkHeightmap.TYPES.length;
+            short[] target = known ? heightmap.getRawHeights(FlexChunkHeightmap.TYPES[ordinal]) : new short[width * depth];
+            var encoding = readUnsignedByte(body); //1B 编码方式
+            if (encoding == 0) {
+                Arrays.fill(target, (short) readVarInt(body)); //所有列的高度
+            } else {
+                for (int c = 0; c < target.length; c++) {
+                    target[c] = (short) readVarInt(body); //每一列的高度
+                }
+            }
+            if (known) {
+                loaded |= 1 << ordinal;
+            }
         }
 
+        return new FlexChunkData(width, height, depth, sections, loaded == FlexChunkHeightmap.ALL_TYPES ? heightmap : null);
     }
 
-}
+    /**
+     * 读取版本1(整列单一位存储的旧格式)，并转换为分段结构
+     */
+    private static FlexChunkData readV1(DataInputStream dis) throws IOException {
 
+        var version = dis.read(); //1B 版本
+        if (version != 1){
+            throw new IllegalArgumentException("Unsupported version: " + version);
+        }
+
+        var width = dis.readInt(); //4B 大小X
+        var height = dis.readInt(); //4B 大小Y
+        var depth = dis.readInt(); //4B 大小Z
+
+        //读调色板
+        var paletteSize = dis.readInt(); //4B 调色板种类数量
+        var palette = new int[paletteSize];
+        for (int i = 0; i < paletteSize; i++) {
+            palette[i] = dis.readInt(); // N * 4B
+        }
+
+        //读块存储数据
+        var bitsPerEntry = dis.readInt(); //4B 存储位数
+        var arrLength = dis.readInt(); //4B 块数组长度
+        var blockData = new long[arrLength];
+        for (int i = 0; i < arrLength; i++) {
+            blockData[i] = dis.readLong(); // N * 8B
+        }
+
+        var airGlobalId = FlexChunkData.getAirGlobalId();
+        var ids = new int[width * depth * height];
+        BitStorage.unpackLegacy(bitsPerEntry, ids.length, blockData, ids);
+
+        //旧格式的索引顺序为 Y -> Z -> X 与分段格式一致，转换为全局ID后批量写入
+        for (int i = 0; i < ids.length; i++) {
+            int localId = ids[i];
+            ids[i] = localId < paletteSize ? palette[localId] : airGlobalId;
+        }
+
+        var result = new FlexChunkData(width, height, depth);
+        result.setBlocks(ids);
+        return result;
+    }
+
+}
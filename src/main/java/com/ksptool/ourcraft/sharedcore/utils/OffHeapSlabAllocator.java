@@ -0,0 +1,187 @@
+package com.ksptool.ourcraft.sharedcore.utils;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * 堆外内存板(Slab)分配器
+ * 从大块的直接内存(DirectByteBuffer)中按需切分出固定长度的LongBuffer供 BitStorage 使用，
+ * 归还的块按长度放入空闲链表并被后续相同长度的分配复用，从而使已加载区块的方块数据不占用Java堆，
+ * 区块数量很多时也不会增加GC的标记压力
+ * 超过单个内存板容量的分配会单独申请一块直接内存，归还时不再复用
+ * 该类是线程安全的
+ */
+@Slf4j
+public class OffHeapSlabAllocator {
+
+    //默认的单个内存板大小(字节)
+    public static final int DEFAULT_SLAB_BYTES = 1024 * 1024;
+
+    //用于清零的空数组
+    private static final long[] ZEROS = new long[1024];
+
+    //单个内存板可以容纳的long数量
+    private final int slabLongs;
+
+    //当前正在切分的内存板
+    private LongBuffer currentSlab;
+
+    //当前内存板中下一个可用的位置
+    private int slabOffset;
+
+    //按长度(long数量)划分的空闲块
+    private final Int2ObjectOpenHashMap<ArrayDeque<LongBuffer>> freeBlocks = new Int2ObjectOpenHashMap<>();
+
+    //已申请的直接内存总量(字节)
+    private long reservedBytes;
+
+    //正在使用的块的总大小(字节)
+    private long usedBytes;
+
+    //正在使用的块数量
+    private long usedBlocks;
+
+    //已申请的内存板数量
+    private int slabCount;
+
+    /**
+     * 使用默认的内存板大小创建分配器
+     */
+    public OffHeapSlabAllocator() {
+        this(DEFAULT_SLAB_BYTES);
+    }
+
+    /**
+     * 创建分配器
+     * @param slabBytes 单个内存板大小(字节)
+     */
+    public OffHeapSlabAllocator(int slabBytes) {
+        if (slabBytes < Long.BYTES) {
+            throw new IllegalArgumentException("内存板大小不能小于8字节");
+        }
+        this.slabLongs = slabBytes / Long.BYTES;
+    }
+
+    /**
+     * 分配一个指定长度的块 返回的块内容全部为0
+     * @param length long数量
+     * @return 堆外的LongBuffer(索引从0开始)
+     */
+    public synchronized LongBuffer allocate(int length) {
+
+        LongBuffer block = null;
+
+        var free = freeBlocks.get(length);
+        if (free != null) {
+            block = free.pollFirst();
+        }
+
+        if (block != null) {
+            clear(block, length);
+        }
+
+        //超过内存板容量 单独申请
+        if (block == null && length > slabLongs) {
+            block = newDirect(length);
+            reservedBytes += (long) length * Long.BYTES;
+        }
+
+        //从当前内存板中切分 剩余空间不足时丢弃尾部并申请新的内存板
+        if (block == null) {
+            if (currentSlab == null || slabOffset + length > slabLongs) {
+                currentSlab = newDirect(slabLongs);
+                slabOffset = 0;
+                slabCount++;
+                reservedBytes += (long) slabLongs * Long.BYTES;
+            }
+            block = currentSlab.slice(slabOffset, length);
+            slabOffset += length;
+        }
+
+        usedBytes += (long) length * Long.BYTES;
+        usedBlocks++;
+        return block;
+    }
+
+    /**
+     * 归还一个块
+     * @param block 通过 allocate 分配的块
+     */
+    public synchronized void free(LongBuffer block) {
+        int length = block.capacity();
+        usedBytes -= (long) length * Long.BYTES;
+        usedBlocks--;
+
+        //单独申请的块交给GC回收
+        if (length > slabLongs) {
+            reservedBytes -= (long) length * Long.BYTES;
+            return;
+        }
+
+        freeBlocks.computeIfAbsent(length, k -> new ArrayDeque<>()).addFirst(block);
+    }
+
+    /**
+     * 获取已申请的直接内存总量(字节)
+     */
+    public synchronized long getReservedBytes() {
+        return reservedBytes;
+    }
+
+    /**
+     * 获取正在使用的块的总大小(字节)
+     */
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * 获取正在使用的块数量
+     */
+    public synchronized long getUsedBlocks() {
+        return usedBlocks;
+    }
+
+    /**
+     * 获取已申请的内存板数量
+     */
+    public synchronized int getSlabCount() {
+        return slabCount;
+    }
+
+    /**
+     * 输出当前堆内与堆外内存的使用情况
+     */
+    public void logUsage() {
+        var runtime = Runtime.getRuntime();
+        long heapUsed = runtime.totalMemory() - runtime.freeMemory();
+        log.info("区块存储内存 堆内:{}MB/{}MB 堆外:已使用{}MB({}块) 已申请{}MB({}个内存板)",
+                heapUsed >> 20, runtime.maxMemory() >> 20,
+                getUsedBytes() >> 20, getUsedBlocks(), getReservedBytes() >> 20, getSlabCount());
+    }
+
+    /**
+     * 申请一块直接内存
+     * @param length long数量
+     */
+    private static LongBuffer newDirect(int length) {
+        return ByteBuffer.allocateDirect(length * Long.BYTES).order(ByteOrder.nativeOrder()).asLongBuffer();
+    }
+
+    /**
+     * 将块的内容清零
+     * @param block 块
+     * @param length long数量
+     */
+    private static void clear(LongBuffer block, int length) {
+        for (int i = 0; i < length; i += ZEROS.length) {
+            block.put(i, ZEROS, 0, Math.min(ZEROS.length, length - i));
+        }
+    }
+
+}
@@ -19,6 +19,15 @@ public class ThreadFactoryUtils {
     //网络线程索引计数器
     private static final AtomicInteger networkThreadIndex = new AtomicInteger(0);
 
+    //归档I/O线程索引计数器
+    private static final AtomicInteger archiveIoThreadIndex = new AtomicInteger(0);
+
+    //归档维护线程索引计数器
+    private static final AtomicInteger archiveMaintenanceThreadIndex = new AtomicInteger(0);
+
+    //世界保存线程索引计数器
+    private static final AtomicInteger archiveSaveThreadIndex = new AtomicInteger(0);
+
 
 
     /**
@@ -77,5 +86,62 @@ public class ThreadFactoryUtils {
         };
     }
 
-}
+    /**
+     * 创建归档I/O线程工厂
+     * 用于SCA文件的异步读写
+     *
+     * @return 线程工厂
+     */
+    public static ThreadFactory createArchiveIoThreadFactory() {
+        return r -> {
+            Thread thread = new Thread(r);
+            thread.setName("ArchiveIO-" + archiveIoThreadIndex.getAndIncrement());
+            thread.setDaemon(false);
+            thread.setUncaughtExceptionHandler((t, e) -> {
+                log.error("归档I/O线程 {} 发生未捕获异常", t.getName(), e);
+            });
+            log.debug("创建归档I/O线程: {}", thread.getName());
+            return thread;
+        };
+    }
 
+    /**
+     * 创建归档维护线程工厂
+     * 用于SCA文件后台碎片整理等不影响游戏逻辑的低优先级任务
+     *
+     * @return 线程工厂
+     */
+    public static ThreadFactory createArchiveMaintenanceThreadFactory() {
+        return r -> {
+            Thread thread = new Thread(r);
+            thread.setName("ArchiveMaintenance-" + archiveMaintenanceThreadIndex.getAndIncrement());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.setUncaughtExceptionHandler((t, e) -> {
+                log.error("归档维护线程 {} 发生未捕获异常", t.getName(), e);
+            });
+            log.debug("创建归档维护线程: {}", thread.getName());
+            return thread;
+        };
+    }
+
+    /**
+     * 创建世界保存线程工厂
+     * 用于世界保存时区块快照的序列化与写入
+     *
+     * @return 线程工厂
+     */
+    public static ThreadFactory createArchiveSaveThreadFactory() {
+        return r -> {
+            Thread thread = new Thread(r);
+            thread.setName("ArchiveSave-" + archiveSaveThreadIndex.getAndIncrement());
+            thread.setDaemon(false);
+            thread.setUncaughtExceptionHandler((t, e) -> {
+                log.error("世界保存线程 {} 发生未捕获异常", t.getName(), e);
+            });
+            log.debug("创建世界保存线程: {}", thread.getName());
+            return thread;
+        };
+    }
+
+}
@@ -36,6 +36,55 @@ public interface SharedChunk {
     void setBlockState(int x, int y, int z, BlockState state);
 
 
+    /**
+     * 批量设置整个区块的方块状态
+     * 默认实现逐个写入，区块实现可以覆盖为一次性打包的批量写入
+     * @param stateIds 方块状态ID数组 长度为 sizeX * sizeY * sizeZ，顺序: Y -> Z -> X
+     */
+    default void setBlockStates(int[] stateIds) {
+        int sizeX = getSizeX();
+        int sizeZ = getSizeZ();
+        for (int i = 0; i < stateIds.length; i++) {
+            int x = i % sizeX;
+            int z = (i / sizeX) % sizeZ;
+            int y = i / (sizeX * sizeZ);
+            setBlockState(x, y, z, stateIds[i]);
+        }
+    }
+
+    /**
+     * 使用同一种方块填充一个长方体区域
+     * @param minX 最小X(包含)
+     * @param minY 最小Y(包含)
+     * @param minZ 最小Z(包含)
+     * @param maxX 最大X(不包含)
+     * @param maxY 最大Y(不包含)
+     * @param maxZ 最大Z(不包含)
+     * @param stateId 方块状态ID
+     */
+    default void fillBlockState(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, int stateId) {
+        for (int y = minY; y < maxY; y++) {
+            for (int z = minZ; z < maxZ; z++) {
+                for (int x = minX; x < maxX; x++) {
+                    setBlockState(x, y, z, stateId);
+                }
+            }
+        }
+    }
+
+    /**
+     * 批量设置一列方块状态
+     * @param x 方块坐标X
+     * @param z 方块坐标Z
+     * @param minY 起始Y坐标(包含)
+     * @param stateIds 方块状态ID数组 stateIds[0]对应minY
+     */
+    default void setBlockStateColumn(int x, int z, int minY, int[] stateIds) {
+        for (int i = 0; i < stateIds.length; i++) {
+            setBlockState(x, minY + i, z, stateIds[i]);
+        }
+    }
+
     /**
      * 获取方块状态
      * @param x 方块坐标X
@@ -85,6 +85,15 @@ public abstract class WorldTemplate {
     //最大玩家区块租约TTL(当服务器为20APS时 大约为30分钟 (20*60)*30=6000)
     private int maxPlayerChunkLeaseAction = 6000;
 
+    //区块预取前瞻时间(秒) 按玩家的水平速度预测这段时间内将进入视口的区块并提前加载 小于等于0表示关闭预取
+    private double chunkPrefetchLookaheadSeconds = 2.0;
+
+    //触发区块预取的最小水平速度(方块/秒) 低于该速度时视口租约已经足够
+    private double chunkPrefetchMinSpeed = 6.0;
+
+    //单个玩家最多持有的预取区块数
+    private int maxPrefetchChunksPerPlayer = 96;
+
     //1世界天 = 24000 Actions (约20分钟现实时间 计算公式:24000/20/60=20)
     //1世界天 = 86400世界秒(计算公式:24000*3.6=86400)
     //1Action = 3.6世界秒(计算公式:86400/24000=3.6)
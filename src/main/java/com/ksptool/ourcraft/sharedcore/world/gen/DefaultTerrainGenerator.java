@@ -37,13 +37,21 @@ public class DefaultTerrainGenerator implements TerrainGenerator{
             layer.apply(chunkData, chunk.getX(), chunk.getZ(), context);
         }
         
-        for (int x = 0; x < chunk.getSizeX(); x++) {
-            for (int y = 0; y < chunk.getSizeY(); y++) {
-                for (int z = 0; z < chunk.getSizeZ(); z++) {
-                    chunk.setBlockState(x, y, z, chunkData[x][y][z]);
+        //展开为 Y -> Z -> X 顺序的一维数组，交给区块一次性批量写入
+        int sizeX = chunk.getSizeX();
+        int sizeY = chunk.getSizeY();
+        int sizeZ = chunk.getSizeZ();
+        int[] stateIds = new int[sizeX * sizeY * sizeZ];
+        int i = 0;
+        for (int y = 0; y < sizeY; y++) {
+            for (int z = 0; z < sizeZ; z++) {
+                for (int x = 0; x < sizeX; x++) {
+                    stateIds[i++] = chunkData[x][y][z];
                 }
             }
         }
+
+        chunk.setBlockStates(stateIds);
     }
 
 }
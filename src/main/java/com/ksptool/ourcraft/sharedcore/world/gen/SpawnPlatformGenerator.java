@@ -44,20 +44,16 @@ public class SpawnPlatformGenerator implements TerrainGenerator {
         // 在整个出生区块生成平台 (16x16)
         int platformY = 64; // 平台高度
 
-        for (int x = 0; x < chunk.getSizeX(); x++) {
-            for (int z = 0; z < chunk.getSizeZ(); z++) {
-                // 底部4层泥土（更稳固）
-                for (int y = platformY - 4; y < platformY; y++) {
-                    if (y >= 0 && y < chunk.getSizeY()) {
-                        chunk.setBlockState(x, y, z, dirtStateId);
-                    }
-                }
-                
-                // 顶部1层草方块
-                if (platformY >= 0 && platformY < chunk.getSizeY()) {
-                    chunk.setBlockState(x, platformY, z, grassStateId);
-                }
-            }
+        // 底部4层泥土（更稳固）
+        int dirtMinY = Math.max(0, platformY - 4);
+        int dirtMaxY = Math.min(platformY, chunk.getSizeY());
+        if (dirtMinY < dirtMaxY) {
+            chunk.fillBlockState(0, dirtMinY, 0, chunk.getSizeX(), dirtMaxY, chunk.getSizeZ(), dirtStateId);
+        }
+
+        // 顶部1层草方块
+        if (platformY >= 0 && platformY < chunk.getSizeY()) {
+            chunk.fillBlockState(0, platformY, 0, chunk.getSizeX(), platformY + 1, chunk.getSizeZ(), grassStateId);
         }
         
         log.info("生成出生平台: 区块({}, {}) 在高度 Y={}", chunkX, chunkZ, platformY);
@@ -0,0 +1,152 @@
+package com.ksptool.ourcraft.archive;
+
+import com.ksptool.ourcraft.server.archive.ArchiveChunkEntityService;
+import com.ksptool.ourcraft.server.archive.ArchiveChunkEntityService.ChunkEntities;
+import com.ksptool.ourcraft.server.archive.ArchiveService;
+import com.ksptool.ourcraft.sharedcore.utils.position.ChunkPos;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 归档区块实体管理器测试类(内存H2数据库)
+ */
+public class ArchiveChunkEntityServiceTest {
+
+    private static final String WORLD_NAME = "test_world";
+
+    private JdbcDataSource dataSource;
+
+    private ArchiveService archiveService;
+
+    private ArchiveChunkEntityService aces;
+
+    @BeforeEach
+    public void setUp() throws SQLException {
+        dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:chunk_entity_" + System.nanoTime() + ";MODE=MySQL;DB_CLOSE_DELAY=-1");
+        archiveService = new ArchiveService();
+        archiveService.setDataSource(dataSource);
+        archiveService.createTables();
+        execute("INSERT INTO WORLD_INDEX (NAME, SEED, TOTAL_TICK, TEMPLATE_STD_REG_NAME, SPAWN_X, SPAWN_Y, SPAWN_Z, SPAWN_CREATED, CREATE_TIME) VALUES ('" + WORLD_NAME + "', 'seed', 0, 'test', 0, 0, 0, 0, CURRENT_TIMESTAMP)");
+        aces = archiveService.getChunkEntityService();
+    }
+
+    @AfterEach
+    public void tearDown() throws SQLException {
+        aces.shutdown();
+        execute("SHUTDOWN");
+    }
+
+    /**
+     * 同一个区块只写入修订号最大的数据 晚于卸载到达的旧存盘快照被忽略
+     */
+    @Test
+    public void newestRevisionWinsTest() throws Exception {
+        var pos = ChunkPos.of(3, -7);
+        long snapshotRevision = aces.nextRevision();
+        long unloadRevision = aces.nextRevision();
+
+        aces.writeEntitiesAsync(WORLD_NAME, pos, new ChunkEntities(2, new byte[]{2, 2}, unloadRevision));
+        aces.writeEntitiesAsync(WORLD_NAME, pos, new ChunkEntities(1, new byte[]{1}, snapshotRevision));
+        aces.releaseRevision(unloadRevision);
+        aces.releaseRevision(snapshotRevision);
+        aces.flush();
+
+        assertArrayEquals(new byte[]{2, 2}, read(pos));
+        assertArrayEquals(new byte[]{2, 2}, selectEntityData(pos));
+
+        //修订号更新的数据覆盖归档中的记录
+        long revision = aces.nextRevision();
+        aces.writeEntities(WORLD_NAME, Map.of(pos, new ChunkEntities(3, new byte[]{3, 3, 3}, revision)));
+        aces.releaseRevision(revision);
+        assertArrayEquals(new byte[]{3, 3, 3}, selectEntityData(pos));
+        assertEquals(1, countRows());
+    }
+
+    /**
+     * 实体数量为0时删除区块的实体记录 归档中没有记录的区块不产生写入
+     */
+    @Test
+    public void deleteWhenEmptyTest() throws Exception {
+        var pos = ChunkPos.of(0, 0);
+        var empty = ChunkPos.of(1, 0);
+
+        aces.writeEntities(WORLD_NAME, Map.of(pos, new ChunkEntities(1, new byte[]{7}, aces.nextRevision()), empty, new ChunkEntities(0, null, aces.nextRevision())));
+        assertTrue(aces.hasEntities(WORLD_NAME, pos));
+        assertFalse(aces.hasEntities(WORLD_NAME, empty));
+        assertEquals(1, countRows());
+
+        aces.writeEntitiesAsync(WORLD_NAME, pos, new ChunkEntities(0, null, aces.nextRevision()));
+        assertFalse(aces.hasEntities(WORLD_NAME, pos));
+        assertNull(read(pos));
+
+        aces.flush();
+        assertEquals(0, countRows());
+        assertNull(selectEntityData(pos));
+    }
+
+    /**
+     * 尚未写入归档的数据直接从等待队列中读取 写入失败的数据保留在队列中，之后的写入成功写入归档
+     */
+    @Test
+    public void readPendingWriteTest() throws Exception {
+        var pos = ChunkPos.of(-2, 5);
+
+        //先加载实体索引 之后断开数据源使写入失败
+        assertFalse(aces.hasEntities(WORLD_NAME, pos));
+        archiveService.setDataSource(null);
+
+        aces.writeEntitiesAsync(WORLD_NAME, pos, new ChunkEntities(1, new byte[]{4, 2}, aces.nextRevision()));
+        aces.flush();
+        assertTrue(aces.hasEntities(WORLD_NAME, pos));
+        assertArrayEquals(new byte[]{4, 2}, read(pos));
+
+        archiveService.setDataSource(dataSource);
+        aces.flush();
+        assertArrayEquals(new byte[]{4, 2}, selectEntityData(pos));
+        assertArrayEquals(new byte[]{4, 2}, read(pos));
+    }
+
+    private byte[] read(ChunkPos pos) throws Exception {
+        return aces.readEntitiesAsync(WORLD_NAME, pos).get(5, TimeUnit.SECONDS);
+    }
+
+    private byte[] selectEntityData(ChunkPos pos) throws SQLException {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement stmt = conn.prepareStatement("SELECT ENTITY_BIN_DATA FROM CHUNK_ENTITY WHERE WORLD_NAME = ? AND CHUNK_X = ? AND CHUNK_Z = ?")) {
+            stmt.setString(1, WORLD_NAME);
+            stmt.setInt(2, pos.getX());
+            stmt.setInt(3, pos.getZ());
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? rs.getBytes(1) : null;
+            }
+        }
+    }
+
+    private int countRows() throws SQLException {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement stmt = conn.prepareStatement("SELECT COUNT(*) FROM CHUNK_ENTITY");
+             ResultSet rs = stmt.executeQuery()) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    private void execute(String sql) throws SQLException {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.execute();
+        }
+    }
+}
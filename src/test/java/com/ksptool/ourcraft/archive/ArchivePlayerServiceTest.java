@@ -0,0 +1,151 @@
+package com.ksptool.ourcraft.archive;
+
+import com.ksptool.ourcraft.server.archive.ArchivePlayerService;
+import com.ksptool.ourcraft.server.archive.ArchiveService;
+import com.ksptool.ourcraft.server.archive.model.ArchivePlayerDto;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 归档玩家管理器测试类(内存H2数据库)
+ */
+public class ArchivePlayerServiceTest {
+
+    private JdbcDataSource dataSource;
+
+    private ArchiveService archiveService;
+
+    private ArchivePlayerService aps;
+
+    @BeforeEach
+    public void setUp() {
+        dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:player_" + System.nanoTime() + ";MODE=MySQL;DB_CLOSE_DELAY=-1");
+        archiveService = new ArchiveService();
+        archiveService.setDataSource(dataSource);
+        archiveService.createTables();
+        aps = archiveService.getPlayerService();
+    }
+
+    @AfterEach
+    public void tearDown() throws SQLException {
+        aps.stop();
+        execute("SHUTDOWN");
+    }
+
+    /**
+     * 新玩家的ID从归档中已有的最大ID开始分配 已有的玩家保留原ID并以UPDATE写入
+     */
+    @Test
+    public void allocateIdFromMaxTest() throws SQLException {
+        execute("INSERT INTO PLAYER_INDEX (ID, UUID, NAME, WORLD_NAME, LOGIN_COUNT, LAST_LOGIN_TIME, POS_X, POS_Y, POS_Z, YAW, PITCH, HEALTH, HUNGRY, EXP, CREATE_TIME) "
+                + "VALUES (41, 'uuid-old', 'old', 'world', 1, CURRENT_TIMESTAMP, 0, 0, 0, 0, 0, 20, 20, 0, CURRENT_TIMESTAMP)");
+
+        assertEquals(42, aps.savePlayer(dto("alice", 1)).getId());
+        assertEquals(43, aps.savePlayer(dto("bob", 1)).getId());
+        assertEquals(42, aps.savePlayer(dto("alice", 2)).getId());
+        assertEquals(41, aps.savePlayer(dto("old", 5)).getId());
+
+        assertEquals(3, aps.flush());
+        assertEquals(3, countRows());
+        assertEquals(2, selectLoginCount("alice"));
+        assertEquals(5, selectLoginCount("old"));
+        assertEquals(0, aps.flush());
+    }
+
+    /**
+     * 写入失败的玩家重新标记为待写入 尚未插入归档的新玩家在重试时仍然插入
+     */
+    @Test
+    public void remarkDirtyAfterFailedBatchTest() throws SQLException {
+        aps.savePlayer(dto("alice", 1));
+        execute("DROP TABLE PLAYER_INDEX");
+
+        assertEquals(0, aps.flush());
+
+        archiveService.createTables();
+        assertEquals(1, aps.flush());
+        assertEquals(1, selectLoginCount("alice"));
+    }
+
+    /**
+     * 离线玩家写入后从内存中移除 写入完成前重新登录的玩家保留在内存中
+     */
+    @Test
+    public void evictLoggedOutPlayerTest() throws SQLException {
+        aps.savePlayer(dto("alice", 1));
+        aps.savePlayer(dto("bob", 1));
+
+        //写入完成后移除 之后从归档中重新读取
+        aps.logoutPlayer("alice");
+        assertEquals(1, selectLoginCount("alice"));
+        execute("UPDATE PLAYER_INDEX SET LOGIN_COUNT = 99 WHERE NAME = 'alice'");
+        assertEquals(99, aps.loadPlayer("alice").getLoginCount());
+
+        //离线时写入失败 写入前重新登录
+        aps.savePlayer(dto("bob", 2));
+        archiveService.setDataSource(null);
+        aps.logoutPlayer("bob");
+        archiveService.setDataSource(dataSource);
+        aps.savePlayer(dto("bob", 3));
+        assertEquals(1, aps.flush());
+        assertEquals(3, selectLoginCount("bob"));
+
+        execute("UPDATE PLAYER_INDEX SET LOGIN_COUNT = 99 WHERE NAME = 'bob'");
+        assertEquals(3, aps.loadPlayer("bob").getLoginCount());
+    }
+
+    private static ArchivePlayerDto dto(String name, int loginCount) {
+        var dto = new ArchivePlayerDto();
+        dto.setUuid("uuid-" + name);
+        dto.setName(name);
+        dto.setLoginCount(loginCount);
+        dto.setLastLoginTime(LocalDateTime.now());
+        dto.setWorldName("world");
+        dto.setPosX(1.5);
+        dto.setPosY(64.0);
+        dto.setPosZ(-3.5);
+        dto.setYaw(90.0);
+        dto.setPitch(0.0);
+        dto.setHealth(20);
+        dto.setHungry(20);
+        dto.setExp(0L);
+        return dto;
+    }
+
+    private int selectLoginCount(String name) throws SQLException {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement stmt = conn.prepareStatement("SELECT LOGIN_COUNT FROM PLAYER_INDEX WHERE NAME = ?")) {
+            stmt.setString(1, name);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? rs.getInt(1) : -1;
+            }
+        }
+    }
+
+    private int countRows() throws SQLException {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement stmt = conn.prepareStatement("SELECT COUNT(*) FROM PLAYER_INDEX");
+             ResultSet rs = stmt.executeQuery()) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    private void execute(String sql) throws SQLException {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.execute();
+        }
+    }
+}
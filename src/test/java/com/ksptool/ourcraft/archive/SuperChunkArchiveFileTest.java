@@ -0,0 +1,399 @@
+package com.ksptool.ourcraft.archive;
+
+import com.ksptool.ourcraft.server.archive.SuperChunkArchiveFile;
+import com.ksptool.ourcraft.sharedcore.utils.position.ScaLocalPos;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * SCA文件测试类
+ */
+public class SuperChunkArchiveFileTest {
+
+    @TempDir
+    Path tempDir;
+
+    /**
+     * 写入后可以读回，重新打开文件后索引表从文件头恢复，碎片整理后数据不变
+     */
+    @Test
+    public void writeReadReopenTest() throws Exception {
+        var path = tempDir.resolve("0.0.sca");
+        var scaf = new SuperChunkArchiveFile(path, 40);
+        scaf.open();
+
+        assertFalse(scaf.hasChunk(3, 5));
+        assertNull(scaf.readChunk(3, 5));
+
+        scaf.writeChunk(3, 5, new byte[]{1, 2, 3});
+        scaf.writeChunk(39, 39, new byte[]{9, 9});
+        scaf.writeChunk(3, 5, new byte[]{4, 5, 6, 7});
+        assertTrue(scaf.hasChunk(3, 5));
+        assertArrayEquals(new byte[]{4, 5, 6, 7}, scaf.readChunk(3, 5));
+        scaf.close();
+
+        var reopened = new SuperChunkArchiveFile(path, 40);
+        reopened.open();
+        assertTrue(reopened.hasChunk(3, 5));
+        assertFalse(reopened.hasChunk(5, 3));
+        assertArrayEquals(new byte[]{4, 5, 6, 7}, reopened.readChunk(3, 5));
+        assertArrayEquals(new byte[]{9, 9}, reopened.readChunk(39, 39));
+
+        long before = reopened.getFile().length();
+        reopened.compact();
+        assertTrue(reopened.getFile().length() < before);
+        assertArrayEquals(new byte[]{4, 5, 6, 7}, reopened.readChunk(3, 5));
+        assertArrayEquals(new byte[]{9, 9}, reopened.readChunk(39, 39));
+        reopened.close();
+    }
+
+    /**
+     * 多个线程并发读取的同时另一个线程不断重写区块，读取到的数据始终是某一次完整写入的内容
+     */
+    @Test
+    public void concurrentReadTest() throws Exception {
+        var scaf = new SuperChunkArchiveFile(tempDir.resolve("1.1.sca"), 8);
+        scaf.open();
+        for (int i = 0; i < 64; i++) {
+            scaf.writeChunk(i % 8, i / 8, payload(i, 0), false);
+        }
+
+        var running = new AtomicBoolean(true);
+        var reads = new AtomicLong();
+        var error = new AtomicReference<Throwable>();
+        var readers = new ArrayList<Thread>();
+
+        for (int t = 0; t < 4; t++) {
+            readers.add(Thread.ofPlatform().start(() -> {
+                int i = 0;
+                try {
+                    while (running.get()) {
+                        int slot = i++ & 63;
+                        byte[] data = scaf.readChunk(slot % 8, slot / 8);
+                        //前4字节为区块编号，其余字节都等于版本号
+                        assertEquals(slot, ByteBuffer.wrap(data).getInt());
+                        for (int b = 5; b < data.length; b++) {
+                            assertEquals(data[4], data[b]);
+                        }
+                        reads.incrementAndGet();
+                    }
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            }));
+        }
+
+        for (int version = 1; version < 50; version++) {
+            for (int i = 0; i < 64; i++) {
+                scaf.writeChunk(i % 8, i / 8, payload(i, version), false);
+            }
+        }
+        running.set(false);
+        for (var reader : readers) {
+            reader.join();
+        }
+        scaf.close();
+
+        assertNull(error.get());
+        assertTrue(reads.get() > 0);
+    }
+
+    /**
+     * 批量写入的区块与逐个写入的结果一致，重新打开后依然可以读取，可以只写入文件中不存在的区块
+     */
+    @Test
+    public void batchWriteTest() throws Exception {
+        var path = tempDir.resolve("2.2.sca");
+        var scaf = new SuperChunkArchiveFile(path, 8);
+        scaf.open();
+        scaf.writeChunk(0, 0, payload(0, 0));
+
+        var batch = new LinkedHashMap<ScaLocalPos, byte[]>();
+        for (int i = 0; i < 64; i++) {
+            batch.put(ScaLocalPos.of(i % 8, i / 8), payload(i, 1));
+        }
+        scaf.writeChunks(batch);
+        scaf.close();
+
+        var reopened = new SuperChunkArchiveFile(path, 8);
+        reopened.open();
+        for (int i = 0; i < 64; i++) {
+            assertArrayEquals(payload(i, 1), reopened.readChunk(i % 8, i / 8));
+        }
+
+        //跳过已存在的区块 只写入缺失的区块
+        var fresh = new SuperChunkArchiveFile(tempDir.resolve("2.3.sca"), 8);
+        fresh.open();
+        fresh.writeChunk(1, 0, payload(1, 0));
+        var skipped = fresh.writeChunks(batch, true);
+        assertEquals(List.of(ScaLocalPos.of(1, 0)), skipped);
+        assertArrayEquals(payload(1, 0), fresh.readChunk(1, 0));
+        assertArrayEquals(payload(2, 1), fresh.readChunk(2, 0));
+        fresh.close();
+        reopened.close();
+    }
+
+    /**
+     * 批量读取(合并相邻区块为一次读取)的结果与逐个读取一致，不存在的区块不包含在结果中
+     */
+    @Test
+    public void batchReadTest() throws Exception {
+        var scaf = new SuperChunkArchiveFile(tempDir.resolve("7.7.sca"), 8);
+        scaf.open();
+        for (int i = 0; i < 64; i += 3) {
+            scaf.writeChunk(i % 8, i / 8, payload(i, i * 5));
+        }
+        //重写一部分区块 让数据在文件中的顺序与坐标顺序不一致
+        for (int i = 60; i >= 0; i -= 6) {
+            scaf.writeChunk(i % 8, i / 8, payload(i, i + 1));
+        }
+
+        var positions = new ArrayList<ScaLocalPos>();
+        for (int i = 0; i < 64; i++) {
+            positions.add(ScaLocalPos.of(i % 8, i / 8));
+        }
+        var result = scaf.readChunks(positions);
+
+        for (int i = 0; i < 64; i++) {
+            var pos = ScaLocalPos.of(i % 8, i / 8);
+            var expected = scaf.readChunk(pos.getX(), pos.getZ());
+            if (expected == null) {
+                assertFalse(result.containsKey(pos));
+                continue;
+            }
+            assertArrayEquals(expected, result.get(pos));
+        }
+        assertEquals(22, result.size());
+        scaf.close();
+    }
+
+    /**
+     * 重写区块后旧扇区被复用，文件不再单调增长，碎片率反映数据区中的空洞
+     */
+    @Test
+    public void freeSpaceReuseTest() throws Exception {
+        var scaf = new SuperChunkArchiveFile(tempDir.resolve("3.3.sca"), 8);
+        scaf.open();
+        for (int i = 0; i < 64; i++) {
+            scaf.writeChunk(i % 8, i / 8, payload(i, 200));
+        }
+        long size = scaf.getFile().length();
+
+        //反复重写 大小不变的数据总是可以放进上一次释放的扇区
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 64; i++) {
+                scaf.writeChunk(i % 8, i / 8, payload(i, 200));
+            }
+        }
+        assertTrue(scaf.getFile().length() <= size + SuperChunkArchiveFile.SECTOR_BYTES * 2L);
+
+        //变小的数据留下空洞
+        for (int i = 0; i < 64; i += 2) {
+            scaf.writeChunk(i % 8, i / 8, payload(i, 1));
+        }
+        double ratio = scaf.getFragmentationRatio();
+        assertTrue(ratio > 0);
+
+        scaf.compact();
+        assertEquals(0.0, scaf.getFragmentationRatio());
+        for (int i = 0; i < 64; i++) {
+            assertArrayEquals(payload(i, (i & 1) == 0 ? 1 : 200), scaf.readChunk(i % 8, i / 8));
+        }
+        scaf.close();
+    }
+
+    /**
+     * 碎片整理期间并发读写照常进行，替换文件前开始的读取依然读到完整的数据，期间写入的区块不会丢失
+     */
+    @Test
+    public void onlineCompactTest() throws Exception {
+        var path = tempDir.resolve("6.6.sca");
+        var scaf = new SuperChunkArchiveFile(path, 8);
+        scaf.open();
+        for (int i = 0; i < 64; i++) {
+            scaf.writeChunk(i % 8, i / 8, payload(i, 100));
+        }
+
+        var running = new AtomicBoolean(true);
+        var error = new AtomicReference<Throwable>();
+        var threads = new ArrayList<Thread>();
+        int[] versions = new int[64];
+        Arrays.fill(versions, 100);
+
+        for (int t = 0; t < 3; t++) {
+            threads.add(Thread.ofPlatform().start(() -> {
+                int i = 0;
+                try {
+                    while (running.get()) {
+                        int slot = i++ & 63;
+                        byte[] data = scaf.readChunk(slot % 8, slot / 8);
+                        assertEquals(slot, ByteBuffer.wrap(data).getInt());
+                        for (int b = 5; b < data.length; b++) {
+                            assertEquals(data[4], data[b]);
+                        }
+                    }
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            }));
+        }
+
+        //写入线程不断重写区块(长度在变化 留下碎片)
+        threads.add(Thread.ofPlatform().start(() -> {
+            int i = 0;
+            try {
+                while (running.get()) {
+                    int slot = i++ & 63;
+                    versions[slot] = versions[slot] % 120 + 7;
+                    scaf.writeChunk(slot % 8, slot / 8, payload(slot, versions[slot]));
+                }
+            } catch (Throwable e) {
+                error.compareAndSet(null, e);
+            }
+        }));
+
+        int replaced = 0;
+        for (int round = 0; round < 10; round++) {
+            if (scaf.compact(0)) {
+                replaced++;
+            }
+        }
+        running.set(false);
+        for (var thread : threads) {
+            thread.join();
+        }
+
+        assertNull(error.get());
+        assertEquals(10, replaced);
+        for (int i = 0; i < 64; i++) {
+            assertArrayEquals(payload(i, versions[i]), scaf.readChunk(i % 8, i / 8));
+        }
+        scaf.close();
+
+        var reopened = new SuperChunkArchiveFile(path, 8);
+        reopened.open();
+        for (int i = 0; i < 64; i++) {
+            assertArrayEquals(payload(i, versions[i]), reopened.readChunk(i % 8, i / 8));
+        }
+        reopened.close();
+    }
+
+    /**
+     * 最新的文件头槽位损坏(模拟提交过程中崩溃)时回退到上一次提交的索引表
+     */
+    @Test
+    public void headerFallbackTest() throws Exception {
+        var path = tempDir.resolve("4.4.sca");
+        var scaf = new SuperChunkArchiveFile(path, 8);
+        scaf.open();
+        scaf.writeChunk(1, 1, payload(9, 1));
+        scaf.writeChunk(1, 1, payload(9, 2));
+        scaf.close();
+
+        //第2代写在槽位0 破坏它的一个字节
+        int slotSize = 8 + 64 * 8 + 4;
+        try (var raf = new RandomAccessFile(path.toFile(), "rw")) {
+            raf.seek(8 + 20);
+            raf.write(0x7F);
+        }
+
+        var reopened = new SuperChunkArchiveFile(path, 8);
+        reopened.open();
+        assertArrayEquals(payload(9, 1), reopened.readChunk(1, 1));
+        reopened.close();
+
+        //两个槽位都损坏时拒绝打开
+        try (var raf = new RandomAccessFile(path.toFile(), "rw")) {
+            raf.seek(8 + slotSize + 20);
+            raf.write(0x7F);
+        }
+        assertThrows(IOException.class, () -> new SuperChunkArchiveFile(path, 8).open());
+    }
+
+    /**
+     * 版本1(单个索引表 仅追加)的文件在打开时升级为版本2
+     */
+    @Test
+    public void legacyUpgradeTest() throws Exception {
+        var path = tempDir.resolve("5.5.sca");
+        var data = payload(7, 3);
+        var header = ByteBuffer.allocate(5 + 64 * 8);
+        header.put("SCAF".getBytes(StandardCharsets.US_ASCII));
+        header.put((byte) 1);
+        header.position(5 + (2 * 8 + 3) * 8);
+        header.putInt(header.capacity());
+        header.putInt(data.length);
+        try (var raf = new RandomAccessFile(path.toFile(), "rw")) {
+            raf.write(header.array());
+            raf.write(data);
+        }
+
+        var scaf = new SuperChunkArchiveFile(path, 8);
+        scaf.open();
+        assertArrayEquals(data, scaf.readChunk(3, 2));
+        assertFalse(scaf.hasChunk(2, 3));
+        scaf.close();
+
+        try (var raf = new RandomAccessFile(path.toFile(), "r")) {
+            raf.seek(4);
+            assertEquals(SuperChunkArchiveFile.CURRENT_VERSION, raf.read());
+        }
+    }
+
+    /**
+     * 退役的文件在占用释放前保持打开(可以恢复)，关闭后拒绝重新打开
+     */
+    @Test
+    public void retireTest() throws Exception {
+        var path = tempDir.resolve("6.6.sca");
+        var scaf = new SuperChunkArchiveFile(path, 8);
+        scaf.open();
+        scaf.writeChunk(2, 2, payload(18, 1));
+
+        assertTrue(scaf.acquire());
+        scaf.retire();
+        assertFalse(scaf.acquire());
+        assertFalse(scaf.isClosed());
+        assertArrayEquals(payload(18, 1), scaf.readChunk(2, 2));
+
+        assertTrue(scaf.revive());
+        assertTrue(scaf.acquire());
+        scaf.release();
+        scaf.retire();
+        assertFalse(scaf.isClosed());
+
+        scaf.release();
+        assertTrue(scaf.isClosed());
+        assertFalse(scaf.revive());
+        assertThrows(IOException.class, () -> scaf.readChunk(2, 2));
+        assertThrows(IOException.class, scaf::open);
+    }
+
+    /**
+     * 生成测试用的区块数据 长度随版本变化
+     */
+    private static byte[] payload(int slot, int version) {
+        var buffer = ByteBuffer.allocate(4 + 16 + version * 3);
+        buffer.putInt(slot);
+        while (buffer.hasRemaining()) {
+            buffer.put((byte) version);
+        }
+        return buffer.array();
+    }
+
+}
@@ -0,0 +1,484 @@
+package com.ksptool.ourcraft.sharedcore.utils;
+
+import com.ksptool.ourcraft.sharedcore.GlobalPalette;
+import com.ksptool.ourcraft.sharedcore.Registry;
+import com.ksptool.ourcraft.sharedcore.enums.BlockEnums;
+import com.ksptool.ourcraft.sharedcore.world.BlockState;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntFunction;
+import java.util.zip.Deflater;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 区块数据性能基准
+ * 项目未引入JMH，这里使用简单的计时方式输出吞吐量，数值仅用于同一台机器上的前后对比
+ */
+public class FlexChunkBenchmarkTest {
+
+    //读线程数量
+    private static final int READER_THREADS = 4;
+
+    //每轮测试时长(毫秒)
+    private static final long DURATION_MS = 500;
+
+    private BlockState stone;
+
+    private BlockState dirt;
+
+    private BlockState grass;
+
+    private BlockState water;
+
+    @BeforeEach
+    public void setUp() {
+        var registry = Registry.getInstance();
+        if (registry.getBlock(BlockEnums.AIR.getStdRegName()) == null) {
+            BlockEnums.registerBlocks(registry);
+        }
+        GlobalPalette.getInstance().bake();
+        stone = registry.getBlock(BlockEnums.STONE.getStdRegName()).getDefaultState();
+        dirt = registry.getBlock(BlockEnums.DIRT.getStdRegName()).getDefaultState();
+        grass = registry.getBlock(BlockEnums.GRASS_BLOCK.getStdRegName()).getDefaultState();
+        water = registry.getBlock(BlockEnums.WATER.getStdRegName()).getDefaultState();
+    }
+
+    /**
+     * 多个读线程与一个写线程竞争同一个区块
+     * 对比: 外部加监视器锁(等同于旧的synchronized实现) 与 乐观读
+     */
+    @Test
+    public void contendedReadTest() throws Exception {
+        var data = createTerrain();
+
+        //预热
+        runContendedRead(data, true);
+        runContendedRead(data, false);
+
+        long monitorReads = runContendedRead(data, true);
+        long optimisticReads = runContendedRead(data, false);
+
+        System.out.println("监视器锁读取吞吐量: " + (monitorReads * 1000 / DURATION_MS) + " ops/s");
+        System.out.println("乐观读读取吞吐量: " + (optimisticReads * 1000 / DURATION_MS) + " ops/s");
+        assertTrue(optimisticReads > 0);
+    }
+
+    /**
+     * 位宽4~16下的位存储读写吞吐量
+     * 对比: 旧的跨long布局逐个读取 / 字对齐布局逐个读取 / 字对齐布局批量解包 / 字对齐布局批量打包
+     */
+    @Test
+    public void bitWidthTest() {
+        int size = 4096;
+        int rounds = 2000;
+        var random = new Random(42);
+        int[] out = new int[size];
+
+        //第一轮为预热 只输出第二轮的结果
+        for (int pass = 0; pass < 2; pass++) {
+            for (int bits = 4; bits <= 16; bits++) {
+                int[] values = new int[size];
+                for (int i = 0; i < size; i++) {
+                    values[i] = random.nextInt(1 << bits);
+                }
+
+                var storage = BitStorage.pack(bits, values);
+                long[] legacy = packLegacy(bits, values);
+
+                //校验两种布局的结果一致
+                BitStorage.unpackLegacy(bits, size, legacy, out);
+                assertArrayEquals(values, out);
+                storage.unpackAll(out);
+                assertArrayEquals(values, out);
+
+                long sink = 0;
+                long start = System.nanoTime();
+                for (int r = 0; r < rounds; r++) {
+                    for (int i = 0; i < size; i++) {
+                        sink += getLegacy(legacy, bits, i);
+                    }
+                }
+                long legacyNs = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for (int r = 0; r < rounds; r++) {
+                    for (int i = 0; i < size; i++) {
+                        sink += storage.get(i);
+                    }
+                }
+                long alignedNs = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for (int r = 0; r < rounds; r++) {
+                    storage.unpackAll(out);
+                    sink += out[r & (size - 1)];
+                }
+                long unpackNs = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for (int r = 0; r < rounds; r++) {
+                    storage.packAll(values);
+                }
+                long packNs = System.nanoTime() - start;
+
+                if (pass == 0) {
+                    continue;
+                }
+                long total = (long) size * rounds;
+                System.out.println("位宽 " + bits + ": 跨long逐个读取 " + (total * 1000 / legacyNs) + " M/s, 字对齐逐个读取 " + (total * 1000 / alignedNs)
+                        + " M/s, 批量解包 " + (total * 1000 / unpackNs) + " M/s, 批量打包 " + (total * 1000 / packNs) + " M/s (" + (sink & 1) + ")");
+            }
+        }
+    }
+
+    /**
+     * 区块序列化吞吐量
+     * 对比: 旧的流式写入(DataOutputStream逐个写long + toByteArray) / 缓冲区批量写入返回字节数组 / 写入复用的直接缓冲区
+     */
+    @Test
+    public void serializerTest() throws IOException {
+        var data = createMixedTerrain();
+        int rounds = 2000;
+
+        //校验旧的流式写入与缓冲区写入的结果一致
+        var bytes = FlexChunkSerializer.serialize(data);
+        assertArrayEquals(serializeStream(data), bytes);
+        var src = ByteBuffer.allocateDirect(bytes.length).put(bytes).flip();
+
+        //第一轮为预热 只输出第二轮的结果
+        for (int pass = 0; pass < 2; pass++) {
+            long sink = 0;
+            long start = System.nanoTime();
+            for (int r = 0; r < rounds; r++) {
+                sink += serializeStream(data).length;
+            }
+            long streamNs = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int r = 0; r < rounds; r++) {
+                sink += FlexChunkSerializer.serialize(data).length;
+            }
+            long arrayNs = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int r = 0; r < rounds; r++) {
+                sink += FlexChunkSerializer.deserialize(src.rewind()).getSectionCount();
+            }
+            long deserializeNs = System.nanoTime() - start;
+
+            if (pass == 0) {
+                continue;
+            }
+            System.out.println("区块序列化(" + bytes.length + " bytes): 流式写入 " + (streamNs / rounds / 1000) + " us/op, 缓冲区写入(字节数组) " + (arrayNs / rounds / 1000)
+                    + " us/op, 反序列化(直接缓冲区) " + (deserializeNs / rounds / 1000) + " us/op (" + (sink & 1) + ")");
+        }
+    }
+
+    /**
+     * 预设字典压缩的压缩率与解压吞吐量
+     * 使用前64个生成的区块训练字典，在另外32个区块上对比: 无字典 / 预设字典
+     */
+    @Test
+    public void dictionaryTest() {
+        var samples = new ArrayList<byte[]>();
+        for (int i = 0; i < 64; i++) {
+            samples.add(FlexChunkSerializer.serialize(createGeneratedTerrain(i)));
+        }
+        var dictionary = FlexChunkDictionary.train(samples);
+        assertNotNull(dictionary);
+        IntFunction<FlexChunkDictionary> dictionaries = id -> id == dictionary.getId() ? dictionary : null;
+
+        int count = 32;
+        var plain = new byte[count][];
+        var compressed = new byte[count][];
+        long plainBytes = 0;
+        long dictionaryBytes = 0;
+        for (int i = 0; i < count; i++) {
+            var chunk = createGeneratedTerrain(1000 + i);
+            plain[i] = FlexChunkSerializer.serialize(chunk);
+            compressed[i] = FlexChunkSerializer.recompress(plain[i], dictionary);
+            assertTrue(FlexChunkSerializer.usesDictionary(compressed[i]));
+            assertArrayEquals(compressed[i], FlexChunkSerializer.serialize(chunk, dictionary));
+            plainBytes += plain[i].length;
+            dictionaryBytes += compressed[i].length;
+
+            //校验两种格式解压后的方块一致
+            var a = FlexChunkSerializer.deserialize(plain[i]);
+            var b = FlexChunkSerializer.deserialize(compressed[i], dictionaries);
+            for (int y = 0; y < 256; y += 3) {
+                for (int x = 0; x < 16; x++) {
+                    for (int z = 0; z < 16; z++) {
+                        assertEquals(a.getBlock(x, y, z), b.getBlock(x, y, z));
+                    }
+                }
+            }
+        }
+
+        //第一轮为预热 只输出第二轮的结果
+        int rounds = 100;
+        for (int pass = 0; pass < 2; pass++) {
+            long sink = 0;
+            long start = System.nanoTime();
+            for (int r = 0; r < rounds; r++) {
+                for (var bytes : plain) {
+                    sink += FlexChunkSerializer.deserialize(bytes).getSectionCount();
+                }
+            }
+            long plainNs = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int r = 0; r < rounds; r++) {
+                for (var bytes : compressed) {
+                    sink += FlexChunkSerializer.deserialize(bytes, dictionaries).getSectionCount();
+                }
+            }
+            long dictionaryNs = System.nanoTime() - start;
+
+            if (pass == 0) {
+                continue;
+            }
+            long ops = (long) rounds * count;
+            System.out.println("预设字典(" + dictionary.getData().length + " bytes): 无字典 平均 " + (plainBytes / count) + " bytes, 预设字典 平均 " + (dictionaryBytes / count)
+                    + " bytes (" + (dictionaryBytes * 100 / plainBytes) + "%), 反序列化 无字典 " + (plainNs / ops / 1000) + " us/op, 预设字典 " + (dictionaryNs / ops / 1000) + " us/op (" + (sink & 1) + ")");
+        }
+        assertTrue(dictionaryBytes < plainBytes);
+    }
+
+    /**
+     * 旧的流式序列化实现(仅用于对比) 输出格式与当前版本相同
+     */
+    private static byte[] serializeStream(FlexChunkData cbd) throws IOException {
+        cbd.compact();
+        var snapshot = cbd.createSnapshot();
+        var baos = new ByteArrayOutputStream(4096);
+        var dos = new DataOutputStream(baos);
+        writeVarInt(dos, cbd.getWidth());
+        writeVarInt(dos, cbd.getHeight());
+        writeVarInt(dos, cbd.getDepth());
+        writeVarInt(dos, snapshot.getSectionCount());
+        for (int i = 0; i < snapshot.getSectionCount(); i++) {
+            if (snapshot.isSectionEmpty(i)) {
+                dos.write(0);
+                continue;
+            }
+            var section = snapshot.getSection(i);
+            if (section.isSingleValue()) {
+                dos.write(2);
+                writeVarInt(dos, section.getSingleValue());
+                continue;
+            }
+            dos.write(1);
+            var palette = section.getLocalPalette();
+            writeVarInt(dos, palette.size());
+            for (int p = 0; p < palette.size(); p++) {
+                writeVarInt(dos, palette.getInt(p));
+            }
+            var storage = section.getStorage();
+            dos.write(storage.getBitsPerEntry());
+            for (int l = 0; l < storage.getDataLength(); l++) {
+                dos.writeLong(storage.readLong(l));
+            }
+        }
+        var heightmap = snapshot.getHeightmap();
+        dos.write(FlexChunkHeightmap.TYPES.length);
+        for (var type : FlexChunkHeightmap.TYPES) {
+            dos.write(type.ordinal());
+            var heights = heightmap.getRawHeights(type);
+            boolean uniform = true;
+            for (short h : heights) {
+                uniform &= h == heights[0];
+            }
+            dos.write(uniform ? 0 : 1);
+            for (int c = 0; c < (uniform ? 1 : heights.length); c++) {
+                writeVarInt(dos, heights[c]);
+            }
+        }
+        dos.flush();
+
+        byte[] body = baos.toByteArray();
+        var deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(body);
+        deflater.finish();
+        var out = new ByteArrayOutputStream(body.length / 4 + 16);
+        out.write(FlexChunkSerializer.CURRENT_VERSION);
+        byte[] chunk = new byte[4096];
+        while (!deflater.finished()) {
+            out.write(chunk, 0, deflater.deflate(chunk));
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    private static void writeVarInt(DataOutputStream dos, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            dos.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        dos.write(value);
+    }
+
+    /**
+     * 旧的跨long布局打包(仅用于对比)
+     */
+    private static long[] packLegacy(int bits, int[] values) {
+        long[] data = new long[(values.length * bits + 63) / 64];
+        for (int i = 0; i < values.length; i++) {
+            long bitIndex = (long) i * bits;
+            int longIndex = (int) (bitIndex >> 6);
+            int bitOffset = (int) (bitIndex & 63);
+            data[longIndex] |= (long) values[i] << bitOffset;
+            if (bitOffset + bits > 64) {
+                data[longIndex + 1] |= (long) values[i] >>> (64 - bitOffset);
+            }
+        }
+        return data;
+    }
+
+    /**
+     * 旧的跨long布局读取(仅用于对比)
+     */
+    private static int getLegacy(long[] data, int bits, int index) {
+        long bitIndex = (long) index * bits;
+        int longIndex = (int) (bitIndex >> 6);
+        int bitOffset = (int) (bitIndex & 63);
+        long value = data[longIndex] >>> bitOffset;
+        if (64 - bitOffset < bits) {
+            value |= data[longIndex + 1] << (64 - bitOffset);
+        }
+        return (int) (value & ((1L << bits) - 1));
+    }
+
+    /**
+     * 执行一轮竞争读取
+     * @param data 区块数据
+     * @param useMonitor 是否在读取时额外加一把与写线程共享的监视器锁
+     * @return 读线程完成的读取次数
+     */
+    private long runContendedRead(FlexChunkData data, boolean useMonitor) throws InterruptedException {
+        var monitor = new Object();
+        var running = new AtomicBoolean(true);
+        var reads = new LongAdder();
+        var done = new CountDownLatch(READER_THREADS + 1);
+
+        for (int t = 0; t < READER_THREADS; t++) {
+            final int seed = t;
+            Thread.ofPlatform().start(() -> {
+                int i = seed;
+                long local = 0;
+                while (running.get()) {
+                    int x = i & 15;
+                    int z = (i >> 4) & 15;
+                    int y = (i >> 8) & 127;
+                    if (useMonitor) {
+                        synchronized (monitor) {
+                            data.getBlock(x, y, z);
+                        }
+                    } else {
+                        data.getBlock(x, y, z);
+                    }
+                    local++;
+                    i += 7;
+                }
+                reads.add(local);
+                done.countDown();
+            });
+        }
+
+        //写线程 模拟区块工作线程不断修改方块
+        Thread.ofPlatform().start(() -> {
+            int i = 0;
+            while (running.get()) {
+                var state = (i & 1) == 0 ? dirt : stone;
+                if (useMonitor) {
+                    synchronized (monitor) {
+                        data.setBlock(i & 15, 40, (i >> 4) & 15, state);
+                    }
+                } else {
+                    data.setBlock(i & 15, 40, (i >> 4) & 15, state);
+                }
+                i++;
+                Thread.onSpinWait();
+            }
+            done.countDown();
+        });
+
+        Thread.sleep(DURATION_MS);
+        running.set(false);
+        done.await();
+        return reads.sum();
+    }
+
+    /**
+     * 创建一个方块混杂的区块(每个区块段都使用调色板模式)
+     */
+    private FlexChunkData createMixedTerrain() {
+        var data = new FlexChunkData(16, 256, 16);
+        var random = new Random(7);
+        for (int x = 0; x < 16; x++) {
+            for (int z = 0; z < 16; z++) {
+                int top = 60 + random.nextInt(8);
+                for (int y = 0; y < top; y++) {
+                    data.setBlock(x, y, z, random.nextInt(4) == 0 ? dirt : stone);
+                }
+            }
+        }
+        return data;
+    }
+
+    /**
+     * 创建一个接近地形生成器输出的区块(起伏的地表、泥土与草方块覆盖层、低于海平面的部分填充水)
+     * @param seed 随机种子 不同的种子对应世界中不同位置的区块
+     */
+    private FlexChunkData createGeneratedTerrain(int seed) {
+        var data = new FlexChunkData(16, 256, 16);
+        var random = new Random(seed);
+        double phaseX = random.nextDouble() * Math.PI * 2;
+        double phaseZ = random.nextDouble() * Math.PI * 2;
+        for (int x = 0; x < 16; x++) {
+            for (int z = 0; z < 16; z++) {
+                int top = 62 + (int) (Math.sin(phaseX + x * 0.2) * 5 + Math.cos(phaseZ + z * 0.15) * 4);
+                for (int y = 0; y <= Math.max(top, 62); y++) {
+                    BlockState state;
+                    if (y > top) {
+                        state = water;
+                    } else if (y == top) {
+                        state = top >= 62 ? grass : dirt;
+                    } else if (y > top - 4) {
+                        state = dirt;
+                    } else {
+                        state = stone;
+                    }
+                    data.setBlock(x, y, z, state);
+                }
+            }
+        }
+        return data;
+    }
+
+    /**
+     * 创建一个带有简单地形的区块
+     */
+    private FlexChunkData createTerrain() {
+        var data = new FlexChunkData(16, 256, 16);
+        for (int x = 0; x < 16; x++) {
+            for (int z = 0; z < 16; z++) {
+                for (int y = 0; y < 64; y++) {
+                    data.setBlock(x, y, z, y < 60 ? stone : dirt);
+                }
+            }
+        }
+        return data;
+    }
+
+}
@@ -0,0 +1,525 @@
+package com.ksptool.ourcraft.sharedcore.utils;
+
+import com.ksptool.ourcraft.sharedcore.GlobalPalette;
+import com.ksptool.ourcraft.sharedcore.Registry;
+import com.ksptool.ourcraft.sharedcore.enums.BlockEnums;
+import com.ksptool.ourcraft.sharedcore.world.BlockState;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 区块数据测试类
+ * 测试 FlexChunkData 的区块段存储与 FlexChunkSerializer 的序列化
+ */
+public class FlexChunkDataTest {
+
+    private BlockState air;
+
+    private BlockState stone;
+
+    private BlockState dirt;
+
+    @BeforeEach
+    public void setUp() {
+        var registry = Registry.getInstance();
+        if (registry.getBlock(BlockEnums.AIR.getStdRegName()) == null) {
+            BlockEnums.registerBlocks(registry);
+        }
+        GlobalPalette.getInstance().bake();
+        air = registry.getBlock(BlockEnums.AIR.getStdRegName()).getDefaultState();
+        stone = registry.getBlock(BlockEnums.STONE.getStdRegName()).getDefaultState();
+        dirt = registry.getBlock(BlockEnums.DIRT.getStdRegName()).getDefaultState();
+    }
+
+    /**
+     * 全空气的区块段不分配存储
+     */
+    @Test
+    public void emptySectionTest() {
+        var data = new FlexChunkData(16, 256, 16);
+        assertTrue(data.isEmpty());
+
+        data.setBlock(3, 70, 5, stone);
+        var snapshot = data.createSnapshot();
+        assertEquals(16, snapshot.getSectionCount());
+        assertFalse(snapshot.isSectionEmpty(70 >> FlexChunkSection.SECTION_SHIFT));
+        assertTrue(snapshot.isSectionEmpty(0));
+        assertEquals(stone, data.getBlock(3, 70, 5));
+        assertEquals(air, data.getBlock(3, 200, 5));
+
+        //移除最后一个非空气方块后区块段被释放
+        data.setBlock(3, 70, 5, air);
+        assertTrue(data.isEmpty());
+        assertTrue(data.createSnapshot().isSectionEmpty(70 >> FlexChunkSection.SECTION_SHIFT));
+    }
+
+    /**
+     * 序列化与反序列化后方块数据保持一致
+     */
+    @Test
+    public void serializeRoundTripTest() {
+        var data = new FlexChunkData(16, 256, 16);
+        for (int x = 0; x < 16; x++) {
+            for (int z = 0; z < 16; z++) {
+                for (int y = 0; y < 60; y++) {
+                    data.setBlock(x, y, z, y < 56 ? stone : dirt);
+                }
+            }
+        }
+
+        var bytes = FlexChunkSerializer.serialize(data);
+        assertEquals(FlexChunkSerializer.CURRENT_VERSION, bytes[0]);
+        var restored = FlexChunkSerializer.deserialize(bytes);
+
+        for (int x = 0; x < 16; x++) {
+            for (int z = 0; z < 16; z++) {
+                for (int y = 0; y < 256; y++) {
+                    assertEquals(data.getBlock(x, y, z), restored.getBlock(x, y, z));
+                }
+            }
+        }
+
+        //反序列化后依然可以继续写入
+        restored.setBlock(0, 100, 0, dirt);
+        assertEquals(dirt, restored.getBlock(0, 100, 0));
+        assertFalse(restored.isEmpty());
+    }
+
+    /**
+     * 版本1(整列单一位存储)的旧数据可以读取
+     */
+    @Test
+    public void legacyV1DeserializeTest() throws IOException {
+        var palette = GlobalPalette.getInstance();
+        var baos = new ByteArrayOutputStream();
+        var dos = new DataOutputStream(baos);
+        dos.write(1);
+        dos.writeInt(16);
+        dos.writeInt(256);
+        dos.writeInt(16);
+        dos.writeInt(2);
+        dos.writeInt(palette.getStateId(air));
+        dos.writeInt(palette.getStateId(stone));
+        dos.writeInt(1);
+        dos.writeInt(16 * 256 * 16 / 64);
+        //索引顺序为 Y -> Z -> X，最底层的256个方块为石头
+        for (int i = 0; i < 16 * 256 * 16 / 64; i++) {
+            dos.writeLong(i < 4 ? -1L : 0L);
+        }
+
+        var restored = FlexChunkSerializer.deserialize(baos.toByteArray());
+        for (int x = 0; x < 16; x++) {
+            for (int z = 0; z < 16; z++) {
+                assertEquals(stone, restored.getBlock(x, 0, z));
+                assertEquals(air, restored.getBlock(x, 1, z));
+            }
+        }
+    }
+
+    /**
+     * 快照在数据未变化时复用，修改后旧快照保持不变且未修改的区块段被共享
+     */
+    @Test
+    public void snapshotCopyOnWriteTest() {
+        var data = new FlexChunkData(16, 256, 16);
+        data.setBlock(1, 5, 1, stone);
+        data.setBlock(1, 40, 1, dirt);
+
+        var first = data.createSnapshot();
+        assertSame(first, data.createSnapshot());
+
+        //写入相同的方块不会产生新快照
+        data.setBlock(1, 5, 1, stone);
+        assertSame(first, data.createSnapshot());
+
+        data.setBlock(2, 5, 2, dirt);
+        var second = data.createSnapshot();
+        assertNotSame(first, second);
+        assertTrue(second.getRevision() > first.getRevision());
+
+        //旧快照不受影响
+        assertTrue(first.isAir(2, 5, 2));
+        assertEquals(dirt, second.getBlock(2, 5, 2));
+
+        //被修改的区块段已被复制 未修改的区块段在两个快照之间共享
+        assertNotSame(first.getSection(0), second.getSection(0));
+        assertSame(first.getSection(2), second.getSection(2));
+    }
+
+    /**
+     * 批量写入(整区块/填充/列)与逐个写入的结果一致
+     */
+    @Test
+    public void bulkWriteTest() {
+        var palette = GlobalPalette.getInstance();
+        int airId = palette.getStateId(air);
+        int stoneId = palette.getStateId(stone);
+        int dirtId = palette.getStateId(dirt);
+
+        var bulk = new FlexChunkData(16, 100, 16);
+        var single = new FlexChunkData(16, 100, 16);
+
+        //整区块写入 顺序: Y -> Z -> X
+        int[] ids = new int[16 * 100 * 16];
+        for (int y = 0; y < 100; y++) {
+            for (int z = 0; z < 16; z++) {
+                for (int x = 0; x < 16; x++) {
+                    int id = y < 40 ? stoneId : (y < 43 && (x + z) % 3 == 0 ? dirtId : airId);
+                    ids[(y * 256) + (z * 16) + x] = id;
+                    single.setBlock(x, y, z, palette.getState(id));
+                }
+            }
+        }
+        bulk.setBlocks(ids);
+        assertTrue(bulk.createSnapshot().getSection(0).isSingleValue());
+        assertTrue(bulk.createSnapshot().isSectionEmpty(5));
+
+        //填充一个跨越多个区块段的区域
+        bulk.fill(2, 10, 3, 9, 50, 12, dirtId);
+        for (int y = 10; y < 50; y++) {
+            for (int z = 3; z < 12; z++) {
+                for (int x = 2; x < 9; x++) {
+                    single.setBlock(x, y, z, dirt);
+                }
+            }
+        }
+
+        //填充整个区块段为空气后区块段被释放
+        bulk.fill(0, 96, 0, 16, 100, 16, stoneId);
+        bulk.fill(0, 96, 0, 16, 100, 16, airId);
+        assertTrue(bulk.createSnapshot().isSectionEmpty(6));
+
+        //写入一列
+        int[] column = new int[30];
+        for (int i = 0; i < column.length; i++) {
+            column[i] = i % 2 == 0 ? stoneId : airId;
+            single.setBlock(5, 35 + i, 7, palette.getState(column[i]));
+        }
+        bulk.setColumn(5, 7, 35, column);
+
+        for (int y = 0; y < 100; y++) {
+            for (int z = 0; z < 16; z++) {
+                for (int x = 0; x < 16; x++) {
+                    assertEquals(single.getBlock(x, y, z), bulk.getBlock(x, y, z));
+                    assertEquals(palette.getStateId(single.getBlock(x, y, z)), bulk.getBlockId(x, y, z));
+                }
+            }
+        }
+    }
+
+    /**
+     * 调色板条目失效后在序列化前被自动整理，位宽随之缩小
+     */
+    @Test
+    public void refCountCompactTest() {
+        var palette = GlobalPalette.getInstance();
+        var data = new FlexChunkData(16, 16, 16);
+
+        //放置20种不同的方块使位宽增长到5位
+        int types = Math.min(20, palette.getStateCount() - 1);
+        for (int i = 0; i < types; i++) {
+            data.setBlockId(i % 16, 0, i / 16, i + 1);
+        }
+        data.setBlock(0, 1, 0, stone);
+
+        var section = data.createSnapshot().getSection(0);
+        assertEquals(0, section.getDeadEntryCount());
+        assertFalse(section.needsCompact());
+
+        //移除除石头以外的所有方块 失效条目可以O(1)得知
+        for (int i = 0; i < types; i++) {
+            data.setBlock(i % 16, 0, i / 16, air);
+        }
+        data.setBlock(0, 2, 0, stone);
+        section = data.createSnapshot().getSection(0);
+        assertTrue(section.getDeadEntryCount() > 0);
+        assertTrue(section.needsCompact());
+
+        //序列化前自动整理
+        var restored = FlexChunkSerializer.deserialize(FlexChunkSerializer.serialize(data));
+        section = data.createSnapshot().getSection(0);
+        assertFalse(section.needsCompact());
+        assertEquals(2, section.getLocalPalette().size());
+        assertEquals(4, section.getStorage().getBitsPerEntry());
+        assertEquals(stone, restored.getBlock(0, 2, 0));
+        assertEquals(2, restored.createSnapshot().getSection(0).getNonAirBlockCount());
+
+        //只剩一种方块时转为单值模式
+        data.fill(0, 0, 0, 16, 16, 16, palette.getStateId(stone));
+        data.setBlock(3, 3, 3, dirt);
+        data.setBlock(3, 3, 3, stone);
+        data.compact();
+        assertTrue(data.createSnapshot().getSection(0).isSingleValue());
+    }
+
+    /**
+     * 全部为同一种方块的区块段转为单值模式，写入不同方块后展开
+     */
+    @Test
+    public void singleValueSectionTest() {
+        var data = new FlexChunkData(16, 256, 16);
+        for (int x = 0; x < 16; x++) {
+            for (int z = 0; z < 16; z++) {
+                for (int y = 0; y < 32; y++) {
+                    data.setBlock(x, y, z, y < 16 ? stone : dirt);
+                }
+            }
+        }
+        data.compact();
+
+        var snapshot = data.createSnapshot();
+        assertTrue(snapshot.getSection(0).isSingleValue());
+        assertTrue(snapshot.getSection(1).isSingleValue());
+        assertNull(snapshot.getSection(0).getStorage());
+        assertEquals(stone, snapshot.getBlock(7, 3, 7));
+        assertFalse(snapshot.isAir(7, 3, 7));
+
+        //单值模式的区块段序列化后只占很少的字节
+        var bytes = FlexChunkSerializer.serialize(data);
+        assertTrue(bytes.length < 128);
+        var restored = FlexChunkSerializer.deserialize(bytes);
+        assertTrue(restored.createSnapshot().getSection(1).isSingleValue());
+        assertEquals(dirt, restored.getBlock(15, 31, 15));
+
+        //写入不同方块后展开为调色板模式
+        data.setBlock(1, 2, 3, air);
+        snapshot = data.createSnapshot();
+        assertFalse(snapshot.getSection(0).isSingleValue());
+        assertTrue(snapshot.isAir(1, 2, 3));
+        assertEquals(stone, data.getBlock(1, 2, 4));
+        assertEquals(16 * 16 * 16 - 1, snapshot.getSection(0).getNonAirBlockCount());
+
+        //恢复后再次整理 回到单值模式
+        data.setBlock(1, 2, 3, stone);
+        data.compact();
+        assertTrue(data.createSnapshot().getSection(0).isSingleValue());
+    }
+
+    /**
+     * 高度图随写入增量维护，移除最高方块后向下重新扫描，并随序列化保存
+     */
+    @Test
+    public void heightmapTest() {
+        var palette = GlobalPalette.getInstance();
+        var surface = FlexChunkHeightmap.Type.WORLD_SURFACE;
+        var data = new FlexChunkData(16, 256, 16);
+        assertEquals(0, data.getColumnHeight(surface, 4, 4));
+
+        data.setBlock(4, 10, 4, stone);
+        data.setBlock(4, 70, 4, dirt);
+        assertEquals(71, data.getColumnHeight(surface, 4, 4));
+        assertEquals(71, data.getColumnHeight(FlexChunkHeightmap.Type.SOLID, 4, 4));
+
+        //移除最高的方块后跨区块段向下找到下一个方块
+        data.setBlock(4, 70, 4, air);
+        assertEquals(11, data.getColumnHeight(surface, 4, 4));
+        data.setBlock(4, 10, 4, air);
+        assertEquals(0, data.getColumnHeight(surface, 4, 4));
+
+        //批量写入
+        data.fill(0, 0, 0, 16, 40, 16, palette.getStateId(stone));
+        data.fill(2, 30, 2, 5, 40, 5, palette.getStateId(air));
+        assertEquals(40, data.getColumnHeight(surface, 0, 0));
+        assertEquals(30, data.getColumnHeight(surface, 3, 3));
+        int[] column = new int[]{palette.getStateId(dirt), palette.getStateId(air), palette.getStateId(dirt)};
+        data.setColumn(7, 7, 50, column);
+        assertEquals(53, data.getColumnHeight(surface, 7, 7));
+
+        //快照中的高度图不受后续写入影响
+        var snapshot = data.createSnapshot();
+        data.setBlock(7, 100, 7, stone);
+        assertEquals(53, snapshot.getHeightmap().getHeight(surface, 7, 7));
+        assertEquals(101, data.getColumnHeight(surface, 7, 7));
+
+        //序列化后高度图保持一致
+        var restored = FlexChunkSerializer.deserialize(FlexChunkSerializer.serialize(data));
+        for (var type : FlexChunkHeightmap.TYPES) {
+            for (int x = 0; x < 16; x++) {
+                for (int z = 0; z < 16; z++) {
+                    assertEquals(data.getColumnHeight(type, x, z), restored.getColumnHeight(type, x, z));
+                }
+            }
+        }
+    }
+
+    /**
+     * 堆外存储的读写与序列化结果与堆内存储一致，释放后没有被快照共享的块归还给分配器
+     */
+    @Test
+    public void offHeapStorageTest() {
+        var allocator = new OffHeapSlabAllocator(64 * 1024);
+        BitStorage.setAllocator(allocator);
+        try {
+            var data = new FlexChunkData(16, 64, 16);
+            for (int x = 0; x < 16; x++) {
+                for (int z = 0; z < 16; z++) {
+                    for (int y = 0; y < 40; y++) {
+                        data.setBlock(x, y, z, (x + y + z) % 3 == 0 ? dirt : stone);
+                    }
+                }
+            }
+            assertTrue(allocator.getUsedBytes() > 0);
+
+            var restored = FlexChunkSerializer.deserialize(FlexChunkSerializer.serialize(data));
+            for (int x = 0; x < 16; x++) {
+                for (int z = 0; z < 16; z++) {
+                    for (int y = 0; y < 64; y++) {
+                        assertEquals(data.getBlock(x, y, z), restored.getBlock(x, y, z));
+                    }
+                }
+            }
+            allocator.logUsage();
+
+            //data的区块段在序列化时被快照共享，释放时留给Cleaner回收 restored没有被共享，释放后全部归还
+            long used = allocator.getUsedBytes();
+            data.release();
+            assertEquals(used, allocator.getUsedBytes());
+            assertTrue(data.isEmpty());
+            restored.release();
+            assertTrue(allocator.getUsedBytes() < used);
+
+            //归还的块被后续分配复用
+            long reserved = allocator.getReservedBytes();
+            var reused = new FlexChunkData(16, 64, 16);
+            reused.setBlock(1, 1, 1, stone);
+            assertEquals(reserved, allocator.getReservedBytes());
+            assertEquals(stone, reused.getBlock(1, 1, 1));
+            assertEquals(air, reused.getBlock(1, 2, 1));
+        } finally {
+            BitStorage.setAllocator(null);
+        }
+    }
+
+    /**
+     * 从直接缓冲区反序列化: 只读取position到limit之间的数据，读取后position移动到limit
+     */
+    @Test
+    public void byteBufferDeserializeTest() {
+        var data = new FlexChunkData(16, 256, 16);
+        for (int x = 0; x < 16; x++) {
+            for (int z = 0; z < 16; z++) {
+                for (int y = 0; y < 80; y++) {
+                    data.setBlock(x, y, z, (x * 7 + y * 3 + z) % 5 == 0 ? dirt : stone);
+                }
+            }
+        }
+
+        var bytes = FlexChunkSerializer.serialize(data);
+
+        //在数据前面放入其他数据
+        var buffer = ByteBuffer.allocateDirect(4 + bytes.length);
+        buffer.putInt(0x12345678);
+        buffer.put(bytes);
+        buffer.flip();
+        assertEquals(0x12345678, buffer.getInt());
+
+        var restored = FlexChunkSerializer.deserialize(buffer);
+        assertFalse(buffer.hasRemaining());
+        for (int x = 0; x < 16; x++) {
+            for (int z = 0; z < 16; z++) {
+                for (int y = 0; y < 256; y++) {
+                    assertEquals(data.getBlock(x, y, z), restored.getBlock(x, y, z));
+                }
+            }
+        }
+
+        //截断的数据无法反序列化
+        assertThrows(RuntimeException.class, () -> FlexChunkSerializer.deserialize(Arrays.copyOf(bytes, bytes.length / 2)));
+    }
+
+    /**
+     * 预设字典压缩: 提供字典时可以反序列化，找不到字典时无法反序列化，使用字典的数据不会被重复压缩
+     */
+    @Test
+    public void dictionarySerializeTest() {
+        var samples = new ArrayList<byte[]>();
+        for (int i = 0; i < 8; i++) {
+            var sample = new FlexChunkData(16, 256, 16);
+            for (int x = 0; x < 16; x++) {
+                for (int z = 0; z < 16; z++) {
+                    for (int y = 0; y < 60 + (x + z + i) % 6; y++) {
+                        sample.setBlock(x, y, z, (x * 7 + y * 3 + z + i) % 5 == 0 ? dirt : stone);
+                    }
+                }
+            }
+            samples.add(FlexChunkSerializer.serialize(sample));
+        }
+        var dictionary = FlexChunkDictionary.train(samples);
+        assertNotNull(dictionary);
+        assertTrue(dictionary.getData().length <= FlexChunkDictionary.MAX_SIZE);
+
+        var bytes = FlexChunkSerializer.recompress(samples.get(3), dictionary);
+        assertEquals(FlexChunkSerializer.CURRENT_VERSION, bytes[0]);
+        assertTrue(FlexChunkSerializer.usesDictionary(bytes));
+        assertFalse(FlexChunkSerializer.usesDictionary(samples.get(3)));
+        assertSame(bytes, FlexChunkSerializer.recompress(bytes, dictionary));
+
+        //找不到字典或ID不匹配时无法反序列化
+        var unknown = FlexChunkSerializer.recompress(samples.get(3), new FlexChunkDictionary(Arrays.copyOf(dictionary.getData(), 1024)));
+        assertThrows(RuntimeException.class, () -> FlexChunkSerializer.deserialize(unknown));
+        assertThrows(RuntimeException.class, () -> FlexChunkSerializer.deserialize(unknown, id -> dictionary));
+
+        var expected = FlexChunkSerializer.deserialize(samples.get(3));
+        var restored = FlexChunkSerializer.deserialize(bytes, id -> id == dictionary.getId() ? dictionary : null);
+        for (int x = 0; x < 16; x++) {
+            for (int z = 0; z < 16; z++) {
+                for (int y = 0; y < 256; y++) {
+                    assertEquals(expected.getBlock(x, y, z), restored.getBlock(x, y, z));
+                }
+            }
+        }
+    }
+
+    /**
+     * 快照序列化(存盘): 快照创建后的修改与区块数据的释放不影响快照的序列化结果，快照的序列化结果与创建快照时的区块数据一致
+     */
+    @Test
+    public void snapshotSerializeTest() {
+        var data = new FlexChunkData(16, 256, 16);
+        for (int x = 0; x < 16; x++) {
+            for (int z = 0; z < 16; z++) {
+                for (int y = 0; y < 70; y++) {
+                    data.setBlock(x, y, z, (x * 5 + y + z * 3) % 4 == 0 ? dirt : stone);
+                }
+            }
+        }
+
+        var expected = FlexChunkSerializer.serialize(data);
+        var snapshot = data.createSnapshot();
+        long revision = snapshot.getRevision();
+
+        //快照创建后继续修改区块数据(写时复制 不影响快照)
+        for (int x = 0; x < 16; x++) {
+            for (int z = 0; z < 16; z++) {
+                data.setBlock(x, 10, z, dirt);
+                data.setBlock(x, 100, z, stone);
+            }
+        }
+        assertTrue(data.getRevision() > revision);
+
+        var bytes = FlexChunkSerializer.serialize(snapshot);
+        assertArrayEquals(expected, bytes);
+
+        //区块数据释放(卸载)后 仍在使用的快照不受影响
+        data.release();
+        assertArrayEquals(expected, FlexChunkSerializer.serialize(snapshot));
+
+        var restored = FlexChunkSerializer.deserialize(bytes);
+        for (int x = 0; x < 16; x++) {
+            for (int z = 0; z < 16; z++) {
+                assertEquals((x * 5 + 10 + z * 3) % 4 == 0 ? dirt : stone, restored.getBlock(x, 10, z));
+                assertEquals(air, restored.getBlock(x, 100, z));
+            }
+        }
+    }
+
+}